@@ -0,0 +1,105 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the in-memory work of the API: building queries from ConferenceQueryForm,
+ * updating a Conference from a ConferenceForm and the list operations of Profile.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DomainBenchmark {
+
+    private static final int CONFERENCE_KEYS = 50;
+
+    private final LocalServices services = new LocalServices();
+
+    private ConferenceQueryForm queryForm;
+
+    private Conference conference;
+
+    private ConferenceForm conferenceForm;
+
+    private List<String> conferenceKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        services.setUp();
+        queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "London"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"))
+                .filter(new Filter(Field.TOPIC, Operator.EQ, "Cloud"));
+        conference = new Conference(1, "organizer", new ConferenceForm(
+                "Conference", "Description", null, "London", null, null, 100));
+        conferenceForm = new ConferenceForm("Renamed", "New description",
+                Arrays.asList("Cloud", "Platform"), "Paris", new Date(), new Date(), 200);
+        conferenceKeys = new ArrayList<>(CONFERENCE_KEYS);
+        for (int i = 0; i < CONFERENCE_KEYS; i++) {
+            conferenceKeys.add(Key.create(Conference.class, i + 1).getString());
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void attach() {
+        services.attach();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.tearDown();
+    }
+
+    @Benchmark
+    public Query<Conference> getQuery() {
+        return queryForm.getQuery();
+    }
+
+    @Benchmark
+    public Conference updateWithConferenceForm() {
+        conference.updateWithConferenceForm(conferenceForm);
+        return conference;
+    }
+
+    @Benchmark
+    public boolean profileListOperations() {
+        Profile profile = new Profile("attendee", "Attendee", "attendee@gmail.com",
+                TeeShirtSize.NOT_SPECIFIED);
+        for (String conferenceKey : conferenceKeys) {
+            profile.addToConferenceKeysToAttend(conferenceKey);
+        }
+        return profile.getConferenceKeysToAttend().contains(
+                conferenceKeys.get(CONFERENCE_KEYS - 1));
+    }
+}
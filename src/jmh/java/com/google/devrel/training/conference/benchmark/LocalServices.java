@@ -0,0 +1,41 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.service.EntityCache;
+
+/**
+ * The local datastore and memcache stubs for benchmarks.
+ *
+ * JMH may call setup and benchmark methods on different threads, and the App Engine
+ * environment is per thread, so benchmarks call attach() from an iteration setup.
+ */
+final class LocalServices {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private ApiProxy.Environment environment;
+
+    void setUp() {
+        helper.setUp();
+        EntityCache.clear();
+        environment = ApiProxy.getCurrentEnvironment();
+    }
+
+    /**
+     * Makes the services available to the current thread.
+     */
+    void attach() {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+    }
+
+    void tearDown() {
+        attach();
+        helper.tearDown();
+    }
+}
@@ -0,0 +1,102 @@
+package com.google.devrel.training.conference.benchmark;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.spi.ConferenceApi.WrappedBoolean;
+import com.googlecode.objectify.Key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark of ConferenceApi.registerForConference against the local datastore
+ * and memcache stubs.
+ *
+ * Users take turns registering for a conference with plenty of seats; the previous
+ * registration of the next user is deleted outside of the measurement.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RegisterForConferenceBenchmark {
+
+    private static final int USERS = 100;
+
+    private static final int CAP = 10000000;
+
+    private final LocalServices services = new LocalServices();
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    private final List<User> users = new ArrayList<>(USERS);
+
+    private String websafeConferenceKey;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        services.setUp();
+        Conference conference = new Conference(1, "organizer", new ConferenceForm(
+                "Conference", null, null, "London", null, null, CAP));
+        conference.save();
+        ofy().save().entities(SeatInventory.createShards(conference)).now();
+        websafeConferenceKey = conference.getWebsafeKey();
+        for (int i = 0; i < USERS; i++) {
+            String userId = "attendee" + i;
+            new Profile(userId, "Attendee " + i, userId + "@gmail.com",
+                    TeeShirtSize.NOT_SPECIFIED).save();
+            users.add(new User(userId + "@gmail.com", "gmail.com", userId));
+        }
+        ofy().clear();
+    }
+
+    @Setup(Level.Iteration)
+    public void attach() {
+        services.attach();
+    }
+
+    @Setup(Level.Invocation)
+    public void unregisterNextUser() {
+        next = (next + 1) % USERS;
+        ofy().delete().key(Registration.key(
+                Key.create(Profile.class, users.get(next).getUserId()),
+                websafeConferenceKey)).now();
+        ofy().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.tearDown();
+    }
+
+    @Benchmark
+    public WrappedBoolean registerForConference() throws Exception {
+        return conferenceApi.registerForConference(users.get(next), websafeConferenceKey);
+    }
+}
@@ -0,0 +1,70 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.api.server.spi.ConfiguredObjectMapper;
+import com.google.appengine.repackaged.org.codehaus.jackson.map.ObjectWriter;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the JSON serialization of a Conference with the object mapper of Cloud
+ * Endpoints, which calls every getter including getTopics() and getWebsafeKey().
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    private final LocalServices services = new LocalServices();
+
+    private ObjectWriter writer;
+
+    private Conference conference;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        services.setUp();
+        writer = ConfiguredObjectMapper.builder().build().writer();
+        conference = new Conference(1, "organizer", new ConferenceForm(
+                "Conference", "Description", Arrays.asList("Cloud", "Platform", "Google"),
+                "London", new Date(), new Date(), 100));
+        // As resolved by the API before returning conferences, so that serializing does
+        // not load the organizer's Profile.
+        conference.setOrganizerDisplayName("Organizer");
+    }
+
+    @Setup(Level.Iteration)
+    public void attach() {
+        services.attach();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.tearDown();
+    }
+
+    @Benchmark
+    public String serializeConference() throws IOException {
+        return writer.writeValueAsString(conference);
+    }
+}
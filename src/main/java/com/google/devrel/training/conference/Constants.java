@@ -14,4 +14,7 @@ public class Constants {
     public static final String API_EXPLORER_CLIENT_ID = Constant.API_EXPLORER_CLIENT_ID;
 
     public static final String MEMCACHE_ANNOUNCEMENTS_KEY = "RECENT_ANNOUNCEMENTS";
+
+    public static final int DEFAULT_QUERY_PAGE_SIZE = 100;
+    public static final int MAX_QUERY_PAGE_SIZE = 200;
 }
\ No newline at end of file
@@ -1,7 +1,5 @@
 package com.google.devrel.training.conference.domain;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
 import com.googlecode.objectify.annotation.*;
 import com.googlecode.objectify.condition.IfNotDefault;
 
@@ -10,8 +8,15 @@ import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.EntityTags;
+import com.google.devrel.training.conference.service.UnitOfWork;
 import com.googlecode.objectify.Key;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -72,7 +77,11 @@ public class Conference {
 
     /**
      * The starting date of this conference.
+     *
+     * Indexed for the projection queries of ConferenceCards, which only return conferences
+     * with every projected property indexed.
      */
+    @Index
     private Date startDate;
 
     /**
@@ -100,6 +109,34 @@ public class Conference {
     @Index
     private int seatsAvailable;
 
+    /**
+     * Organizer's display name, copied from their Profile by createConference and by
+     * OrganizerDisplayNames when it changes. Null for conferences created before it was
+     * stored, until the API layer resolves it.
+     */
+    private String organizerDisplayName;
+
+    /**
+     * When the Conference was last written, by any instance. ConferenceIndex queries it to
+     * catch up with the writes of other instances.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Date updatedAt;
+
+    /**
+     * The persisted properties as last loaded or saved, null for a new Conference.
+     */
+    @Ignore
+    private List<Object> persistedState;
+
+    /**
+     * Whether the organizer's display name was stored when last loaded or saved, rather than
+     * resolved from their Profile since.
+     */
+    @Ignore
+    private boolean organizerDisplayNameStored;
+
     /**
      * Just making the default constructor private.
      */
@@ -142,13 +179,16 @@ public class Conference {
     }
 
     /**
-     * Returns organizer's display name.
+     * Returns organizer's display name, loading their Profile when it is not stored.
      *
      * @return organizer's display name. If there is no Profile, return his/her userId.
      */
     public String getOrganizerDisplayName() {
+        if (organizerDisplayName != null) {
+            return organizerDisplayName;
+        }
         // Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
-        Profile organizer = ofy().load().key(getProfileKey()).now();
+        Profile organizer = Repositories.profiles().get(getProfileKey());
         if (organizer == null) {
             return organizerUserId;
         } else {
@@ -156,6 +196,33 @@ public class Conference {
         }
     }
 
+    /**
+     * Sets the organizer's display name so that getOrganizerDisplayName() doesn't need to
+     * load the Profile.
+     *
+     * @param organizerDisplayName organizer's display name, already resolved by the caller.
+     */
+    public void setOrganizerDisplayName(String organizerDisplayName) {
+        this.organizerDisplayName = organizerDisplayName;
+    }
+
+    /**
+     * Returns whether the organizer's display name is known without loading their Profile.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasOrganizerDisplayName() {
+        return organizerDisplayName != null;
+    }
+
+    /**
+     * Returns whether the organizer's display name is stored with the Conference, so that
+     * its representation changes only with writes of the Conference.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean storesOrganizerDisplayName() {
+        return organizerDisplayNameStored && !isDirty();
+    }
+
     /**
      * Returns a defensive copy of topics if not null.
      * @return a defensive copy of topics if not null.
@@ -196,6 +263,15 @@ public class Conference {
         return seatsAvailable;
     }
 
+    /**
+     * Sets the number of seats available as aggregated from the SeatShards of this conference.
+     *
+     * @param seatsAvailable the sum of the seats available in the shards.
+     */
+    public void setSeatsAvailable(final int seatsAvailable) {
+        this.seatsAvailable = seatsAvailable;
+    }
+
     /**
      * Updates the Conference with ConferenceForm.
      * This method is used upon object creation as well as updating existing Conferences.
@@ -269,8 +345,62 @@ public class Conference {
         return stringBuilder.toString();
     }
     
+    /**
+     * Saves the Conference with its repository, unless none of its properties changed since
+     * it was loaded or last written.
+     */
     public void save() {
-        ofy().save().entity(this).now();
+        if (isDirty()) {
+            Repositories.conferences().save(this);
+        } else {
+            UnitOfWork.skipped();
+        }
+    }
+
+    /**
+     * Returns the ETag of the Conference as returned by the API, a hash of the fields
+     * returned, including the seats available set from its shards and the organizer display
+     * name resolved for it.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getETag() {
+        return EntityTags.of(getWebsafeKey(), name, description, topics, city, startDate,
+                endDate, month, maxAttendees, seatsAvailable, getOrganizerDisplayName());
+    }
+
+    /**
+     * Returns whether a property changed since the Conference was loaded or last saved, or
+     * it was never saved.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isDirty() {
+        return persistedState == null || !persistedState.equals(state());
+    }
+
+    private List<Object> state() {
+        return Arrays.<Object>asList(name, description, profileKey, organizerUserId,
+                topics == null ? null : new ArrayList<>(topics), city, getStartDate(),
+                getEndDate(), month, maxAttendees, seatsAvailable, organizerDisplayName);
+    }
+
+    @OnLoad
+    void loaded() {
+        persistedState = state();
+        organizerDisplayNameStored = organizerDisplayName != null;
+    }
+
+    /**
+     * Records the properties saved and when, invalidates the in-instance cache and the ETag
+     * of this Conference and updates the in-instance index whenever it is saved.
+     */
+    @OnSave
+    void invalidateCache() {
+        persistedState = state();
+        organizerDisplayNameStored = organizerDisplayName != null;
+        updatedAt = new Date();
+        EntityCache.invalidate(Key.create(this));
+        EntityTags.invalidate(Key.create(this));
+        ConferenceIndex.update(this);
     }
 
 }
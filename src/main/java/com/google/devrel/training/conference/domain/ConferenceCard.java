@@ -0,0 +1,116 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.Key;
+
+import java.util.Date;
+
+/**
+ * What the conference lists show of a conference: its name, city, start date and seats,
+ * without the description, topics and the other properties of the details page.
+ *
+ * Cards of a query are read with a projection query on the indexed properties, so neither
+ * reading nor serializing them touches the rest of the Conference.
+ */
+public class ConferenceCard {
+
+    private final Key<Conference> key;
+
+    private final String name;
+
+    private final String city;
+
+    private final Date startDate;
+
+    private final int maxAttendees;
+
+    private int seatsAvailable;
+
+    private String organizerDisplayName;
+
+    public ConferenceCard(Key<Conference> key, String name, String city, Date startDate,
+                          int maxAttendees, int seatsAvailable) {
+        this.key = key;
+        this.name = name;
+        this.city = city;
+        this.startDate = startDate == null ? null : new Date(startDate.getTime());
+        this.maxAttendees = maxAttendees;
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Returns the card of a loaded conference, with its seats available and organizer
+     * display name as set on it.
+     */
+    public static ConferenceCard of(Conference conference) {
+        ConferenceCard card = new ConferenceCard(Key.create(conference), conference.getName(),
+                conference.getCity(), conference.getStartDate(), conference.getMaxAttendees(),
+                conference.getSeatsAvailable());
+        if (conference.hasOrganizerDisplayName()) {
+            card.setOrganizerDisplayName(conference.getOrganizerDisplayName());
+        }
+        return card;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Conference> getKey() {
+        return key;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Profile> getProfileKey() {
+        return key.getParent();
+    }
+
+    public String getWebsafeKey() {
+        return key.getString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * Returns a defensive copy of startDate if not null.
+     * @return a defensive copy of startDate if not null.
+     */
+    public Date getStartDate() {
+        return startDate == null ? null : new Date(startDate.getTime());
+    }
+
+    public int getMaxAttendees() {
+        return maxAttendees;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    /**
+     * Sets the current number of seats available, in place of the stored one.
+     */
+    public void setSeatsAvailable(int seatsAvailable) {
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Returns organizer's display name, or null until the API layer resolves it.
+     */
+    public String getOrganizerDisplayName() {
+        return organizerDisplayName;
+    }
+
+    public void setOrganizerDisplayName(String organizerDisplayName) {
+        this.organizerDisplayName = organizerDisplayName;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasOrganizerDisplayName() {
+        return organizerDisplayName != null;
+    }
+}
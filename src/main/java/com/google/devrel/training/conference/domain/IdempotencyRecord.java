@@ -0,0 +1,89 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * IdempotencyRecord class records the result of an API method called with an idempotency
+ * key, so that a retry with the same key gets the same result without running the method
+ * again.
+ *
+ * A record is a child of the caller's Profile, keyed by the method and the idempotency key,
+ * so keys of different users never collide. Records are kept in memcache too; these are the
+ * fallback when memcache evicted them, until they expire.
+ */
+@Entity
+public class IdempotencyRecord {
+
+    /**
+     * The name of the API method and the idempotency key.
+     */
+    @Id
+    private String id;
+
+    /**
+     * Holds the caller's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    /**
+     * The result of the method, as the method encodes it.
+     */
+    private String result;
+
+    /**
+     * When the record expires, indexed to purge expired records.
+     */
+    @Index
+    private Date expiresAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private IdempotencyRecord() {}
+
+    public IdempotencyRecord(final Key<Profile> profileKey, final String method,
+                             final String idempotencyKey, final String result,
+                             final Date expiresAt) {
+        this.profileKey = profileKey;
+        this.id = id(method, idempotencyKey);
+        this.result = result;
+        this.expiresAt = new Date(expiresAt.getTime());
+    }
+
+    private static String id(final String method, final String idempotencyKey) {
+        return method + ":" + idempotencyKey;
+    }
+
+    /**
+     * Returns the key of the record of a method called by a user with an idempotency key.
+     *
+     * @param profileKey The key of the caller's Profile.
+     * @param method The name of the API method.
+     * @param idempotencyKey The idempotency key.
+     * @return the key of the IdempotencyRecord.
+     */
+    public static Key<IdempotencyRecord> key(final Key<Profile> profileKey,
+                                             final String method,
+                                             final String idempotencyKey) {
+        return Key.create(profileKey, IdempotencyRecord.class, id(method, idempotencyKey));
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public Date getExpiresAt() {
+        return new Date(expiresAt.getTime());
+    }
+
+    public boolean isExpired() {
+        return expiresAt.getTime() <= System.currentTimeMillis();
+    }
+}
@@ -1,16 +1,25 @@
 package com.google.devrel.training.conference.domain;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.EntityTags;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
 // TODO indicate that this class is an Entity
 @Entity
 @Cache
@@ -19,11 +28,21 @@ public class Profile {
 	String mainEmail;
 	TeeShirtSize teeShirtSize;
 
+	/**
+	 * Websafe keys of the conferences to attend, as stored before registrations became
+	 * Registration entities. Only read by the migration to Registration entities.
+	 */
 	private List<String> conferenceKeysToAttend;
 
 	// TODO indicate that the userId is to be used in the Entity's key
 	@Id
 	String userId;
+
+	/**
+	 * The persisted properties as last loaded or saved, null for a new Profile.
+	 */
+	@Ignore
+	private List<Object> persistedState;
     
     /**
      * Public constructor for Profile.
@@ -61,20 +80,78 @@ public class Profile {
      */
     private Profile() {}
 	
+	/**
+	 * Saves the Profile with its repository, unless none of its properties changed since it
+	 * was loaded or last written.
+	 */
 	public void save() {
 		// TODO 3 (In Lesson 3)
 		// Save the Profile entity in the datastore
-		ofy().save().entity(this).now();
+		if (isDirty()) {
+			Repositories.profiles().save(this);
+		} else {
+			UnitOfWork.skipped();
+		}
 	}
-	
+
+	/**
+	 * Returns the ETag of the Profile as returned by the API, a hash of the fields returned.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public String getETag() {
+		return EntityTags.of(userId, displayName, mainEmail, teeShirtSize);
+	}
+
+	/**
+	 * Returns whether a property changed since the Profile was loaded or last saved, or it
+	 * was never saved.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public boolean isDirty() {
+		return persistedState == null || !persistedState.equals(state());
+	}
+
+	private List<Object> state() {
+		return Arrays.<Object>asList(displayName, mainEmail, teeShirtSize,
+				conferenceKeysToAttend == null ? null : new ArrayList<>(conferenceKeysToAttend));
+	}
+
+	@OnLoad
+	void loaded() {
+		persistedState = state();
+	}
+
+	/**
+	 * Records the properties saved and invalidates the in-instance cache and the ETag of
+	 * this Profile whenever it is saved.
+	 */
+	@OnSave
+	void invalidateCache() {
+		persistedState = state();
+		EntityCache.invalidate(Key.create(this));
+		EntityTags.invalidate(Key.create(this));
+	}
+
+	/**
+	 * Updates the display name and the tee shirt size, leaving those given as null unchanged,
+	 * and saves the Profile if they changed.
+	 */
 	public void update(String displayName, TeeShirtSize teeShirtSize) {
-    	if (!(displayName.equals(this.displayName) && teeShirtSize.equals(teeShirtSize))) {
-    		this.displayName = displayName;
-    		this.teeShirtSize = teeShirtSize;
-    		save();
+		if (displayName != null) {
+			this.displayName = displayName;
 		}
+		if (teeShirtSize != null) {
+			this.teeShirtSize = teeShirtSize;
+		}
+		save();
 	}
 
+	/**
+	 * Returns the legacy list of websafe keys of the conferences to attend.
+	 * Registrations are Registration entities now; see Registration.
+	 * @return the legacy list, empty once migrated.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	public List<String> getConferenceKeysToAttend() {
 		return conferenceKeysToAttend != null ? conferenceKeysToAttend : new ArrayList<String>();
 	}
@@ -86,7 +163,10 @@ public class Profile {
 		conferenceKeysToAttend.add(websafeConferenceKey);
 	}
 
-	public void removeConferenceToAttend(String websafeConferenceKey) {
-    	getConferenceKeysToAttend().remove(websafeConferenceKey);
+	/**
+	 * Clears the legacy list once it has been migrated to Registration entities.
+	 */
+	public void clearConferenceKeysToAttend() {
+		conferenceKeysToAttend = null;
 	}
 }
@@ -0,0 +1,83 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * Registration class records that a user is going to attend a conference.
+ *
+ * A Registration is a child of the attendee's Profile, keyed by the websafe key of the
+ * conference, so whether a user is registered is a single key lookup and the conferences
+ * a user attends are listed by a keys-only ancestor query.
+ */
+@Entity
+@Cache
+public class Registration {
+
+    /**
+     * The websafe key of the conference.
+     */
+    @Id
+    private String websafeConferenceKey;
+
+    /**
+     * Holds the attendee's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    /**
+     * When the user registered.
+     */
+    private Date registrationDate;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Registration() {}
+
+    public Registration(final Key<Profile> profileKey, final String websafeConferenceKey) {
+        this.profileKey = profileKey;
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.registrationDate = new Date();
+    }
+
+    /**
+     * Returns the key of the registration of a user for a conference.
+     *
+     * @param profileKey The key of the attendee's Profile.
+     * @param websafeConferenceKey The websafe key of the conference.
+     * @return the key of the Registration.
+     */
+    public static Key<Registration> key(final Key<Profile> profileKey,
+                                        final String websafeConferenceKey) {
+        return Key.create(profileKey, Registration.class, websafeConferenceKey);
+    }
+
+    /**
+     * Returns the key of the conference a registration is for, without loading it.
+     *
+     * @param registrationKey The key of the Registration.
+     * @return the key of the conference.
+     */
+    public static Key<Conference> conferenceKey(final Key<Registration> registrationKey) {
+        return Key.create(registrationKey.getName());
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    public Key<Profile> getProfileKey() {
+        return profileKey;
+    }
+
+    public Date getRegistrationDate() {
+        return registrationDate == null ? null : new Date(registrationDate.getTime());
+    }
+}
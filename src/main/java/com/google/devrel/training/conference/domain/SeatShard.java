@@ -0,0 +1,86 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * SeatShard class holds a slice of the seats of a conference.
+ *
+ * The seats of a conference are split over several shards, each in its own entity group,
+ * so that concurrent registrations for the same conference don't contend on one entity.
+ */
+@Entity
+@Cache
+public class SeatShard {
+
+    /**
+     * The websafe key of the conference, followed by the shard number.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The number of seats this shard started with.
+     */
+    private int capacity;
+
+    /**
+     * Number of seats currently available in this shard.
+     */
+    private int seatsAvailable;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SeatShard() {}
+
+    public SeatShard(final Key<Conference> conferenceKey, final int shard, final int capacity,
+                     final int seatsAvailable) {
+        this.id = id(conferenceKey, shard);
+        this.capacity = capacity;
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Returns the key of the given shard of a conference.
+     *
+     * @param conferenceKey The key of the conference.
+     * @param shard The shard number.
+     * @return the key of the shard.
+     */
+    public static Key<SeatShard> key(final Key<Conference> conferenceKey, final int shard) {
+        return Key.create(SeatShard.class, id(conferenceKey, shard));
+    }
+
+    private static String id(final Key<Conference> conferenceKey, final int shard) {
+        return conferenceKey.getString() + "/" + shard;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        if (seatsAvailable + number > capacity) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+        seatsAvailable = seatsAvailable + number;
+    }
+}
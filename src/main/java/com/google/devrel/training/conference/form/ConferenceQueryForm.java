@@ -4,13 +4,20 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Conference;
 
 import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
@@ -20,6 +27,20 @@ public class ConferenceQueryForm {
 
     private static final Logger LOG = Logger.getLogger(ConferenceQueryForm.class.getName());
 
+    /**
+     * The number of hex digits of the hash of the filters a page token starts with.
+     */
+    private static final int TOKEN_HASH_LENGTH = 16;
+
+    /**
+     * The views of the results of a query that page tokens are issued for. The datastore
+     * cursors of card pages are positions in a projection query, not in the query of the
+     * conferences.
+     */
+    public static enum View {
+        CONFERENCES, CARDS
+    }
+
     /**
      * Enum representing a field type.
      */
@@ -34,7 +55,8 @@ public class ConferenceQueryForm {
         CITY("city", FieldType.STRING),
         TOPIC("topics", FieldType.STRING),
         MONTH("month", FieldType.INTEGER),
-        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER);
+        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER),
+        SEATS_AVAILABLE("seatsAvailable", FieldType.INTEGER);
 
         private String fieldName;
 
@@ -45,9 +67,13 @@ public class ConferenceQueryForm {
             this.fieldType = fieldType;
         }
 
-        private String getFieldName() {
+        public String getFieldName() {
             return this.fieldName;
         }
+
+        public FieldType getFieldType() {
+            return this.fieldType;
+        }
     }
 
     /**
@@ -67,14 +93,37 @@ public class ConferenceQueryForm {
             this.queryOperator = queryOperator;
         }
 
-        private String getQueryOperator() {
+        public String getQueryOperator() {
             return this.queryOperator;
         }
 
-        private boolean isInequalityFilter() {
+        public boolean isInequalityFilter() {
             return this.queryOperator.contains("<") || this.queryOperator.contains(">") ||
                     this.queryOperator.contains("!");
         }
+
+        /**
+         * Returns whether a value satisfies this operator.
+         *
+         * @param comparison The value compared to the filter value, as by compareTo.
+         * @return true if the value satisfies this operator.
+         */
+        public boolean accepts(int comparison) {
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case LT:
+                    return comparison < 0;
+                case GT:
+                    return comparison > 0;
+                case LTEQ:
+                    return comparison <= 0;
+                case GTEQ:
+                    return comparison >= 0;
+                default:
+                    return comparison != 0;
+            }
+        }
     }
 
     /**
@@ -104,6 +153,59 @@ public class ConferenceQueryForm {
         public String getValue() {
             return value;
         }
+
+        /**
+         * Returns the condition of this filter for Query.filter(), like "city ==".
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        public String getCondition() {
+            return String.format("%s %s", field.getFieldName(), operator.getQueryOperator());
+        }
+
+        /**
+         * Returns the value of this filter with the type of its field.
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        public Object getTypedValue() {
+            return field.fieldType == FieldType.INTEGER ? Integer.parseInt(value) : value;
+        }
+
+        /**
+         * Returns whether a conference satisfies this filter. As in the datastore, a
+         * conference satisfies a filter on topics when any of its topics does, and a
+         * conference stored without a city or topics satisfies no filter on them.
+         *
+         * @param conference The conference.
+         * @return true if the conference satisfies this filter.
+         */
+        public boolean matches(Conference conference) {
+            switch (field) {
+                case CITY:
+                    String city = conference.getCity();
+                    return city != null && operator.accepts(city.compareTo(value));
+                case TOPIC:
+                    List<String> topics = conference.getTopics();
+                    if (topics == null) {
+                        return false;
+                    }
+                    for (String topic : topics) {
+                        if (topic != null && operator.accepts(topic.compareTo(value))) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case MONTH:
+                    return operator.accepts(compare(conference.getMonth()));
+                case MAX_ATTENDEES:
+                    return operator.accepts(compare(conference.getMaxAttendees()));
+                default:
+                    return operator.accepts(compare(conference.getSeatsAvailable()));
+            }
+        }
+
+        private int compare(int fieldValue) {
+            return Integer.compare(fieldValue, Integer.parseInt(value));
+        }
     }
 
     /**
@@ -111,6 +213,16 @@ public class ConferenceQueryForm {
      */
     private List<Filter> filters = new ArrayList<>(0);
 
+    /**
+     * The maximum number of conferences to return, or null for the default page size.
+     */
+    private Integer pageSize;
+
+    /**
+     * The page token returned with the previous page, or null for the first page.
+     */
+    private String cursor;
+
     /**
      * Holds the first inequalityFilter for checking the feasibility of the whole query.
      */
@@ -119,11 +231,41 @@ public class ConferenceQueryForm {
 
     public ConferenceQueryForm() {}
 
+    /**
+     * Returns whether the datastore can serve the query a page at a time, that is whether
+     * all its inequality filters are on the same field and none is a not-equal filter, which
+     * the datastore runs as two queries merged without a cursor. Other queries are planned
+     * by QueryPlanner.
+     *
+     * @return true if getQuery() can be used.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isDatastoreQuery() {
+        Field inequalityField = null;
+        for (Filter filter : this.filters) {
+            if (filter.operator == Operator.NE) {
+                return false;
+            }
+            if (filter.operator.isInequalityFilter()) {
+                if (inequalityField != null && !inequalityField.equals(filter.field)) {
+                    return false;
+                }
+                inequalityField = filter.field;
+            }
+        }
+        return true;
+    }
+
     /**
      * Checks the feasibility of the whole query.
      */
     private void checkFilters() {
         for (Filter filter : this.filters) {
+            if (filter.operator == Operator.NE) {
+                // The merged queries have no cursor to resume the next page from.
+                throw new IllegalArgumentException(
+                        "Not-equal filters can't be paged with a cursor.");
+            }
             if (filter.operator.isInequalityFilter()) {
                 // Only one inequality filter is allowed.
                 if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
@@ -151,21 +293,185 @@ public class ConferenceQueryForm {
      * @return this for method chaining.
      */
     public ConferenceQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
-            }
-            inequalityFilter = filter;
-        }
         filters.add(filter);
         return this;
     }
 
     /**
-     * Returns an Objectify Query object for the specified filters.
+     * Returns the number of conferences to return, bounded by Constants.MAX_QUERY_PAGE_SIZE.
+     *
+     * @return the page size.
+     */
+    public int getPageSize() {
+        if (pageSize == null || pageSize <= 0) {
+            return Constants.DEFAULT_QUERY_PAGE_SIZE;
+        }
+        return Math.min(pageSize, Constants.MAX_QUERY_PAGE_SIZE);
+    }
+
+    /**
+     * Sets the page size.
      *
+     * @param pageSize The maximum number of conferences to return.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Sets the cursor to resume the query from.
+     *
+     * @param cursor The page token returned with the previous page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm cursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    /**
+     * Makes the page token of the next page. The token starts with a hash of the filters
+     * and of the view, so that it can't resume another query.
+     *
+     * @param view The view of the results the page is in.
+     * @param position Where the next page starts, e.g. a websafe datastore cursor.
+     * @return the page token.
+     */
+    public String pageToken(View view, String position) {
+        return tokenHash(view) + ':' + position;
+    }
+
+    /**
+     * Returns where the page starts, from the page token of the previous page.
+     *
+     * @param view The view of the results the page is in.
+     * @return the position given to pageToken(), or null for the first page.
+     * @throws IllegalArgumentException when the page token was not issued for the filters
+     *     and the view of this query.
+     */
+    public String position(View view) {
+        return position(cursor, view);
+    }
+
+    private String position(String pageToken, View view) {
+        if (pageToken == null) {
+            return null;
+        }
+        int separator = pageToken.indexOf(':');
+        if (separator < 0 || !pageToken.substring(0, separator).equals(tokenHash(view))) {
+            throw new IllegalArgumentException(
+                    "Invalid page token for this query: " + pageToken);
+        }
+        return pageToken.substring(separator + 1);
+    }
+
+    /**
+     * Re-issues a page token of this query for another view, for the pages of one view made
+     * from the pages of another, e.g. cards made from pages of conferences.
+     *
+     * @param pageToken A page token issued for the view from, or null.
+     * @param from The view the page token was issued for.
+     * @param to The view to issue the page token for.
+     * @return the page token starting at the same position in the view to, or null when
+     *     pageToken is null.
+     * @throws IllegalArgumentException when the page token was not issued for the filters
+     *     of this query and the view from.
+     */
+    public String reissuePageToken(String pageToken, View from, View to) {
+        String position = position(pageToken, from);
+        return position == null ? null : pageToken(to, position);
+    }
+
+    /**
+     * Returns a copy of this query whose page token is re-issued for another view.
+     *
+     * @param from The view the page token of this query was issued for.
+     * @param to The view of the copy.
+     * @return the copy.
+     * @throws IllegalArgumentException when the page token was not issued for the filters
+     *     of this query and the view from.
+     */
+    public ConferenceQueryForm inView(View from, View to) {
+        ConferenceQueryForm form = new ConferenceQueryForm();
+        form.filters.addAll(filters);
+        form.pageSize = pageSize;
+        form.cursor = reissuePageToken(cursor, from, to);
+        return form;
+    }
+
+    /**
+     * Returns the datastore cursor the page starts at, from the page token of the previous
+     * page.
+     *
+     * @param view The view of the results the page is in.
+     * @return the cursor, or null for the first page.
+     * @throws IllegalArgumentException when the page token was not issued for the filters
+     *     and the view of this query, or is not a datastore cursor.
+     */
+    public Cursor startCursor(View view) {
+        String position = position(view);
+        if (position == null) {
+            return null;
+        }
+        try {
+            return Cursor.fromWebSafeString(position);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token: " + cursor, e);
+        }
+    }
+
+    /**
+     * Returns the offset the page starts at, from the page token of the previous page of a
+     * query paged by offsets.
+     *
+     * @param view The view of the results the page is in.
+     * @param prefix The prefix of the offset in the position given to pageToken().
+     * @return the offset, 0 for the first page.
+     * @throws IllegalArgumentException when the page token was not issued for the filters
+     *     and the view of this query, or has no offset.
+     */
+    public int startOffset(View view, String prefix) {
+        String position = position(view);
+        if (position == null) {
+            return 0;
+        }
+        if (position.startsWith(prefix)) {
+            try {
+                int offset = Integer.parseInt(position.substring(prefix.length()));
+                if (offset >= 0) {
+                    return offset;
+                }
+            } catch (NumberFormatException e) {
+                // Rejected below.
+            }
+        }
+        throw new IllegalArgumentException("Invalid page token: " + cursor);
+    }
+
+    /**
+     * Hashes the view and the filters, in any order, of this query.
+     */
+    private String tokenHash(View view) {
+        SortedSet<String> conditions = new TreeSet<>();
+        for (Filter filter : filters) {
+            conditions.add(filter.getCondition() + " " + filter.getValue());
+        }
+        return Hashing.sha1().hashString(view + "|" + Joiner.on('&').join(conditions),
+                Charsets.UTF_8).toString().substring(0, TOKEN_HASH_LENGTH);
+    }
+
+    /**
+     * Returns an Objectify Query object for the specified filters, limited to one page
+     * starting at the cursor.
+     *
+     * @throws IllegalArgumentException if the datastore can't serve the query a page at a
+     *     time, as with not-equal filters, or the page token is invalid.
      * @return an Objectify Query.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -183,14 +489,13 @@ public class ConferenceQueryForm {
         }
         for (Filter filter : this.filters) {
             // Applies filters in order.
-            if (filter.field.fieldType == FieldType.STRING) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), filter.value);
-            } else if (filter.field.fieldType == FieldType.INTEGER) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
-            }
+            query = query.filter(filter.getCondition(), filter.getTypedValue());
+        }
+        Cursor startCursor = startCursor(View.CONFERENCES);
+        if (startCursor != null) {
+            query = query.startAt(startCursor);
         }
+        query = query.limit(getPageSize());
         LOG.info(query.toString());
         return query;
     }
@@ -0,0 +1,189 @@
+package com.google.devrel.training.conference.repository;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores Conferences.
+ *
+ * Loaded Conferences belong to the caller, who saves what it changes. Their seats
+ * available are as stored, which may lag behind registrations; the RegistrationRepository
+ * has the current number.
+ */
+public interface ConferenceRepository {
+
+    /**
+     * A page of conferences matching a query.
+     */
+    class Page {
+
+        private final List<Conference> conferences;
+
+        private final String nextPageToken;
+
+        public Page(List<Conference> conferences, String nextPageToken) {
+            this.conferences = conferences;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<Conference> getConferences() {
+            return conferences;
+        }
+
+        /**
+         * Returns the token of the next page, or null when there is none.
+         */
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * A page of the cards of the conferences matching a query.
+     */
+    class CardPage {
+
+        private final List<ConferenceCard> cards;
+
+        private final String nextPageToken;
+
+        public CardPage(List<ConferenceCard> cards, String nextPageToken) {
+            this.cards = cards;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * Returns the cards of a page of conferences, with its page token re-issued for the
+         * cards.
+         *
+         * @param page The page of conferences, read for form.inView(View.CARDS,
+         *     View.CONFERENCES).
+         * @param form The query of the cards.
+         */
+        public static CardPage of(Page page, ConferenceQueryForm form) {
+            List<ConferenceCard> cards = new ArrayList<>(page.getConferences().size());
+            for (Conference conference : page.getConferences()) {
+                cards.add(ConferenceCard.of(conference));
+            }
+            return new CardPage(cards, form.reissuePageToken(page.getNextPageToken(),
+                    View.CONFERENCES, View.CARDS));
+        }
+
+        public List<ConferenceCard> getCards() {
+            return cards;
+        }
+
+        /**
+         * Returns the token of the next page, or null when there is none. Card pages and
+         * pages of conferences have tokens of their own.
+         */
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * Allocates the key of a new conference.
+     *
+     * @param organizerKey The key of the organizer's Profile, the parent of the conference.
+     * @return a key no other conference has.
+     */
+    Key<Conference> allocateKey(Key<Profile> organizerKey);
+
+    /**
+     * Stores a new conference with its seats, and the Profile of its organizer when given,
+     * all or nothing, and sends the organizer a confirmation e-mail once they are stored.
+     *
+     * @param conference The new conference, with a key from allocateKey().
+     * @param newOrganizer The Profile of the organizer when they have none yet, or null.
+     */
+    void create(Conference conference, Profile newOrganizer);
+
+    /**
+     * Loads a conference.
+     *
+     * @param key The key of the conference.
+     * @return the conference, or null when there is none.
+     */
+    Conference get(Key<Conference> key);
+
+    /**
+     * Loads conferences in a batch.
+     *
+     * @param keys The keys of the conferences.
+     * @return the conferences found, by key, in the order of the keys.
+     */
+    Map<Key<Conference>, Conference> get(Collection<Key<Conference>> keys);
+
+    /**
+     * Saves a conference. The write may be deferred to the end of the request, or to the
+     * commit of the current transaction.
+     *
+     * @param conference The conference, which changed since it was loaded or last saved.
+     */
+    void save(Conference conference);
+
+    /**
+     * Stores the current seats available with a conference in a transaction, unless they
+     * are stored already, so that nearlySoldOut() and the queries on seatsAvailable find
+     * it.
+     *
+     * @param key The key of the conference.
+     * @param seatsAvailable The current seats available.
+     * @return the conference, or null when there is none.
+     */
+    Conference writeSeatsAvailable(Key<Conference> key, int seatsAvailable);
+
+    /**
+     * Returns the conferences of an organizer, by name.
+     *
+     * @param organizerKey The key of the organizer's Profile.
+     * @return the conferences.
+     */
+    List<Conference> listByOrganizer(Key<Profile> organizerKey);
+
+    /**
+     * Returns a page of the conferences matching a query, by name.
+     *
+     * @param form The filters, the page size and the token of the page.
+     * @return the page.
+     */
+    Page query(ConferenceQueryForm form);
+
+    /**
+     * Returns a page of the cards of the conferences matching a query, by name, with their
+     * stored seats available.
+     *
+     * @param form The filters, the page size and the token of the card page.
+     * @return the page.
+     */
+    CardPage queryCards(ConferenceQueryForm form);
+
+    /**
+     * Returns the conferences that may have 1 to maxSeats seats available, by websafe key,
+     * with their names. The stored seats available may lag behind registrations, so the
+     * caller checks them against the RegistrationRepository.
+     *
+     * @param maxSeats The most seats available.
+     * @return the names of the conferences, by websafe key.
+     */
+    Map<String, String> nearlySoldOut(int maxSeats);
+
+    /**
+     * Updates the organizer display name stored with the conferences of an organizer after
+     * they renamed themselves. Called in the transaction writing the Profile, so that the
+     * update is scheduled with the write; it may happen after the commit.
+     *
+     * @param organizerKey The key of the organizer's Profile.
+     */
+    void organizerRenamed(Key<Profile> organizerKey);
+}
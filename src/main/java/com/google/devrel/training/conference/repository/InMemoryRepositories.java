@@ -0,0 +1,470 @@
+package com.google.devrel.training.conference.repository;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.util.concurrent.Striped;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.EntityTags;
+import com.google.devrel.training.conference.service.NearlySoldOut;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Stores conferences, Profiles and registrations in the memory of the instance, to run the
+ * API and benchmarks without the datastore. Installed with Repositories.useInMemory().
+ *
+ * Entities are kept as datastore Entities, as EntityCache keeps them, and every load makes
+ * a copy, so callers can change what they get without changing what is stored. The seats
+ * available of a conference are a counter, booked and given back with compare-and-set,
+ * so registrations for the same conference never wait for each other. The registrations
+ * of a user are guarded by a lock per user, striped, so a user can't register twice.
+ *
+ * Keys are still Objectify Keys, and the ETags and the nearly sold out announcement are
+ * still in memcache, so this needs the App Engine environment of the instance or of
+ * LocalServiceTestHelper.
+ */
+public final class InMemoryRepositories {
+
+    private static final String PAGE_TOKEN_PREFIX = "offset:";
+
+    private static final Comparator<Conference> BY_NAME = new Comparator<Conference>() {
+        @Override
+        public int compare(Conference a, Conference b) {
+            int byName = a.getName().compareTo(b.getName());
+            return byName != 0 ? byName : Key.create(a).compareTo(Key.create(b));
+        }
+    };
+
+    /**
+     * A stored conference: the Entity copies are made from, and a copy read by queries only.
+     */
+    private static final class StoredConference {
+
+        private final Entity entity;
+
+        private final Conference view;
+
+        StoredConference(Entity entity) {
+            this.entity = entity;
+            this.view = ofy().load().fromEntity(entity);
+        }
+    }
+
+    /**
+     * The seats of a conference.
+     */
+    private static final class Seats {
+
+        private final int capacity;
+
+        private final AtomicInteger available;
+
+        Seats(int capacity, int available) {
+            this.capacity = capacity;
+            this.available = new AtomicInteger(available);
+        }
+
+        /**
+         * Books a seat, unless there are none left.
+         *
+         * @return the seats left, or -1 when there were none.
+         */
+        int book() {
+            while (true) {
+                int seats = available.get();
+                if (seats <= 0) {
+                    return -1;
+                }
+                if (available.compareAndSet(seats, seats - 1)) {
+                    return seats - 1;
+                }
+            }
+        }
+
+        /**
+         * Gives a seat back, unless all seats are available.
+         *
+         * @return the seats available, or -1 when all were.
+         */
+        int giveBack() {
+            while (true) {
+                int seats = available.get();
+                if (seats >= capacity) {
+                    return -1;
+                }
+                if (available.compareAndSet(seats, seats + 1)) {
+                    return seats + 1;
+                }
+            }
+        }
+    }
+
+    private final ConcurrentMap<Key<Conference>, StoredConference> conferences =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Key<Profile>, Set<Key<Conference>>> conferencesByOrganizer =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Key<Profile>, Entity> profiles = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Key<Conference>, Seats> seats = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Key<Profile>, Set<Key<Conference>>> registrations =
+            new ConcurrentHashMap<>();
+
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    private final AtomicLong lastId = new AtomicLong();
+
+    private final ConferenceRepository conferenceRepository = new Conferences();
+
+    private final ProfileRepository profileRepository = new Profiles();
+
+    private final RegistrationRepository registrationRepository = new Registrations();
+
+    InMemoryRepositories() {
+        // Registers the entities with Objectify, which makes their keys and copies.
+        factory();
+    }
+
+    public ConferenceRepository conferences() {
+        return conferenceRepository;
+    }
+
+    public ProfileRepository profiles() {
+        return profileRepository;
+    }
+
+    public RegistrationRepository registrations() {
+        return registrationRepository;
+    }
+
+    private static <K, V> Set<V> setOf(ConcurrentMap<K, Set<V>> sets, K key) {
+        Set<V> set = sets.get(key);
+        if (set == null) {
+            Set<V> created = new ConcurrentSkipListSet<>();
+            set = sets.putIfAbsent(key, created);
+            if (set == null) {
+                set = created;
+            }
+        }
+        return set;
+    }
+
+    private final class Conferences implements ConferenceRepository {
+
+        @Override
+        public Key<Conference> allocateKey(final Key<Profile> organizerKey) {
+            return Key.create(organizerKey, Conference.class, lastId.incrementAndGet());
+        }
+
+        /**
+         * Stores the seats first, so that the conference is never seen without them.
+         */
+        @Override
+        public void create(final Conference conference, final Profile newOrganizer) {
+            seats.put(Key.create(conference),
+                    new Seats(conference.getMaxAttendees(), conference.getSeatsAvailable()));
+            if (newOrganizer != null) {
+                newOrganizer.save();
+            }
+            conference.save();
+        }
+
+        @Override
+        public Conference get(final Key<Conference> key) {
+            StoredConference stored = conferences.get(key);
+            return stored == null ? null : ofy().load().<Conference>fromEntity(stored.entity);
+        }
+
+        @Override
+        public Map<Key<Conference>, Conference> get(final Collection<Key<Conference>> keys) {
+            Map<Key<Conference>, Conference> result = new LinkedHashMap<>();
+            for (Key<Conference> key : keys) {
+                Conference conference = get(key);
+                if (conference != null) {
+                    result.put(key, conference);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void save(final Conference conference) {
+            Key<Conference> key = Key.create(conference);
+            conferences.put(key, new StoredConference(EntityCache.toEntity(conference)));
+            setOf(conferencesByOrganizer, conference.getProfileKey()).add(key);
+            EntityTags.invalidate(key);
+        }
+
+        @Override
+        public Conference writeSeatsAvailable(final Key<Conference> key,
+                final int seatsAvailable) {
+            Lock lock = locks.get(key);
+            lock.lock();
+            try {
+                Conference conference = get(key);
+                if (conference != null && conference.getSeatsAvailable() != seatsAvailable) {
+                    conference.setSeatsAvailable(seatsAvailable);
+                    save(conference);
+                }
+                return conference;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Conference> listByOrganizer(final Key<Profile> organizerKey) {
+            Set<Key<Conference>> keys = conferencesByOrganizer.get(organizerKey);
+            if (keys == null) {
+                return new ArrayList<>();
+            }
+            List<Conference> result = new ArrayList<>(get(keys).values());
+            Collections.sort(result, BY_NAME);
+            return result;
+        }
+
+        /**
+         * Scans all conferences, checking filters on the seats available against the seat
+         * counters, and pages with offsets.
+         */
+        @Override
+        public Page query(final ConferenceQueryForm form) {
+            int offset = form.startOffset(View.CONFERENCES, PAGE_TOKEN_PREFIX);
+            List<Filter> filters = form.getFilters();
+            List<Conference> matching = new ArrayList<>();
+            for (Map.Entry<Key<Conference>, StoredConference> entry : conferences.entrySet()) {
+                if (matches(entry.getKey(), entry.getValue().view, filters)) {
+                    matching.add(entry.getValue().view);
+                }
+            }
+            Collections.sort(matching, BY_NAME);
+            int pageSize = form.getPageSize();
+            int end = Math.min(offset + pageSize, matching.size());
+            List<Conference> page = new ArrayList<>(Math.max(end - offset, 0));
+            for (int i = offset; i < end; i++) {
+                page.add(get(Key.create(matching.get(i))));
+            }
+            String nextPageToken = end < matching.size()
+                    ? form.pageToken(View.CONFERENCES, PAGE_TOKEN_PREFIX + end) : null;
+            return new Page(page, nextPageToken);
+        }
+
+        @Override
+        public CardPage queryCards(final ConferenceQueryForm form) {
+            return CardPage.of(query(form.inView(View.CARDS, View.CONFERENCES)), form);
+        }
+
+        private boolean matches(Key<Conference> key, Conference conference,
+                List<Filter> filters) {
+            for (Filter filter : filters) {
+                if (filter.getField() == Field.SEATS_AVAILABLE) {
+                    Integer available = registrationRepository.seatsAvailable(key);
+                    int current = available == null
+                            ? conference.getSeatsAvailable() : available;
+                    if (!filter.getOperator().accepts(Integer.compare(current,
+                            Integer.parseInt(filter.getValue())))) {
+                        return false;
+                    }
+                } else if (!filter.matches(conference)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map<String, String> nearlySoldOut(final int maxSeats) {
+            Map<String, String> names = new HashMap<>();
+            for (Map.Entry<Key<Conference>, StoredConference> entry : conferences.entrySet()) {
+                int stored = entry.getValue().view.getSeatsAvailable();
+                if (stored > 0 && stored <= maxSeats) {
+                    names.put(entry.getKey().getString(), entry.getValue().view.getName());
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Updates the conferences of the organizer at once.
+         */
+        @Override
+        public void organizerRenamed(final Key<Profile> organizerKey) {
+            Profile organizer = profileRepository.get(organizerKey);
+            if (organizer == null) {
+                return;
+            }
+            for (Conference conference : listByOrganizer(organizerKey)) {
+                conference.setOrganizerDisplayName(organizer.getDisplayName());
+                conference.save();
+            }
+        }
+    }
+
+    private final class Profiles implements ProfileRepository {
+
+        @Override
+        public Profile get(final Key<Profile> key) {
+            Entity entity = profiles.get(key);
+            return entity == null ? null : ofy().load().<Profile>fromEntity(entity);
+        }
+
+        @Override
+        public Map<Key<Profile>, Profile> get(final Collection<Key<Profile>> keys) {
+            Map<Key<Profile>, Profile> result = new LinkedHashMap<>();
+            for (Key<Profile> key : keys) {
+                Profile profile = get(key);
+                if (profile != null) {
+                    result.put(key, profile);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void save(final Profile profile) {
+            Key<Profile> key = Key.create(profile);
+            profiles.put(key, EntityCache.toEntity(profile));
+            EntityTags.invalidate(key);
+        }
+    }
+
+    private final class Registrations implements RegistrationRepository {
+
+        @Override
+        public Outcome register(final Key<Profile> profileKey,
+                final Key<Conference> conferenceKey) {
+            Seats conferenceSeats = seats.get(conferenceKey);
+            if (conferenceSeats == null) {
+                return Outcome.FAILED;
+            }
+            int seatsLeft;
+            Lock lock = locks.get(profileKey);
+            lock.lock();
+            try {
+                Set<Key<Conference>> attending = setOf(registrations, profileKey);
+                if (attending.contains(conferenceKey)) {
+                    return Outcome.ALREADY_REGISTERED;
+                }
+                seatsLeft = conferenceSeats.book();
+                if (seatsLeft < 0) {
+                    return Outcome.NO_SEATS;
+                }
+                attending.add(conferenceKey);
+            } finally {
+                lock.unlock();
+            }
+            seatsChanged(conferenceKey, seatsLeft, -1);
+            return Outcome.REGISTERED;
+        }
+
+        @Override
+        public Outcome unregister(final Key<Profile> profileKey,
+                final Key<Conference> conferenceKey) {
+            Seats conferenceSeats = seats.get(conferenceKey);
+            if (conferenceSeats == null) {
+                return Outcome.FAILED;
+            }
+            int seatsAvailable;
+            Lock lock = locks.get(profileKey);
+            lock.lock();
+            try {
+                Set<Key<Conference>> attending = registrations.get(profileKey);
+                if (attending == null || !attending.contains(conferenceKey)) {
+                    return Outcome.NOT_REGISTERED;
+                }
+                seatsAvailable = conferenceSeats.giveBack();
+                if (seatsAvailable < 0) {
+                    return Outcome.FAILED;
+                }
+                attending.remove(conferenceKey);
+            } finally {
+                lock.unlock();
+            }
+            seatsChanged(conferenceKey, seatsAvailable, 1);
+            return Outcome.UNREGISTERED;
+        }
+
+        private void seatsChanged(Key<Conference> conferenceKey, int seatsAvailable,
+                int delta) {
+            EntityTags.invalidate(conferenceKey);
+            NearlySoldOut.seatsChanged(conferenceKey, Long.valueOf(seatsAvailable), delta);
+        }
+
+        @Override
+        public boolean isRegistered(final Key<Profile> profileKey,
+                final Key<Conference> conferenceKey) {
+            Set<Key<Conference>> attending = registrations.get(profileKey);
+            return attending != null && attending.contains(conferenceKey);
+        }
+
+        /**
+         * Profiles stored in memory never had the legacy list.
+         */
+        @Override
+        public boolean migrateLegacyRegistrations(final Key<Profile> profileKey) {
+            return false;
+        }
+
+        @Override
+        public List<Key<Conference>> conferencesToAttend(final Key<Profile> profileKey) {
+            Set<Key<Conference>> attending = registrations.get(profileKey);
+            return attending == null
+                    ? new ArrayList<Key<Conference>>() : new ArrayList<>(attending);
+        }
+
+        @Override
+        public Integer seatsAvailable(final Key<Conference> conferenceKey) {
+            Seats conferenceSeats = seats.get(conferenceKey);
+            return conferenceSeats == null ? null : conferenceSeats.available.get();
+        }
+
+        @Override
+        public <T extends Collection<Conference>> T withSeatsAvailable(final T conferences) {
+            for (Conference conference : conferences) {
+                Integer available = seatsAvailable(Key.create(conference));
+                if (available != null) {
+                    conference.setSeatsAvailable(available);
+                }
+            }
+            return conferences;
+        }
+
+        @Override
+        public <T extends Collection<ConferenceCard>> T cardsWithSeatsAvailable(
+                final T cards) {
+            for (ConferenceCard card : cards) {
+                Integer available = seatsAvailable(card.getKey());
+                if (available != null) {
+                    card.setSeatsAvailable(available);
+                }
+            }
+            return cards;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.google.devrel.training.conference.repository;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceQueryCache.CachedPage;
+import com.google.devrel.training.conference.service.ConfirmationEmails;
+import com.google.devrel.training.conference.service.OrganizerDisplayNames;
+import com.google.devrel.training.conference.service.QueryPlan;
+import com.google.devrel.training.conference.service.QueryPlanner;
+import com.google.devrel.training.conference.service.QueryStrategies;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores Conferences in the datastore with Objectify, loading them through the unit of work
+ * of the request and the in-instance cache.
+ *
+ * The seats of a conference are in SeatShards, created with it. Queries are planned by
+ * QueryPlanner and their pages cached by ConferenceQueryCache, except for the projection
+ * queries of cards, which read no entities.
+ */
+final class ObjectifyConferenceRepository implements ConferenceRepository {
+
+    @Override
+    public Key<Conference> allocateKey(final Key<Profile> organizerKey) {
+        return factory().allocateId(organizerKey, Conference.class);
+    }
+
+    @Override
+    public void create(final Conference conference, final Profile newOrganizer) {
+        Transactions.run("createConference", new VoidWork() {
+            public void vrun() {
+                // The conference, the Profile and the seat shards are written in one batch
+                // at commit, with the confirmation e-mail.
+                conference.save();
+                if (newOrganizer != null) {
+                    newOrganizer.save();
+                }
+                for (SeatShard shard : SeatInventory.createShards(conference)) {
+                    UnitOfWork.save(shard);
+                }
+                ConfirmationEmails.enqueue(Key.create(conference));
+            }
+        });
+        ConfirmationEmails.scheduleWorker();
+        // A new conference may show up in any query.
+        ConferenceQueryCache.invalidate(ConferenceQueryCache.ALL_FIELDS);
+    }
+
+    @Override
+    public Conference get(final Key<Conference> key) {
+        return UnitOfWork.load(key);
+    }
+
+    @Override
+    public Map<Key<Conference>, Conference> get(final Collection<Key<Conference>> keys) {
+        return UnitOfWork.load(keys);
+    }
+
+    @Override
+    public void save(final Conference conference) {
+        UnitOfWork.save(conference);
+    }
+
+    @Override
+    public Conference writeSeatsAvailable(final Key<Conference> key, final int seatsAvailable) {
+        return Transactions.run("writeSeatsAvailable", new Work<Conference>() {
+            @Override
+            public Conference run() {
+                Conference conference = ofy().load().key(key).now();
+                if (conference != null) {
+                    conference.setSeatsAvailable(seatsAvailable);
+                    // Through save(), so that the cached ETag of the conference is invalidated.
+                    conference.save();
+                }
+                return conference;
+            }
+        });
+    }
+
+    /**
+     * An ancestor query, read as entities or keys as QueryStrategies chooses.
+     */
+    @Override
+    public List<Conference> listByOrganizer(final Key<Profile> organizerKey) {
+        com.googlecode.objectify.cmd.Query<Conference> query = ofy().load()
+                .type(Conference.class).ancestor(organizerKey).order("name");
+        long startNanos = System.nanoTime();
+        if (QueryStrategies.choose() == QueryStrategies.Strategy.ENTITIES) {
+            List<Conference> conferences = query.list();
+            QueryStrategies.recordEntities(conferences.size(), conferences.size(), startNanos);
+            return conferences;
+        }
+        List<Key<Conference>> keys = query.keys().list();
+        AtomicInteger hits = new AtomicInteger();
+        List<Conference> conferences = new ArrayList<>(UnitOfWork.load(keys, hits).values());
+        QueryStrategies.recordKeys(conferences.size(), keys.size(), hits.get(), startNanos);
+        return conferences;
+    }
+
+    /**
+     * Returns a page of conferences. The keys of the page are cached in memcache, so
+     * repeated queries only batch load the conferences, which are usually cached too.
+     */
+    @Override
+    public Page query(final ConferenceQueryForm form) {
+        String cacheKey = ConferenceQueryCache.cacheKey(form);
+        CachedPage page = ConferenceQueryCache.get(cacheKey);
+        if (page == null) {
+            QueryPlan.Page result = QueryPlanner.plan(form).execute(form);
+            page = result.toCachedPage();
+            ConferenceQueryCache.put(cacheKey, page);
+            return new Page(result.getConferences(), page.getNextPageToken());
+        }
+        return new Page(new ArrayList<>(UnitOfWork.load(page.getKeys()).values()),
+                page.getNextPageToken());
+    }
+
+    /**
+     * Reads the cards with a projection query when the plan of the query has a projection
+     * index, and from the conferences of query() otherwise, with the page tokens re-issued
+     * between the cards and the conferences.
+     */
+    @Override
+    public CardPage queryCards(final ConferenceQueryForm form) {
+        QueryPlan plan = QueryPlanner.plan(form);
+        if (plan.getProjectionIndex() == null) {
+            return CardPage.of(query(form.inView(View.CARDS, View.CONFERENCES)), form);
+        }
+        QueryPlan.CardPage page = plan.executeCards(form);
+        return new CardPage(page.getCards(), page.getNextPageToken());
+    }
+
+    /**
+     * Returns the conferences whose stored seats available are in range, reading only their
+     * names from the (seatsAvailable, name) index.
+     */
+    @Override
+    public Map<String, String> nearlySoldOut(final int maxSeats) {
+        Query query = new Query(Conference.class.getSimpleName())
+                .setFilter(CompositeFilterOperator.and(
+                        new FilterPredicate("seatsAvailable", FilterOperator.GREATER_THAN, 0),
+                        new FilterPredicate("seatsAvailable",
+                                FilterOperator.LESS_THAN_OR_EQUAL, maxSeats)))
+                .addProjection(new PropertyProjection("name", String.class));
+        Map<String, String> names = new HashMap<>();
+        for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(query)
+                .asIterable()) {
+            names.put(Key.create(entity.getKey()).getString(),
+                    (String) entity.getProperty("name"));
+        }
+        return names;
+    }
+
+    @Override
+    public void organizerRenamed(final Key<Profile> organizerKey) {
+        OrganizerDisplayNames.schedule(organizerKey, null);
+    }
+}
@@ -0,0 +1,30 @@
+package com.google.devrel.training.conference.repository;
+
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.googlecode.objectify.Key;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Stores Profiles in the datastore with Objectify, loading them through the unit of work
+ * of the request and the in-instance cache.
+ */
+final class ObjectifyProfileRepository implements ProfileRepository {
+
+    @Override
+    public Profile get(final Key<Profile> key) {
+        return UnitOfWork.load(key);
+    }
+
+    @Override
+    public Map<Key<Profile>, Profile> get(final Collection<Key<Profile>> keys) {
+        return UnitOfWork.load(keys);
+    }
+
+    @Override
+    public void save(final Profile profile) {
+        UnitOfWork.save(profile);
+    }
+}
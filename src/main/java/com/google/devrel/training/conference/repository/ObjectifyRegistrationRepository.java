@@ -0,0 +1,214 @@
+package com.google.devrel.training.conference.repository;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.NearlySoldOut;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores Registrations in the datastore with Objectify, as children of the Profiles, and
+ * the seats of conferences in their SeatShards.
+ *
+ * A registration books a seat from a random shard that still has seats, in a transaction
+ * with the Registration, moving on to the next shard when concurrent registrations took
+ * the last seats of the shard first. An unregistration gives the seat back the same way.
+ * Transactions are run by Transactions, and give up with CONTENDED when concurrent
+ * registrations keep conflicting with them; any other failure is thrown.
+ *
+ * Profiles that still have the legacy conferenceKeysToAttend list are migrated to
+ * Registrations before their registrations are read or written.
+ */
+final class ObjectifyRegistrationRepository implements RegistrationRepository {
+
+    @Override
+    public Outcome register(final Key<Profile> profileKey, final Key<Conference> conferenceKey) {
+        migrateOnFirstUse(profileKey);
+        List<Key<SeatShard>> shardKeys = SeatInventory.shardsWithSeats(conferenceKey);
+        final Key<Registration> registrationKey =
+                Registration.key(profileKey, conferenceKey.getString());
+        Outcome outcome = Outcome.NO_SEATS;
+        if (shardKeys.isEmpty() && ofy().load().key(registrationKey).now() != null) {
+            outcome = Outcome.ALREADY_REGISTERED;
+        }
+        for (final Key<SeatShard> shardKey : shardKeys) {
+            try {
+                outcome = Transactions.run("register", new Work<Outcome>() {
+                    @Override
+                    public Outcome run() {
+                        // The registration and the shard in one batch get.
+                        Key<?>[] keys = {registrationKey, shardKey};
+                        Map<Key<Object>, Object> loaded = ofy().load().keys(keys);
+                        if (loaded.containsKey(registrationKey)) {
+                            return Outcome.ALREADY_REGISTERED;
+                        }
+                        SeatShard shard = (SeatShard) loaded.get(shardKey);
+                        if (shard.getSeatsAvailable() <= 0) {
+                            return Outcome.NO_SEATS;
+                        }
+                        shard.bookSeats(1);
+                        ofy().save().entities(shard,
+                                new Registration(profileKey, conferenceKey.getString())).now();
+                        return Outcome.REGISTERED;
+                    }
+                });
+            } catch (ConcurrentModificationException e) {
+                return Outcome.CONTENDED;
+            }
+            if (outcome != Outcome.NO_SEATS) {
+                break;
+            }
+        }
+        if (outcome == Outcome.REGISTERED) {
+            seatsChanged(conferenceKey, -1);
+        }
+        return outcome;
+    }
+
+    @Override
+    public Outcome unregister(final Key<Profile> profileKey,
+            final Key<Conference> conferenceKey) {
+        migrateOnFirstUse(profileKey);
+        final Key<Registration> registrationKey =
+                Registration.key(profileKey, conferenceKey.getString());
+        Outcome outcome = null;
+        for (final Key<SeatShard> shardKey : SeatInventory.shardsWithRoom(conferenceKey)) {
+            try {
+                outcome = Transactions.run("unregister", new Work<Outcome>() {
+                    @Override
+                    public Outcome run() {
+                        if (ofy().load().key(registrationKey).now() == null) {
+                            return Outcome.NOT_REGISTERED;
+                        }
+                        SeatShard shard = ofy().load().key(shardKey).now();
+                        if (shard.getSeatsAvailable() >= shard.getCapacity()) {
+                            // Full: try the next shard.
+                            return null;
+                        }
+                        shard.giveBackSeats(1);
+                        ofy().save().entity(shard);
+                        ofy().delete().key(registrationKey).now();
+                        return Outcome.UNREGISTERED;
+                    }
+                });
+            } catch (ConcurrentModificationException e) {
+                return Outcome.CONTENDED;
+            }
+            if (outcome != null) {
+                break;
+            }
+        }
+        if (outcome == null) {
+            // No shard has room for the seat: the user can't hold one.
+            outcome = ofy().load().key(registrationKey).now() == null
+                    ? Outcome.NOT_REGISTERED : Outcome.FAILED;
+        } else if (outcome == Outcome.UNREGISTERED) {
+            seatsChanged(conferenceKey, 1);
+        }
+        return outcome;
+    }
+
+    private static void seatsChanged(Key<Conference> conferenceKey, int delta) {
+        Long seatsAvailable = SeatInventory.seatsChanged(conferenceKey, delta);
+        NearlySoldOut.seatsChanged(conferenceKey, seatsAvailable, delta);
+        ConferenceQueryCache.invalidate(ConferenceQueryCache.SEATS_AVAILABLE);
+    }
+
+    @Override
+    public boolean isRegistered(final Key<Profile> profileKey,
+            final Key<Conference> conferenceKey) {
+        migrateOnFirstUse(profileKey);
+        return ofy().load().key(Registration.key(profileKey, conferenceKey.getString()))
+                .now() != null;
+    }
+
+    /**
+     * The user's Registrations are keyed by the conferences, so a keys-only ancestor query
+     * gives the keys of the conferences to attend.
+     */
+    @Override
+    public List<Key<Conference>> conferencesToAttend(final Key<Profile> profileKey) {
+        migrateOnFirstUse(profileKey);
+        List<Key<Conference>> keys = new ArrayList<>();
+        for (Key<Registration> key : ofy().load().type(Registration.class)
+                .ancestor(profileKey).keys()) {
+            keys.add(Registration.conferenceKey(key));
+        }
+        return keys;
+    }
+
+    /**
+     * Migrates the Profile unless it has no legacy list, which costs a load of the Profile,
+     * usually from the unit of work.
+     */
+    private void migrateOnFirstUse(final Key<Profile> profileKey) {
+        Profile profile = UnitOfWork.load(profileKey);
+        if (profile != null && !profile.getConferenceKeysToAttend().isEmpty()) {
+            migrateLegacyRegistrations(profileKey);
+        }
+    }
+
+    /**
+     * The Registrations are in the entity group of the Profile, so this is a single-group
+     * transaction. The seats of the legacy registrations were booked on the conferences
+     * before their shards were created from them, so no seat is booked.
+     */
+    @Override
+    public boolean migrateLegacyRegistrations(final Key<Profile> profileKey) {
+        return Transactions.run("migrateRegistrations", new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                Profile profile = ofy().load().key(profileKey).now();
+                if (profile == null || profile.getConferenceKeysToAttend().isEmpty()) {
+                    return false;
+                }
+                List<Key<Registration>> keys = new ArrayList<>();
+                for (String websafeConferenceKey : profile.getConferenceKeysToAttend()) {
+                    keys.add(Registration.key(profileKey, websafeConferenceKey));
+                }
+                // Keep the registration date of Registrations that already exist.
+                Map<Key<Registration>, Registration> existing = ofy().load().keys(keys);
+                List<Registration> registrations = new ArrayList<>();
+                for (Key<Registration> key : keys) {
+                    if (!existing.containsKey(key)) {
+                        registrations.add(new Registration(profileKey, key.getName()));
+                    }
+                }
+                ofy().save().entities(registrations);
+                profile.clearConferenceKeysToAttend();
+                profile.save();
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public Integer seatsAvailable(final Key<Conference> conferenceKey) {
+        return SeatInventory.seatsAvailable(conferenceKey);
+    }
+
+    @Override
+    public <T extends Collection<Conference>> T withSeatsAvailable(final T conferences) {
+        return SeatInventory.withSeatsAvailable(conferences);
+    }
+
+    @Override
+    public <T extends Collection<ConferenceCard>> T cardsWithSeatsAvailable(final T cards) {
+        return SeatInventory.cardsWithSeatsAvailable(cards);
+    }
+}
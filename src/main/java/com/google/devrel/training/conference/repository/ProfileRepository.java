@@ -0,0 +1,39 @@
+package com.google.devrel.training.conference.repository;
+
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Stores Profiles.
+ *
+ * Loaded Profiles belong to the caller, who saves what it changes.
+ */
+public interface ProfileRepository {
+
+    /**
+     * Loads a Profile.
+     *
+     * @param key The key of the Profile.
+     * @return the Profile, or null when there is none.
+     */
+    Profile get(Key<Profile> key);
+
+    /**
+     * Loads Profiles in a batch.
+     *
+     * @param keys The keys of the Profiles.
+     * @return the Profiles found, by key, in the order of the keys.
+     */
+    Map<Key<Profile>, Profile> get(Collection<Key<Profile>> keys);
+
+    /**
+     * Saves a Profile. The write may be deferred to the end of the request, or to the
+     * commit of the current transaction.
+     *
+     * @param profile The Profile, which changed since it was loaded or last saved.
+     */
+    void save(Profile profile);
+}
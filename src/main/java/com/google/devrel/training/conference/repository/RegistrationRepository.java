@@ -0,0 +1,102 @@
+package com.google.devrel.training.conference.repository;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stores who attends which conference, and the seats available of conferences.
+ *
+ * A registration books one seat of the conference, and an unregistration gives it back,
+ * atomically with the registration.
+ */
+public interface RegistrationRepository {
+
+    /**
+     * The outcome of a registration or an unregistration.
+     */
+    enum Outcome {
+        REGISTERED,
+        UNREGISTERED,
+        ALREADY_REGISTERED,
+        NOT_REGISTERED,
+        NO_SEATS,
+        /**
+         * Concurrent registrations kept conflicting with this one, which may be retried.
+         */
+        CONTENDED,
+        FAILED
+    }
+
+    /**
+     * Registers a user for a conference, booking a seat.
+     *
+     * @param profileKey The key of the user's Profile.
+     * @param conferenceKey The key of the conference, which exists.
+     * @return REGISTERED, ALREADY_REGISTERED, NO_SEATS, CONTENDED or FAILED.
+     */
+    Outcome register(Key<Profile> profileKey, Key<Conference> conferenceKey);
+
+    /**
+     * Unregisters a user from a conference, giving the seat back.
+     *
+     * @param profileKey The key of the user's Profile.
+     * @param conferenceKey The key of the conference.
+     * @return UNREGISTERED, NOT_REGISTERED, CONTENDED or FAILED.
+     */
+    Outcome unregister(Key<Profile> profileKey, Key<Conference> conferenceKey);
+
+    /**
+     * Returns whether a user is registered for a conference.
+     */
+    boolean isRegistered(Key<Profile> profileKey, Key<Conference> conferenceKey);
+
+    /**
+     * Replaces the legacy conferenceKeysToAttend list of a Profile with registrations, in
+     * one transaction. The other methods migrate the Profile of the user first, so that
+     * registrations made before there were Registration entities count even before
+     * MigrateRegistrationsServlet gets to them.
+     *
+     * @param profileKey The key of the user's Profile.
+     * @return whether the Profile had a legacy list to migrate.
+     */
+    boolean migrateLegacyRegistrations(Key<Profile> profileKey);
+
+    /**
+     * Returns the keys of the conferences a user is registered for.
+     *
+     * @param profileKey The key of the user's Profile.
+     * @return the keys of the conferences.
+     */
+    List<Key<Conference>> conferencesToAttend(Key<Profile> profileKey);
+
+    /**
+     * Returns the number of seats available of a conference.
+     *
+     * @param conferenceKey The key of the conference.
+     * @return the number of seats available, or null when no seat of the conference was
+     *         ever booked and the number stored with the conference is right.
+     */
+    Integer seatsAvailable(Key<Conference> conferenceKey);
+
+    /**
+     * Sets the current number of seats available of the given conferences. Reads only, as
+     * it is called by listings.
+     *
+     * @param conferences The conferences.
+     * @return the same conferences.
+     */
+    <T extends Collection<Conference>> T withSeatsAvailable(T conferences);
+
+    /**
+     * Sets the current number of seats available of the given conference cards.
+     *
+     * @param cards The cards.
+     * @return the same cards.
+     */
+    <T extends Collection<ConferenceCard>> T cardsWithSeatsAvailable(T cards);
+}
@@ -0,0 +1,63 @@
+package com.google.devrel.training.conference.repository;
+
+/**
+ * The repositories the application stores its entities with: the datastore through
+ * Objectify unless others are installed, as by tests and benchmarks at startup.
+ */
+public final class Repositories {
+
+    private static volatile ConferenceRepository conferences;
+
+    private static volatile ProfileRepository profiles;
+
+    private static volatile RegistrationRepository registrations;
+
+    static {
+        useObjectify();
+    }
+
+    private Repositories() {}
+
+    public static ConferenceRepository conferences() {
+        return conferences;
+    }
+
+    public static ProfileRepository profiles() {
+        return profiles;
+    }
+
+    public static RegistrationRepository registrations() {
+        return registrations;
+    }
+
+    /**
+     * Installs the given repositories.
+     */
+    public static void use(final ConferenceRepository conferenceRepository,
+                           final ProfileRepository profileRepository,
+                           final RegistrationRepository registrationRepository) {
+        conferences = conferenceRepository;
+        profiles = profileRepository;
+        registrations = registrationRepository;
+    }
+
+    /**
+     * Installs the repositories storing in the datastore with Objectify, the default.
+     */
+    public static void useObjectify() {
+        use(new ObjectifyConferenceRepository(), new ObjectifyProfileRepository(),
+                new ObjectifyRegistrationRepository());
+    }
+
+    /**
+     * Installs new, empty repositories storing in memory.
+     *
+     * @return the repositories installed.
+     */
+    public static InMemoryRepositories useInMemory() {
+        InMemoryRepositories repositories = new InMemoryRepositories();
+        use(repositories.conferences(), repositories.profiles(),
+                repositories.registrations());
+        return repositories;
+    }
+}
@@ -0,0 +1,495 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-endpoint metrics of the API: a latency histogram, call and error counts, and the
+ * number of datastore, memcache and mail operations made by the requests.
+ *
+ * Operations are counted by wrapping the ApiProxy delegate, so a load served from the
+ * Objectify memcache counts as a memcache operation, not as a datastore load. Only calls
+ * made on the thread of a request started with start() are counted. Recording is a few
+ * atomic increments, so the metrics can stay on in production.
+ *
+ * The metrics are rendered with the retries and aborts of the Transactions of each
+ * operation, and the cost of each of the QueryStrategies.
+ */
+public final class ApiMetrics {
+
+    /**
+     * The datastore, memcache and mail operations counted per endpoint.
+     */
+    public static enum Operation {
+        LOAD("loads"),
+        SAVE("saves"),
+        DELETE("deletes"),
+        QUERY("queries"),
+        TRANSACTION("transactions"),
+        MEMCACHE("memcache"),
+        MAIL("mails");
+
+        private final String metricName;
+
+        private Operation(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+
+        /**
+         * Returns the operation of an API call, null for calls that are not counted.
+         */
+        static Operation of(String packageName, String methodName) {
+            if ("memcache".equals(packageName)) {
+                return MEMCACHE;
+            }
+            if ("mail".equals(packageName)) {
+                return MAIL;
+            }
+            if (!"datastore_v3".equals(packageName)) {
+                return null;
+            }
+            switch (methodName) {
+                case "Get":
+                    return LOAD;
+                case "Put":
+                    return SAVE;
+                case "Delete":
+                    return DELETE;
+                case "RunQuery":
+                    return QUERY;
+                case "BeginTransaction":
+                    return TRANSACTION;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * The metrics of an endpoint.
+     */
+    public static class EndpointMetrics {
+
+        private final String name;
+
+        private final LatencyHistogram latencyMicros = new LatencyHistogram();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final AtomicLongArray operations =
+                new AtomicLongArray(Operation.values().length);
+
+        private EndpointMetrics(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the latency histogram, in microseconds.
+         */
+        public LatencyHistogram getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        public long getCalls() {
+            return latencyMicros.getCount();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * Returns the total number of operations of the given kind made by the calls.
+         */
+        public long getOperations(Operation operation) {
+            return operations.get(operation.ordinal());
+        }
+    }
+
+    /**
+     * A request being measured. Requests are confined to their thread.
+     */
+    public static class Request {
+
+        private final String endpoint;
+
+        private final long startNanos = System.nanoTime();
+
+        private final int[] operations = new int[Operation.values().length];
+
+        private Request(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Returns the number of operations of the given kind made so far.
+         */
+        public int getOperations(Operation operation) {
+            return operations[operation.ordinal()];
+        }
+
+        /**
+         * Records the request in the metrics of its endpoint.
+         *
+         * @param error Whether the request failed.
+         */
+        public void finish(boolean error) {
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+            EndpointMetrics metrics = endpoint(endpoint);
+            metrics.latencyMicros.record(
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            if (error) {
+                metrics.errors.incrementAndGet();
+            }
+            for (int i = 0; i < operations.length; i++) {
+                if (operations[i] != 0) {
+                    metrics.operations.addAndGet(i, operations[i]);
+                }
+            }
+        }
+    }
+
+    private static final ConcurrentMap<String, EndpointMetrics> ENDPOINTS =
+            new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Request> CURRENT = new ThreadLocal<>();
+
+    private ApiMetrics() {}
+
+    /**
+     * Wraps the ApiProxy delegate to count the operations of requests. Does nothing when
+     * it is already wrapped, which is cheap enough to check on every request.
+     */
+    public static void install() {
+        if (!(ApiProxy.getDelegate() instanceof CountingDelegate)) {
+            wrapDelegate();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static synchronized void wrapDelegate() {
+        Delegate<Environment> delegate = ApiProxy.getDelegate();
+        if (delegate != null && !(delegate instanceof CountingDelegate)) {
+            ApiProxy.setDelegate(new CountingDelegate(delegate));
+        }
+    }
+
+    /**
+     * Starts measuring a request on the current thread.
+     *
+     * @param endpoint The name of the endpoint, e.g. "registerForConference".
+     * @return the request, to finish when the endpoint returns.
+     */
+    public static Request start(String endpoint) {
+        Request request = new Request(endpoint);
+        CURRENT.set(request);
+        return request;
+    }
+
+    private static EndpointMetrics endpoint(String name) {
+        EndpointMetrics metrics = ENDPOINTS.get(name);
+        if (metrics == null) {
+            EndpointMetrics newMetrics = new EndpointMetrics(name);
+            metrics = ENDPOINTS.putIfAbsent(name, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of all endpoints called so far, sorted by name.
+     */
+    public static List<EndpointMetrics> getEndpoints() {
+        List<EndpointMetrics> endpoints = new ArrayList<>(ENDPOINTS.values());
+        Collections.sort(endpoints, new Comparator<EndpointMetrics>() {
+            @Override
+            public int compare(EndpointMetrics a, EndpointMetrics b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return endpoints;
+    }
+
+    /**
+     * Returns the metrics of an endpoint, null when it has not been called.
+     */
+    public static EndpointMetrics getEndpoint(String name) {
+        return ENDPOINTS.get(name);
+    }
+
+    /**
+     * Renders the metrics as JSON, with latencies in milliseconds and operations per call.
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\"endpoints\":[");
+        String separator = "";
+        for (EndpointMetrics metrics : getEndpoints()) {
+            LatencyHistogram latency = metrics.getLatencyMicros();
+            long calls = metrics.getCalls();
+            json.append(separator).append("{\"name\":\"").append(metrics.getName())
+                    .append("\",\"calls\":").append(calls)
+                    .append(",\"errors\":").append(metrics.getErrors())
+                    .append(",\"latencyMillis\":{")
+                    .append("\"mean\":").append(millis(calls == 0 ? 0 : latency.getSum() / calls))
+                    .append(",\"p50\":").append(millis(latency.getValueAtPercentile(50)))
+                    .append(",\"p90\":").append(millis(latency.getValueAtPercentile(90)))
+                    .append(",\"p99\":").append(millis(latency.getValueAtPercentile(99)))
+                    .append(",\"max\":").append(millis(latency.getMax()))
+                    .append("},\"operationsPerCall\":{");
+            String operationSeparator = "";
+            for (Operation operation : Operation.values()) {
+                json.append(operationSeparator).append('"').append(operation.getMetricName())
+                        .append("\":").append(String.format(Locale.ROOT, "%.2f", calls == 0
+                                ? 0.0 : (double) metrics.getOperations(operation) / calls));
+                operationSeparator = ",";
+            }
+            json.append("}}");
+            separator = ",";
+        }
+        json.append("],\"transactions\":[");
+        separator = "";
+        for (Transactions.OperationMetrics metrics : Transactions.getOperations()) {
+            LatencyHistogram latency = metrics.getLatencyMicros();
+            long runs = metrics.getRuns();
+            json.append(separator).append("{\"name\":\"").append(metrics.getName())
+                    .append("\",\"runs\":").append(runs)
+                    .append(",\"attempts\":").append(metrics.getAttempts())
+                    .append(",\"retries\":").append(metrics.getRetries())
+                    .append(",\"aborts\":").append(metrics.getAborts())
+                    .append(",\"errors\":").append(metrics.getErrors())
+                    .append(",\"latencyMillis\":{")
+                    .append("\"mean\":").append(millis(runs == 0 ? 0 : latency.getSum() / runs))
+                    .append(",\"p50\":").append(millis(latency.getValueAtPercentile(50)))
+                    .append(",\"p99\":").append(millis(latency.getValueAtPercentile(99)))
+                    .append(",\"max\":").append(millis(latency.getMax()))
+                    .append("}}");
+            separator = ",";
+        }
+        json.append("],\"queries\":{\"hitRate\":")
+                .append(String.format(Locale.ROOT, "%.4f", QueryStrategies.getHitRate()))
+                .append(",\"strategies\":[");
+        separator = "";
+        for (QueryStrategies.StrategyMetrics metrics : QueryStrategies.getMetrics()) {
+            LatencyHistogram latency = metrics.getLatencyMicros();
+            long queries = metrics.getQueries();
+            long rows = metrics.getRows();
+            json.append(separator).append("{\"name\":\"")
+                    .append(metrics.getStrategy().getMetricName())
+                    .append("\",\"queries\":").append(queries)
+                    .append(",\"rows\":").append(rows)
+                    .append(",\"keysRead\":").append(metrics.getKeysRead())
+                    .append(",\"entitiesRead\":").append(metrics.getEntitiesRead())
+                    .append(",\"entitiesReadPerRow\":").append(String.format(Locale.ROOT,
+                            "%.2f", rows == 0 ? 0.0 : (double) metrics.getEntitiesRead() / rows))
+                    .append(",\"latencyMillis\":{")
+                    .append("\"mean\":")
+                    .append(millis(queries == 0 ? 0 : latency.getSum() / queries))
+                    .append(",\"p50\":").append(millis(latency.getValueAtPercentile(50)))
+                    .append(",\"p99\":").append(millis(latency.getValueAtPercentile(99)))
+                    .append(",\"max\":").append(millis(latency.getMax()))
+                    .append("}}");
+            separator = ",";
+        }
+        return json.append("]}}").toString();
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text exposition format.
+     */
+    public static String toPrometheusText() {
+        List<EndpointMetrics> endpoints = getEndpoints();
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP conference_api_latency_seconds Latency of API calls.\n")
+                .append("# TYPE conference_api_latency_seconds summary\n");
+        for (EndpointMetrics metrics : endpoints) {
+            LatencyHistogram latency = metrics.getLatencyMicros();
+            for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+                text.append("conference_api_latency_seconds{method=\"")
+                        .append(metrics.getName()).append("\",quantile=\"").append(quantile)
+                        .append("\"} ").append(seconds(latency.getValueAtPercentile(
+                                quantile * 100))).append('\n');
+            }
+            text.append("conference_api_latency_seconds_sum{method=\"")
+                    .append(metrics.getName()).append("\"} ")
+                    .append(seconds(latency.getSum())).append('\n');
+            text.append("conference_api_latency_seconds_count{method=\"")
+                    .append(metrics.getName()).append("\"} ")
+                    .append(latency.getCount()).append('\n');
+        }
+        text.append("# HELP conference_api_errors_total API calls that failed.\n")
+                .append("# TYPE conference_api_errors_total counter\n");
+        for (EndpointMetrics metrics : endpoints) {
+            text.append("conference_api_errors_total{method=\"").append(metrics.getName())
+                    .append("\"} ").append(metrics.getErrors()).append('\n');
+        }
+        text.append("# HELP conference_api_operations_total Datastore and memcache "
+                        + "operations made by API calls.\n")
+                .append("# TYPE conference_api_operations_total counter\n");
+        for (EndpointMetrics metrics : endpoints) {
+            for (Operation operation : Operation.values()) {
+                text.append("conference_api_operations_total{method=\"")
+                        .append(metrics.getName()).append("\",operation=\"")
+                        .append(operation.getMetricName()).append("\"} ")
+                        .append(metrics.getOperations(operation)).append('\n');
+            }
+        }
+        List<Transactions.OperationMetrics> transactions = Transactions.getOperations();
+        text.append("# HELP conference_transaction_latency_seconds Latency of transactions, "
+                        + "retries included.\n")
+                .append("# TYPE conference_transaction_latency_seconds summary\n");
+        for (Transactions.OperationMetrics metrics : transactions) {
+            LatencyHistogram latency = metrics.getLatencyMicros();
+            for (double quantile : new double[] {0.5, 0.99}) {
+                text.append("conference_transaction_latency_seconds{operation=\"")
+                        .append(metrics.getName()).append("\",quantile=\"").append(quantile)
+                        .append("\"} ").append(seconds(latency.getValueAtPercentile(
+                                quantile * 100))).append('\n');
+            }
+            text.append("conference_transaction_latency_seconds_sum{operation=\"")
+                    .append(metrics.getName()).append("\"} ")
+                    .append(seconds(latency.getSum())).append('\n');
+            text.append("conference_transaction_latency_seconds_count{operation=\"")
+                    .append(metrics.getName()).append("\"} ")
+                    .append(latency.getCount()).append('\n');
+        }
+        text.append("# HELP conference_transactions_total Transaction attempts by outcome: "
+                        + "retried on a conflict, aborted after the last conflict, or failed.\n")
+                .append("# TYPE conference_transactions_total counter\n");
+        for (Transactions.OperationMetrics metrics : transactions) {
+            String prefix = "conference_transactions_total{operation=\"" + metrics.getName()
+                    + "\",outcome=\"";
+            text.append(prefix).append("attempted\"} ").append(metrics.getAttempts())
+                    .append('\n');
+            text.append(prefix).append("retried\"} ").append(metrics.getRetries())
+                    .append('\n');
+            text.append(prefix).append("aborted\"} ").append(metrics.getAborts())
+                    .append('\n');
+            text.append(prefix).append("failed\"} ").append(metrics.getErrors())
+                    .append('\n');
+        }
+        List<QueryStrategies.StrategyMetrics> strategies = QueryStrategies.getMetrics();
+        text.append("# HELP conference_query_latency_seconds Latency of conference queries "
+                        + "by strategy.\n")
+                .append("# TYPE conference_query_latency_seconds summary\n");
+        for (QueryStrategies.StrategyMetrics metrics : strategies) {
+            LatencyHistogram latency = metrics.getLatencyMicros();
+            String strategy = metrics.getStrategy().getMetricName();
+            for (double quantile : new double[] {0.5, 0.99}) {
+                text.append("conference_query_latency_seconds{strategy=\"").append(strategy)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(latency.getValueAtPercentile(quantile * 100)))
+                        .append('\n');
+            }
+            text.append("conference_query_latency_seconds_sum{strategy=\"").append(strategy)
+                    .append("\"} ").append(seconds(latency.getSum())).append('\n');
+            text.append("conference_query_latency_seconds_count{strategy=\"").append(strategy)
+                    .append("\"} ").append(latency.getCount()).append('\n');
+        }
+        text.append("# HELP conference_query_reads_total Rows returned, keys read and "
+                        + "entities read past the instance cache by conference queries.\n")
+                .append("# TYPE conference_query_reads_total counter\n");
+        for (QueryStrategies.StrategyMetrics metrics : strategies) {
+            String prefix = "conference_query_reads_total{strategy=\""
+                    + metrics.getStrategy().getMetricName() + "\",kind=\"";
+            text.append(prefix).append("rows\"} ").append(metrics.getRows()).append('\n');
+            text.append(prefix).append("keys\"} ").append(metrics.getKeysRead()).append('\n');
+            text.append(prefix).append("entities\"} ").append(metrics.getEntitiesRead())
+                    .append('\n');
+        }
+        text.append("# HELP conference_query_cache_hit_rate Moving average of the hit rate "
+                        + "of keys-only conference queries.\n")
+                .append("# TYPE conference_query_cache_hit_rate gauge\n")
+                .append("conference_query_cache_hit_rate ")
+                .append(String.format(Locale.ROOT, "%.4f", QueryStrategies.getHitRate()))
+                .append('\n');
+        return text.toString();
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1e3);
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    /**
+     * Counts the operations of the request of the current thread.
+     */
+    private static class CountingDelegate implements Delegate<Environment> {
+
+        private final Delegate<Environment> delegate;
+
+        private CountingDelegate(Delegate<Environment> delegate) {
+            this.delegate = delegate;
+        }
+
+        private static void count(String packageName, String methodName) {
+            Request request = CURRENT.get();
+            if (request != null) {
+                Operation operation = Operation.of(packageName, methodName);
+                if (operation != null) {
+                    request.operations[operation.ordinal()]++;
+                }
+            }
+        }
+
+        @Override
+        public byte[] makeSyncCall(Environment environment, String packageName,
+                                   String methodName, byte[] request) {
+            count(packageName, methodName);
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+                                            String methodName, byte[] request,
+                                            ApiConfig apiConfig) {
+            count(packageName, methodName);
+            return delegate.makeAsyncCall(environment, packageName, methodName, request,
+                    apiConfig);
+        }
+
+        @Override
+        public void log(Environment environment, LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+}
@@ -0,0 +1,740 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.Records.MalformedRecordException;
+import com.google.devrel.training.conference.service.Records.RecordReader;
+import com.google.devrel.training.conference.service.Records.RecordWriter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+/**
+ * Bulk import and export of Profiles and Conferences, for seeding and migrating data.
+ *
+ * Records are read and written one at a time, as NDJSON or CSV, with a "kind" field of
+ * Profile or Conference; see PROFILE_FIELDS and CONFERENCE_FIELDS. Exported records import
+ * back as they were.
+ *
+ * An import writes the records in chunks of at most MAX_ENTITIES_PER_PUT entities, a
+ * Conference counting with its seat shards, with one batch put per chunk and up to
+ * PARALLEL_CHUNKS puts in flight. Ids of conferences without one are allocated in a range
+ * per organizer and chunk. It sends no e-mails. Records that can't be parsed or converted
+ * are rejected and counted, without stopping the import. An import stops at its deadline
+ * or at the first chunk that fails, and reports the position of the record to resume from:
+ * importing from there again rewrites records with ids as they were, but conferences
+ * without an id written by the chunks in flight with the one that failed are created
+ * again, so seed data should carry ids when imports may fail.
+ *
+ * An export writes a page of records of one kind, with the cursor of the next page. In CSV,
+ * only the first page starts with the header row, so that the pages of an export
+ * concatenate into one file to import.
+ */
+public final class BulkData {
+
+    private static final Logger LOG = Logger.getLogger(BulkData.class.getName());
+
+    public static final String PROFILE_KIND = "Profile";
+
+    public static final String CONFERENCE_KIND = "Conference";
+
+    static final String[] PROFILE_FIELDS = {
+            "kind", "userId", "displayName", "mainEmail", "teeShirtSize" };
+
+    static final String[] CONFERENCE_FIELDS = {
+            "kind", "id", "organizerUserId", "organizerDisplayName", "name", "description",
+            "topics", "city", "startDate", "endDate", "maxAttendees", "seatsAvailable" };
+
+    /**
+     * The most entities written by one batch put.
+     */
+    static final int MAX_ENTITIES_PER_PUT = 500;
+
+    /**
+     * The most batch puts in flight at once.
+     */
+    static final int PARALLEL_CHUNKS = 4;
+
+    /**
+     * The most records in an export page.
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * The most rejected records whose errors an import reports.
+     */
+    private static final int MAX_ERRORS = 10;
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    private static final String DAY_FORMAT = "yyyy-MM-dd";
+
+    /**
+     * The formats of the records.
+     */
+    public enum Format {
+        NDJSON("application/x-ndjson"),
+        CSV("text/csv");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        RecordReader reader(Reader input) {
+            return this == NDJSON ? Records.ndjsonReader(input) : Records.csvReader(input);
+        }
+
+        RecordWriter writer(Writer output, boolean header, String... fields) {
+            return this == NDJSON ? Records.ndjsonWriter(output)
+                    : Records.csvWriter(output, header, fields);
+        }
+    }
+
+    /**
+     * The progress of an import.
+     */
+    public static class Progress {
+
+        private final long start;
+
+        private final long startedAt = System.currentTimeMillis();
+
+        private long read;
+
+        private long profiles;
+
+        private long conferences;
+
+        private long rejected;
+
+        private long chunks;
+
+        private long elapsedMillis;
+
+        private Long resumeFrom;
+
+        private String failure;
+
+        private final List<String> errors = new ArrayList<>();
+
+        private Progress(long start) {
+            this.start = start;
+        }
+
+        /**
+         * Returns the position of the first record imported, as in the input.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the number of records read from the start, rejected ones included.
+         */
+        public long getRead() {
+            return read;
+        }
+
+        public long getProfiles() {
+            return profiles;
+        }
+
+        public long getConferences() {
+            return conferences;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getChunks() {
+            return chunks;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * Returns the number of entities written per second, seat shards not included.
+         */
+        public double getRecordsPerSecond() {
+            return elapsedMillis == 0 ? 0 : (profiles + conferences) * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * Returns the position of the record to import from to finish the import, null when
+         * it is finished.
+         */
+        public Long getResumeFrom() {
+            return resumeFrom;
+        }
+
+        /**
+         * Returns why a chunk failed, null when none did.
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        /**
+         * Returns the errors of the first rejected records.
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        private void reject(long position, Exception e) {
+            rejected++;
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("Record " + position + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Renders the progress as JSON.
+         */
+        public String toJson() {
+            return new StringBuilder("{")
+                    .append("\"start\":").append(start)
+                    .append(",\"read\":").append(read)
+                    .append(",\"profiles\":").append(profiles)
+                    .append(",\"conferences\":").append(conferences)
+                    .append(",\"rejected\":").append(rejected)
+                    .append(",\"chunks\":").append(chunks)
+                    .append(",\"elapsedMillis\":").append(elapsedMillis)
+                    .append(",\"recordsPerSecond\":").append(String.format(Locale.ROOT,
+                            "%.1f", getRecordsPerSecond()))
+                    .append(",\"resumeFrom\":").append(resumeFrom)
+                    .append(",\"failure\":").append(Records.toJson(failure))
+                    .append(",\"errors\":").append(Records.toJson(errors))
+                    .append('}').toString();
+        }
+    }
+
+    /**
+     * A page of an export.
+     */
+    public static class Page {
+
+        private final int count;
+
+        private final String nextCursor;
+
+        private final long elapsedMillis;
+
+        private Page(int count, String nextCursor, long elapsedMillis) {
+            this.count = count;
+            this.nextCursor = nextCursor;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the websafe cursor of the next page, null after the last page.
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedMillis == 0 ? 0 : count * 1000.0 / elapsedMillis;
+        }
+    }
+
+    /**
+     * A conference read from a record, created once its id is known.
+     */
+    private static class ConferenceRecord {
+
+        private final Long id;
+
+        private final String organizerUserId;
+
+        private final String organizerDisplayName;
+
+        private final ConferenceForm form;
+
+        private final Integer seatsAvailable;
+
+        private ConferenceRecord(Long id, String organizerUserId, String organizerDisplayName,
+                                 ConferenceForm form, Integer seatsAvailable) {
+            this.id = id;
+            this.organizerUserId = organizerUserId;
+            this.organizerDisplayName = organizerDisplayName;
+            this.form = form;
+            this.seatsAvailable = seatsAvailable;
+        }
+    }
+
+    /**
+     * The records of a chunk, from position start to end, excluded.
+     */
+    private static class Chunk {
+
+        private final long start;
+
+        private long end;
+
+        private final List<Profile> profiles = new ArrayList<>();
+
+        private final List<ConferenceRecord> conferences = new ArrayList<>();
+
+        private Result<?> result;
+
+        private Chunk(long start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        private int entityCount() {
+            return profiles.size() + conferences.size() * (1 + SeatInventory.SHARD_COUNT);
+        }
+    }
+
+    private BulkData() {}
+
+    /**
+     * Imports records, from a given position on.
+     *
+     * @param input The records.
+     * @param format The format of the records.
+     * @param start The position of the first record to import; the records before it are
+     *              skipped, as when resuming an import.
+     * @param deadlineMillis How long to import for; the import stops after the chunk being
+     *                       written then, and reports where to resume from.
+     * @return the progress of the import.
+     * @throws IOException when the input can't be read.
+     */
+    public static Progress importRecords(final Reader input, final Format format,
+                                         final long start, final long deadlineMillis)
+            throws IOException {
+        return importRecords(input, format, start, deadlineMillis, MAX_ENTITIES_PER_PUT);
+    }
+
+    static Progress importRecords(final Reader input, final Format format, final long start,
+                                  final long deadlineMillis, final int maxEntitiesPerPut)
+            throws IOException {
+        Progress progress = new Progress(start);
+        long deadline = System.currentTimeMillis() + deadlineMillis;
+        RecordReader reader = format.reader(input);
+        long position = 0;
+        for (; position < start; position++) {
+            try {
+                if (reader.next() == null) {
+                    break;
+                }
+            } catch (MalformedRecordException e) {
+                // Rejected when it was read first.
+            }
+        }
+        Deque<Chunk> inFlight = new ArrayDeque<>();
+        // The display names of the Profiles imported so far, which may not be written yet.
+        Map<String, String> displayNames = new HashMap<>();
+        Chunk chunk = new Chunk(position);
+        boolean finished = false;
+        try {
+            while (progress.failure == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    break;
+                }
+                Map<String, Object> record;
+                try {
+                    record = reader.next();
+                } catch (MalformedRecordException e) {
+                    progress.read++;
+                    progress.reject(position++, e);
+                    chunk.end = position;
+                    continue;
+                }
+                if (record == null) {
+                    finished = true;
+                    break;
+                }
+                progress.read++;
+                Object entity;
+                try {
+                    entity = fromRecord(record);
+                } catch (IllegalArgumentException e) {
+                    progress.reject(position++, e);
+                    chunk.end = position;
+                    continue;
+                }
+                int entities = entity instanceof Profile ? 1 : 1 + SeatInventory.SHARD_COUNT;
+                if (chunk.entityCount() + entities > maxEntitiesPerPut) {
+                    write(chunk, inFlight, displayNames, progress);
+                    chunk = new Chunk(position);
+                }
+                if (entity instanceof Profile) {
+                    chunk.profiles.add((Profile) entity);
+                } else {
+                    chunk.conferences.add((ConferenceRecord) entity);
+                }
+                chunk.end = ++position;
+            }
+            if (progress.failure == null) {
+                write(chunk, inFlight, displayNames, progress);
+            }
+        } finally {
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.removeFirst(), progress);
+            }
+            if (progress.conferences > 0) {
+                // New conferences may show up in any query.
+                ConferenceQueryCache.invalidate(ConferenceQueryCache.ALL_FIELDS);
+            }
+            progress.elapsedMillis = System.currentTimeMillis() - progress.startedAt;
+        }
+        if (progress.failure == null && !finished) {
+            progress.resumeFrom = position;
+        }
+        LOG.info("Imported " + progress.toJson());
+        return progress;
+    }
+
+    /**
+     * Starts writing a chunk, after completing the oldest chunk in flight if there are
+     * PARALLEL_CHUNKS already.
+     */
+    private static void write(Chunk chunk, Deque<Chunk> inFlight,
+                              Map<String, String> displayNames, Progress progress) {
+        if (chunk.profiles.isEmpty() && chunk.conferences.isEmpty()) {
+            return;
+        }
+        if (inFlight.size() >= PARALLEL_CHUNKS) {
+            complete(inFlight.removeFirst(), progress);
+            if (progress.failure != null) {
+                return;
+            }
+        }
+        try {
+            List<Object> entities = new ArrayList<>(chunk.entityCount());
+            entities.addAll(chunk.profiles);
+            for (Conference conference : createConferences(chunk, displayNames)) {
+                entities.add(conference);
+                entities.addAll(SeatInventory.createShards(conference));
+            }
+            chunk.result = ofy().save().entities(entities);
+            inFlight.addLast(chunk);
+        } catch (RuntimeException e) {
+            failed(chunk, progress, e);
+        }
+    }
+
+    /**
+     * Waits for the write of a chunk.
+     */
+    private static void complete(Chunk chunk, Progress progress) {
+        try {
+            chunk.result.now();
+        } catch (RuntimeException e) {
+            failed(chunk, progress, e);
+            return;
+        }
+        progress.profiles += chunk.profiles.size();
+        progress.conferences += chunk.conferences.size();
+        progress.chunks++;
+        // The session need not keep what was written.
+        ofy().clear();
+    }
+
+    private static void failed(Chunk chunk, Progress progress, RuntimeException e) {
+        LOG.warning("Failed to import records " + chunk.start + " to " + chunk.end + ": " + e);
+        if (progress.resumeFrom == null || chunk.start < progress.resumeFrom) {
+            progress.resumeFrom = chunk.start;
+        }
+        if (progress.failure == null) {
+            progress.failure = e.toString();
+        }
+    }
+
+    /**
+     * Creates the conferences of a chunk, allocating the missing ids in a range per
+     * organizer and resolving the missing organizer display names from the Profiles
+     * imported so far, whose writes may still be in flight, or else with one batch load.
+     */
+    private static List<Conference> createConferences(Chunk chunk,
+                                                      Map<String, String> displayNames) {
+        Map<String, Integer> idsNeeded = new HashMap<>();
+        for (Profile profile : chunk.profiles) {
+            displayNames.put(profile.getUserId(), profile.getDisplayName());
+        }
+        Set<Key<Profile>> organizerKeys = new HashSet<>();
+        for (ConferenceRecord record : chunk.conferences) {
+            if (record.id == null) {
+                Integer count = idsNeeded.get(record.organizerUserId);
+                idsNeeded.put(record.organizerUserId, count == null ? 1 : count + 1);
+            }
+            if (record.organizerDisplayName == null
+                    && !displayNames.containsKey(record.organizerUserId)) {
+                organizerKeys.add(Key.create(Profile.class, record.organizerUserId));
+            }
+        }
+        for (Profile organizer : EntityCache.load(organizerKeys).values()) {
+            displayNames.put(organizer.getUserId(), organizer.getDisplayName());
+        }
+        Map<String, Iterator<Key<Conference>>> ids = new HashMap<>();
+        for (Map.Entry<String, Integer> organizer : idsNeeded.entrySet()) {
+            ids.put(organizer.getKey(), factory().allocateIds(
+                    Key.create(Profile.class, organizer.getKey()), Conference.class,
+                    organizer.getValue()).iterator());
+        }
+        List<Conference> conferences = new ArrayList<>(chunk.conferences.size());
+        for (ConferenceRecord record : chunk.conferences) {
+            long id = record.id != null ? record.id
+                    : ids.get(record.organizerUserId).next().getId();
+            Conference conference = new Conference(id, record.organizerUserId, record.form);
+            if (record.seatsAvailable != null) {
+                conference.setSeatsAvailable(record.seatsAvailable);
+            }
+            conference.setOrganizerDisplayName(record.organizerDisplayName != null
+                    ? record.organizerDisplayName : displayNames.get(record.organizerUserId));
+            conferences.add(conference);
+        }
+        return conferences;
+    }
+
+    /**
+     * Converts a record to a Profile or a ConferenceRecord.
+     *
+     * @throws IllegalArgumentException when the record is not valid.
+     */
+    private static Object fromRecord(Map<String, Object> record) {
+        String kind = string(record, "kind", true);
+        if (PROFILE_KIND.equals(kind)) {
+            String teeShirtSize = string(record, "teeShirtSize", false);
+            Profile profile = new Profile(string(record, "userId", true),
+                    string(record, "displayName", false), string(record, "mainEmail", false),
+                    teeShirtSize == null ? TeeShirtSize.NOT_SPECIFIED
+                            : TeeShirtSize.valueOf(teeShirtSize));
+            return profile;
+        }
+        if (CONFERENCE_KIND.equals(kind)) {
+            Long maxAttendees = number(record, "maxAttendees");
+            Long seatsAvailable = number(record, "seatsAvailable");
+            if (seatsAvailable != null && (seatsAvailable < 0 || maxAttendees == null
+                    || seatsAvailable > maxAttendees)) {
+                throw new IllegalArgumentException("seatsAvailable must be between 0 and "
+                        + "maxAttendees");
+            }
+            ConferenceForm form = new ConferenceForm(string(record, "name", true),
+                    string(record, "description", false), list(record, "topics"),
+                    string(record, "city", false), date(record, "startDate"),
+                    date(record, "endDate"), maxAttendees == null ? 0 : maxAttendees.intValue());
+            return new ConferenceRecord(number(record, "id"),
+                    string(record, "organizerUserId", true),
+                    string(record, "organizerDisplayName", false), form,
+                    seatsAvailable == null ? null : seatsAvailable.intValue());
+        }
+        throw new IllegalArgumentException("Unknown kind " + kind);
+    }
+
+    private static String string(Map<String, Object> record, String field, boolean required) {
+        Object value = record.get(field);
+        if (value == null) {
+            if (required) {
+                throw new IllegalArgumentException(field + " is required");
+            }
+            return null;
+        }
+        return value.toString();
+    }
+
+    private static Long number(Map<String, Object> record, String field) {
+        Object value = record.get(field);
+        if (value == null || value instanceof Long) {
+            return (Long) value;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " is not an integer: " + value);
+        }
+    }
+
+    private static List<String> list(Map<String, Object> record, String field) {
+        Object value = record.get(field);
+        if (value == null) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                list.add(String.valueOf(element));
+            }
+        } else {
+            list.addAll(Arrays.asList(value.toString().split(Records.LIST_SEPARATOR)));
+        }
+        return list;
+    }
+
+    private static Date date(Map<String, Object> record, String field) {
+        String value = string(record, field, false);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return dateFormat(value.length() == DAY_FORMAT.length() ? DAY_FORMAT : DATE_FORMAT)
+                    .parse(value);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(field + " is not a date: " + value);
+        }
+    }
+
+    private static SimpleDateFormat dateFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
+    /**
+     * Exports a page of the entities of a kind.
+     *
+     * @param output Where to write the records.
+     * @param format The format of the records.
+     * @param kind PROFILE_KIND or CONFERENCE_KIND.
+     * @param cursor The websafe cursor of the page, null for the first page.
+     * @param limit The most records to write, at most MAX_PAGE_SIZE.
+     * @return the page written.
+     * @throws IOException when the output can't be written.
+     * @throws IllegalArgumentException when the kind is unknown or the limit out of range.
+     */
+    public static Page exportPage(final Writer output, final Format format, final String kind,
+                                  final String cursor, final int limit) throws IOException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("The limit must be between 1 and "
+                    + MAX_PAGE_SIZE);
+        }
+        long startedAt = System.currentTimeMillis();
+        Class<?> type;
+        RecordWriter writer;
+        if (PROFILE_KIND.equals(kind)) {
+            type = Profile.class;
+            writer = format.writer(output, cursor == null, PROFILE_FIELDS);
+        } else if (CONFERENCE_KIND.equals(kind)) {
+            type = Conference.class;
+            writer = format.writer(output, cursor == null, CONFERENCE_FIELDS);
+        } else {
+            throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+        Query<?> query = ofy().load().type(type).limit(limit).chunk(100);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<?> iterator = query.iterator();
+        int count = 0;
+        List<Conference> conferences = new ArrayList<>(100);
+        while (iterator.hasNext()) {
+            Object entity = iterator.next();
+            count++;
+            if (entity instanceof Profile) {
+                writer.write(toRecord((Profile) entity));
+                continue;
+            }
+            conferences.add((Conference) entity);
+            if (conferences.size() == 100) {
+                writeConferences(writer, conferences);
+            }
+        }
+        writeConferences(writer, conferences);
+        String nextCursor = count < limit ? null : iterator.getCursor().toWebSafeString();
+        ofy().clear();
+        return new Page(count, nextCursor, System.currentTimeMillis() - startedAt);
+    }
+
+    /**
+     * Writes conferences with the seats available of their shards, then forgets them.
+     */
+    private static void writeConferences(RecordWriter writer, List<Conference> conferences)
+            throws IOException {
+        List<Key<Conference>> keys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            keys.add(Key.create(conference));
+        }
+        Map<Key<Conference>, Integer> seats = SeatInventory.sumShards(keys);
+        for (Conference conference : conferences) {
+            Integer sum = seats.get(Key.create(conference));
+            if (sum != null) {
+                conference.setSeatsAvailable(sum);
+            }
+            writer.write(toRecord(conference));
+        }
+        conferences.clear();
+    }
+
+    private static Map<String, Object> toRecord(Profile profile) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("kind", PROFILE_KIND);
+        record.put("userId", profile.getUserId());
+        record.put("displayName", profile.getDisplayName());
+        record.put("mainEmail", profile.getMainEmail());
+        record.put("teeShirtSize", profile.getTeeShirtSize() == null ? null
+                : profile.getTeeShirtSize().name());
+        return record;
+    }
+
+    private static Map<String, Object> toRecord(Conference conference) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("kind", CONFERENCE_KIND);
+        record.put("id", conference.getId());
+        record.put("organizerUserId", conference.getOrganizerUserId());
+        // Only when stored, so as not to load the organizer.
+        record.put("organizerDisplayName", conference.hasOrganizerDisplayName()
+                ? conference.getOrganizerDisplayName() : null);
+        record.put("name", conference.getName());
+        record.put("description", conference.getDescription());
+        record.put("topics", conference.getTopics());
+        record.put("city", conference.getCity());
+        SimpleDateFormat dateFormat = dateFormat(DATE_FORMAT);
+        record.put("startDate", conference.getStartDate() == null ? null
+                : dateFormat.format(conference.getStartDate()));
+        record.put("endDate", conference.getEndDate() == null ? null
+                : dateFormat.format(conference.getEndDate()));
+        record.put("maxAttendees", (long) conference.getMaxAttendees());
+        record.put("seatsAvailable", (long) conference.getSeatsAvailable());
+        return record;
+    }
+}
@@ -0,0 +1,440 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.FieldType;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.google.devrel.training.conference.service.ConferenceQueryCache.CachedPage;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-instance secondary index of conferences, answering any conjunction of equality and
+ * range filters, including inequality filters on several fields, which the datastore
+ * can't serve.
+ *
+ * Each conference is a row. Integer fields are stored as int columns and scanned; string
+ * fields are dictionary encoded with a bitmap of rows per value, so a filter on a string
+ * field is the union of the bitmaps of the values it accepts. A topic filter matches a
+ * conference when any of its topics matches, as in the datastore.
+ *
+ * The index is built by the warmup request of the instance, or by its first query when
+ * the instance started without one, and kept up to date by the writes of this instance:
+ * conferences saved, once their transaction committed, and booked or given back seats.
+ * Every CATCH_UP_MILLIS, one query also loads the conferences written since by other
+ * instances, by their updatedAt, so no query scans all the conferences once the index is
+ * built. The index loads conferences in an Objectify session of its own, leaving the
+ * session of the request as it was.
+ */
+public final class ConferenceIndex {
+
+    static final long CATCH_UP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How far back from the last catch-up the next one starts, to allow for the clocks of
+     * instances and for the datastore indexes lagging behind writes.
+     */
+    static final long OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The prefix of the positions in the page tokens of index queries, followed by the
+     * offset of the page.
+     */
+    static final String PAGE_TOKEN_PREFIX = "offset:";
+
+    private static final int BATCH_SIZE = 500;
+
+    private static volatile Table table;
+
+    private ConferenceIndex() {}
+
+    /**
+     * Runs a query on the index.
+     *
+     * @param form The query, with the page size and the page token of the previous page.
+     * @return the keys of the conferences in the page, ordered by name, with the page token
+     *     of the next page if there may be one.
+     */
+    public static CachedPage query(final ConferenceQueryForm form) {
+        int offset = form.startOffset(View.CONFERENCES, PAGE_TOKEN_PREFIX);
+        int pageSize = form.getPageSize();
+        List<Key<Conference>> keys = table().query(form.getFilters(), offset, pageSize);
+        String nextPageToken = keys.size() < pageSize ? null
+                : form.pageToken(View.CONFERENCES, PAGE_TOKEN_PREFIX + (offset + pageSize));
+        return new CachedPage(keys, nextPageToken);
+    }
+
+    /**
+     * Indexes a saved conference once it is committed. Called when a conference is saved.
+     *
+     * @param conference The conference.
+     */
+    public static void update(final Conference conference) {
+        if (table == null || EntityCache.isConverting()) {
+            return;
+        }
+        Transactions.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                Table current = table;
+                if (current != null) {
+                    current.put(conference);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adjusts the seats available of a conference after a registration or unregistration.
+     *
+     * @param conferenceKey The key of the conference.
+     * @param delta The number of seats given back, negative for seats booked.
+     */
+    public static void seatsChanged(final Key<Conference> conferenceKey, final int delta) {
+        Table current = table;
+        if (current != null) {
+            current.addSeats(conferenceKey, delta);
+        }
+    }
+
+    /**
+     * Builds the index again and replaces it. Called by the warmup request.
+     */
+    public static void rebuild() {
+        table = build();
+    }
+
+    /**
+     * Drops the index, so the next query builds it again.
+     */
+    public static void clear() {
+        table = null;
+    }
+
+    /**
+     * Loads the conferences written since the last catch-up, if it was at least
+     * CATCH_UP_MILLIS before the given time.
+     *
+     * @param now The current time in milliseconds.
+     */
+    static void catchUp(final long now) {
+        Table current = table;
+        if (current != null) {
+            current.catchUp(now);
+        }
+    }
+
+    private static Table table() {
+        Table current = table;
+        if (current == null) {
+            synchronized (ConferenceIndex.class) {
+                current = table;
+                if (current == null) {
+                    current = build();
+                    table = current;
+                }
+            }
+        } else {
+            current.catchUp(System.currentTimeMillis());
+        }
+        return current;
+    }
+
+    private static Table build() {
+        Table built = new Table(System.currentTimeMillis());
+        for (Conference conference : factory().begin().load().type(Conference.class)
+                .chunk(BATCH_SIZE)) {
+            built.put(conference);
+        }
+        return built;
+    }
+
+    /**
+     * The rows and columns of the index.
+     */
+    static class Table {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * When the conferences last loaded were read; writes before then are indexed.
+         */
+        private volatile long caughtUpAt;
+
+        private final AtomicBoolean catchingUp = new AtomicBoolean();
+
+        private final Map<Key<Conference>, Integer> rows = new HashMap<>();
+
+        private int size;
+
+        private Key<Conference>[] keys = newKeyArray(16);
+
+        private String[] names = new String[16];
+
+        private int[] months = new int[16];
+
+        private int[] maxAttendees = new int[16];
+
+        private int[] seatsAvailable = new int[16];
+
+        /**
+         * The rows of each city, and of each topic, sorted by value for range filters.
+         */
+        private final TreeMap<String, BitSet> cities = new TreeMap<>();
+
+        private final TreeMap<String, BitSet> topics = new TreeMap<>();
+
+        /**
+         * The rows ordered by name, or null when it has to be sorted again.
+         */
+        private int[] byName;
+
+        Table(final long caughtUpAt) {
+            this.caughtUpAt = caughtUpAt;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Key<Conference>[] newKeyArray(int length) {
+            return new Key[length];
+        }
+
+        void put(final Conference conference) {
+            put(conference, false);
+        }
+
+        /**
+         * Indexes a conference.
+         *
+         * @param conference The conference.
+         * @param keepSeats Whether a conference indexed already keeps its seats available:
+         *     those stored are only reconciled with the seat shards now and then, while those
+         *     indexed follow the seats booked and given back on this instance.
+         */
+        private void put(final Conference conference, final boolean keepSeats) {
+            Key<Conference> key = Key.create(conference);
+            lock.writeLock().lock();
+            try {
+                Integer existing = rows.get(key);
+                int row;
+                if (existing == null) {
+                    row = size++;
+                    if (row == keys.length) {
+                        int length = keys.length * 2;
+                        keys = Arrays.copyOf(keys, length);
+                        names = Arrays.copyOf(names, length);
+                        months = Arrays.copyOf(months, length);
+                        maxAttendees = Arrays.copyOf(maxAttendees, length);
+                        seatsAvailable = Arrays.copyOf(seatsAvailable, length);
+                    }
+                    rows.put(key, row);
+                    keys[row] = key;
+                } else {
+                    row = existing;
+                    removePostings(cities, row);
+                    removePostings(topics, row);
+                }
+                if (!Objects.equals(conference.getName(), names[row])) {
+                    names[row] = conference.getName();
+                    byName = null;
+                }
+                months[row] = conference.getMonth();
+                maxAttendees[row] = conference.getMaxAttendees();
+                if (existing == null || !keepSeats) {
+                    seatsAvailable[row] = conference.getSeatsAvailable();
+                }
+                // A conference stored without a city or topics matches no filter on them.
+                if (conference.getCity() != null) {
+                    addPosting(cities, conference.getCity(), row);
+                }
+                if (conference.getTopics() != null) {
+                    for (String topic : conference.getTopics()) {
+                        if (topic != null) {
+                            addPosting(topics, topic, row);
+                        }
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Indexes the conferences written since the last catch-up, unless it was less than
+         * CATCH_UP_MILLIS ago or another query is catching up already, in which case the
+         * caller queries the index as it is.
+         */
+        void catchUp(final long now) {
+            long since = caughtUpAt;
+            if (now < since + CATCH_UP_MILLIS || !catchingUp.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                for (Conference conference : factory().begin().load().type(Conference.class)
+                        .filter("updatedAt >=", new Date(since - OVERLAP_MILLIS))
+                        .chunk(BATCH_SIZE)) {
+                    put(conference, true);
+                }
+                caughtUpAt = now;
+            } finally {
+                catchingUp.set(false);
+            }
+        }
+
+        void addSeats(final Key<Conference> key, final int delta) {
+            lock.writeLock().lock();
+            try {
+                Integer row = rows.get(key);
+                if (row != null) {
+                    seatsAvailable[row] += delta;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private static void addPosting(TreeMap<String, BitSet> postings, String value,
+                                       int row) {
+            BitSet bits = postings.get(value);
+            if (bits == null) {
+                bits = new BitSet();
+                postings.put(value, bits);
+            }
+            bits.set(row);
+        }
+
+        private static void removePostings(TreeMap<String, BitSet> postings, int row) {
+            for (BitSet bits : postings.values()) {
+                bits.clear(row);
+            }
+        }
+
+        /**
+         * Returns a page of the keys of the conferences matching all the filters, ordered
+         * by name.
+         */
+        List<Key<Conference>> query(final List<Filter> filters, final int offset,
+                                    final int pageSize) {
+            lock.readLock().lock();
+            if (byName == null || byName.length != size) {
+                // Sorting by name needs the write lock, as it replaces byName. The read lock
+                // is taken again before the write lock is released, so no put() can make
+                // byName stale before the rows are read.
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    sortByName();
+                    lock.readLock().lock();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            try {
+                BitSet matches = new BitSet(size);
+                matches.set(0, size);
+                for (Filter filter : filters) {
+                    matches.and(rowsMatching(filter));
+                }
+                List<Key<Conference>> page = new ArrayList<>(Math.min(pageSize, size));
+                int skipped = 0;
+                for (int i = 0; i < byName.length && page.size() < pageSize; i++) {
+                    int row = byName[i];
+                    if (matches.get(row) && skipped++ >= offset) {
+                        page.add(keys[row]);
+                    }
+                }
+                return page;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Sorts the rows by name unless another query did since the last change, conferences
+         * without a name first, as in the datastore. The caller holds the write lock.
+         */
+        private void sortByName() {
+            if (byName != null && byName.length == size) {
+                return;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byName = compareNames(names[a], names[b]);
+                    return byName != 0 ? byName : keys[a].compareTo(keys[b]);
+                }
+            });
+            byName = new int[size];
+            for (int i = 0; i < size; i++) {
+                byName[i] = order[i];
+            }
+        }
+
+        private static int compareNames(String a, String b) {
+            if (a == null || b == null) {
+                return a == null ? (b == null ? 0 : -1) : 1;
+            }
+            return a.compareTo(b);
+        }
+
+        private BitSet rowsMatching(final Filter filter) {
+            Field field = filter.getField();
+            if (field.getFieldType() == FieldType.STRING) {
+                TreeMap<String, BitSet> postings = field == Field.CITY ? cities : topics;
+                BitSet bits = new BitSet(size);
+                for (Map.Entry<String, BitSet> posting : postings.entrySet()) {
+                    if (filter.getOperator().accepts(
+                            posting.getKey().compareTo(filter.getValue()))) {
+                        bits.or(posting.getValue());
+                    }
+                }
+                return bits;
+            }
+            int[] column;
+            switch (field) {
+                case MONTH:
+                    column = months;
+                    break;
+                case MAX_ATTENDEES:
+                    column = maxAttendees;
+                    break;
+                case SEATS_AVAILABLE:
+                    column = seatsAvailable;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown field " + field);
+            }
+            int value = Integer.parseInt(filter.getValue());
+            Operator operator = filter.getOperator();
+            BitSet bits = new BitSet(size);
+            for (int row = 0; row < size; row++) {
+                if (operator.accepts(Integer.compare(column[row], value))) {
+                    bits.set(row);
+                }
+            }
+            return bits;
+        }
+    }
+}
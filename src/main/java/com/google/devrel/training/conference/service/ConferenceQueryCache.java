@@ -0,0 +1,174 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.googlecode.objectify.Key;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memcache-backed cache of conference query results.
+ *
+ * A result is cached as the list of conference keys in the page plus the next page token,
+ * keyed by the normalized filters of the ConferenceQueryForm. Each field has a version
+ * number in memcache which is part of the cache key of every query filtering on that field,
+ * so bumping the version invalidates all of those queries at once. A global version covers
+ * changes that may affect any query, such as a new conference.
+ */
+public final class ConferenceQueryCache {
+
+    /**
+     * The bucket of the version covering every query.
+     */
+    public static final String ALL_FIELDS = "*";
+
+    /**
+     * The bucket of the version covering queries on the number of seats available.
+     */
+    public static final String SEATS_AVAILABLE = "seatsAvailable";
+
+    private static final String KEY_PREFIX = "CONFERENCE_QUERY:";
+
+    private static final String VERSION_KEY_PREFIX = "CONFERENCE_QUERY_VERSION:";
+
+    private static final int EXPIRATION_SECONDS = 60;
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A page of query results as stored in memcache.
+     */
+    public static class CachedPage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Key<Conference>> keys;
+
+        private final String nextPageToken;
+
+        public CachedPage(List<Key<Conference>> keys, String nextPageToken) {
+            this.keys = new ArrayList<>(keys);
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<Key<Conference>> getKeys() {
+            return Collections.unmodifiableList(keys);
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private ConferenceQueryCache() {}
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Returns the cached page for the given cache key.
+     *
+     * @param cacheKey The cache key from cacheKey(ConferenceQueryForm).
+     * @return the cached page, or null if there is none.
+     */
+    public static CachedPage get(String cacheKey) {
+        CachedPage page = (CachedPage) memcache().get(cacheKey);
+        if (page == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return page;
+    }
+
+    /**
+     * Caches a page of results.
+     *
+     * The cache key must be the one computed before running the query, so that a page
+     * computed while the versions were bumped can't be cached under the new versions.
+     *
+     * @param cacheKey The cache key from cacheKey(ConferenceQueryForm).
+     * @param page The page of results.
+     */
+    public static void put(String cacheKey, CachedPage page) {
+        memcache().put(cacheKey, page, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Invalidates every cached query filtering on any of the given field buckets.
+     *
+     * @param fieldNames The datastore property names, or ALL_FIELDS.
+     */
+    public static void invalidate(String... fieldNames) {
+        for (String fieldName : fieldNames) {
+            memcache().increment(VERSION_KEY_PREFIX + fieldName, 1L, System.currentTimeMillis());
+        }
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Builds the cache key from the sorted filters, the page and the current versions of the
+     * fields the filters refer to.
+     *
+     * @param form The query form.
+     * @return the cache key.
+     */
+    public static String cacheKey(ConferenceQueryForm form) {
+        SortedSet<String> filters = new TreeSet<>();
+        SortedSet<String> versionKeys = new TreeSet<>();
+        versionKeys.add(VERSION_KEY_PREFIX + ALL_FIELDS);
+        for (Filter filter : form.getFilters()) {
+            String fieldName = filter.getField().getFieldName();
+            filters.add(fieldName + filter.getOperator().getQueryOperator() + filter.getValue());
+            versionKeys.add(VERSION_KEY_PREFIX + fieldName);
+        }
+        List<String> parts = new ArrayList<>();
+        parts.add(Joiner.on('&').join(filters));
+        parts.add(String.valueOf(form.getPageSize()));
+        parts.add(String.valueOf(form.getCursor()));
+        Map<String, Object> versions = memcache().getAll(versionKeys);
+        for (String versionKey : versionKeys) {
+            parts.add(versionKey + "=" + version(versionKey, versions.get(versionKey)));
+        }
+        // Filter values are user supplied, so hash them to stay within the key size limit.
+        return KEY_PREFIX + Hashing.sha1().hashString(Joiner.on('|').join(parts), Charsets.UTF_8);
+    }
+
+    /**
+     * Returns the current version, initializing it when memcache doesn't have it, so that
+     * an evicted version never brings back entries cached before the eviction.
+     */
+    private static Object version(String versionKey, Object version) {
+        if (version != null) {
+            return version;
+        }
+        memcache().put(versionKey, System.currentTimeMillis(), null,
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return memcache().get(versionKey);
+    }
+}
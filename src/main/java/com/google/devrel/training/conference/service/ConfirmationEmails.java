@@ -0,0 +1,300 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Confirmation e-mails for new conferences, sent in batches.
+ *
+ * Creating a conference adds a task holding only the conference key to a pull queue, and
+ * schedules the worker a few seconds later. The worker leases up to BATCH_SIZE tasks at a
+ * time, loads their conferences and organizers in two batch gets, sends the e-mails with
+ * one shared mail session and deletes the sent tasks in one call. Tasks whose e-mail
+ * failed are leased again after an exponential backoff, and dropped after MAX_RETRIES
+ * attempts. Each batch is recorded in ApiMetrics as the "sendConfirmationEmails"
+ * endpoint.
+ */
+public final class ConfirmationEmails {
+
+    private static final Logger LOG = Logger.getLogger(ConfirmationEmails.class.getName());
+
+    /**
+     * The pull queue of the e-mails to send, declared in queue.xml.
+     */
+    public static final String QUEUE_NAME = "confirmation-email";
+
+    /**
+     * The path of the worker, SendConfirmationEmailServlet.
+     */
+    public static final String WORKER_PATH = "/tasks/send_confirmation_email";
+
+    static final String METRICS_NAME = "sendConfirmationEmails";
+
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * The most batches a worker request sends before leaving the rest to the next one.
+     */
+    static final int MAX_BATCHES = 10;
+
+    static final int MAX_RETRIES = 8;
+
+    private static final long LEASE_SECONDS = 60;
+
+    private static final long MIN_BACKOFF_SECONDS = 30;
+
+    private static final long MAX_BACKOFF_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    /**
+     * The worker is scheduled at most once per WORKER_DELAY_MILLIS, to send what was
+     * queued in the meantime.
+     */
+    private static final long WORKER_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final String CONFERENCE_KEY_PARAM = "conferenceKey";
+
+    private static final Session SESSION = Session.getDefaultInstance(new Properties(), null);
+
+    /**
+     * The outcome of a batch.
+     */
+    public static class Batch {
+
+        private int leased;
+
+        private int sent;
+
+        private int retried;
+
+        private int dropped;
+
+        public int getLeased() {
+            return leased;
+        }
+
+        public int getSent() {
+            return sent;
+        }
+
+        /**
+         * Returns the number of e-mails that failed and will be retried.
+         */
+        public int getRetried() {
+            return retried;
+        }
+
+        /**
+         * Returns the number of tasks given up, for deleted conferences or too many retries.
+         */
+        public int getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("leased %d, sent %d, retried %d, dropped %d",
+                    leased, sent, retried, dropped);
+        }
+    }
+
+    private ConfirmationEmails() {}
+
+    private static Queue queue() {
+        return QueueFactory.getQueue(QUEUE_NAME);
+    }
+
+    /**
+     * Queues the confirmation e-mail of a new conference in the current transaction.
+     *
+     * @param conferenceKey The key of the conference.
+     */
+    public static void enqueue(final Key<Conference> conferenceKey) {
+        queue().add(ofy().getTransaction(), TaskOptions.Builder
+                .withMethod(TaskOptions.Method.PULL)
+                .param(CONFERENCE_KEY_PARAM, conferenceKey.getString()));
+    }
+
+    /**
+     * Schedules the worker, unless it is already scheduled for the current period.
+     */
+    public static void scheduleWorker() {
+        long period = System.currentTimeMillis() / WORKER_DELAY_MILLIS;
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                    .withUrl(WORKER_PATH)
+                    .taskName(QUEUE_NAME + "-" + period)
+                    .countdownMillis(WORKER_DELAY_MILLIS));
+        } catch (TaskAlreadyExistsException e) {
+            // Another conference created in this period scheduled it.
+        }
+    }
+
+    /**
+     * Sends batches until the queue is empty or MAX_BATCHES were sent.
+     *
+     * @return the number of e-mails sent.
+     */
+    public static int drain() {
+        int sent = 0;
+        for (int i = 0; i < MAX_BATCHES; i++) {
+            Batch batch = sendBatch();
+            sent += batch.getSent();
+            if (batch.getLeased() < BATCH_SIZE) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Leases a batch of tasks and sends their e-mails.
+     *
+     * @return the outcome of the batch.
+     */
+    public static Batch sendBatch() {
+        ApiMetrics.Request metrics = ApiMetrics.start(METRICS_NAME);
+        Batch batch = new Batch();
+        boolean error = true;
+        try {
+            List<TaskHandle> tasks = queue().leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS,
+                    BATCH_SIZE);
+            batch.leased = tasks.size();
+            if (!tasks.isEmpty()) {
+                send(tasks, batch);
+            }
+            error = batch.retried > 0;
+            return batch;
+        } finally {
+            metrics.finish(error);
+            if (batch.leased > 0) {
+                LOG.info("Confirmation e-mail batch: " + batch);
+            }
+        }
+    }
+
+    private static void send(final List<TaskHandle> tasks, final Batch batch) {
+        Map<TaskHandle, Key<Conference>> conferenceKeys = new HashMap<>();
+        for (TaskHandle task : tasks) {
+            Key<Conference> conferenceKey = conferenceKey(task);
+            if (conferenceKey != null) {
+                conferenceKeys.put(task, conferenceKey);
+            }
+        }
+        Map<Key<Conference>, Conference> conferences =
+                EntityCache.load(conferenceKeys.values());
+        List<Key<Profile>> profileKeys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences.values()) {
+            profileKeys.add(conference.getProfileKey());
+        }
+        Map<Key<Profile>, Profile> organizers = EntityCache.load(profileKeys);
+
+        List<TaskHandle> done = new ArrayList<>(tasks.size());
+        try {
+            for (TaskHandle task : tasks) {
+                Conference conference = conferences.get(conferenceKeys.get(task));
+                Profile organizer = conference == null
+                        ? null : organizers.get(conference.getProfileKey());
+                if (organizer == null) {
+                    LOG.warning("Dropping the confirmation e-mail of task " + task.getName()
+                            + ", its conference or organizer was not found");
+                    batch.dropped++;
+                    done.add(task);
+                    continue;
+                }
+                try {
+                    Transport.send(message(conference, organizer));
+                    batch.sent++;
+                    done.add(task);
+                } catch (MessagingException | UnsupportedEncodingException e) {
+                    LOG.log(Level.WARNING, String.format("Failed to send an mail to %s",
+                            organizer.getMainEmail()), e);
+                    if (retry(task)) {
+                        batch.retried++;
+                    } else {
+                        batch.dropped++;
+                        done.add(task);
+                    }
+                }
+            }
+        } finally {
+            // Tasks left out, when the batch failed halfway, are retried once their
+            // lease expires.
+            if (!done.isEmpty()) {
+                queue().deleteTask(done);
+            }
+        }
+    }
+
+    private static Key<Conference> conferenceKey(final TaskHandle task) {
+        try {
+            for (Map.Entry<String, String> param : task.extractParams()) {
+                if (CONFERENCE_KEY_PARAM.equals(param.getKey())) {
+                    return Key.create(param.getValue());
+                }
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Invalid confirmation e-mail task " + task.getName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Delays the next lease of a failed task exponentially in its number of attempts.
+     *
+     * @return false when the task had too many attempts and should be dropped.
+     */
+    private static boolean retry(final TaskHandle task) {
+        int retries = task.getRetryCount();
+        if (retries >= MAX_RETRIES) {
+            LOG.severe("Giving up the confirmation e-mail of task " + task.getName()
+                    + " after " + retries + " attempts");
+            return false;
+        }
+        long backoff = Math.min(MAX_BACKOFF_SECONDS, MIN_BACKOFF_SECONDS << retries);
+        // Jitter spreads out the retries of the tasks of a batch that failed together.
+        backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        queue().modifyTaskLease(task, backoff, TimeUnit.SECONDS);
+        return true;
+    }
+
+    private static Message message(final Conference conference, final Profile organizer)
+            throws MessagingException, UnsupportedEncodingException {
+        Message message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress(
+                String.format("noreply@%s.appspotmail.com",
+                        SystemProperty.applicationId.get()), "Conference Central"));
+        message.addRecipient(Message.RecipientType.TO,
+                new InternetAddress(organizer.getMainEmail(), ""));
+        message.setSubject("You created a new Conference!");
+        message.setText("Hi, you have created a following conference.\n"
+                + conference.toString());
+        return message;
+    }
+}
@@ -0,0 +1,271 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-instance cache of entities in front of the Objectify memcache.
+ *
+ * Holds at most MAX_ENTRIES entities for TTL_MILLIS, evicting the least recently used.
+ * Entities are kept as datastore Entities and a new object is built on every hit, so
+ * callers can change what they get without affecting other requests. Loads in a
+ * transaction always go to the datastore. Saving a Conference or a Profile invalidates its
+ * entry on this instance; other instances see the change when their entry expires.
+ *
+ * Saves in a transaction happen before the commit, so an invalidated key is not cached
+ * again for WRITE_GRACE_MILLIS, lest a load between the save and the commit put the old
+ * entity back.
+ */
+public final class EntityCache {
+
+    static final int MAX_ENTRIES = 5000;
+
+    static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    static final long WRITE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * A cached entity, or a recently written key when entity is null.
+     */
+    private static class CacheEntry {
+
+        private final Entity entity;
+
+        private final long expiresAt;
+
+        private CacheEntry(Entity entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final LinkedHashMap<Key<?>, CacheEntry> ENTRIES =
+            new LinkedHashMap<Key<?>, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key<?>, CacheEntry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        EVICTIONS.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    /**
+     * Incremented by every invalidation, so that a load which raced with a save does not
+     * put what it read before the save.
+     */
+    private static final AtomicLong INVALIDATIONS = new AtomicLong();
+
+    /**
+     * Set while converting an entity to cache it, which runs its @OnSave methods.
+     */
+    private static final ThreadLocal<Boolean> CONVERTING = new ThreadLocal<>();
+
+    private EntityCache() {}
+
+    /**
+     * Loads an entity, from the cache when possible.
+     *
+     * @param key The key of the entity.
+     * @return the entity, or null when there is none.
+     */
+    public static <T> T load(final Key<T> key) {
+        if (ofy().getTransaction() != null) {
+            return ofy().load().key(key).now();
+        }
+        Entity entity = get(key);
+        if (entity != null) {
+            HITS.incrementAndGet();
+            return ofy().load().fromEntity(entity);
+        }
+        MISSES.incrementAndGet();
+        long invalidations = INVALIDATIONS.get();
+        T loaded = ofy().load().key(key).now();
+        if (loaded != null) {
+            put(key, loaded, invalidations);
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads entities in a batch, loading only those not in the cache from the datastore.
+     *
+     * @param keys The keys of the entities.
+     * @return the entities found, by key, in the order of the keys.
+     */
+    public static <T> Map<Key<T>, T> load(final Collection<Key<T>> keys) {
+        return load(keys, null);
+    }
+
+    /**
+     * Loads entities in a batch like load(keys), counting those served from the cache.
+     *
+     * @param keys The keys of the entities.
+     * @param hits Incremented for each entity served from the cache, or null.
+     * @return the entities found, by key, in the order of the keys.
+     */
+    public static <T> Map<Key<T>, T> load(final Collection<Key<T>> keys,
+                                          final AtomicInteger hits) {
+        if (ofy().getTransaction() != null) {
+            return ofy().load().keys(keys);
+        }
+        Map<Key<T>, T> cached = new HashMap<>();
+        List<Key<T>> missing = new ArrayList<>();
+        for (Key<T> key : keys) {
+            Entity entity = get(key);
+            if (entity != null) {
+                HITS.incrementAndGet();
+                if (hits != null) {
+                    hits.incrementAndGet();
+                }
+                T pojo = ofy().load().fromEntity(entity);
+                cached.put(key, pojo);
+            } else {
+                MISSES.incrementAndGet();
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long invalidations = INVALIDATIONS.get();
+            for (Map.Entry<Key<T>, T> loaded : ofy().load().keys(missing).entrySet()) {
+                put(loaded.getKey(), loaded.getValue(), invalidations);
+                cached.put(loaded.getKey(), loaded.getValue());
+            }
+        }
+        Map<Key<T>, T> result = new LinkedHashMap<>();
+        for (Key<T> key : keys) {
+            T pojo = cached.get(key);
+            if (pojo != null) {
+                result.put(key, pojo);
+            }
+        }
+        return result;
+    }
+
+    private static Entity get(Key<?> key) {
+        synchronized (ENTRIES) {
+            CacheEntry entry = ENTRIES.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= System.currentTimeMillis()) {
+                ENTRIES.remove(key);
+                return null;
+            }
+            return entry.entity;
+        }
+    }
+
+    private static void put(Key<?> key, Object pojo, long invalidations) {
+        Entity entity = toEntity(pojo);
+        long now = System.currentTimeMillis();
+        synchronized (ENTRIES) {
+            CacheEntry entry = ENTRIES.get(key);
+            boolean written = entry != null && entry.entity == null && entry.expiresAt > now;
+            if (INVALIDATIONS.get() == invalidations && !written) {
+                ENTRIES.put(key, new CacheEntry(entity, now + TTL_MILLIS));
+            }
+        }
+    }
+
+    /**
+     * Converts an entity to keep a copy of it, as this cache does, without the invalidations
+     * its @OnSave methods make when it is saved.
+     *
+     * @param pojo The entity.
+     * @return the datastore Entity, from which ofy().load().fromEntity() makes a copy.
+     */
+    public static Entity toEntity(final Object pojo) {
+        CONVERTING.set(Boolean.TRUE);
+        try {
+            return ofy().save().toEntity(pojo);
+        } finally {
+            CONVERTING.remove();
+        }
+    }
+
+    /**
+     * Returns whether the current thread is converting an entity to cache it, rather than
+     * saving it.
+     */
+    static boolean isConverting() {
+        return CONVERTING.get() != null;
+    }
+
+    /**
+     * Removes an entity from the cache, and from the unit of work of the current request.
+     * Called when the entity is saved.
+     *
+     * @param key The key of the entity.
+     */
+    public static void invalidate(final Key<?> key) {
+        if (isConverting()) {
+            return;
+        }
+        UnitOfWork.forget(key);
+        synchronized (ENTRIES) {
+            INVALIDATIONS.incrementAndGet();
+            ENTRIES.put(key, new CacheEntry(null,
+                    System.currentTimeMillis() + WRITE_GRACE_MILLIS));
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public static void clear() {
+        synchronized (ENTRIES) {
+            INVALIDATIONS.incrementAndGet();
+            ENTRIES.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries, including recently written keys.
+     */
+    public static int size() {
+        synchronized (ENTRIES) {
+            return ENTRIES.size();
+        }
+    }
+
+    public static long getHitCount() {
+        return HITS.get();
+    }
+
+    public static long getMissCount() {
+        return MISSES.get();
+    }
+
+    public static long getEvictionCount() {
+        return EVICTIONS.get();
+    }
+
+    /**
+     * Returns the fraction of loads served from the cache, 0 when nothing was loaded.
+     */
+    public static double getHitRate() {
+        long hits = HITS.get();
+        long total = hits + MISSES.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,217 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.Key;
+
+import java.util.Date;
+
+/**
+ * Entity tags of the entities API methods return, for conditional GETs.
+ *
+ * The ETag of an entity is a hash of the fields of its representation, e.g. including the
+ * seats available and the organizer display name of a Conference, so that it changes
+ * whenever the response does, however the entity was written. ETags are cached in memcache
+ * by entity key when the entity is served, so that a request whose If-None-Match matches
+ * the cached ETag is answered with a 304 without loading the entity. Saving the entity or
+ * changing its seats invalidates the cached ETag; an ETag that depends on another entity,
+ * such as a display name resolved from a Profile, is not cached.
+ *
+ * Saves in a transaction happen before the commit, so invalidating writes a tombstone that
+ * keeps the ETag from being cached again for WRITE_GRACE_SECONDS, lest a load between the
+ * save and the commit cache the old one.
+ *
+ * ConditionalGetFilter starts a conditional request for the API methods supporting them;
+ * outside of those, e.g. when other API methods call getProfile(), notModified() is always
+ * false and served() does nothing.
+ */
+public final class EntityTags {
+
+    private static final String KEY_PREFIX = "ETAG:";
+
+    private static final String TOMBSTONE = "";
+
+    private static final int EXPIRATION_SECONDS = 60;
+
+    private static final int WRITE_GRACE_SECONDS = 5;
+
+    private static final ThreadLocal<ConditionalRequest> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The If-None-Match of a request, and the ETag of the entity it got.
+     */
+    public static class ConditionalRequest {
+
+        private final String ifNoneMatch;
+
+        private String etag;
+
+        private boolean notModified;
+
+        private ConditionalRequest(String ifNoneMatch) {
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        /**
+         * Returns the ETag of the entity served or not modified, null when there is none.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Returns whether the client has the current entity already.
+         */
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        /**
+         * Ends the conditional request.
+         */
+        public void end() {
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    private EntityTags() {}
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    private static String cacheKey(Key<?> key) {
+        return KEY_PREFIX + key.getString();
+    }
+
+    /**
+     * Makes a strong ETag of the given parts.
+     *
+     * @param parts The fields of the representation of an entity, in a fixed order.
+     * @return the quoted ETag.
+     */
+    public static String of(Object... parts) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Object part : parts) {
+            if (part == null) {
+                hasher.putBoolean(false);
+            } else {
+                hasher.putBoolean(true);
+                String value = part instanceof Date
+                        ? String.valueOf(((Date) part).getTime()) : part.toString();
+                hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
+            }
+        }
+        return '"' + hasher.hash().toString() + '"';
+    }
+
+    /**
+     * Starts a conditional request on the current thread.
+     *
+     * @param ifNoneMatch The If-None-Match header of the request, or null.
+     * @return the conditional request, to end() once the request is done.
+     */
+    public static ConditionalRequest begin(String ifNoneMatch) {
+        ConditionalRequest request = new ConditionalRequest(ifNoneMatch);
+        CURRENT.set(request);
+        return request;
+    }
+
+    /**
+     * Returns whether the client of the current conditional request has the current version
+     * of an entity, judging by its cached ETag. If so, the request is answered with a 304.
+     *
+     * @param key The key of the entity requested.
+     * @return true when the entity need not be loaded.
+     */
+    public static boolean notModified(final Key<?> key) {
+        ConditionalRequest request = CURRENT.get();
+        if (request == null || request.ifNoneMatch == null) {
+            return false;
+        }
+        String etag = (String) memcache().get(cacheKey(key));
+        if (etag == null || etag.equals(TOMBSTONE) || !matches(request.ifNoneMatch, etag)) {
+            return false;
+        }
+        request.etag = etag;
+        request.notModified = true;
+        return true;
+    }
+
+    /**
+     * Records the ETag of an entity about to be returned, for the response of the current
+     * conditional request, and caches it. When the ETag was not cached but matches, the
+     * request is still answered with a 304. Does nothing outside of conditional requests.
+     *
+     * @param key The key of the entity.
+     * @param etag The ETag of the entity, from of().
+     */
+    public static void served(final Key<?> key, final String etag) {
+        served(key, etag, true);
+    }
+
+    /**
+     * Records the ETag of an entity about to be returned, as served(key, etag), caching it
+     * only when asked to.
+     *
+     * @param key The key of the entity.
+     * @param etag The ETag of the entity, from of().
+     * @param cacheable false when the representation depends on another entity, whose writes
+     *         do not invalidate the cached ETag.
+     */
+    public static void served(final Key<?> key, final String etag, final boolean cacheable) {
+        ConditionalRequest request = CURRENT.get();
+        if (request == null) {
+            return;
+        }
+        request.etag = etag;
+        request.notModified = request.ifNoneMatch != null
+                && matches(request.ifNoneMatch, etag);
+        if (cacheable) {
+            // Not over a tombstone.
+            memcache().put(cacheKey(key), etag, Expiration.byDeltaSeconds(EXPIRATION_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+    }
+
+    /**
+     * Invalidates the cached ETag of an entity. Called when the entity or something else its
+     * representation depends on changes.
+     *
+     * @param key The key of the entity.
+     */
+    public static void invalidate(final Key<?> key) {
+        if (EntityCache.isConverting()) {
+            return;
+        }
+        memcache().put(cacheKey(key), TOMBSTONE, Expiration.byDeltaSeconds(WRITE_GRACE_SECONDS));
+    }
+
+    /**
+     * Returns whether an If-None-Match header lists the given ETag. GETs compare ETags
+     * weakly, so a W/ prefix is ignored.
+     *
+     * @param ifNoneMatch The If-None-Match header.
+     * @param etag The quoted ETag.
+     * @return true when the header is * or lists the ETag.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
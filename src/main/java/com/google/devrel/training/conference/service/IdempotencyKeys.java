@@ -0,0 +1,203 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.domain.IdempotencyRecord;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Idempotency keys of API methods that clients retry, so that a retry is answered with the
+ * result of the request it repeats rather than running the method, and its transaction,
+ * again.
+ *
+ * IdempotencyFilter starts an idempotent request with the Idempotency-Key header of the
+ * request. The method then calls replay() with the caller and its name: either a result
+ * recorded by an earlier request with the same key comes back, or the request claims the
+ * key, runs and records its result with succeeded(). Results are kept in memcache, and in
+ * an IdempotencyRecord in the datastore for when memcache evicted them, for TTL_SECONDS.
+ *
+ * Only successes are recorded: a request that fails releases its claim when it ends, so a
+ * retry runs the method again. A claim expires after CLAIM_SECONDS, should its request die
+ * before ending.
+ *
+ * The result is recorded after the method's transaction committed, not with it. A request
+ * that dies in between leaves its write without a record, so once its claim expires a retry
+ * runs the method again: registerForConference then fails as already registered, and
+ * createConference creates a second conference.
+ */
+public final class IdempotencyKeys {
+
+    private static final String KEY_PREFIX = "IDEMPOTENCY:";
+
+    /**
+     * Marks a key claimed by a request still running.
+     */
+    private static final String CLAIMED = "";
+
+    /**
+     * How long results are kept, long enough for clients to give up retrying.
+     */
+    static final int TTL_SECONDS = 24 * 60 * 60;
+
+    /**
+     * How long a claim is kept, longer than a request may run.
+     */
+    private static final int CLAIM_SECONDS = 120;
+
+    /**
+     * The longest idempotency key accepted.
+     */
+    public static final int MAX_KEY_LENGTH = 128;
+
+    private static final ThreadLocal<IdempotentRequest> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The idempotency key of a request, and the key it claimed.
+     */
+    public static class IdempotentRequest {
+
+        private final String idempotencyKey;
+
+        private Key<Profile> profileKey;
+
+        private String method;
+
+        private boolean claimed;
+
+        private IdempotentRequest(String idempotencyKey) {
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        private String cacheKey() {
+            return KEY_PREFIX + method + ":" + profileKey.getString() + ":" + idempotencyKey;
+        }
+
+        /**
+         * Ends the idempotent request, releasing the key it claimed if it didn't succeed.
+         */
+        public void end() {
+            if (claimed) {
+                claimed = false;
+                memcache().delete(cacheKey());
+            }
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    private IdempotencyKeys() {}
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Starts an idempotent request on the current thread.
+     *
+     * @param idempotencyKey The idempotency key of the request, or null.
+     * @return the idempotent request, to end() once the request is done.
+     */
+    public static IdempotentRequest begin(String idempotencyKey) {
+        IdempotentRequest request = new IdempotentRequest(
+                idempotencyKey == null || idempotencyKey.isEmpty() ? null : idempotencyKey);
+        CURRENT.set(request);
+        return request;
+    }
+
+    /**
+     * Returns the result recorded for the idempotency key of the current request, or claims
+     * the key for the current request so that it runs the method.
+     *
+     * @param profileKey The key of the caller's Profile, which keys are scoped to.
+     * @param method The name of the API method.
+     * @return the result recorded by an earlier request, or null when the method has to run,
+     *         as when the request has no idempotency key.
+     * @throws IllegalArgumentException when the idempotency key is longer than
+     *         MAX_KEY_LENGTH.
+     * @throws ConcurrentModificationException when an earlier request with the same key is
+     *         still running.
+     */
+    public static String replay(final Key<Profile> profileKey, final String method) {
+        IdempotentRequest request = CURRENT.get();
+        if (request == null || request.idempotencyKey == null) {
+            return null;
+        }
+        if (request.idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Idempotency keys are at most " + MAX_KEY_LENGTH
+                    + " characters long");
+        }
+        request.profileKey = profileKey;
+        request.method = method;
+        String cacheKey = request.cacheKey();
+        String cached = (String) memcache().get(cacheKey);
+        if (cached == null) {
+            IdempotencyRecord record = ofy().load()
+                    .key(IdempotencyRecord.key(profileKey, method, request.idempotencyKey))
+                    .now();
+            if (record != null && !record.isExpired()) {
+                // Only for as long as the record is kept.
+                memcache().put(cacheKey, record.getResult(),
+                        Expiration.onDate(record.getExpiresAt()));
+                return record.getResult();
+            }
+            if (memcache().put(cacheKey, CLAIMED, Expiration.byDeltaSeconds(CLAIM_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                request.claimed = true;
+                return null;
+            }
+            // Claimed or recorded by a concurrent request since.
+            cached = (String) memcache().get(cacheKey);
+            if (cached == null) {
+                throw new ConcurrentModificationException(
+                        "A request with this idempotency key is in progress");
+            }
+        }
+        if (cached.equals(CLAIMED)) {
+            throw new ConcurrentModificationException(
+                    "A request with this idempotency key is in progress");
+        }
+        return cached;
+    }
+
+    /**
+     * Records the result of the current request for the key it claimed, for retries to get.
+     * Does nothing when it claimed none. Called once the method's write committed, so a
+     * request dying before this call is not recorded; see the class comment.
+     *
+     * @param result The result, as the method encodes it for replay().
+     */
+    public static void succeeded(final String result) {
+        IdempotentRequest request = CURRENT.get();
+        if (request == null || !request.claimed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        ofy().save().entity(new IdempotencyRecord(request.profileKey, request.method,
+                request.idempotencyKey, result, new Date(now + TTL_SECONDS * 1000L))).now();
+        memcache().put(request.cacheKey(), result, Expiration.byDeltaSeconds(TTL_SECONDS));
+        request.claimed = false;
+    }
+
+    /**
+     * Deletes a batch of expired IdempotencyRecords.
+     *
+     * @param batchSize The most records to delete.
+     * @return the number of records deleted; fewer than batchSize when none are left.
+     */
+    public static int purgeExpired(final int batchSize) {
+        List<Key<IdempotencyRecord>> keys = ofy().load().type(IdempotencyRecord.class)
+                .filter("expiresAt <", new Date()).limit(batchSize).keys().list();
+        ofy().delete().keys(keys).now();
+        return keys.size();
+    }
+}
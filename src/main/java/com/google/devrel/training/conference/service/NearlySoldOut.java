@@ -0,0 +1,162 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The conferences that are nearly sold out, having 1 - MAX_SEATS seats left, and the
+ * announcement listing them.
+ *
+ * The set of conferences is kept in memcache, by websafe key, with their names. It is
+ * updated when a registration or an unregistration makes the seats available of a
+ * conference cross the threshold, and the announcement is rebuilt only when the set
+ * changes. The seats available are then written back to the conference too. rebuild()
+ * recomputes the set from the conferences with few seats stored, to recover from memcache
+ * evictions and lost updates.
+ */
+public final class NearlySoldOut {
+
+    private static final Logger LOG = Logger.getLogger(NearlySoldOut.class.getName());
+
+    /**
+     * The most seats a conference has left to be nearly sold out.
+     */
+    public static final int MAX_SEATS = 5;
+
+    private static final String SET_KEY = "NEARLY_SOLD_OUT";
+
+    private static final String ANNOUNCEMENT_PREFIX =
+            "Last chance to attend! The following conferences are nearly sold out: ";
+
+    private static final int MAX_ATTEMPTS = 10;
+
+    private NearlySoldOut() {}
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Returns whether a conference with the given seats available is nearly sold out.
+     */
+    static boolean isNearlySoldOut(final long seatsAvailable) {
+        return seatsAvailable > 0 && seatsAvailable <= MAX_SEATS;
+    }
+
+    /**
+     * Updates the set after a registration or an unregistration, if the seats available of
+     * the conference crossed the threshold.
+     *
+     * @param conferenceKey The key of the conference.
+     * @param seatsAvailable The seats available after the change, or null when unknown.
+     * @param delta The number of seats given back, negative for seats booked.
+     */
+    public static void seatsChanged(final Key<Conference> conferenceKey,
+                                    final Long seatsAvailable, final int delta) {
+        Integer seats = seatsAvailable != null
+                ? Integer.valueOf(seatsAvailable.intValue())
+                : Repositories.registrations().seatsAvailable(conferenceKey);
+        if (seats == null) {
+            return;
+        }
+        boolean nearlySoldOut = isNearlySoldOut(seats);
+        if (nearlySoldOut == isNearlySoldOut(seats - delta)) {
+            return;
+        }
+        // Written back, so that rebuild() finds the conference.
+        Conference conference = Repositories.conferences()
+                .writeSeatsAvailable(conferenceKey, seats);
+        if (conference == null) {
+            return;
+        }
+        String websafeKey = conferenceKey.getString();
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            IdentifiableValue current = memcache().getIdentifiable(SET_KEY);
+            if (current == null) {
+                // Evicted; rebuild() reads the seats available after this change.
+                rebuild();
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            HashMap<String, String> names = new HashMap<>(
+                    (Map<String, String>) current.getValue());
+            boolean changed = nearlySoldOut
+                    ? !conference.getName().equals(names.put(websafeKey, conference.getName()))
+                    : names.remove(websafeKey) != null;
+            if (!changed) {
+                return;
+            }
+            if (memcache().putIfUntouched(SET_KEY, current, names)) {
+                putAnnouncement(names);
+                return;
+            }
+        }
+        LOG.warning("Too much contention updating the nearly sold out conferences, "
+                + "leaving " + websafeKey + " to the next rebuild");
+    }
+
+    /**
+     * Recomputes the set from the seats available stored in the conferences, checking them
+     * against the registrations, and rebuilds the announcement.
+     *
+     * The stored seats available are written back when they cross the threshold but may
+     * have changed since, so they are checked against the registrations.
+     */
+    public static void rebuild() {
+        Map<String, String> candidates = new HashMap<>();
+        @SuppressWarnings("unchecked")
+        Map<String, String> current = (Map<String, String>) memcache().get(SET_KEY);
+        if (current != null) {
+            candidates.putAll(current);
+        }
+        Map<String, String> stored = Repositories.conferences().nearlySoldOut(MAX_SEATS);
+        candidates.putAll(stored);
+
+        HashMap<String, String> names = new HashMap<>();
+        for (Map.Entry<String, String> candidate : candidates.entrySet()) {
+            Key<Conference> conferenceKey = Key.create(candidate.getKey());
+            Integer seats = Repositories.registrations().seatsAvailable(conferenceKey);
+            // Conferences without seats booked have had no registrations, so their stored
+            // seats available are right.
+            if (seats == null ? stored.containsKey(candidate.getKey())
+                    : isNearlySoldOut(seats)) {
+                names.put(candidate.getKey(), candidate.getValue());
+            }
+        }
+        memcache().put(SET_KEY, names);
+        putAnnouncement(names);
+    }
+
+    private static void putAnnouncement(final Map<String, String> names) {
+        if (names.isEmpty()) {
+            memcache().delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        } else {
+            List<String> sorted = new ArrayList<>(names.values());
+            Collections.sort(sorted);
+            memcache().put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY,
+                    ANNOUNCEMENT_PREFIX + Joiner.on(", ").join(sorted));
+        }
+    }
+
+    /**
+     * Returns the websafe keys and names of the nearly sold out conferences, or null when
+     * the set is not in memcache.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, String> get() {
+        return (Map<String, String>) memcache().get(SET_KEY);
+    }
+}
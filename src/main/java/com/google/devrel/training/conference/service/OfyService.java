@@ -1,7 +1,10 @@
 package com.google.devrel.training.conference.service;
 
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.IdempotencyRecord;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -16,6 +19,9 @@ public class OfyService {
     static {
         factory().register(Profile.class);
         factory().register(Conference.class);
+        factory().register(SeatShard.class);
+        factory().register(Registration.class);
+        factory().register(IdempotencyRecord.class);
     }
 
     /**
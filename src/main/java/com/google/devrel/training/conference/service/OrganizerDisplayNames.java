@@ -0,0 +1,103 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the display name of an organizer to their conferences, which store it so that
+ * listing conferences needs no Profile loads.
+ *
+ * When a display name changes, a task rewrites the conferences of the organizer one batch
+ * at a time, enqueueing the next batch with the cursor of the query, so it can be resumed
+ * from any cursor. Each batch reads the display name from the Profile in the transaction
+ * that writes the conferences, rather than from the task, and conferences that already
+ * have it are not written, so running a task again, or two tasks for two changes, is
+ * harmless.
+ */
+public final class OrganizerDisplayNames {
+
+    /**
+     * The path of the worker, UpdateOrganizerDisplayNamesServlet.
+     */
+    public static final String PATH = "/tasks/update_organizer_display_names";
+
+    public static final String PROFILE_KEY_PARAM = "profileKey";
+
+    public static final String CURSOR_PARAM = "cursor";
+
+    /**
+     * The most conferences written in one transaction.
+     */
+    public static final int BATCH_SIZE = 50;
+
+    private OrganizerDisplayNames() {}
+
+    /**
+     * Enqueues the update of the conferences of an organizer, from the given cursor, in the
+     * current transaction if there is one: called in the transaction writing the new display
+     * name, the task is enqueued if and only if the Profile is written.
+     *
+     * @param profileKey The key of the Profile of the organizer.
+     * @param cursor The websafe cursor to start from, null for the first batch.
+     */
+    public static void schedule(final Key<Profile> profileKey, final String cursor) {
+        TaskOptions task = TaskOptions.Builder.withUrl(PATH)
+                .param(PROFILE_KEY_PARAM, profileKey.getString());
+        if (cursor != null) {
+            task.param(CURSOR_PARAM, cursor);
+        }
+        QueueFactory.getDefaultQueue().add(ofy().getTransaction(), task);
+    }
+
+    /**
+     * Copies the display name of an organizer to a batch of their conferences.
+     *
+     * @param profileKey The key of the Profile of the organizer.
+     * @param cursor The websafe cursor to start from, null for the first batch.
+     * @param batchSize The maximum number of conferences to update.
+     * @return the websafe cursor of the next batch, null when all conferences are updated.
+     */
+    public static String updateBatch(final Key<Profile> profileKey, final String cursor,
+                                     final int batchSize) {
+        // An ancestor query, so it sees all the conferences of the organizer.
+        Query<Conference> query = ofy().load().type(Conference.class).ancestor(profileKey)
+                .limit(batchSize);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Conference>> iterator = query.keys().iterator();
+        final List<Key<Conference>> keys = new ArrayList<>(batchSize);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        if (!keys.isEmpty()) {
+            // The conferences are in the entity group of the Profile.
+            Transactions.run("updateOrganizerDisplayNames", new VoidWork() {
+                @Override
+                public void vrun() {
+                    Profile profile = ofy().load().key(profileKey).now();
+                    if (profile == null) {
+                        return;
+                    }
+                    for (Conference conference : ofy().load().keys(keys).values()) {
+                        conference.setOrganizerDisplayName(profile.getDisplayName());
+                        conference.save();
+                    }
+                }
+            });
+        }
+        return keys.size() < batchSize ? null : iterator.getCursor().toWebSafeString();
+    }
+}
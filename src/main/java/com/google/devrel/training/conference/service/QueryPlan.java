@@ -0,0 +1,452 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.google.devrel.training.conference.service.ConferenceQueryCache.CachedPage;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How a conference query is run, as chosen by QueryPlanner: which filters the datastore
+ * applies with which index, and which are applied in memory. Datastore queries read
+ * entities or keys, as QueryStrategies chooses.
+ *
+ * The cards of a query whose filters are all applied by the datastore can be read with a
+ * projection query instead, when datastore-indexes.xml declares the index it needs: the
+ * properties of the plan's index followed by the CARD_PROPERTIES not among them.
+ */
+public class QueryPlan {
+
+    /**
+     * The index of plans without filters pushed down to the datastore.
+     */
+    public static final String BUILT_IN_INDEX = "built-in index on name";
+
+    /**
+     * The index of plans served by ConferenceIndex.
+     */
+    public static final String CONFERENCE_INDEX = "in-memory ConferenceIndex";
+
+    /**
+     * The most conferences read from the datastore for a page. When the post-filters keep
+     * fewer than a page of them, the page is returned short with a page token to resume.
+     */
+    static final int MAX_SCANNED = 1000;
+
+    /**
+     * The properties of a ConferenceCard read by projection queries besides name, in the
+     * order they follow the properties of the plan's index in a projection index.
+     */
+    static final List<String> CARD_PROPERTIES = ImmutableList.of(
+            "city", "maxAttendees", "seatsAvailable", "startDate");
+
+    /**
+     * The datastore operators of the filters of projection queries.
+     */
+    private static final Map<Operator, FilterOperator> OPERATORS = new HashMap<>();
+
+    static {
+        OPERATORS.put(Operator.EQ, FilterOperator.EQUAL);
+        OPERATORS.put(Operator.LT, FilterOperator.LESS_THAN);
+        OPERATORS.put(Operator.GT, FilterOperator.GREATER_THAN);
+        OPERATORS.put(Operator.LTEQ, FilterOperator.LESS_THAN_OR_EQUAL);
+        OPERATORS.put(Operator.GTEQ, FilterOperator.GREATER_THAN_OR_EQUAL);
+    }
+
+    /**
+     * A page of conferences.
+     */
+    public static class Page {
+
+        private final List<Conference> conferences;
+
+        private final String nextPageToken;
+
+        private Page(List<Conference> conferences, String nextPageToken) {
+            this.conferences = conferences;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<Conference> getConferences() {
+            return conferences;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        /**
+         * Returns the page as cached by ConferenceQueryCache.
+         */
+        public CachedPage toCachedPage() {
+            List<Key<Conference>> keys = new ArrayList<>(conferences.size());
+            for (Conference conference : conferences) {
+                keys.add(Key.create(conference));
+            }
+            return new CachedPage(keys, nextPageToken);
+        }
+    }
+
+    /**
+     * A page of conference cards.
+     */
+    public static class CardPage {
+
+        private final List<ConferenceCard> cards;
+
+        private final String nextPageToken;
+
+        private CardPage(List<ConferenceCard> cards, String nextPageToken) {
+            this.cards = cards;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<ConferenceCard> getCards() {
+            return cards;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private final String index;
+
+    private final List<String> indexProperties;
+
+    private final List<Filter> pushedFilters;
+
+    private final List<Filter> postFilters;
+
+    private final List<String> order;
+
+    private final double estimatedSelectivity;
+
+    QueryPlan(String index, List<String> indexProperties, List<Filter> pushedFilters,
+              List<Filter> postFilters, double estimatedSelectivity) {
+        this.index = index;
+        this.indexProperties = ImmutableList.copyOf(indexProperties);
+        this.pushedFilters = ImmutableList.copyOf(pushedFilters);
+        this.postFilters = ImmutableList.copyOf(postFilters);
+        this.estimatedSelectivity = estimatedSelectivity;
+        List<String> order = new ArrayList<>(2);
+        for (Filter filter : pushedFilters) {
+            if (filter.getOperator().isInequalityFilter()) {
+                // The datastore returns results ordered by the inequality property first.
+                order.add(filter.getField().getFieldName());
+                break;
+            }
+        }
+        order.add("name");
+        this.order = ImmutableList.copyOf(order);
+    }
+
+    /**
+     * Returns the index used, BUILT_IN_INDEX, CONFERENCE_INDEX or the properties of a
+     * composite index.
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the filters applied by the datastore.
+     */
+    public List<Filter> getPushedFilters() {
+        return pushedFilters;
+    }
+
+    /**
+     * Returns the filters applied in memory.
+     */
+    public List<Filter> getPostFilters() {
+        return postFilters;
+    }
+
+    /**
+     * Returns the order of the results.
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the estimated fraction of the conferences read from the index.
+     */
+    public double getEstimatedSelectivity() {
+        return estimatedSelectivity;
+    }
+
+    /**
+     * Returns the composite index executeCards() reads the cards from, or null when the
+     * cards are read from the conferences: for plans with filters applied in memory, such
+     * as not-equal filters, for inequalities on topics, which would return a conference once
+     * per topic, and when the index is not declared.
+     */
+    public List<String> getProjectionIndex() {
+        if (CONFERENCE_INDEX.equals(index) || !postFilters.isEmpty()) {
+            return null;
+        }
+        for (Filter filter : pushedFilters) {
+            if (filter.getField() == Field.TOPIC && filter.getOperator().isInequalityFilter()) {
+                return null;
+            }
+        }
+        List<String> projectionIndex = new ArrayList<>(indexProperties);
+        for (String property : CARD_PROPERTIES) {
+            if (!projectionIndex.contains(property)) {
+                projectionIndex.add(property);
+            }
+        }
+        return QueryPlanner.indexes().contains(projectionIndex) ? projectionIndex : null;
+    }
+
+    /**
+     * Returns a description of the plan.
+     */
+    public String getExplanation() {
+        StringBuilder explanation = new StringBuilder();
+        if (CONFERENCE_INDEX.equals(index)) {
+            explanation.append("Scan ").append(index)
+                    .append(" with ").append(describe(postFilters))
+                    .append(", order by ").append(order);
+        } else {
+            explanation.append("Datastore query on ").append(index)
+                    .append(" with ").append(describe(pushedFilters))
+                    .append(", order by ").append(order)
+                    .append(", then filter in memory with ").append(describe(postFilters));
+        }
+        explanation.append(String.format(" (estimated selectivity %.4f)",
+                estimatedSelectivity));
+        return explanation.toString();
+    }
+
+    private static String describe(List<Filter> filters) {
+        if (filters.isEmpty()) {
+            return "no filters";
+        }
+        StringBuilder description = new StringBuilder();
+        for (Filter filter : filters) {
+            if (description.length() > 0) {
+                description.append(" and ");
+            }
+            description.append(filter.getCondition()).append(' ').append(filter.getValue());
+        }
+        return description.toString();
+    }
+
+    /**
+     * Runs a query with this plan.
+     *
+     * @param form The query, with the page size and the page token of the previous page.
+     * @return the page.
+     */
+    public Page execute(final ConferenceQueryForm form) {
+        if (CONFERENCE_INDEX.equals(index)) {
+            CachedPage page = ConferenceIndex.query(form);
+            return new Page(new ArrayList<>(UnitOfWork.load(page.getKeys()).values()),
+                    page.getNextPageToken());
+        }
+        Query<Conference> query = ofy().load().type(Conference.class);
+        for (String property : order) {
+            query = query.order(property);
+        }
+        for (Filter filter : pushedFilters) {
+            query = query.filter(filter.getCondition(), filter.getTypedValue());
+        }
+        Cursor startCursor = form.startCursor(View.CONFERENCES);
+        if (startCursor != null) {
+            query = query.startAt(startCursor);
+        }
+        int pageSize = form.getPageSize();
+        if (postFilters.isEmpty()) {
+            query = query.limit(pageSize);
+        } else {
+            // Read in batches, stopping as soon as the page is full.
+            query = query.limit(MAX_SCANNED).chunk(batchSize(pageSize));
+        }
+        long startNanos = System.nanoTime();
+        if (QueryStrategies.choose() == QueryStrategies.Strategy.KEYS) {
+            return executeKeysOnly(form, query, pageSize, startNanos);
+        }
+
+        List<Conference> conferences = new ArrayList<>(pageSize);
+        QueryResultIterator<Conference> iterator = query.iterator();
+        int scanned = 0;
+        while (conferences.size() < pageSize && iterator.hasNext()) {
+            Conference conference = iterator.next();
+            scanned++;
+            if (matches(conference)) {
+                conferences.add(conference);
+            }
+        }
+        QueryStrategies.recordEntities(conferences.size(), scanned, startNanos);
+        return new Page(conferences, nextPageToken(form, conferences, pageSize, scanned,
+                iterator.getCursor()));
+    }
+
+    /**
+     * Runs a query with this plan as a projection query of ConferenceCards, which reads
+     * only the index rows of the conferences. The cards have the stored seats available and
+     * no organizer display names. Conferences written before startDate was indexed have no
+     * row in the projection index until they are saved again.
+     *
+     * @param form The query, with the page size and the page token of the previous card page.
+     * @return the page.
+     * @throws IllegalStateException when getProjectionIndex() is null.
+     */
+    public CardPage executeCards(final ConferenceQueryForm form) {
+        Preconditions.checkState(getProjectionIndex() != null,
+                "No projection index declared for %s", this);
+        // The datastore can't project the properties of equality filters, which have the
+        // value of the filter anyway.
+        Map<String, Object> filtered = new HashMap<>();
+        List<com.google.appengine.api.datastore.Query.Filter> predicates = new ArrayList<>();
+        for (Filter filter : pushedFilters) {
+            String property = filter.getField().getFieldName();
+            if (filter.getOperator() == Operator.EQ) {
+                filtered.put(property, filter.getTypedValue());
+            }
+            predicates.add(new FilterPredicate(property, OPERATORS.get(filter.getOperator()),
+                    filter.getTypedValue()));
+        }
+        com.google.appengine.api.datastore.Query query =
+                new com.google.appengine.api.datastore.Query(
+                        Conference.class.getSimpleName());
+        if (predicates.size() == 1) {
+            query.setFilter(predicates.get(0));
+        } else if (predicates.size() > 1) {
+            query.setFilter(CompositeFilterOperator.and(predicates));
+        }
+        for (String property : order) {
+            query.addSort(property);
+        }
+        query.addProjection(new PropertyProjection("name", String.class));
+        for (String property : CARD_PROPERTIES) {
+            if (!filtered.containsKey(property)) {
+                query.addProjection(new PropertyProjection(property,
+                        "startDate".equals(property) ? Date.class
+                                : "city".equals(property) ? String.class : Long.class));
+            }
+        }
+        int pageSize = form.getPageSize();
+        FetchOptions options = FetchOptions.Builder.withLimit(pageSize);
+        Cursor startCursor = form.startCursor(View.CARDS);
+        if (startCursor != null) {
+            options.startCursor(startCursor);
+        }
+
+        long startNanos = System.nanoTime();
+        QueryResultIterator<Entity> iterator = DatastoreServiceFactory.getDatastoreService()
+                .prepare(query).asQueryResultIterator(options);
+        List<ConferenceCard> cards = new ArrayList<>(pageSize);
+        while (iterator.hasNext()) {
+            Entity entity = iterator.next();
+            Object city = filtered.containsKey("city")
+                    ? filtered.get("city") : entity.getProperty("city");
+            cards.add(new ConferenceCard(Key.<Conference>create(entity.getKey()),
+                    (String) entity.getProperty("name"), (String) city,
+                    (Date) entity.getProperty("startDate"),
+                    intValue(entity, filtered, "maxAttendees"),
+                    intValue(entity, filtered, "seatsAvailable")));
+        }
+        QueryStrategies.recordProjection(cards.size(), startNanos);
+        return new CardPage(cards, cards.size() < pageSize
+                ? null : form.pageToken(View.CARDS, iterator.getCursor().toWebSafeString()));
+    }
+
+    private static int intValue(Entity entity, Map<String, Object> filtered, String property) {
+        Object value = filtered.containsKey(property)
+                ? filtered.get(property) : entity.getProperty(property);
+        return ((Number) value).intValue();
+    }
+
+    private int batchSize(int pageSize) {
+        return postFilters.isEmpty() ? pageSize : Math.min(pageSize * 2, MAX_SCANNED);
+    }
+
+    /**
+     * Runs the query keys-only, batch loading the conferences through the UnitOfWork.
+     */
+    private Page executeKeysOnly(final ConferenceQueryForm form, final Query<Conference> query,
+                                 final int pageSize, final long startNanos) {
+        List<Conference> conferences = new ArrayList<>(pageSize);
+        QueryResultIterator<Key<Conference>> iterator = query.keys().iterator();
+        AtomicInteger hits = new AtomicInteger();
+        int batchSize = batchSize(pageSize);
+        List<Key<Conference>> keys = new ArrayList<>(batchSize);
+        List<Cursor> cursors = new ArrayList<>(batchSize);
+        Cursor cursor = null;
+        int scanned = 0;
+        while (conferences.size() < pageSize && iterator.hasNext()) {
+            keys.clear();
+            cursors.clear();
+            while (keys.size() < batchSize && iterator.hasNext()) {
+                keys.add(iterator.next());
+                cursors.add(iterator.getCursor());
+            }
+            scanned += keys.size();
+            Map<Key<Conference>, Conference> loaded = UnitOfWork.load(keys, hits);
+            for (int i = 0; i < keys.size() && conferences.size() < pageSize; i++) {
+                // The page resumes after the last conference looked at.
+                cursor = cursors.get(i);
+                Conference conference = loaded.get(keys.get(i));
+                if (conference != null && matches(conference)) {
+                    conferences.add(conference);
+                }
+            }
+        }
+        QueryStrategies.recordKeys(conferences.size(), scanned, hits.get(), startNanos);
+        return new Page(conferences,
+                nextPageToken(form, conferences, pageSize, scanned, cursor));
+    }
+
+    /**
+     * A short page is the last one, unless reading stopped at MAX_SCANNED; otherwise the
+     * next page resumes after the last conference read.
+     */
+    private static String nextPageToken(ConferenceQueryForm form, List<Conference> conferences,
+                                        int pageSize, int scanned, Cursor cursor) {
+        boolean last = conferences.size() < pageSize && scanned < MAX_SCANNED;
+        return last ? null : form.pageToken(View.CONFERENCES, cursor.toWebSafeString());
+    }
+
+    private boolean matches(Conference conference) {
+        for (Filter filter : postFilters) {
+            if (!filter.matches(conference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getExplanation();
+    }
+}
@@ -0,0 +1,234 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Plans conference queries against the composite indexes declared in
+ * datastore-indexes.xml.
+ *
+ * A query ordered by name can only be pushed down to the datastore with a composite index
+ * made of its equality properties, in any order, then its inequality property if any, then
+ * name. The planner pushes down the most selective subset of the filters that a declared
+ * index serves, or none of them, as the built-in index on name serves a query without
+ * filters. The other filters are applied to the results as they are read. Not-equal filters
+ * are never pushed down: the datastore runs them as two queries merged without a cursor, so
+ * their pages could not be resumed. Queries with inequality filters on several fields are
+ * served by ConferenceIndex.
+ */
+public final class QueryPlanner {
+
+    private static final Logger LOG = Logger.getLogger(QueryPlanner.class.getName());
+
+    private static final String INDEXES_RESOURCE = "/datastore-indexes.xml";
+
+    private static final String KIND = "Conference";
+
+    private static final String ORDER = "name";
+
+    /**
+     * The fraction of conferences a filter is assumed to keep, by operator.
+     */
+    private static final double EQ_SELECTIVITY = 0.1;
+
+    private static final double RANGE_SELECTIVITY = 0.3;
+
+    private static final double NE_SELECTIVITY = 0.9;
+
+    private static volatile List<List<String>> indexes;
+
+    private QueryPlanner() {}
+
+    /**
+     * Returns the plan of a query.
+     *
+     * @param form The query.
+     * @return the plan.
+     */
+    public static QueryPlan plan(final ConferenceQueryForm form) {
+        QueryPlan plan = plan(form.getFilters(), indexes());
+        LOG.fine(plan.getExplanation());
+        return plan;
+    }
+
+    /**
+     * Returns the plan of a query with the given filters, using the given indexes.
+     */
+    static QueryPlan plan(final List<Filter> filters, final List<List<String>> indexes) {
+        // The filters an index can serve: the first equality filter on each field, and all
+        // the range filters if they are on a single field.
+        Map<String, Filter> equalities = new HashMap<>();
+        String inequalityField = null;
+        List<Filter> inequalities = new ArrayList<>();
+        for (Filter filter : filters) {
+            String fieldName = filter.getField().getFieldName();
+            if (filter.getOperator() == Operator.NE) {
+                // Applied in memory.
+                continue;
+            }
+            if (filter.getOperator().isInequalityFilter()) {
+                if (inequalityField != null && !inequalityField.equals(fieldName)) {
+                    return new QueryPlan(QueryPlan.CONFERENCE_INDEX,
+                            Collections.<String>emptyList(), Collections.<Filter>emptyList(),
+                            filters, selectivity(filters));
+                }
+                inequalityField = fieldName;
+                inequalities.add(filter);
+            } else if (!equalities.containsKey(fieldName)) {
+                equalities.put(fieldName, filter);
+            }
+        }
+
+        List<Filter> bestPushed = Collections.emptyList();
+        List<String> bestIndex = Collections.singletonList(ORDER);
+        double bestSelectivity = 1;
+        for (List<String> index : indexes) {
+            List<Filter> pushed = pushedFilters(index, equalities, inequalityField,
+                    inequalities);
+            if (pushed == null) {
+                continue;
+            }
+            double selectivity = selectivity(pushed);
+            if (selectivity < bestSelectivity
+                    || (selectivity == bestSelectivity && pushed.size() > bestPushed.size())) {
+                bestPushed = pushed;
+                bestIndex = index;
+                bestSelectivity = selectivity;
+            }
+        }
+        List<Filter> postFilters = new ArrayList<>(filters);
+        postFilters.removeAll(bestPushed);
+        return new QueryPlan(bestPushed.isEmpty() ? QueryPlan.BUILT_IN_INDEX
+                : bestIndex.toString(), bestIndex, bestPushed, postFilters, bestSelectivity);
+    }
+
+    /**
+     * Returns the filters the index serves, or null when it serves none of the queries this
+     * query can be narrowed to.
+     */
+    private static List<Filter> pushedFilters(final List<String> index,
+                                              final Map<String, Filter> equalities,
+                                              final String inequalityField,
+                                              final List<Filter> inequalities) {
+        int last = index.size() - 1;
+        if (last < 1 || !ORDER.equals(index.get(last))) {
+            return null;
+        }
+        List<Filter> pushed = new ArrayList<>();
+        int equalityEnd = last;
+        if (inequalityField != null && inequalityField.equals(index.get(last - 1))) {
+            pushed.addAll(inequalities);
+            equalityEnd = last - 1;
+        }
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < equalityEnd; i++) {
+            String property = index.get(i);
+            Filter equality = equalities.get(property);
+            if (equality == null || !seen.add(property)) {
+                return null;
+            }
+            pushed.add(equality);
+        }
+        return pushed;
+    }
+
+    /**
+     * Returns the estimated fraction of conferences that satisfy all the filters.
+     */
+    static double selectivity(final List<Filter> filters) {
+        double selectivity = 1;
+        for (Filter filter : filters) {
+            if (filter.getOperator() == Operator.EQ) {
+                selectivity *= EQ_SELECTIVITY;
+            } else if (filter.getOperator() == Operator.NE) {
+                selectivity *= NE_SELECTIVITY;
+            } else {
+                selectivity *= RANGE_SELECTIVITY;
+            }
+        }
+        return selectivity;
+    }
+
+    /**
+     * Returns the property lists of the composite Conference indexes without ancestor and
+     * in ascending order, read from datastore-indexes.xml on first use.
+     */
+    static List<List<String>> indexes() {
+        List<List<String>> current = indexes;
+        if (current == null) {
+            InputStream in = QueryPlanner.class.getResourceAsStream(INDEXES_RESOURCE);
+            if (in == null) {
+                LOG.warning(INDEXES_RESOURCE + " not found, pushing down no filters");
+                current = Collections.emptyList();
+            } else {
+                try {
+                    current = parseIndexes(in);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        LOG.warning("Error closing " + INDEXES_RESOURCE + ": " + e);
+                    }
+                }
+            }
+            indexes = current;
+        }
+        return current;
+    }
+
+    /**
+     * Parses the indexes declared in a datastore-indexes.xml file.
+     *
+     * @param in The contents of the file.
+     * @return the property lists of the Conference indexes the planner can use.
+     */
+    static List<List<String>> parseIndexes(final InputStream in) {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        } catch (Exception e) {
+            throw new IllegalStateException("Invalid datastore-indexes.xml", e);
+        }
+        List<List<String>> parsed = new ArrayList<>();
+        NodeList indexNodes = document.getElementsByTagName("datastore-index");
+        for (int i = 0; i < indexNodes.getLength(); i++) {
+            Element index = (Element) indexNodes.item(i);
+            if (!KIND.equals(index.getAttribute("kind"))
+                    || "true".equals(index.getAttribute("ancestor"))) {
+                continue;
+            }
+            List<String> properties = new ArrayList<>();
+            NodeList propertyNodes = index.getElementsByTagName("property");
+            for (int j = 0; j < propertyNodes.getLength(); j++) {
+                Element property = (Element) propertyNodes.item(j);
+                if ("desc".equals(property.getAttribute("direction"))) {
+                    properties = null;
+                    break;
+                }
+                properties.add(property.getAttribute("name"));
+            }
+            if (properties != null) {
+                parsed.add(Collections.unmodifiableList(properties));
+            }
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+}
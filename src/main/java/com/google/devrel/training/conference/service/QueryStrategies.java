@@ -0,0 +1,264 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses how conference queries read their results, and counts what each way costs.
+ *
+ * An entity query reads every result from the datastore, bypassing both EntityCache and
+ * the Objectify memcache. A keys-only query reads only keys, which cost a small operation
+ * each, then batch loads the conferences through EntityCache: only the ones not cached are
+ * read from the datastore, at the price of a second round trip when any is missing. Which
+ * is cheaper depends on how many of the results are cached.
+ *
+ * The hit rate of the keys-only queries is kept as an exponentially weighted moving
+ * average. Queries use keys while it is at least MIN_HIT_RATE, and entity queries
+ * otherwise, except for one in EXPLORE_INTERVAL which uses keys to follow the hit rate as
+ * the cache warms up. The strategy can also be fixed with the queries.strategy system
+ * property, "entities" or "keys".
+ *
+ * The card view reads ConferenceCards with projection queries instead, whose results cost
+ * a small operation each; they are counted here too, as keys read.
+ */
+public final class QueryStrategies {
+
+    /**
+     * How query results are read.
+     */
+    public static enum Strategy {
+        ENTITIES("entities"),
+        KEYS("keys"),
+        /**
+         * Projection queries of ConferenceCards, never chosen by choose().
+         */
+        PROJECTION("projection");
+
+        private final String metricName;
+
+        private Strategy(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+
+        /**
+         * Returns the strategy choose() can return with the given metric name, null for any
+         * other name.
+         */
+        static Strategy of(String metricName) {
+            for (Strategy strategy : values()) {
+                if (strategy != PROJECTION && strategy.metricName.equals(metricName)) {
+                    return strategy;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The counters of a strategy.
+     */
+    public static class StrategyMetrics {
+
+        private final Strategy strategy;
+
+        private final LatencyHistogram latencyMicros = new LatencyHistogram();
+
+        private final AtomicLong rows = new AtomicLong();
+
+        private final AtomicLong keysRead = new AtomicLong();
+
+        private final AtomicLong entitiesRead = new AtomicLong();
+
+        private StrategyMetrics(Strategy strategy) {
+            this.strategy = strategy;
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Returns the latency histogram of the queries, in microseconds.
+         */
+        public LatencyHistogram getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        public long getQueries() {
+            return latencyMicros.getCount();
+        }
+
+        /**
+         * Returns the number of conferences returned.
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * Returns the number of keys read by keys-only queries, or of results read by
+         * projection queries, a small operation each.
+         */
+        public long getKeysRead() {
+            return keysRead.get();
+        }
+
+        /**
+         * Returns the number of entities read past EntityCache, a read operation each unless
+         * the Objectify memcache served them.
+         */
+        public long getEntitiesRead() {
+            return entitiesRead.get();
+        }
+    }
+
+    /**
+     * The lowest hit rate at which keys-only queries are used.
+     */
+    static final double MIN_HIT_RATE = 0.5;
+
+    /**
+     * The weight of the latest keys-only query in the moving average of the hit rate.
+     */
+    static final double HIT_RATE_WEIGHT = 0.2;
+
+    /**
+     * One in this many queries uses keys even when the hit rate is low.
+     */
+    static final int EXPLORE_INTERVAL = 20;
+
+    private static final List<StrategyMetrics> METRICS;
+
+    static {
+        List<StrategyMetrics> metrics = new ArrayList<>();
+        for (Strategy strategy : Strategy.values()) {
+            metrics.add(new StrategyMetrics(strategy));
+        }
+        METRICS = Collections.unmodifiableList(metrics);
+    }
+
+    /**
+     * The moving average of the hit rate, as the bits of a double. Starts at 1, so that the
+     * first queries measure it.
+     */
+    private static final AtomicLong HIT_RATE = new AtomicLong(Double.doubleToLongBits(1));
+
+    private static final AtomicLong CHOICES = new AtomicLong();
+
+    private static volatile Strategy fixedStrategy =
+            Strategy.of(System.getProperty("queries.strategy", ""));
+
+    private QueryStrategies() {}
+
+    /**
+     * Fixes the strategy of all queries, ENTITIES or KEYS, or makes it adaptive again with
+     * null.
+     */
+    public static void setStrategy(Strategy strategy) {
+        if (strategy == Strategy.PROJECTION) {
+            throw new IllegalArgumentException("Only the card view runs projection queries");
+        }
+        fixedStrategy = strategy;
+    }
+
+    /**
+     * Returns the strategy of the next query.
+     */
+    public static Strategy choose() {
+        Strategy strategy = fixedStrategy;
+        if (strategy != null) {
+            return strategy;
+        }
+        if (getHitRate() >= MIN_HIT_RATE
+                || CHOICES.incrementAndGet() % EXPLORE_INTERVAL == 0) {
+            return Strategy.KEYS;
+        }
+        return Strategy.ENTITIES;
+    }
+
+    /**
+     * Returns the moving average of the hit rate of the keys-only queries.
+     */
+    public static double getHitRate() {
+        return Double.longBitsToDouble(HIT_RATE.get());
+    }
+
+    /**
+     * Records an entity query.
+     *
+     * @param rows The number of conferences returned.
+     * @param entitiesRead The number of entities the query read.
+     * @param startNanos When the query started, from System.nanoTime().
+     */
+    public static void recordEntities(int rows, int entitiesRead, long startNanos) {
+        record(Strategy.ENTITIES, rows, 0, entitiesRead, startNanos);
+    }
+
+    /**
+     * Records a keys-only query, and updates the hit rate with its loads.
+     *
+     * @param rows The number of conferences returned.
+     * @param keysRead The number of keys the query read.
+     * @param hits The number of conferences loaded from EntityCache.
+     * @param startNanos When the query started, from System.nanoTime().
+     */
+    public static void recordKeys(int rows, int keysRead, int hits, long startNanos) {
+        record(Strategy.KEYS, rows, keysRead, keysRead - hits, startNanos);
+        if (keysRead == 0) {
+            return;
+        }
+        double hitRate = (double) hits / keysRead;
+        long current;
+        long updated;
+        do {
+            current = HIT_RATE.get();
+            updated = Double.doubleToLongBits(Double.longBitsToDouble(current)
+                    * (1 - HIT_RATE_WEIGHT) + hitRate * HIT_RATE_WEIGHT);
+        } while (!HIT_RATE.compareAndSet(current, updated));
+    }
+
+    /**
+     * Records a projection query.
+     *
+     * @param rows The number of cards returned, each read as a small operation.
+     * @param startNanos When the query started, from System.nanoTime().
+     */
+    public static void recordProjection(int rows, long startNanos) {
+        record(Strategy.PROJECTION, rows, rows, 0, startNanos);
+    }
+
+    private static void record(Strategy strategy, int rows, int keysRead, int entitiesRead,
+                               long startNanos) {
+        StrategyMetrics metrics = getMetrics(strategy);
+        metrics.rows.addAndGet(rows);
+        metrics.keysRead.addAndGet(keysRead);
+        metrics.entitiesRead.addAndGet(entitiesRead);
+        metrics.latencyMicros.record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public static StrategyMetrics getMetrics(Strategy strategy) {
+        return METRICS.get(strategy.ordinal());
+    }
+
+    /**
+     * Returns the metrics of all strategies, in the order of Strategy.
+     */
+    public static List<StrategyMetrics> getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * Resets the hit rate to its initial value.
+     */
+    static void resetHitRate() {
+        HIT_RATE.set(Double.doubleToLongBits(1));
+    }
+}
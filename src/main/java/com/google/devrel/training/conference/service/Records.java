@@ -0,0 +1,510 @@
+package com.google.devrel.training.conference.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the flat records of BulkData, one at a time, as NDJSON or as CSV.
+ *
+ * A record maps field names to strings, numbers, booleans, lists or null. In CSV, whose
+ * first row names the fields, every value is a string, lists are joined with LIST_SEPARATOR
+ * and empty cells are null; BulkData converts the values to the types it expects.
+ */
+final class Records {
+
+    /**
+     * Separates the elements of a list in a CSV cell.
+     */
+    static final String LIST_SEPARATOR = ";";
+
+    private Records() {}
+
+    /**
+     * Reads records one at a time.
+     */
+    interface RecordReader {
+
+        /**
+         * Returns the next record.
+         *
+         * @return the record, or null at the end of the input.
+         * @throws IOException when the input can't be read.
+         * @throws MalformedRecordException when the record can't be parsed; the reader
+         *         moves past it, so the next call reads the record after it.
+         */
+        Map<String, Object> next() throws IOException;
+    }
+
+    /**
+     * Writes records one at a time.
+     */
+    interface RecordWriter {
+
+        void write(Map<String, Object> record) throws IOException;
+    }
+
+    /**
+     * Thrown for a record that can't be parsed.
+     */
+    static class MalformedRecordException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        MalformedRecordException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Returns a reader of NDJSON, one JSON object per line. Blank lines are skipped.
+     */
+    static RecordReader ndjsonReader(final Reader input) {
+        final BufferedReader lines = new BufferedReader(input);
+        return new RecordReader() {
+            @Override
+            public Map<String, Object> next() throws IOException {
+                String line;
+                do {
+                    line = lines.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                } while (line.trim().isEmpty());
+                return new JsonParser(line).parseRecord();
+            }
+        };
+    }
+
+    /**
+     * Returns a reader of CSV as in RFC 4180, whose first row names the fields.
+     */
+    static RecordReader csvReader(final Reader input) {
+        final BufferedReader chars = new BufferedReader(input);
+        return new RecordReader() {
+
+            private List<String> header;
+
+            @Override
+            public Map<String, Object> next() throws IOException {
+                if (header == null) {
+                    header = readRow(chars);
+                    if (header == null) {
+                        return null;
+                    }
+                }
+                List<String> row = readRow(chars);
+                if (row == null) {
+                    return null;
+                }
+                if (row.size() != header.size()) {
+                    throw new MalformedRecordException("Expected " + header.size()
+                            + " cells but got " + row.size());
+                }
+                Map<String, Object> record = new LinkedHashMap<>();
+                for (int i = 0; i < row.size(); i++) {
+                    String cell = row.get(i);
+                    record.put(header.get(i), cell.isEmpty() ? null : cell);
+                }
+                return record;
+            }
+        };
+    }
+
+    /**
+     * Reads a CSV row, skipping empty lines.
+     *
+     * @return the cells of the row, or null at the end of the input.
+     */
+    private static List<String> readRow(BufferedReader input) throws IOException {
+        List<String> row = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = input.read()) != -1) {
+            if (quoted) {
+                if (c != '"') {
+                    cell.append((char) c);
+                    continue;
+                }
+                input.mark(1);
+                if (input.read() == '"') {
+                    cell.append('"');
+                } else {
+                    input.reset();
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+                empty = false;
+            } else if (c == ',') {
+                row.add(cell.toString());
+                cell.setLength(0);
+                empty = false;
+            } else if (c == '\r' || c == '\n') {
+                if (c == '\r') {
+                    input.mark(1);
+                    if (input.read() != '\n') {
+                        input.reset();
+                    }
+                }
+                if (!empty || cell.length() > 0) {
+                    row.add(cell.toString());
+                    return row;
+                }
+            } else {
+                cell.append((char) c);
+            }
+        }
+        if (quoted) {
+            throw new IOException("Unterminated quoted cell at the end of the input");
+        }
+        if (empty && cell.length() == 0) {
+            return null;
+        }
+        row.add(cell.toString());
+        return row;
+    }
+
+    /**
+     * Returns a writer of NDJSON.
+     */
+    static RecordWriter ndjsonWriter(final Writer output) {
+        return new RecordWriter() {
+            @Override
+            public void write(Map<String, Object> record) throws IOException {
+                StringBuilder json = new StringBuilder("{");
+                String separator = "";
+                for (Map.Entry<String, Object> field : record.entrySet()) {
+                    json.append(separator);
+                    appendJson(json, field.getKey());
+                    json.append(':');
+                    appendJson(json, field.getValue());
+                    separator = ",";
+                }
+                output.write(json.append("}\n").toString());
+            }
+        };
+    }
+
+    /**
+     * Returns a writer of CSV with the given fields.
+     *
+     * @param header Whether to start with the header row.
+     */
+    static RecordWriter csvWriter(final Writer output, final boolean header,
+                                  final String... fields) {
+        return new RecordWriter() {
+
+            private boolean headerWritten = !header;
+
+            @Override
+            public void write(Map<String, Object> record) throws IOException {
+                if (!headerWritten) {
+                    writeRow(Arrays.<Object>asList((Object[]) fields));
+                    headerWritten = true;
+                }
+                List<Object> row = new ArrayList<>(fields.length);
+                for (String field : fields) {
+                    row.add(record.get(field));
+                }
+                writeRow(row);
+            }
+
+            private void writeRow(List<Object> row) throws IOException {
+                StringBuilder csv = new StringBuilder();
+                String separator = "";
+                for (Object value : row) {
+                    csv.append(separator).append(csvCell(value));
+                    separator = ",";
+                }
+                output.write(csv.append("\r\n").toString());
+            }
+        };
+    }
+
+    private static String csvCell(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String cell;
+        if (value instanceof List) {
+            StringBuilder joined = new StringBuilder();
+            for (Object element : (List<?>) value) {
+                if (joined.length() > 0) {
+                    joined.append(LIST_SEPARATOR);
+                }
+                joined.append(element);
+            }
+            cell = joined.toString();
+        } else {
+            cell = value.toString();
+        }
+        if (cell.indexOf(',') < 0 && cell.indexOf('"') < 0 && cell.indexOf('\n') < 0
+                && cell.indexOf('\r') < 0) {
+            return cell;
+        }
+        return '"' + cell.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Renders a value as JSON.
+     */
+    static String toJson(Object value) {
+        StringBuilder json = new StringBuilder();
+        appendJson(json, value);
+        return json.toString();
+    }
+
+    private static void appendJson(StringBuilder json, Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value instanceof List) {
+            json.append('[');
+            String separator = "";
+            for (Object element : (List<?>) value) {
+                json.append(separator);
+                appendJson(json, element);
+                separator = ",";
+            }
+            json.append(']');
+        } else {
+            String string = value.toString();
+            json.append('"');
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                switch (c) {
+                    case '"':
+                        json.append("\\\"");
+                        break;
+                    case '\\':
+                        json.append("\\\\");
+                        break;
+                    case '\n':
+                        json.append("\\n");
+                        break;
+                    case '\r':
+                        json.append("\\r");
+                        break;
+                    case '\t':
+                        json.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            json.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            json.append(c);
+                        }
+                }
+            }
+            json.append('"');
+        }
+    }
+
+    /**
+     * Parses a JSON object, whose values may be strings, numbers, booleans, null, arrays or
+     * objects. Integral numbers are parsed as Longs, others as Doubles.
+     */
+    private static class JsonParser {
+
+        private final String json;
+
+        private int position;
+
+        JsonParser(String json) {
+            this.json = json;
+        }
+
+        Map<String, Object> parseRecord() {
+            skipWhitespace();
+            if (peek() != '{') {
+                throw error("Expected an object");
+            }
+            Map<String, Object> record = parseObject();
+            skipWhitespace();
+            if (position < json.length()) {
+                throw error("Unexpected text after the object");
+            }
+            return record;
+        }
+
+        private Object parseValue() {
+            skipWhitespace();
+            char c = peek();
+            switch (c) {
+                case '{':
+                    return parseObject();
+                case '[':
+                    return parseArray();
+                case '"':
+                    return parseString();
+                case 't':
+                    expect("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expect("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expect("null");
+                    return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return parseNumber();
+                    }
+                    throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        private Map<String, Object> parseObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected a field name");
+                }
+                String name = parseString();
+                skipWhitespace();
+                if (peek() != ':') {
+                    throw error("Expected ':'");
+                }
+                position++;
+                object.put(name, parseValue());
+                skipWhitespace();
+                char c = peek();
+                position++;
+                if (c == '}') {
+                    return object;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private List<Object> parseArray() {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(parseValue());
+                skipWhitespace();
+                char c = peek();
+                position++;
+                if (c == ']') {
+                    return array;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        private String parseString() {
+            StringBuilder string = new StringBuilder();
+            position++;
+            while (true) {
+                char c = peek();
+                position++;
+                if (c == '"') {
+                    return string.toString();
+                }
+                if (c != '\\') {
+                    string.append(c);
+                    continue;
+                }
+                char escaped = peek();
+                position++;
+                switch (escaped) {
+                    case 'b':
+                        string.append('\b');
+                        break;
+                    case 'f':
+                        string.append('\f');
+                        break;
+                    case 'n':
+                        string.append('\n');
+                        break;
+                    case 'r':
+                        string.append('\r');
+                        break;
+                    case 't':
+                        string.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > json.length()) {
+                            throw error("Truncated escape");
+                        }
+                        try {
+                            string.append((char) Integer.parseInt(
+                                    json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Malformed escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        string.append(escaped);
+                }
+            }
+        }
+
+        private Number parseNumber() {
+            int start = position;
+            while (position < json.length()
+                    && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+                position++;
+            }
+            String number = json.substring(start, position);
+            try {
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0
+                        && number.indexOf('E') < 0) {
+                    return Long.parseLong(number);
+                }
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                throw error("Malformed number " + number);
+            }
+        }
+
+        private void expect(String literal) {
+            if (!json.startsWith(literal, position)) {
+                throw error("Expected " + literal);
+            }
+            position += literal.length();
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private char peek() {
+            if (position >= json.length()) {
+                throw error("Unexpected end of line");
+            }
+            return json.charAt(position);
+        }
+
+        private MalformedRecordException error(String message) {
+            return new MalformedRecordException(message + " at column " + (position + 1));
+        }
+    }
+}
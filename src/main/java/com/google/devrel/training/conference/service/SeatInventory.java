@@ -0,0 +1,335 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sharded seat inventory of conferences.
+ *
+ * The seats of a conference are split over SHARD_COUNT SeatShard entities, each in its own
+ * entity group. A registration books a seat from a random shard that still has seats, so
+ * concurrent registrations for a popular conference mostly commit on different entity
+ * groups. The number of seats available of a conference is the sum over its shards; it is
+ * cached in memcache, where registrations increment it. Reads only use the cached sums,
+ * falling back to the seats available stored with the Conference, and never write:
+ * reconcile() writes the sums back in transactions, so that queries on seatsAvailable stay
+ * approximately right.
+ */
+public final class SeatInventory {
+
+    /**
+     * The number of shards per conference.
+     */
+    public static final int SHARD_COUNT = 10;
+
+    private static final String KEY_PREFIX = "SEATS_AVAILABLE:";
+
+    /**
+     * How long sums stay cached. seatsChanged() keeps them current, so this only bounds how
+     * long a lost increment is seen.
+     */
+    private static final int EXPIRATION_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
+    private SeatInventory() {}
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Returns the keys of all the shards of a conference.
+     *
+     * @param conferenceKey The key of the conference.
+     * @return the keys of the shards.
+     */
+    public static List<Key<SeatShard>> shardKeys(final Key<Conference> conferenceKey) {
+        List<Key<SeatShard>> keys = new ArrayList<>(SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            keys.add(SeatShard.key(conferenceKey, i));
+        }
+        return keys;
+    }
+
+    /**
+     * Creates the shards of a conference, splitting its capacity and its available seats
+     * evenly. The caller saves them.
+     *
+     * @param conference The conference.
+     * @return the new shards.
+     */
+    public static List<SeatShard> createShards(final Conference conference) {
+        Key<Conference> conferenceKey = Key.create(conference);
+        List<SeatShard> shards = new ArrayList<>(SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards.add(new SeatShard(conferenceKey, i, split(conference.getMaxAttendees(), i),
+                    split(conference.getSeatsAvailable(), i)));
+        }
+        return shards;
+    }
+
+    /**
+     * Returns shard i's part of the given number of seats. As the parts of seatsAvailable
+     * and maxAttendees are computed the same way, no shard has more seats than capacity.
+     */
+    private static int split(final int seats, final int i) {
+        return seats / SHARD_COUNT + (i < seats % SHARD_COUNT ? 1 : 0);
+    }
+
+    /**
+     * Returns the shards of a conference, creating them for conferences created before
+     * seats were sharded.
+     */
+    private static Collection<SeatShard> loadShards(final Key<Conference> conferenceKey) {
+        final List<Key<SeatShard>> keys = shardKeys(conferenceKey);
+        Map<Key<SeatShard>, SeatShard> shards = ofy().load().keys(keys);
+        if (shards.isEmpty()) {
+            Transactions.run("createShards", new VoidWork() {
+                public void vrun() {
+                    if (ofy().load().keys(keys).isEmpty()) {
+                        Conference conference = ofy().load().key(conferenceKey).now();
+                        if (conference != null) {
+                            ofy().save().entities(createShards(conference)).now();
+                        }
+                    }
+                }
+            });
+            shards = ofy().load().keys(keys);
+        }
+        return shards.values();
+    }
+
+    /**
+     * Returns the keys of the shards of a conference that have seats available, in random
+     * order.
+     *
+     * @param conferenceKey The key of the conference.
+     * @return the keys of the shards to try booking a seat from, in order.
+     */
+    public static List<Key<SeatShard>> shardsWithSeats(final Key<Conference> conferenceKey) {
+        List<Key<SeatShard>> keys = new ArrayList<>(SHARD_COUNT);
+        for (SeatShard shard : loadShards(conferenceKey)) {
+            if (shard.getSeatsAvailable() > 0) {
+                keys.add(Key.create(shard));
+            }
+        }
+        Collections.shuffle(keys, ThreadLocalRandom.current());
+        return keys;
+    }
+
+    /**
+     * Returns the keys of the shards of a conference that have room for a seat given back,
+     * in random order.
+     *
+     * @param conferenceKey The key of the conference.
+     * @return the keys of the shards to try giving a seat back to, in order.
+     */
+    public static List<Key<SeatShard>> shardsWithRoom(final Key<Conference> conferenceKey) {
+        List<Key<SeatShard>> keys = new ArrayList<>(SHARD_COUNT);
+        for (SeatShard shard : loadShards(conferenceKey)) {
+            if (shard.getSeatsAvailable() < shard.getCapacity()) {
+                keys.add(Key.create(shard));
+            }
+        }
+        Collections.shuffle(keys, ThreadLocalRandom.current());
+        return keys;
+    }
+
+    /**
+     * Adjusts the cached and indexed number of seats available of a conference, and
+     * invalidates its ETag, after a committed registration or unregistration.
+     *
+     * @param conferenceKey The key of the conference.
+     * @param delta The number of seats given back, negative for seats booked.
+     * @return the new number of seats available, or null when it is not cached.
+     */
+    public static Long seatsChanged(final Key<Conference> conferenceKey, final int delta) {
+        ConferenceIndex.seatsChanged(conferenceKey, delta);
+        EntityTags.invalidate(conferenceKey);
+        return memcache().increment(KEY_PREFIX + conferenceKey.getString(), delta);
+    }
+
+    /**
+     * Returns the number of seats available of a conference, the sum over its shards, and
+     * caches it.
+     *
+     * @param conferenceKey The key of the conference.
+     * @return the number of seats available, or null when the conference has no shards.
+     */
+    public static Integer seatsAvailable(final Key<Conference> conferenceKey) {
+        String cacheKey = KEY_PREFIX + conferenceKey.getString();
+        Object cached = memcache().get(cacheKey);
+        if (cached != null) {
+            return ((Number) cached).intValue();
+        }
+        Integer seats = sum(conferenceKey,
+                ofy().load().keys(shardKeys(conferenceKey)));
+        if (seats != null) {
+            cache(Collections.singletonMap(cacheKey, (Object) (long) seats));
+        }
+        return seats;
+    }
+
+    /**
+     * Sets the number of seats available of the given conferences to the cached sums over
+     * their shards. Conferences whose sum is not cached keep the seats available stored
+     * with them, which reconcile() keeps close to the sum; nothing is written.
+     *
+     * @param conferences The conferences.
+     * @return the same conferences.
+     */
+    public static <T extends Collection<Conference>> T withSeatsAvailable(final T conferences) {
+        List<Key<Conference>> keys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            keys.add(Key.create(conference));
+        }
+        Map<Key<Conference>, Integer> seats = cachedSeatsAvailable(keys);
+        for (Conference conference : conferences) {
+            Integer cached = seats.get(Key.create(conference));
+            if (cached != null) {
+                conference.setSeatsAvailable(cached);
+            }
+        }
+        return conferences;
+    }
+
+    /**
+     * Sets the number of seats available of the given cards as withSeatsAvailable() does for
+     * conferences.
+     *
+     * @param cards The cards, with the stored seats available.
+     * @return the same cards.
+     */
+    public static <T extends Collection<ConferenceCard>> T cardsWithSeatsAvailable(
+            final T cards) {
+        List<Key<Conference>> keys = new ArrayList<>(cards.size());
+        for (ConferenceCard card : cards) {
+            keys.add(card.getKey());
+        }
+        Map<Key<Conference>, Integer> seats = cachedSeatsAvailable(keys);
+        for (ConferenceCard card : cards) {
+            Integer cached = seats.get(card.getKey());
+            if (cached != null) {
+                card.setSeatsAvailable(cached);
+            }
+        }
+        return cards;
+    }
+
+    /**
+     * Returns the sums over the shards of conferences cached in memcache.
+     *
+     * @param keys The keys of the conferences.
+     * @return the seats available of the conferences whose sum is cached, by key.
+     */
+    private static Map<Key<Conference>, Integer> cachedSeatsAvailable(
+            final Collection<Key<Conference>> keys) {
+        Map<String, Key<Conference>> byCacheKey = new HashMap<>();
+        for (Key<Conference> key : keys) {
+            byCacheKey.put(KEY_PREFIX + key.getString(), key);
+        }
+        Map<Key<Conference>, Integer> seatsAvailable = new HashMap<>();
+        for (Map.Entry<String, Object> cached
+                : memcache().getAll(byCacheKey.keySet()).entrySet()) {
+            seatsAvailable.put(byCacheKey.get(cached.getKey()),
+                    ((Number) cached.getValue()).intValue());
+        }
+        return seatsAvailable;
+    }
+
+    /**
+     * Returns the sums over the shards of conferences, read from the shards rather than
+     * from memcache. For jobs that need the exact sums, like exports and reconcile().
+     *
+     * @param conferenceKeys The keys of the conferences.
+     * @return the seats available of the conferences with shards, by key.
+     */
+    public static Map<Key<Conference>, Integer> sumShards(
+            final Collection<Key<Conference>> conferenceKeys) {
+        List<Key<SeatShard>> keys = new ArrayList<>();
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            keys.addAll(shardKeys(conferenceKey));
+        }
+        Map<Key<SeatShard>, SeatShard> shards = ofy().load().keys(keys);
+        Map<Key<Conference>, Integer> sums = new HashMap<>();
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            Integer seats = sum(conferenceKey, shards);
+            if (seats != null) {
+                sums.put(conferenceKey, seats);
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Sums the shards of conferences, caches the sums and writes them, in a transaction per
+     * conference, to the conferences whose stored seats available have drifted. Run by
+     * ReconcileSeatsServlet, so that queries on seatsAvailable and the conferences whose
+     * sum is not cached stay approximately right.
+     *
+     * @param conferenceKeys The keys of the conferences.
+     * @return the number of conferences whose stored seats available were written.
+     */
+    public static int reconcile(final Collection<Key<Conference>> conferenceKeys) {
+        Map<Key<Conference>, Integer> sums = sumShards(conferenceKeys);
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(sums.keySet());
+        Map<String, Object> cached = new HashMap<>();
+        int written = 0;
+        for (Map.Entry<Key<Conference>, Integer> sum : sums.entrySet()) {
+            Conference conference = conferences.get(sum.getKey());
+            if (conference == null) {
+                continue;
+            }
+            // Stored as a Long so that seatsChanged() can increment it.
+            cached.put(KEY_PREFIX + sum.getKey().getString(), (long) sum.getValue());
+            if (sum.getValue() != conference.getSeatsAvailable()) {
+                Repositories.conferences().writeSeatsAvailable(sum.getKey(), sum.getValue());
+                written++;
+            }
+        }
+        cache(cached);
+        return written;
+    }
+
+    /**
+     * Returns the sum over the shards of a conference, or null when it has none.
+     */
+    private static Integer sum(final Key<Conference> conferenceKey,
+                               final Map<Key<SeatShard>, SeatShard> shards) {
+        Integer seats = null;
+        for (Key<SeatShard> shardKey : shardKeys(conferenceKey)) {
+            SeatShard shard = shards.get(shardKey);
+            if (shard != null) {
+                seats = (seats == null ? 0 : seats) + shard.getSeatsAvailable();
+            }
+        }
+        return seats;
+    }
+
+    /**
+     * Caches sums unless already cached, so that a sum computed before a registration
+     * doesn't overwrite the sum seatsChanged() incremented.
+     */
+    private static void cache(final Map<String, Object> sums) {
+        memcache().putAll(sums, Expiration.byDeltaSeconds(EXPIRATION_SECONDS),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+}
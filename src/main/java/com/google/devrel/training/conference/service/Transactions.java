@@ -0,0 +1,327 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs datastore transactions with a bounded retry budget and exponential backoff with
+ * jitter, and counts their attempts, retries, aborts and latency per operation.
+ *
+ * Objectify's transact() retries a transaction whose commit failed with a concurrency
+ * conflict immediately and without limit, so contended transactions keep hammering their
+ * entity group. Here a conflict is retried after a random delay of up to baseDelayMillis,
+ * doubling on each retry up to maxDelayMillis, and maxAttempts times at most, after which
+ * the ConcurrentModificationException is thrown to the caller. Any other exception is a
+ * logic error: it is counted and thrown at once, without a retry.
+ *
+ * A run inside a transaction joins it, with no retries of its own: the outer transaction
+ * retries the whole work. The entities the work saves through UnitOfWork are written in
+ * one batch before the commit, and the actions it registers with afterCommit() run once the
+ * commit succeeded, so that an attempt that aborts leaves no trace in memory.
+ */
+public final class Transactions {
+
+    /**
+     * How many times, and how long apart, a transaction is attempted.
+     */
+    public static class RetryPolicy {
+
+        /**
+         * Objectify's transact(): immediate retries without limit.
+         */
+        public static final RetryPolicy IMMEDIATE = new RetryPolicy(Integer.MAX_VALUE, 0, 0);
+
+        private final int maxAttempts;
+
+        private final long baseDelayMillis;
+
+        private final long maxDelayMillis;
+
+        /**
+         * @param maxAttempts The most attempts of a transaction, including the first.
+         * @param baseDelayMillis The longest delay before the first retry.
+         * @param maxDelayMillis The longest delay before any retry.
+         */
+        public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+            if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid retry policy: %d attempts, %d to %d ms", maxAttempts,
+                        baseDelayMillis, maxDelayMillis));
+            }
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        /**
+         * Returns the policy set by the "transactions." system properties, e.g.
+         * -Dtransactions.maxAttempts=5, defaulting to 5 attempts 10 to 200 ms apart.
+         */
+        public static RetryPolicy fromSystemProperties() {
+            return new RetryPolicy(Integer.getInteger("transactions.maxAttempts", 5),
+                    Long.getLong("transactions.baseDelayMillis", 10),
+                    Long.getLong("transactions.maxDelayMillis", 200));
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public long getBaseDelayMillis() {
+            return baseDelayMillis;
+        }
+
+        public long getMaxDelayMillis() {
+            return maxDelayMillis;
+        }
+
+        /**
+         * Returns a random delay before the given retry, between 0 and the exponential
+         * backoff: full jitter spreads the retries of transactions that conflicted together.
+         *
+         * @param retry The retry, 1 for the first.
+         */
+        long delayMillis(int retry) {
+            long ceiling = retry > 31 ? maxDelayMillis
+                    : Math.min(maxDelayMillis, baseDelayMillis * (1L << (retry - 1)));
+            return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d attempts, %d to %d ms apart", maxAttempts,
+                    baseDelayMillis, maxDelayMillis);
+        }
+    }
+
+    /**
+     * The counters of an operation.
+     */
+    public static class OperationMetrics {
+
+        private final String name;
+
+        private final LatencyHistogram latencyMicros = new LatencyHistogram();
+
+        private final AtomicLong attempts = new AtomicLong();
+
+        private final AtomicLong retries = new AtomicLong();
+
+        private final AtomicLong aborts = new AtomicLong();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private OperationMetrics(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the latency histogram of the runs, retries and delays included, in
+         * microseconds.
+         */
+        public LatencyHistogram getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        public long getRuns() {
+            return latencyMicros.getCount();
+        }
+
+        /**
+         * Returns the number of transactions begun, retries included.
+         */
+        public long getAttempts() {
+            return attempts.get();
+        }
+
+        /**
+         * Returns the number of transactions retried after a concurrency conflict.
+         */
+        public long getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Returns the number of runs that gave up after maxAttempts conflicts.
+         */
+        public long getAborts() {
+            return aborts.get();
+        }
+
+        /**
+         * Returns the number of runs that failed with any other exception.
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+    }
+
+    private static volatile RetryPolicy defaultPolicy = RetryPolicy.fromSystemProperties();
+
+    private static final ConcurrentMap<String, OperationMetrics> OPERATIONS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The actions to run after the commit of the transaction run on the current thread.
+     */
+    private static final ThreadLocal<List<Runnable>> AFTER_COMMIT = new ThreadLocal<>();
+
+    private Transactions() {}
+
+    public static RetryPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * Sets the policy of the runs that don't give one.
+     */
+    public static void setDefaultPolicy(RetryPolicy policy) {
+        defaultPolicy = policy;
+    }
+
+    /**
+     * Runs work in a transaction with the default policy.
+     *
+     * @param operation The name the runs are counted under, e.g. "register".
+     * @param work The work, which may run more than once.
+     * @return the result of the work.
+     * @throws ConcurrentModificationException when every attempt conflicted.
+     */
+    public static <R> R run(String operation, Work<R> work) {
+        return run(operation, defaultPolicy, work);
+    }
+
+    /**
+     * Runs work in a transaction.
+     *
+     * @param operation The name the runs are counted under, e.g. "register".
+     * @param policy How many times, and how long apart, to attempt the transaction.
+     * @param work The work, which may run more than once.
+     * @return the result of the work.
+     * @throws ConcurrentModificationException when every attempt conflicted.
+     */
+    public static <R> R run(String operation, RetryPolicy policy, Work<R> work) {
+        if (ofy().getTransaction() != null) {
+            return ofy().transact(work);
+        }
+        OperationMetrics metrics = operation(operation);
+        long startNanos = System.nanoTime();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                metrics.attempts.incrementAndGet();
+                try {
+                    return attempt(work);
+                } catch (ConcurrentModificationException e) {
+                    if (attempt >= policy.maxAttempts) {
+                        metrics.aborts.incrementAndGet();
+                        throw e;
+                    }
+                    metrics.retries.incrementAndGet();
+                    backOff(policy.delayMillis(attempt), e);
+                } catch (RuntimeException | Error e) {
+                    metrics.errors.incrementAndGet();
+                    throw e;
+                }
+            }
+        } finally {
+            metrics.latencyMicros.record(
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+    }
+
+    /**
+     * Attempts the transaction once, then runs the actions registered with afterCommit().
+     */
+    private static <R> R attempt(Work<R> work) {
+        List<Runnable> actions = new ArrayList<>();
+        AFTER_COMMIT.set(actions);
+        R result;
+        try {
+            // A single attempt: Objectify 5.0 retries limitTries times after the first.
+            result = ofy().transactNew(0, UnitOfWork.batchingWrites(work));
+        } finally {
+            AFTER_COMMIT.remove();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+        return result;
+    }
+
+    /**
+     * Runs an action once the transaction run on the current thread committed, or at once
+     * outside of a transaction run by Transactions. Called by what keeps state in memory
+     * that must only reflect committed writes.
+     *
+     * @param action The action, not run if the transaction does not commit.
+     */
+    public static void afterCommit(final Runnable action) {
+        List<Runnable> actions = AFTER_COMMIT.get();
+        if (actions == null || ofy().getTransaction() == null) {
+            action.run();
+        } else {
+            actions.add(action);
+        }
+    }
+
+    private static void backOff(long delayMillis, ConcurrentModificationException conflict) {
+        if (delayMillis == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw conflict;
+        }
+    }
+
+    private static OperationMetrics operation(String name) {
+        OperationMetrics metrics = OPERATIONS.get(name);
+        if (metrics == null) {
+            OperationMetrics newMetrics = new OperationMetrics(name);
+            metrics = OPERATIONS.putIfAbsent(name, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of all operations run so far, sorted by name.
+     */
+    public static List<OperationMetrics> getOperations() {
+        List<OperationMetrics> operations = new ArrayList<>(OPERATIONS.values());
+        Collections.sort(operations, new Comparator<OperationMetrics>() {
+            @Override
+            public int compare(OperationMetrics a, OperationMetrics b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return operations;
+    }
+
+    /**
+     * Returns the metrics of an operation, null when it has not run.
+     */
+    public static OperationMetrics getOperation(String name) {
+        return OPERATIONS.get(name);
+    }
+}
@@ -0,0 +1,320 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The entities loaded and saved by one API request.
+ *
+ * Loads are memoized by key for the length of the request, so that loading an entity again,
+ * e.g. the Profile of the user in each method it goes through, neither goes to the datastore
+ * nor to EntityCache, and returns the same object. Saves are deferred and written in one
+ * batch by flush() or end(); until then, loads return the saved object.
+ *
+ * Transactions get their own view: in a transaction, loads go to the transaction, bypassing
+ * the unit of work, and saves are written in one batch when the work run by Transactions
+ * returns, before the commit. Saving an entity, in a transaction or not, removes it from
+ * the loads memoized.
+ *
+ * A request should flush() before it returns, so that a failed write fails the request.
+ * end() runs after Endpoints wrote the response, so it can no longer fail the request: it
+ * writes what was left unflushed, as the client was told the request succeeded, and logs
+ * the writes it left, and any failure, without throwing.
+ *
+ * Without a unit of work, as outside of API requests, loads go to EntityCache and saves are
+ * written at once.
+ */
+public final class UnitOfWork {
+
+    private static final Logger LOG = Logger.getLogger(UnitOfWork.class.getName());
+
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+    private static final ThreadLocal<TransactionWrites> TRANSACTION_WRITES =
+            new ThreadLocal<>();
+
+    private static final AtomicLong WRITES = new AtomicLong();
+
+    private static final AtomicLong SKIPPED_WRITES = new AtomicLong();
+
+    /**
+     * The entities saved in a transaction run by Transactions, written when its work
+     * returns.
+     */
+    private static class TransactionWrites {
+
+        private final Transaction transaction;
+
+        private final Map<Key<?>, Object> entities = new LinkedHashMap<>();
+
+        private TransactionWrites(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        private void write() {
+            if (!entities.isEmpty()) {
+                List<Object> written = new ArrayList<>(entities.values());
+                entities.clear();
+                ofy().save().entities(written).now();
+                WRITES.addAndGet(written.size());
+            }
+        }
+    }
+
+    /**
+     * The entities loaded, or null for the keys without an entity.
+     */
+    private final Map<Key<?>, Object> loaded = new HashMap<>();
+
+    /**
+     * The entities saved and not written yet, in the order they were saved.
+     */
+    private final Map<Key<?>, Object> dirty = new LinkedHashMap<>();
+
+    private UnitOfWork() {}
+
+    /**
+     * Starts a unit of work on the current thread.
+     *
+     * @return the unit of work, to end() once the request is done.
+     * @throws IllegalStateException when the thread already has one.
+     */
+    public static UnitOfWork begin() {
+        if (CURRENT.get() != null) {
+            throw new IllegalStateException("A unit of work is already in progress");
+        }
+        UnitOfWork unitOfWork = new UnitOfWork();
+        CURRENT.set(unitOfWork);
+        return unitOfWork;
+    }
+
+    /**
+     * Ends the unit of work, writing the entities saved and not flushed, and clears the
+     * Objectify session, so that the next request on this thread starts afresh. Never
+     * throws, so as not to mask what the request threw.
+     */
+    public void end() {
+        try {
+            if (!dirty.isEmpty()) {
+                LOG.warning("The request returned without flushing " + dirty.size()
+                        + " saved entities, written after the response: " + dirty.keySet());
+                try {
+                    write();
+                } catch (RuntimeException e) {
+                    LOG.severe("Failed to write the entities the request did not flush: " + e);
+                }
+            }
+        } finally {
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+            ofy().clear();
+        }
+    }
+
+    /**
+     * Returns the unit of work of the current thread, or null when there is none or in a
+     * transaction.
+     */
+    private static UnitOfWork current() {
+        return ofy().getTransaction() == null ? CURRENT.get() : null;
+    }
+
+    /**
+     * Loads an entity, once per unit of work.
+     *
+     * @param key The key of the entity.
+     * @return the entity, or null when there is none.
+     */
+    public static <T> T load(final Key<T> key) {
+        UnitOfWork unitOfWork = current();
+        if (unitOfWork == null) {
+            return EntityCache.load(key);
+        }
+        if (unitOfWork.loaded.containsKey(key)) {
+            @SuppressWarnings("unchecked")
+            T entity = (T) unitOfWork.loaded.get(key);
+            return entity;
+        }
+        T entity = EntityCache.load(key);
+        unitOfWork.loaded.put(key, entity);
+        return entity;
+    }
+
+    /**
+     * Loads entities in a batch, loading only those not loaded yet by the unit of work.
+     *
+     * @param keys The keys of the entities.
+     * @return the entities found, by key, in the order of the keys.
+     */
+    public static <T> Map<Key<T>, T> load(final Collection<Key<T>> keys) {
+        return load(keys, null);
+    }
+
+    /**
+     * Loads entities in a batch like load(keys), counting those not loaded from the
+     * datastore: loaded by the unit of work already, or served by the EntityCache.
+     *
+     * @param keys The keys of the entities.
+     * @param hits Incremented for each entity not loaded from the datastore, or null.
+     * @return the entities found, by key, in the order of the keys.
+     */
+    public static <T> Map<Key<T>, T> load(final Collection<Key<T>> keys,
+                                          final AtomicInteger hits) {
+        UnitOfWork unitOfWork = current();
+        if (unitOfWork == null) {
+            return EntityCache.load(keys, hits);
+        }
+        List<Key<T>> missing = new ArrayList<>();
+        for (Key<T> key : keys) {
+            if (!unitOfWork.loaded.containsKey(key)) {
+                missing.add(key);
+            } else if (hits != null) {
+                hits.incrementAndGet();
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Key<T>, T> entities = EntityCache.load(missing, hits);
+            for (Key<T> key : missing) {
+                unitOfWork.loaded.put(key, entities.get(key));
+            }
+        }
+        Map<Key<T>, T> result = new LinkedHashMap<>();
+        for (Key<T> key : keys) {
+            @SuppressWarnings("unchecked")
+            T entity = (T) unitOfWork.loaded.get(key);
+            if (entity != null) {
+                result.put(key, entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the work of a transaction so that the entities it saves are written in one
+     * batch when it returns. Called by Transactions.
+     *
+     * @param work The work.
+     * @return the work writing its saves, to run in the transaction.
+     */
+    static <R> Work<R> batchingWrites(final Work<R> work) {
+        return new Work<R>() {
+            @Override
+            public R run() {
+                TransactionWrites outer = TRANSACTION_WRITES.get();
+                TransactionWrites writes = new TransactionWrites(ofy().getTransaction());
+                TRANSACTION_WRITES.set(writes);
+                try {
+                    R result = work.run();
+                    writes.write();
+                    return result;
+                } finally {
+                    if (outer == null) {
+                        TRANSACTION_WRITES.remove();
+                    } else {
+                        TRANSACTION_WRITES.set(outer);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Saves an entity: when the work of the current transaction returns if there is one, at
+     * the next flush() of the unit of work if there is one, and at once otherwise.
+     * Transactions not run by Transactions write the entity at once, and Objectify
+     * completes the write before the commit.
+     *
+     * @param entity The entity to save.
+     */
+    public static void save(final Object entity) {
+        Transaction transaction = ofy().getTransaction();
+        if (transaction != null) {
+            TransactionWrites writes = TRANSACTION_WRITES.get();
+            if (writes != null && writes.transaction == transaction) {
+                writes.entities.put(Key.create(entity), entity);
+            } else {
+                ofy().save().entity(entity);
+                WRITES.incrementAndGet();
+            }
+            return;
+        }
+        UnitOfWork unitOfWork = CURRENT.get();
+        if (unitOfWork == null) {
+            ofy().save().entity(entity).now();
+            WRITES.incrementAndGet();
+            return;
+        }
+        Key<?> key = Key.create(entity);
+        unitOfWork.dirty.put(key, entity);
+        unitOfWork.loaded.put(key, entity);
+    }
+
+    /**
+     * Counts a save skipped because nothing changed.
+     */
+    public static void skipped() {
+        SKIPPED_WRITES.incrementAndGet();
+    }
+
+    /**
+     * Writes the entities saved in the unit of work so far, in one batch. API methods that
+     * save flush before returning, so that a failed write fails the request.
+     */
+    public static void flush() {
+        UnitOfWork unitOfWork = CURRENT.get();
+        if (unitOfWork != null && !unitOfWork.dirty.isEmpty()) {
+            unitOfWork.write();
+        }
+    }
+
+    private void write() {
+        try {
+            ofy().save().entities(new ArrayList<>(dirty.values())).now();
+            WRITES.addAndGet(dirty.size());
+        } finally {
+            // Cleared afterwards, so that the entities written stay memoized.
+            dirty.clear();
+        }
+    }
+
+    /**
+     * Removes an entity from the loads memoized by the unit of work of the current thread.
+     * Called when the entity is saved.
+     *
+     * @param key The key of the entity.
+     */
+    static void forget(final Key<?> key) {
+        UnitOfWork unitOfWork = CURRENT.get();
+        if (unitOfWork != null && !unitOfWork.dirty.containsKey(key)) {
+            unitOfWork.loaded.remove(key);
+        }
+    }
+
+    /**
+     * Returns the number of entities written by this instance through save().
+     */
+    public static long getWriteCount() {
+        return WRITES.get();
+    }
+
+    /**
+     * Returns the number of saves skipped by this instance because nothing changed.
+     */
+    public static long getSkippedWriteCount() {
+        return SKIPPED_WRITES.get();
+    }
+}
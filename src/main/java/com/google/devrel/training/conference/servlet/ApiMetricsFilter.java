@@ -0,0 +1,123 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.api.server.spi.config.ApiMethod;
+import com.google.common.collect.ImmutableSet;
+import com.google.devrel.training.conference.service.ApiMetrics;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter recording ApiMetrics for every API method.
+ *
+ * Cloud Endpoints calls the backend at /_ah/spi/{class}.{method}, so the filter wraps each
+ * call of an @ApiMethod; calls answered with an HTTP error status count as errors. Calls of
+ * any other URI count as OTHER_ENDPOINT, so that clients cannot add endpoints to the metrics.
+ */
+public class ApiMetricsFilter implements Filter {
+
+    /**
+     * The endpoint of calls that are not of an @ApiMethod.
+     */
+    static final String OTHER_ENDPOINT = "other";
+
+    /**
+     * The @ApiMethods of ConferenceApi, by the method name the backend is called with.
+     */
+    private static final Set<String> ENDPOINTS = apiMethods();
+
+    private static Set<String> apiMethods() {
+        ImmutableSet.Builder<String> methods = ImmutableSet.builder();
+        for (Method method : ConferenceApi.class.getMethods()) {
+            if (method.isAnnotationPresent(ApiMethod.class)) {
+                methods.add(method.getName());
+            }
+        }
+        return methods.build();
+    }
+
+    /**
+     * Returns the endpoint a URI calls.
+     *
+     * @param uri The request URI, /_ah/spi/{class}.{method} for an API method.
+     * @return the name of the @ApiMethod, or OTHER_ENDPOINT.
+     */
+    static String endpoint(String uri) {
+        String method = uri.substring(uri.lastIndexOf('.') + 1);
+        return ENDPOINTS.contains(method) ? method : OTHER_ENDPOINT;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        ApiMetrics.install();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        // The delegate is replaced by the local services in the development server.
+        ApiMetrics.install();
+        ApiMetrics.Request metrics = ApiMetrics.start(
+                endpoint(((HttpServletRequest) request).getRequestURI()));
+        StatusResponse statusResponse = new StatusResponse((HttpServletResponse) response);
+        boolean error = true;
+        try {
+            chain.doFilter(request, statusResponse);
+            error = statusResponse.status >= 400;
+        } finally {
+            metrics.finish(error);
+        }
+    }
+
+    @Override
+    public void destroy() {}
+
+    /**
+     * Remembers the status, which Servlet 2.5 responses do not expose.
+     */
+    private static class StatusResponse extends HttpServletResponseWrapper {
+
+        private int status = SC_OK;
+
+        StatusResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            super.setStatus(status);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            this.status = status;
+            super.setStatus(status, message);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            this.status = status;
+            super.sendError(status);
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            this.status = status;
+            super.sendError(status, message);
+        }
+    }
+}
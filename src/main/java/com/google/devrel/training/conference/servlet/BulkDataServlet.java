@@ -0,0 +1,98 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.BulkData;
+import com.google.devrel.training.conference.service.BulkData.Format;
+import com.google.devrel.training.conference.service.BulkData.Page;
+import com.google.devrel.training.conference.service.BulkData.Progress;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet importing and exporting Profiles and Conferences with BulkData.
+ *
+ * POST imports the records in the body, as NDJSON or with format=csv, from the record at
+ * position start on, and answers with the progress as JSON. An import that ran out of time
+ * or failed has a resumeFrom to post the same body again with as start; a failed one is
+ * answered with a 500.
+ *
+ * GET exports a page of the entities of a kind, with kind=Profile or kind=Conference and
+ * optionally format=csv, cursor and limit. The cursor of the next page, absent after the
+ * last page, and the throughput are in the X-Next-Cursor, X-Record-Count and
+ * X-Records-Per-Second headers. In CSV, only the first page has the header row.
+ */
+@SuppressWarnings("serial")
+public class BulkDataServlet extends HttpServlet {
+
+    /**
+     * How long an import runs in a request, leaving time to answer before its deadline.
+     */
+    static final long IMPORT_DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(45);
+
+    static final int DEFAULT_PAGE_SIZE = 500;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Format format;
+        long start;
+        try {
+            format = format(request);
+            String startParam = request.getParameter("start");
+            start = startParam == null ? 0 : Long.parseLong(startParam);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        Progress progress = BulkData.importRecords(request.getReader(), format, start,
+                IMPORT_DEADLINE_MILLIS);
+        if (progress.getFailure() != null) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType("application/json");
+        response.getWriter().write(progress.toJson());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        // A page is buffered, so that its cursor can go in a header.
+        StringWriter output = new StringWriter();
+        Format format;
+        Page page;
+        try {
+            format = format(request);
+            String limit = request.getParameter("limit");
+            page = BulkData.exportPage(output, format, request.getParameter("kind"),
+                    request.getParameter("cursor"),
+                    limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit));
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType(format.getContentType());
+        if (page.getNextCursor() != null) {
+            response.setHeader("X-Next-Cursor", page.getNextCursor());
+        }
+        response.setHeader("X-Record-Count", String.valueOf(page.getCount()));
+        response.setHeader("X-Records-Per-Second",
+                String.format(Locale.ROOT, "%.1f", page.getRecordsPerSecond()));
+        response.getWriter().write(output.toString());
+    }
+
+    private static Format format(HttpServletRequest request) {
+        String format = request.getParameter("format");
+        return format == null ? Format.NDJSON : Format.valueOf(format.toUpperCase(Locale.ROOT));
+    }
+}
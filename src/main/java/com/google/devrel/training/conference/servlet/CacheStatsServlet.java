@@ -0,0 +1,36 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.UnitOfWork;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet serving the statistics of the caches and the writes of this instance as JSON.
+ */
+@SuppressWarnings("serial")
+public class CacheStatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType("application/json");
+        response.getWriter().write(String.format(Locale.ROOT,
+                "{\"entityCache\":{\"size\":%d,\"hits\":%d,\"misses\":%d,\"evictions\":%d,"
+                        + "\"hitRate\":%.4f},\"queryCache\":{\"hits\":%d,\"misses\":%d},"
+                        + "\"writes\":{\"written\":%d,\"skipped\":%d}}",
+                EntityCache.size(), EntityCache.getHitCount(), EntityCache.getMissCount(),
+                EntityCache.getEvictionCount(), EntityCache.getHitRate(),
+                ConferenceQueryCache.getHitCount(), ConferenceQueryCache.getMissCount(),
+                UnitOfWork.getWriteCount(), UnitOfWork.getSkippedWriteCount()));
+    }
+}
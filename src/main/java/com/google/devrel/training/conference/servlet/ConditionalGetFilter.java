@@ -0,0 +1,162 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devrel.training.conference.service.EntityTags;
+import com.google.devrel.training.conference.service.EntityTags.ConditionalRequest;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter answering conditional requests to the API methods returning a single entity.
+ *
+ * The method records the ETag of the entity with EntityTags, and the filter adds it to the
+ * response, along with Cache-Control headers letting caches keep the response as long as
+ * they revalidate it. When the If-None-Match of the request matches, the filter answers
+ * with a 304 and drops whatever the method returned.
+ */
+public class ConditionalGetFilter implements Filter {
+
+    /**
+     * The Cache-Control of the API methods supporting conditional requests. Profiles are
+     * the user's own, so shared caches must not keep them.
+     */
+    private static final Map<String, String> CACHE_CONTROL = ImmutableMap.of(
+            "getConference", "public, no-cache",
+            "getProfile", "private, no-cache");
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String uri = httpRequest.getRequestURI();
+        String cacheControl = CACHE_CONTROL.get(uri.substring(uri.lastIndexOf('.') + 1));
+        if (cacheControl == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        ConditionalRequest conditional =
+                EntityTags.begin(httpRequest.getHeader("If-None-Match"));
+        ConditionalResponse conditionalResponse = new ConditionalResponse(
+                (HttpServletResponse) response, conditional, cacheControl);
+        try {
+            chain.doFilter(request, conditionalResponse);
+            conditionalResponse.writeHeaders();
+        } finally {
+            conditional.end();
+        }
+    }
+
+    @Override
+    public void destroy() {}
+
+    /**
+     * Adds the ETag before the body is written, and drops the body of a 304.
+     */
+    private static class ConditionalResponse extends HttpServletResponseWrapper {
+
+        private final ConditionalRequest conditional;
+
+        private final String cacheControl;
+
+        private boolean headersWritten;
+
+        ConditionalResponse(HttpServletResponse response, ConditionalRequest conditional,
+                            String cacheControl) {
+            super(response);
+            this.conditional = conditional;
+            this.cacheControl = cacheControl;
+        }
+
+        /**
+         * Writes the status and the headers of the conditional request, once the method has
+         * returned.
+         */
+        void writeHeaders() {
+            if (headersWritten || isCommitted()) {
+                return;
+            }
+            headersWritten = true;
+            if (conditional.getETag() == null) {
+                return;
+            }
+            if (conditional.isNotModified()) {
+                super.setStatus(SC_NOT_MODIFIED);
+            }
+            setHeader("ETag", conditional.getETag());
+            setHeader("Cache-Control", cacheControl);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            writeHeaders();
+            if (conditional.isNotModified()) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {}
+                };
+            }
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            writeHeaders();
+            if (conditional.isNotModified()) {
+                return new PrintWriter(new OutputStreamWriter(getOutputStream(), "UTF-8"));
+            }
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            writeHeaders();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void setStatus(int status) {
+            if (!conditional.isNotModified()) {
+                super.setStatus(status);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            if (!conditional.isNotModified()) {
+                super.setStatus(status, message);
+            }
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            if (!conditional.isNotModified()) {
+                super.setContentLength(length);
+            }
+        }
+
+        @Override
+        public void setContentType(String type) {
+            if (!conditional.isNotModified()) {
+                super.setContentType(type);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devrel.training.conference.service.IdempotencyKeys;
+import com.google.devrel.training.conference.service.IdempotencyKeys.IdempotentRequest;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A filter starting idempotent requests to the API methods clients retry, with the
+ * Idempotency-Key header of the request, or its idempotencyKey parameter.
+ */
+public class IdempotencyFilter implements Filter {
+
+    /**
+     * The API methods supporting idempotency keys.
+     */
+    private static final Set<String> METHODS = ImmutableSet.of(
+            "createConference", "registerForConference");
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String uri = httpRequest.getRequestURI();
+        if (!METHODS.contains(uri.substring(uri.lastIndexOf('.') + 1))) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String idempotencyKey = httpRequest.getHeader("Idempotency-Key");
+        if (idempotencyKey == null) {
+            idempotencyKey = httpRequest.getParameter("idempotencyKey");
+        }
+        IdempotentRequest idempotent = IdempotencyKeys.begin(idempotencyKey);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            idempotent.end();
+        }
+    }
+
+    @Override
+    public void destroy() {}
+}
@@ -0,0 +1,32 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.ApiMetrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet serving the ApiMetrics of this instance, as JSON by default and in the
+ * Prometheus text format with ?format=prometheus.
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        if ("prometheus".equals(request.getParameter("format"))) {
+            response.setContentType("text/plain; version=0.0.4");
+            response.getWriter().write(ApiMetrics.toPrometheusText());
+        } else {
+            response.setContentType("application/json");
+            response.getWriter().write(ApiMetrics.toJson());
+        }
+    }
+}
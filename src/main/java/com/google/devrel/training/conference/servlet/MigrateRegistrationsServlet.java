@@ -0,0 +1,77 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for migrating the conferenceKeysToAttend lists of Profiles to Registration
+ * entities.
+ *
+ * Each request migrates one batch of Profiles, one transaction per Profile, and enqueues
+ * the next batch with the cursor of the query, so the migration never holds more than a
+ * batch in memory and can be resumed from any cursor. Profiles already migrated have an
+ * empty list and are skipped, so running it again is harmless. The registration
+ * repository migrates Profiles on first use too, so this only catches up on the others.
+ */
+@SuppressWarnings("serial")
+public class MigrateRegistrationsServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            MigrateRegistrationsServlet.class.getName());
+
+    static final String PATH = "/crons/migrate_registrations";
+
+    static final int BATCH_SIZE = 100;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = request.getParameter("cursor");
+        String nextCursor = migrateBatch(cursor, BATCH_SIZE);
+        if (nextCursor != null) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(PATH)
+                    .method(TaskOptions.Method.GET)
+                    .param("cursor", nextCursor));
+        } else {
+            LOG.info("Registrations migrated");
+        }
+        response.setStatus(204);
+    }
+
+    /**
+     * Migrates a batch of Profiles.
+     *
+     * @param cursor The websafe cursor to start from, null for the first batch.
+     * @param batchSize The maximum number of Profiles to migrate.
+     * @return the websafe cursor of the next batch, null when all Profiles are migrated.
+     */
+    static String migrateBatch(final String cursor, final int batchSize) {
+        Query<Profile> query = ofy().load().type(Profile.class).limit(batchSize);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Profile>> iterator = query.keys().iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Repositories.registrations().migrateLegacyRegistrations(iterator.next());
+            count++;
+        }
+        return count < batchSize ? null : iterator.getCursor().toWebSafeString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.service.IdempotencyKeys;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for deleting expired IdempotencyRecords.
+ *
+ * Each request deletes one batch, and enqueues the next one while batches come back full.
+ */
+@SuppressWarnings("serial")
+public class PurgeIdempotencyKeysServlet extends HttpServlet {
+
+    static final String PATH = "/crons/purge_idempotency_keys";
+
+    static final int BATCH_SIZE = 500;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (IdempotencyKeys.purgeExpired(BATCH_SIZE) == BATCH_SIZE) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(PATH)
+                    .method(TaskOptions.Method.GET));
+        }
+        response.setStatus(204);
+    }
+}
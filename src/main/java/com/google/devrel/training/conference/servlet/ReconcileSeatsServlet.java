@@ -0,0 +1,78 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A cron job writing the sums over the seat shards of conferences back to the conferences
+ * whose stored seats available have drifted, see SeatInventory.reconcile().
+ *
+ * Each request reconciles one batch of Conferences and enqueues the next batch with the
+ * cursor of the query, as MigrateRegistrationsServlet does.
+ */
+@SuppressWarnings("serial")
+public class ReconcileSeatsServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(ReconcileSeatsServlet.class.getName());
+
+    static final String PATH = "/crons/reconcile_seats";
+
+    static final int BATCH_SIZE = 100;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = request.getParameter("cursor");
+        String nextCursor = reconcileBatch(cursor, BATCH_SIZE);
+        if (nextCursor != null) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(PATH)
+                    .method(TaskOptions.Method.GET)
+                    .param("cursor", nextCursor));
+        } else {
+            LOG.info("Seats available reconciled");
+        }
+        response.setStatus(204);
+    }
+
+    /**
+     * Reconciles a batch of Conferences.
+     *
+     * @param cursor The websafe cursor to start from, null for the first batch.
+     * @param batchSize The maximum number of Conferences to reconcile.
+     * @return the websafe cursor of the next batch, null when all Conferences are reconciled.
+     */
+    static String reconcileBatch(final String cursor, final int batchSize) {
+        Query<Conference> query = ofy().load().type(Conference.class).limit(batchSize);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Conference>> iterator = query.keys().iterator();
+        List<Key<Conference>> keys = new ArrayList<>(batchSize);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        int written = SeatInventory.reconcile(keys);
+        if (written > 0) {
+            LOG.info("Wrote the seats available of " + written + " conferences");
+        }
+        return keys.size() < batchSize ? null : iterator.getCursor().toWebSafeString();
+    }
+}
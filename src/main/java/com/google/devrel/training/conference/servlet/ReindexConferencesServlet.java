@@ -0,0 +1,94 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.Transactions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for writing Conferences again, so that the datastore indexes the properties
+ * indexed since they were written: the projection queries of ConferenceCards only find
+ * conferences with startDate indexed.
+ *
+ * Each request rewrites one batch of Conferences, one transaction per Conference, and
+ * enqueues the next batch with the cursor of the query, as MigrateRegistrationsServlet
+ * does. Rewriting a Conference changes none of its properties, so running it again is
+ * harmless.
+ */
+@SuppressWarnings("serial")
+public class ReindexConferencesServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            ReindexConferencesServlet.class.getName());
+
+    static final String PATH = "/crons/reindex_conferences";
+
+    static final int BATCH_SIZE = 100;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = request.getParameter("cursor");
+        String nextCursor = reindexBatch(cursor, BATCH_SIZE);
+        if (nextCursor != null) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(PATH)
+                    .method(TaskOptions.Method.GET)
+                    .param("cursor", nextCursor));
+        } else {
+            LOG.info("Conferences reindexed");
+        }
+        response.setStatus(204);
+    }
+
+    /**
+     * Rewrites a batch of Conferences.
+     *
+     * @param cursor The websafe cursor to start from, null for the first batch.
+     * @param batchSize The maximum number of Conferences to rewrite.
+     * @return the websafe cursor of the next batch, null when all Conferences are rewritten.
+     */
+    static String reindexBatch(final String cursor, final int batchSize) {
+        Query<Conference> query = ofy().load().type(Conference.class).limit(batchSize);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Conference>> iterator = query.keys().iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            reindex(iterator.next());
+            count++;
+        }
+        return count < batchSize ? null : iterator.getCursor().toWebSafeString();
+    }
+
+    /**
+     * Writes a Conference as it is. Conference.save() would skip it, as none of its
+     * properties changed, so this saves it with Objectify in a transaction of its own.
+     */
+    private static void reindex(final Key<Conference> conferenceKey) {
+        Transactions.run("reindexConferences", new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (conference != null) {
+                    ofy().save().entity(conference).now();
+                }
+            }
+        });
+    }
+}
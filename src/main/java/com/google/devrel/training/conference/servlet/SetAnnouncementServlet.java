@@ -1,16 +1,8 @@
 package com.google.devrel.training.conference.servlet;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.common.base.Joiner;
-import com.google.devrel.training.conference.Constants;
-import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.NearlySoldOut;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,6 +13,9 @@ import javax.servlet.http.HttpServletResponse;
  * A servlet for putting announcements in memcache.
  * The announcement announces conferences that are nearly sold out
  * (defined as having 1 - 5 seats left)
+ *
+ * Registrations and unregistrations keep the announcement up to date; this cron job
+ * rebuilds it to reconcile updates lost to memcache evictions.
  */
 @SuppressWarnings("serial")
 public class SetAnnouncementServlet extends HttpServlet {
@@ -28,39 +23,7 @@ public class SetAnnouncementServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        // TODO
-        // Query for conferences with less than 5 seats left
-        Iterable<Conference> iterable = ofy().load().type(Conference.class).filter("seatsAvailable <", 5000);
-
-        // TODO
-        // Iterate over the conferences with less than 5 seats less
-        // and get the name of each one
-        List<String> conferenceNames = new ArrayList<>(0);
-        for (Conference conference : iterable) {
-            conferenceNames.add(conference.getName());
-        }
-
-        for (Conference conference : iterable) {
-            conferenceNames.add(conference.getName());
-        }
-        if (conferenceNames.size() > 0) {
-
-            // Build a String that announces the nearly sold-out conferences
-            StringBuilder announcementStringBuilder = new StringBuilder(
-                    "Last chance to attend! The following conferences are nearly sold out: ");
-            Joiner joiner = Joiner.on(", ").skipNulls();
-            announcementStringBuilder.append(joiner.join(conferenceNames));
-
-            // TODO
-            // Get the Memcache Service
-            MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-
-            // TODO
-            // Put the announcement String in memcache,
-            // keyed by Constants.MEMCACHE_ANNOUNCEMENTS_KEY
-            memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, announcementStringBuilder);
-
-        }
+        NearlySoldOut.rebuild();
 
         // Set the response status to 204 which means
         // the request was successful but there's no data to send back
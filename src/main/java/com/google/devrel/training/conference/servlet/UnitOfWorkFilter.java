@@ -0,0 +1,35 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.UnitOfWork;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * A filter running every API method in its own UnitOfWork.
+ */
+public class UnitOfWorkFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            unitOfWork.end();
+        }
+    }
+
+    @Override
+    public void destroy() {}
+}
@@ -0,0 +1,48 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.service.OrganizerDisplayNames;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for copying a new organizer display name to the conferences of the organizer,
+ * one batch per task; see OrganizerDisplayNames.
+ */
+@SuppressWarnings("serial")
+public class UpdateOrganizerDisplayNamesServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            UpdateOrganizerDisplayNamesServlet.class.getName());
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String websafeProfileKey = request.getParameter(OrganizerDisplayNames.PROFILE_KEY_PARAM);
+        Key<Profile> profileKey;
+        try {
+            profileKey = Key.create(websafeProfileKey);
+        } catch (RuntimeException e) {
+            // Retrying would not help.
+            LOG.warning("Invalid profile key: " + websafeProfileKey);
+            response.setStatus(204);
+            return;
+        }
+        String nextCursor = OrganizerDisplayNames.updateBatch(profileKey,
+                request.getParameter(OrganizerDisplayNames.CURSOR_PARAM),
+                OrganizerDisplayNames.BATCH_SIZE);
+        if (nextCursor != null) {
+            OrganizerDisplayNames.schedule(profileKey, nextCursor);
+        } else {
+            LOG.info("Organizer display names of " + profileKey + " updated");
+        }
+        response.setStatus(204);
+    }
+}
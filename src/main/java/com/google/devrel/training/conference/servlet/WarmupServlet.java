@@ -0,0 +1,25 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.ConferenceIndex;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for the warmup requests App Engine sends to new instances before they serve
+ * traffic. It builds the in-instance ConferenceIndex, so no user query waits for it.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ConferenceIndex.rebuild();
+        response.setStatus(204);
+    }
+}
@@ -1,24 +1,23 @@
 package com.google.devrel.training.conference.spi;
 
-import static com.google.devrel.training.conference.service.OfyService.factory;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
 import com.google.api.server.spi.response.UnauthorizedException;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.devrel.training.conference.domain.Announcement;
+import com.google.devrel.training.conference.domain.ConferenceCard;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
 import com.googlecode.objectify.NotFoundException;
-import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 import com.google.appengine.api.users.User;
 import com.google.devrel.training.conference.Constants;
@@ -27,12 +26,29 @@ import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.repository.ConferenceRepository;
+import com.google.devrel.training.conference.repository.RegistrationRepository;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.EntityTags;
+import com.google.devrel.training.conference.service.IdempotencyKeys;
+import com.google.devrel.training.conference.service.QueryPlan;
+import com.google.devrel.training.conference.service.QueryPlanner;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.UnitOfWork;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.LoadType;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Defines conference APIs.
@@ -41,6 +57,11 @@ import java.util.List;
         Constants.WEB_CLIENT_ID, Constants.API_EXPLORER_CLIENT_ID }, description = "API for the Conference Central Backend application.")
 public class ConferenceApi {
 
+    /**
+     * The message of a registration that gave up on contention.
+     */
+    private static final String TRY_AGAIN = "Too many concurrent registrations, try again";
+
     /*
      * Get the display name from the user's email. For example, if the email is
      * lemoncake@example.com, then the display name becomes "lemoncake."
@@ -49,6 +70,99 @@ public class ConferenceApi {
         return email == null ? null : email.substring(0, email.indexOf("@"));
     }
 
+    /**
+     * Prepares conferences to be returned to the client: sets the current seats available
+     * and the organizer display names, each with batch loads over all of them.
+     *
+     * @param conferences Conferences about to be returned to the client.
+     * @return the same conferences.
+     */
+    private static <T extends Collection<Conference>> T assemble(T conferences) {
+        return withOrganizerDisplayNames(
+                Repositories.registrations().withSeatsAvailable(conferences));
+    }
+
+    /**
+     * Resolves the organizer display names of the given conferences that do not store it
+     * with a single batch load of their distinct parent Profiles, so serializing the result
+     * doesn't load one Profile per conference.
+     *
+     * @param conferences Conferences about to be returned to the client.
+     * @return the same conferences, with their organizer display names set.
+     */
+    private static <T extends Collection<Conference>> T withOrganizerDisplayNames(T conferences) {
+        Set<Key<Profile>> profileKeys = new HashSet<>();
+        for (Conference conference : conferences) {
+            if (!conference.hasOrganizerDisplayName()) {
+                profileKeys.add(conference.getProfileKey());
+            }
+        }
+        if (profileKeys.isEmpty()) {
+            return conferences;
+        }
+        Map<Key<Profile>, Profile> organizers = Repositories.profiles().get(profileKeys);
+        for (Conference conference : conferences) {
+            if (conference.hasOrganizerDisplayName()) {
+                continue;
+            }
+            Profile organizer = organizers.get(conference.getProfileKey());
+            conference.setOrganizerDisplayName(organizer == null
+                    ? conference.getOrganizerUserId() : organizer.getDisplayName());
+        }
+        return conferences;
+    }
+
+    /**
+     * Prepares conference cards to be returned to the client as assemble() prepares
+     * conferences, resolving the organizer display names with a batch load of their Profiles.
+     *
+     * @param cards Cards about to be returned to the client.
+     * @return the same cards.
+     */
+    private static <T extends Collection<ConferenceCard>> T assembleCards(T cards) {
+        Repositories.registrations().cardsWithSeatsAvailable(cards);
+        Set<Key<Profile>> profileKeys = new HashSet<>();
+        for (ConferenceCard card : cards) {
+            if (!card.hasOrganizerDisplayName()) {
+                profileKeys.add(card.getProfileKey());
+            }
+        }
+        if (profileKeys.isEmpty()) {
+            return cards;
+        }
+        Map<Key<Profile>, Profile> organizers = Repositories.profiles().get(profileKeys);
+        for (ConferenceCard card : cards) {
+            if (card.hasOrganizerDisplayName()) {
+                continue;
+            }
+            Profile organizer = organizers.get(card.getProfileKey());
+            card.setOrganizerDisplayName(organizer == null
+                    ? card.getProfileKey().getName() : organizer.getDisplayName());
+        }
+        return cards;
+    }
+
+    /**
+     * Returns the result an earlier request with the idempotency key of the current request
+     * got, or claims the key for the current request.
+     *
+     * @param profileKey The key of the caller's Profile.
+     * @param method The name of the API method.
+     * @return the result, or null when the method has to run.
+     * @throws BadRequestException when the idempotency key is too long.
+     * @throws ConflictException when a request with the same key is still running.
+     */
+    private static String replay(Key<Profile> profileKey, String method)
+            throws BadRequestException, ConflictException {
+        try {
+            return IdempotencyKeys.replay(profileKey, method);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        } catch (ConcurrentModificationException e) {
+            throw new ConflictException(e.getMessage());
+        }
+    }
+
     /**
      * Creates or updates a Profile object associated with the given user
      * object.
@@ -110,13 +224,31 @@ public class ConferenceApi {
         Profile currentProfile = getProfile(user);
         Profile profile = null;
         if (currentProfile != null) {
-            profile = currentProfile;
-            profile.update(displayName, teeShirtSize);
+            // What the form leaves out stays unchanged, and an unchanged Profile isn't
+            // written.
+            final Key<Profile> profileKey = Key.create(currentProfile);
+            final String formDisplayName = form.getDisplayName();
+            final TeeShirtSize updatedTeeShirtSize = formTeeShirtSize;
+            profile = Transactions.run("saveProfile", new Work<Profile>() {
+                @Override
+                public Profile run() {
+                    Profile profile = Repositories.profiles().get(profileKey);
+                    String oldDisplayName = profile.getDisplayName();
+                    profile.update(formDisplayName, updatedTeeShirtSize);
+                    if (!Objects.equals(oldDisplayName, profile.getDisplayName())) {
+                        // The conferences of the user store the display name; their update
+                        // is scheduled in the transaction writing it.
+                        Repositories.conferences().organizerRenamed(profileKey);
+                    }
+                    return profile;
+                }
+            });
         } else {
             profile = new Profile(userId, displayName, mainEmail, teeShirtSize);
             profile.save();
+            UnitOfWork.flush();
         }
-        
+
         // Return the profile
         return profile;
     }
@@ -141,21 +273,32 @@ public class ConferenceApi {
         // load the Profile Entity
         String userId = user.getUserId(); // TODO
         Key<Profile> key = Key.create(Profile.class, userId); // TODO
-        Profile profile = (Profile) ofy().load().key(key).now(); // TODO load the Profile entity
+        if (EntityTags.notModified(key)) {
+            // Answered with a 304 by ConditionalGetFilter.
+            return null;
+        }
+        Profile profile = Repositories.profiles().get(key);
+        if (profile != null) {
+            EntityTags.served(key, profile.getETag());
+        }
         return profile;
     }
     
     /**
      * Creates a new Conference object and stores it to the datastore.
      *
+     * A retry with the idempotency key of an earlier request gets the conference that
+     * request created.
+     *
      * @param user A user who invokes this method, null when the user is not signed in.
      * @param conferenceForm A ConferenceForm object representing user's inputs.
      * @return A newly created Conference Object.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws ConflictException when a request with the same idempotency key is running.
      */
     @ApiMethod(name = "createConference", path = "conference", httpMethod = HttpMethod.POST)
     public Conference createConference(final User user, final ConferenceForm conferenceForm)
-        throws UnauthorizedException {
+        throws UnauthorizedException, BadRequestException, ConflictException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
@@ -167,53 +310,100 @@ public class ConferenceApi {
         // TODO (Lesson 4)
         // Get the key for the User's Profile
         Key<Profile> profileKey = Key.create(Profile.class, userId);
+        String created = replay(profileKey, "createConference");
+        if (created != null) {
+            return Repositories.conferences().get(Key.<Conference>create(created));
+        }
 
         // TODO (Lesson 4)
         // Allocate a key for the conference -- let App Engine allocate the ID
         // Don't forget to include the parent Profile in the allocated ID
-        final Key<Conference> conferenceKey = factory().allocateId(profileKey, Conference.class);
+        Key<Conference> conferenceKey = Repositories.conferences().allocateKey(profileKey);
 
         // TODO (Lesson 4)
         // Get the Conference Id from the Key
-        final long conferenceId = conferenceKey.getId();
+        long conferenceId = conferenceKey.getId();
 
 
         // TODO (Lesson 4)
         // Get the existing Profile entity for the current user if there is one
         // Otherwise create a new Profile entity with default values
-        final Profile profile = getProfile(user);
-
-        Conference conference = ofy().transact(new Work<Conference>() {
-           public Conference run() {
-               // TODO (Lesson 4)
-               // Create a new Conference Entity, specifying the user's Profile entity
-               // as the parent of the conference
-               Conference conference = new Conference(conferenceId, userId, conferenceForm);
-               // TODO (Lesson 4)
-               // Save Conference and Profile Entities
-               conference.save();
-               profile.save();
-
-               // Add to queue
-               Queue queue = QueueFactory.getDefaultQueue();
-               queue.add(ofy().getTransaction(),
-                       TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
-                        .param("email", profile.getMainEmail())
-                        .param("conferenceInfo", conference.toString()));
-
-               return conference;
-           }
-        });
+        Profile profile = getProfile(user);
+        String organizerDisplayName = profile != null ? profile.getDisplayName()
+                : extractDefaultDisplayNameFromEmail(user.getEmail());
+
+        // TODO (Lesson 4)
+        // Create a new Conference Entity, specifying the user's Profile entity
+        // as the parent of the conference
+        Conference conference = new Conference(conferenceId, userId, conferenceForm);
+        conference.setOrganizerDisplayName(organizerDisplayName);
+        // TODO (Lesson 4)
+        // Save Conference and Profile Entities; an existing Profile is unchanged.
+        Repositories.conferences().create(conference, profile != null ? null
+                : new Profile(userId, organizerDisplayName, user.getEmail(),
+                        TeeShirtSize.NOT_SPECIFIED));
+        IdempotencyKeys.succeeded(conference.getWebsafeKey());
         return conference;
     }
     
+    /**
+     * Queries one page of conferences matching the given form.
+     *
+     * @param form A ConferenceQueryForm holding the filters, the page size and the cursor.
+     * @return the conferences in the page, with a token for the next page if there may be one.
+     * @throws BadRequestException when the filters or the page token are invalid.
+     */
     @ApiMethod(name = "queryConferences", path = "queryConferences", httpMethod = HttpMethod.POST)
-    public List<Conference> queryConferences(ConferenceQueryForm form) {
-        //Query q = ofy().load().type(Conference.class).order("name");
-        //return q.list();
-        return form.getQuery().list();
+    public CollectionResponse<Conference> queryConferences(ConferenceQueryForm form)
+            throws BadRequestException {
+        ConferenceRepository.Page page;
+        try {
+            page = Repositories.conferences().query(form);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return CollectionResponse.<Conference>builder()
+                .setItems(assemble(page.getConferences()))
+                .setNextPageToken(page.getNextPageToken())
+                .build();
     }
-    
+
+    /**
+     * Queries one page of the cards of the conferences matching the given form: the card
+     * view of queryConferences, with only what the conference lists show. The cards are
+     * read with a projection query when a projection index serves the query.
+     *
+     * @param form A ConferenceQueryForm holding the filters, the page size and the cursor of
+     *             the previous card page.
+     * @return the cards in the page, with a token for the next page if there may be one.
+     * @throws BadRequestException when the filters or the page token are invalid.
+     */
+    @ApiMethod(name = "queryConferenceCards", path = "queryConferenceCards", httpMethod = HttpMethod.POST)
+    public CollectionResponse<ConferenceCard> queryConferenceCards(ConferenceQueryForm form)
+            throws BadRequestException {
+        ConferenceRepository.CardPage page;
+        try {
+            page = Repositories.conferences().queryCards(form);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return CollectionResponse.<ConferenceCard>builder()
+                .setItems(assembleCards(page.getCards()))
+                .setNextPageToken(page.getNextPageToken())
+                .build();
+    }
+
+    /**
+     * Returns how queryConferences would run a query, without running it.
+     *
+     * @param form A ConferenceQueryForm holding the filters.
+     * @return the plan of the query.
+     */
+    @ApiMethod(name = "explainQueryConferences", path = "explainQueryConferences", httpMethod = HttpMethod.POST)
+    public QueryPlan explainQueryConferences(ConferenceQueryForm form) {
+        return QueryPlanner.plan(form);
+    }
+
     @ApiMethod(name = "queryConferencesCreated", path = "queryConferencesCreated", httpMethod = HttpMethod.POST)
     public List<Conference> queryConferencesCreated(User user) throws UnauthorizedException {
         if (user == null) {
@@ -221,11 +411,33 @@ public class ConferenceApi {
         }
         // Get the userId of the logged in User
         String userId = user.getUserId();
-        
-        Query q = ofy().load().type(Conference.class).ancestor(Key.create(Profile.class, userId)).order("name");
-        return q.list();
+
+        return assemble(Repositories.conferences()
+                .listByOrganizer(Key.create(Profile.class, userId)));
     }
     
+    /**
+     * Returns the cards of the conferences the user created: the card view of
+     * queryConferencesCreated.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @return the cards, by name.
+     * @throws UnauthorizedException when the User object is null.
+     */
+    @ApiMethod(name = "queryConferenceCardsCreated", path = "queryConferenceCardsCreated", httpMethod = HttpMethod.POST)
+    public List<ConferenceCard> queryConferenceCardsCreated(User user)
+            throws UnauthorizedException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        List<ConferenceCard> cards = new ArrayList<>();
+        for (Conference conference : Repositories.conferences()
+                .listByOrganizer(Key.create(Profile.class, user.getUserId()))) {
+            cards.add(ConferenceCard.of(conference));
+        }
+        return assembleCards(cards);
+    }
+
     @ApiMethod(name = "queryConferencesByFilter", path = "queryConferencesByFilter", httpMethod = HttpMethod.POST)
     public List<Conference> queryConferencesByFilter(User user) throws UnauthorizedException {
         if (user == null) {
@@ -329,105 +541,199 @@ public class ConferenceApi {
             @Named("websafeConferenceKey") final String websafeConferenceKey)
             throws NotFoundException {
         Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-        Conference conference = ofy().load().key(conferenceKey).now();
+        if (EntityTags.notModified(conferenceKey)) {
+            // Answered with a 304 by ConditionalGetFilter.
+            return null;
+        }
+        Conference conference = Repositories.conferences().get(conferenceKey);
         if (conference == null) {
             throw new NotFoundException(conferenceKey);
         }
+        assemble(Collections.singletonList(conference));
+        // A display name resolved from the Profile changes without invalidating the ETag.
+        EntityTags.served(conferenceKey, conference.getETag(),
+                conference.storesOrganizerDisplayName());
         return conference;
     }
 
+    /**
+     * The most conferences getConferences returns in one call.
+     */
+    public static final int MAX_CONFERENCES_PER_GET = 100;
+
+    /**
+     * A conference looked up by getConferences: the conference, or null with found false
+     * when the key is malformed or there is no such conference.
+     */
+    public static class ConferenceLookup {
+
+        private final String websafeConferenceKey;
+        private final Conference conference;
+
+        public ConferenceLookup(String websafeConferenceKey, Conference conference) {
+            this.websafeConferenceKey = websafeConferenceKey;
+            this.conference = conference;
+        }
+
+        public String getWebsafeConferenceKey() {
+            return websafeConferenceKey;
+        }
+
+        public Conference getConference() {
+            return conference;
+        }
+
+        public boolean isFound() {
+            return conference != null;
+        }
+    }
+
+    /**
+     * Returns the Conferences with the given keys, loaded in one batch, so that a client
+     * showing several conferences makes one request rather than one per conference.
+     *
+     * @param websafeConferenceKeys The String representations of the Conference Keys.
+     * @return a lookup per key, in the order of the keys, with the conference or not found.
+     * @throws BadRequestException when there are more than MAX_CONFERENCES_PER_GET keys.
+     */
+    @ApiMethod(name = "getConferences", path = "conferences", httpMethod = HttpMethod.GET)
+    public List<ConferenceLookup> getConferences(
+            @Named("websafeConferenceKeys") final List<String> websafeConferenceKeys)
+            throws BadRequestException {
+        if (websafeConferenceKeys == null) {
+            return Collections.emptyList();
+        }
+        if (websafeConferenceKeys.size() > MAX_CONFERENCES_PER_GET) {
+            throw new BadRequestException("At most " + MAX_CONFERENCES_PER_GET
+                    + " conferences can be requested at once");
+        }
+        String kind = Key.getKind(Conference.class);
+        List<Key<Conference>> keys = new ArrayList<>(websafeConferenceKeys.size());
+        Set<Key<Conference>> distinctKeys = new LinkedHashSet<>();
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            Key<Conference> key = null;
+            try {
+                key = Key.create(websafeConferenceKey);
+            } catch (RuntimeException e) {
+                // Malformed, so not found.
+            }
+            if (key != null && !kind.equals(key.getKind())) {
+                key = null;
+            }
+            keys.add(key);
+            if (key != null) {
+                distinctKeys.add(key);
+            }
+        }
+        Map<Key<Conference>, Conference> conferences =
+                Repositories.conferences().get(distinctKeys);
+        assemble(conferences.values());
+        List<ConferenceLookup> lookups = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Key<Conference> key = keys.get(i);
+            lookups.add(new ConferenceLookup(websafeConferenceKeys.get(i),
+                    key == null ? null : conferences.get(key)));
+        }
+        return lookups;
+    }
+
     /**
      * Register to attend the specified Conference.
      *
+     * A retry with the idempotency key of an earlier request that registered succeeds
+     * without registering again.
+     *
      * @param user An user who invokes this method, null when the user is not signed in.
      * @param websafeConferenceKey The String representation of the Conference Key.
      * @return Boolean true when success, otherwise false
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ServiceUnavailableException when concurrent registrations kept conflicting
+     *         with this one, which the client may retry.
     */
     @ApiMethod(name = "registerForConference", path = "conference/{websafeConferenceKey}/registration", httpMethod = HttpMethod.POST)
     public WrappedBoolean registerForConference(final User user, @Named("websafeConferenceKey") final String websafeConferenceKey)
-            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            BadRequestException, ServiceUnavailableException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
 
-        // Get the userId
-        final String userId = user.getUserId();
+        // Will throw ForbiddenException if the key cannot be created
+        final Key<Conference> conferenceKey;
+        try {
+            conferenceKey = Key.create(websafeConferenceKey);
+        } catch (IllegalArgumentException e) {
+            throw new ForbiddenException("Unknown exception");
+        }
+        Key<Profile> profileKey = Key.create(Profile.class, user.getUserId());
+        String registered = replay(profileKey, "registerForConference:" + websafeConferenceKey);
+        if (registered != null) {
+            return new WrappedBoolean(true, registered);
+        }
 
-        // TODO
-        // Start transaction
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
-            @Override
-            public WrappedBoolean run() {
-                try {
-                    // TODO
-                    // Get the conference key -- you can get it from websafeConferenceKey
-                    // Will throw ForbiddenException if the key cannot be created
-                    Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-
-                    // TODO
-                    // Get the Conference entity from the datastore
-                    Conference conference = (Conference) ofy().load().key(conferenceKey).now();
-
-                    // 404 when there is no Conference with the given conferenceId.
-                    if (conference == null) {
-                        return new WrappedBoolean (false,"No Conference found with key: " + websafeConferenceKey);
-                    }
+        // 404 when there is no Conference with the given conferenceId.
+        if (Repositories.conferences().get(conferenceKey) == null) {
+            throw new NotFoundException(conferenceKey);
+        }
 
-                    // TODO
-                    // Get the user's Profile entity
-                    Profile profile = getProfile(user);
-
-                    // Has the user already registered to attend this conference?
-                    if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                        return new WrappedBoolean (false, "Already registered");
-                    } else if (conference.getSeatsAvailable() <= 0) {
-                        return new WrappedBoolean (false, "No seats available");
-                    } else {
-                        // All looks good, go ahead and book the seat
-                        // TODO
-                        // Add the websafeConferenceKey to the profile's
-                        // conferencesToAttend property
-                        profile.addToConferenceKeysToAttend(websafeConferenceKey);
-
-                        // TODO
-                        // Decrease the conference's seatsAvailable
-                        // You can use the bookSeats() method on Conference
-                        conference.bookSeats(1);
-
-                        // TODO
-                        // Save the Conference and Profile entities
-                        conference.save();
-                        profile.save();
-
-                        // We are booked!
-                        return new WrappedBoolean(true, "Registration successful");
-                    }
-                }
-                catch (Exception e) {
-                    return new WrappedBoolean(false, "Unknown exception");
-                }
-            }
-        });
+        // The user must have a Profile entity. Profiles are never deleted, so this needs no
+        // transaction.
+        if (Repositories.profiles().get(profileKey) == null) {
+            throw new ForbiddenException("Unknown exception");
+        }
 
-        // if result is false
-        if (!result.getResult()) {
-            if (result.getReason().contains("No Conference found with key")) {
-                throw new NotFoundException (Key.create(websafeConferenceKey));
-            }
-            else if (result.getReason() == "Already registered") {
+        switch (Repositories.registrations().register(profileKey, conferenceKey)) {
+            case REGISTERED:
+                IdempotencyKeys.succeeded("Registration successful");
+                return new WrappedBoolean(true, "Registration successful");
+            case ALREADY_REGISTERED:
                 throw new ConflictException("You have already registered");
-            }
-            else if (result.getReason() == "No seats available") {
+            case NO_SEATS:
                 throw new ConflictException("There are no seats available");
-            }
-            else {
+            case CONTENDED:
+                throw new ServiceUnavailableException(TRY_AGAIN);
+            default:
                 throw new ForbiddenException("Unknown exception");
-            }
         }
-        return result;
+    }
+
+    /**
+     * Returns whether the user is registered to attend the specified Conference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return Boolean true when the user is registered, otherwise false.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when websafeConferenceKey is not a key.
+     */
+    @ApiMethod(name = "isRegisteredForConference", path = "conference/{websafeConferenceKey}/registration", httpMethod = HttpMethod.GET)
+    public WrappedBoolean isRegisteredForConference(final User user, @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws UnauthorizedException, BadRequestException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        return new WrappedBoolean(Repositories.registrations().isRegistered(
+                Key.create(Profile.class, user.getUserId()),
+                conferenceKey(websafeConferenceKey)));
+    }
+
+    /**
+     * Makes the key of a Conference from its websafe string.
+     *
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return the key.
+     * @throws BadRequestException when websafeConferenceKey is not a key.
+     */
+    private static Key<Conference> conferenceKey(final String websafeConferenceKey)
+            throws BadRequestException {
+        try {
+            return Key.create(websafeConferenceKey);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid websafeConferenceKey");
+        }
     }
 
     /**
@@ -448,28 +754,17 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        // TODO
         // Get the Profile entity for the user
         Profile profile = getProfile(user);
         if (profile == null) {
             throw new NotFoundException(null);
         }
 
-        // TODO
-        // Get the value of the profile's conferenceKeysToAttend property
-        List<String> keyStringsToAttend = profile.getConferenceKeysToAttend();
-
-        // TODO
-        // Iterate over keyStringsToAttend,
-        // and return a Collection of the
-        // Conference entities that the user has registered to atend
-        List<Key<Conference>> keys = new ArrayList<>();
-        for (String k : keyStringsToAttend) {
-            Key<Conference> key = Key.create(k);
-            keys.add(key);
-        }
-        Collection<Conference> collectionsToAttend = (Collection<Conference>) ofy().load().keys(keys).values();
-        return collectionsToAttend;
+        List<Key<Conference>> keys = Repositories.registrations()
+                .conferencesToAttend(Key.create(profile));
+        Collection<Conference> collectionsToAttend =
+                Repositories.conferences().get(keys).values();
+        return assemble(collectionsToAttend);
     }
 
     /**
@@ -480,47 +775,34 @@ public class ConferenceApi {
      * @return Boolean true when success, otherwise false
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws BadRequestException when websafeConferenceKey is not a key.
+     * @throws ServiceUnavailableException when concurrent registrations kept conflicting
+     *         with this one, which the client may retry.
      */
     @ApiMethod(name = "unregisterFromConference", path = "conference/{websafeConferenceKey}/unregistration", httpMethod = HttpMethod.POST)
     public WrappedBoolean unregisterFromConference(final User user, @Named("websafeConferenceKey") final String websafeConferenceKey)
-            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            BadRequestException, ServiceUnavailableException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
 
-        // Start transaction
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
-               @Override
-               public WrappedBoolean run() {
-                   try {
-                       // Get the Profile entity for the user
-                       Profile profile = getProfile(user);
-                       if (profile == null) {
-                           throw new NotFoundException(null);
-                       }
-
-                       Key<Conference> key = Key.create(websafeConferenceKey);
-                       if (!profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                           throw new NotFoundException(key);
-                       }
-
-                       profile.removeConferenceToAttend(websafeConferenceKey);
-                       Conference conference = (Conference) ofy().load().key(key).now();
-                       conference.giveBackSeats(1);
-
-                       profile.save();
-                       conference.save();
-
-                       // We are booked!
-                       return new WrappedBoolean(true, "Registration successful");
-                   } catch (Exception e) {
-                       return new WrappedBoolean(false, "Unknown exception");
-                   }
-               }
-           }
-        );
-        return result;
+        Key<Conference> conferenceKey = conferenceKey(websafeConferenceKey);
+        // 404 when there is no Conference with the given conferenceId.
+        if (Repositories.conferences().get(conferenceKey) == null) {
+            throw new NotFoundException(conferenceKey);
+        }
+
+        RegistrationRepository.Outcome outcome = Repositories.registrations().unregister(
+                Key.create(Profile.class, user.getUserId()), conferenceKey);
+        if (outcome == RegistrationRepository.Outcome.UNREGISTERED) {
+            return new WrappedBoolean(true, "Unregistration successful");
+        }
+        if (outcome == RegistrationRepository.Outcome.CONTENDED) {
+            throw new ServiceUnavailableException(TRY_AGAIN);
+        }
+        return new WrappedBoolean(false, "Unknown exception");
     }
 
     /**
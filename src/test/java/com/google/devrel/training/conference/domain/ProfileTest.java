@@ -1,10 +1,12 @@
 package com.google.devrel.training.conference.domain;
 
+import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.UnitOfWork;
 import com.googlecode.objectify.Key;
 
 import org.junit.After;
@@ -41,6 +43,7 @@ public class ProfileTest {
 
     @After
     public void tearDown() throws Exception {
+        ofy().clear();
         helper.tearDown();
     }
 
@@ -63,6 +66,28 @@ public class ProfileTest {
         assertEquals(newTeeShirtSize, profile.getTeeShirtSize());
     }
 
+    @Test
+    public void testSavesOnlyChanges() throws Exception {
+        assertTrue(profile.isDirty());
+        profile.save();
+        assertFalse(profile.isDirty());
+        ofy().clear();
+        Key<Profile> key = Key.create(profile);
+        profile = ofy().load().key(key).now();
+        assertFalse(profile.isDirty());
+
+        long skipped = UnitOfWork.getSkippedWriteCount();
+        profile.update(null, TEE_SHIRT_SIZE);
+        profile.update(DISPLAY_NAME, null);
+        assertEquals(skipped + 2, UnitOfWork.getSkippedWriteCount());
+
+        // Only the tee shirt size changes.
+        profile.update(DISPLAY_NAME, TeeShirtSize.XL);
+        assertEquals(skipped + 2, UnitOfWork.getSkippedWriteCount());
+        ofy().clear();
+        assertEquals(TeeShirtSize.XL, ofy().load().key(key).now().getTeeShirtSize());
+    }
+
     /*
     @Test
     public void testListValues() throws Exception {
@@ -0,0 +1,184 @@
+package com.google.devrel.training.conference.form;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for ConferenceQueryForm.
+ */
+public class ConferenceQueryFormTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final String CITY = "London";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        for (int i = 0; i < 5; i++) {
+            new Conference(i + 1, USER_ID, new ConferenceForm(
+                    "Conference " + i, null, null, CITY, null, null, 10 * (i + 1))).save();
+        }
+        new Conference(6, USER_ID, new ConferenceForm(
+                "Elsewhere", null, null, "Paris", null, null, 100)).save();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testPageSizeDefaultsAndBounds() throws Exception {
+        assertEquals(Constants.DEFAULT_QUERY_PAGE_SIZE, new ConferenceQueryForm().getPageSize());
+        assertEquals(Constants.MAX_QUERY_PAGE_SIZE,
+                new ConferenceQueryForm().pageSize(100000).getPageSize());
+        assertEquals(7, new ConferenceQueryForm().pageSize(7).getPageSize());
+    }
+
+    @Test
+    public void testPagesThroughResultsWithCursor() throws Exception {
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ConferenceQueryForm form = new ConferenceQueryForm()
+                    .filter(new Filter(Field.CITY, Operator.EQ, CITY))
+                    .pageSize(2)
+                    .cursor(cursor);
+            QueryResultIterator<Conference> iterator = form.getQuery().iterator();
+            int pageCount = 0;
+            while (iterator.hasNext()) {
+                names.add(iterator.next().getName());
+                pageCount++;
+            }
+            assertTrue(pageCount <= 2);
+            cursor = pageCount < 2 ? null
+                    : form.pageToken(View.CONFERENCES, iterator.getCursor().toWebSafeString());
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(5, names.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Conference " + i, names.get(i));
+        }
+    }
+
+    @Test
+    public void testNotEqualFiltersAreNotPagedByTheDatastore() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.NE, CITY))
+                .pageSize(2);
+        assertFalse(form.isDatastoreQuery());
+        try {
+            form.getQuery();
+            fail("paged a not-equal filter without a cursor");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testPageTokensAreReissuedForAnotherView() throws Exception {
+        ConferenceQueryForm cards = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY))
+                .pageSize(2);
+        cards.cursor(cards.pageToken(View.CARDS, "offset:2"));
+        ConferenceQueryForm conferences = cards.inView(View.CARDS, View.CONFERENCES);
+        assertEquals(cards.getFilters(), conferences.getFilters());
+        assertEquals(2, conferences.getPageSize());
+        assertEquals(2, conferences.startOffset(View.CONFERENCES, "offset:"));
+        String token = conferences.pageToken(View.CONFERENCES, "offset:4");
+        assertEquals(cards.pageToken(View.CARDS, "offset:4"),
+                cards.reissuePageToken(token, View.CONFERENCES, View.CARDS));
+        assertNull(cards.reissuePageToken(null, View.CONFERENCES, View.CARDS));
+        try {
+            cards.reissuePageToken(cards.getCursor(), View.CONFERENCES, View.CARDS);
+            fail("re-issued a card page token as one of conferences");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testPageTokensAreBoundToTheirQuery() throws Exception {
+        ConferenceQueryForm london = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY));
+        String token = london.pageToken(View.CONFERENCES, "offset:2");
+        assertEquals("offset:2", new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY))
+                .cursor(token)
+                .position(View.CONFERENCES));
+        assertEquals(2, london.cursor(token).startOffset(View.CONFERENCES, "offset:"));
+
+        String[] invalid = {
+                // Another query, another view, no hash, not a cursor, not an offset.
+                new ConferenceQueryForm().pageToken(View.CONFERENCES, "offset:2"),
+                london.pageToken(View.CARDS, "offset:2"),
+                "offset:2",
+                london.pageToken(View.CONFERENCES, "%%%"),
+                london.pageToken(View.CONFERENCES, "offset:-1")};
+        for (String cursor : invalid) {
+            london.cursor(cursor);
+            try {
+                london.startCursor(View.CONFERENCES);
+                fail("accepted " + cursor);
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                london.startOffset(View.CONFERENCES, "offset:");
+                fail("accepted " + cursor);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testConferenceWithoutCityOrTopicsMatchesNoFilterOnThem() throws Exception {
+        // Conferences stored before city and topics had defaults have neither.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(
+                Key.create(Profile.class, USER_ID).getRaw().getChild("Conference", 6L));
+        entity.removeProperty("city");
+        entity.removeProperty("topics");
+        datastore.put(entity);
+        ofy().clear();
+        Conference conference = ofy().load()
+                .key(Key.create(Key.create(Profile.class, USER_ID), Conference.class, 6L))
+                .now();
+        assertNull(conference.getCity());
+        assertNull(conference.getTopics());
+
+        for (Operator operator : Operator.values()) {
+            assertFalse(new Filter(Field.CITY, operator, CITY).matches(conference));
+            assertFalse(new Filter(Field.TOPIC, operator, "Web").matches(conference));
+        }
+        assertTrue(new Filter(Field.MAX_ATTENDEES, Operator.EQ, "100").matches(conference));
+    }
+}
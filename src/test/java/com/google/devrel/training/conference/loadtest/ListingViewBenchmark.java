@@ -0,0 +1,409 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.ConfiguredObjectMapper;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.repackaged.org.codehaus.jackson.map.ObjectWriter;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.LatencyHistogram;
+import com.google.devrel.training.conference.service.QueryStrategies;
+import com.google.devrel.training.conference.service.QueryStrategies.StrategyMetrics;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the full and the card views of the conference list on a SyntheticDataset:
+ * the bytes of the JSON responses as Cloud Endpoints serializes them, their latency,
+ * serialization included, their datastore calls, and what their queries read per row as
+ * counted by QueryStrategies: entities, a read operation each, and keys or projected index
+ * rows, a small operation each.
+ *
+ * The listings are those of the list page: all conferences, by city and by topic, each
+ * read on for a few pages. Every page runs as a request of its own, with cold caches, as
+ * after EntityCache, memcache and the session lost everything, or with warm caches, as
+ * when the same pages were just listed.
+ */
+public class ListingViewBenchmark {
+
+    private static final String[] DATASTORE_CALLS = {
+            "Get", "Put", "Delete", "RunQuery", "Next", "BeginTransaction", "Commit" };
+
+    /**
+     * The views of the conference list.
+     */
+    public enum View {
+        FULL,
+        CARD
+    }
+
+    /**
+     * The state of the caches when a page is listed.
+     */
+    public enum Caches {
+        COLD,
+        WARM
+    }
+
+    /**
+     * Parameters of a benchmark. Every parameter can be overridden with a "listing." system
+     * property, e.g. -Dlisting.conferences=10000 -Dlisting.rounds=50.
+     */
+    public static class Config {
+
+        private int conferences = 500;
+
+        private int profilesPerConference = 2;
+
+        private int pageSize = 20;
+
+        private int pages = 3;
+
+        private int rounds = 20;
+
+        private long seed = 42;
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.conferences = Integer.getInteger("listing.conferences", config.conferences);
+            config.profilesPerConference = Integer.getInteger("listing.profilesPerConference",
+                    config.profilesPerConference);
+            config.pageSize = Integer.getInteger("listing.pageSize", config.pageSize);
+            config.pages = Integer.getInteger("listing.pages", config.pages);
+            config.rounds = Integer.getInteger("listing.rounds", config.rounds);
+            config.seed = Long.getLong("listing.seed", config.seed);
+            return config;
+        }
+
+        public Config conferences(int conferences) {
+            this.conferences = conferences;
+            return this;
+        }
+
+        public Config profilesPerConference(int profilesPerConference) {
+            this.profilesPerConference = profilesPerConference;
+            return this;
+        }
+
+        public Config pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Sets the most pages read of each listing.
+         */
+        public Config pages(int pages) {
+            this.pages = pages;
+            return this;
+        }
+
+        /**
+         * Sets the number of listings per view and state of the caches.
+         */
+        public Config rounds(int rounds) {
+            this.rounds = rounds;
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d conferences, %d profiles per conference, %d rounds of "
+                    + "up to %d pages of %d", conferences, profilesPerConference, rounds, pages,
+                    pageSize);
+        }
+    }
+
+    /**
+     * The measurements of the pages of a view with the caches in one state.
+     */
+    public static class Measurement {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private long bytes;
+
+        private long rows;
+
+        private long datastoreCalls;
+
+        private long entitiesRead;
+
+        private long smallOperations;
+
+        private int errors;
+
+        public long getPages() {
+            return latencies.getCount();
+        }
+
+        /**
+         * Returns the latency of a page at the given percentile, in milliseconds.
+         */
+        public double getLatencyMillis(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        public double getBytesPerPage() {
+            return getPages() == 0 ? 0 : (double) bytes / getPages();
+        }
+
+        public double getBytesPerRow() {
+            return rows == 0 ? 0 : (double) bytes / rows;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getDatastoreCallsPerPage() {
+            return getPages() == 0 ? 0 : (double) datastoreCalls / getPages();
+        }
+
+        /**
+         * Returns the number of entities the queries read per row returned.
+         */
+        public double getEntitiesReadPerRow() {
+            return rows == 0 ? 0 : (double) entitiesRead / rows;
+        }
+
+        /**
+         * Returns the number of keys and projected index rows the queries read per row
+         * returned.
+         */
+        public double getSmallOperationsPerRow() {
+            return rows == 0 ? 0 : (double) smallOperations / rows;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * The outcome of a benchmark.
+     */
+    public static class Report {
+
+        private final Config config;
+
+        private final Map<View, Map<Caches, Measurement>> measurements =
+                new EnumMap<>(View.class);
+
+        private SyntheticDataset dataset;
+
+        private Report(Config config) {
+            this.config = config;
+            for (View view : View.values()) {
+                Map<Caches, Measurement> byCaches = new EnumMap<>(Caches.class);
+                for (Caches caches : Caches.values()) {
+                    byCaches.put(caches, new Measurement());
+                }
+                measurements.put(view, byCaches);
+            }
+        }
+
+        public Measurement getMeasurement(View view, Caches caches) {
+            return measurements.get(view).get(caches);
+        }
+
+        /**
+         * Returns the size of a card page as a fraction of the size of a full page.
+         */
+        public double getBytesRatio(Caches caches) {
+            double full = getMeasurement(View.FULL, caches).getBytesPerPage();
+            return full == 0 ? 0 : getMeasurement(View.CARD, caches).getBytesPerPage() / full;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(config).append('\n').append(dataset).append('\n');
+            report.append(String.format("%-5s %-6s %7s %10s %9s %9s %9s %10s %10s %10s %7s%n",
+                    "view", "caches", "pages", "bytes/pg", "bytes/row", "p50 ms", "p99 ms",
+                    "calls/pg", "reads/row", "small/row", "errors"));
+            for (View view : View.values()) {
+                for (Caches caches : Caches.values()) {
+                    Measurement measurement = getMeasurement(view, caches);
+                    report.append(String.format("%-5s %-6s %7d %10.0f %9.0f %9.2f %9.2f %10.1f"
+                            + " %10.2f %10.2f %7d%n", view, caches, measurement.getPages(),
+                            measurement.getBytesPerPage(), measurement.getBytesPerRow(),
+                            measurement.getLatencyMillis(50), measurement.getLatencyMillis(99),
+                            measurement.getDatastoreCallsPerPage(),
+                            measurement.getEntitiesReadPerRow(),
+                            measurement.getSmallOperationsPerRow(), measurement.errors));
+                }
+            }
+            for (Caches caches : Caches.values()) {
+                report.append(String.format("card/full bytes with %s caches: %.2f%n",
+                        caches, getBytesRatio(caches)));
+            }
+            return report.toString();
+        }
+    }
+
+    private final Config config;
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    private final ObjectWriter writer = ConfiguredObjectMapper.builder().build().writer();
+
+    public ListingViewBenchmark(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the benchmark on local services of its own.
+     *
+     * @return the report.
+     */
+    public Report run() {
+        Report report = new Report(config);
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig()
+                        .setApplyAllHighRepJobPolicy(),
+                new LocalMemcacheServiceTestConfig());
+        helper.setUp();
+        EntityCache.clear();
+        ConferenceIndex.clear();
+        try {
+            report.dataset = new SyntheticDataset(new SyntheticDataset.Config()
+                    .conferences(config.conferences)
+                    .profiles(config.conferences * config.profilesPerConference)
+                    .seed(config.seed))
+                    .generate();
+            ApiCallCounter counter = ApiCallCounter.install();
+            try {
+                // Both views list the same queries, alternately so that neither runs on
+                // caches the other warmed.
+                Random random = new Random(config.seed);
+                for (int round = 0; round < config.rounds; round++) {
+                    long seed = random.nextLong();
+                    for (Caches caches : Caches.values()) {
+                        for (View view : View.values()) {
+                            list(report.getMeasurement(view, caches), counter, view, caches,
+                                    queryForm(new Random(seed)));
+                        }
+                    }
+                }
+            } finally {
+                counter.uninstall();
+            }
+        } finally {
+            ofy().clear();
+            EntityCache.clear();
+            ConferenceIndex.clear();
+            helper.tearDown();
+        }
+        return report;
+    }
+
+    /**
+     * Lists up to config.pages pages of a query with a view.
+     */
+    private void list(Measurement measurement, ApiCallCounter counter, View view,
+                      Caches caches, ConferenceQueryForm form) {
+        if (caches == Caches.WARM) {
+            // Lists the pages once to warm the caches.
+            list(new Measurement(), counter, view, Caches.COLD, form.cursor(null));
+        }
+        String cursor = null;
+        for (int page = 0; page < config.pages; page++) {
+            if (caches == Caches.COLD) {
+                EntityCache.clear();
+                MemcacheServiceFactory.getMemcacheService().clearAll();
+            }
+            ofy().clear();
+            counter.reset();
+            long entitiesRead = 0;
+            long smallOperations = 0;
+            for (StrategyMetrics metrics : QueryStrategies.getMetrics()) {
+                entitiesRead -= metrics.getEntitiesRead();
+                smallOperations -= metrics.getKeysRead();
+            }
+            UnitOfWork unitOfWork = UnitOfWork.begin();
+            long start = System.nanoTime();
+            try {
+                form.cursor(cursor);
+                Collection<?> items;
+                String json;
+                if (view == View.FULL) {
+                    CollectionResponse<Conference> response =
+                            conferenceApi.queryConferences(form);
+                    items = response.getItems();
+                    cursor = response.getNextPageToken();
+                    json = writer.writeValueAsString(response);
+                } else {
+                    CollectionResponse<ConferenceCard> response =
+                            conferenceApi.queryConferenceCards(form);
+                    items = response.getItems();
+                    cursor = response.getNextPageToken();
+                    json = writer.writeValueAsString(response);
+                }
+                measurement.bytes += json.getBytes(StandardCharsets.UTF_8).length;
+                measurement.rows += items.size();
+            } catch (IOException | BadRequestException | RuntimeException e) {
+                measurement.errors++;
+                cursor = null;
+            } finally {
+                unitOfWork.end();
+            }
+            measurement.latencies.record(System.nanoTime() - start);
+            for (String method : DATASTORE_CALLS) {
+                measurement.datastoreCalls += counter.count("datastore_v3", method);
+            }
+            for (StrategyMetrics metrics : QueryStrategies.getMetrics()) {
+                entitiesRead += metrics.getEntitiesRead();
+                smallOperations += metrics.getKeysRead();
+            }
+            measurement.entitiesRead += entitiesRead;
+            measurement.smallOperations += smallOperations;
+            if (cursor == null) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a query of the list page: all conferences, or those in a popular city or on a
+     * popular topic.
+     */
+    private ConferenceQueryForm queryForm(Random random) {
+        ConferenceQueryForm form = new ConferenceQueryForm().pageSize(config.pageSize);
+        switch (random.nextInt(3)) {
+            case 0:
+                return form;
+            case 1:
+                return form.filter(new Filter(Field.CITY, Operator.EQ,
+                        SyntheticDataset.CITIES[random.nextInt(5)]));
+            default:
+                return form.filter(new Filter(Field.TOPIC, Operator.EQ,
+                        SyntheticDataset.TOPICS[random.nextInt(5)]));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static org.junit.Assert.*;
+
+import com.google.devrel.training.conference.loadtest.ListingViewBenchmark.Caches;
+import com.google.devrel.training.conference.loadtest.ListingViewBenchmark.Measurement;
+import com.google.devrel.training.conference.loadtest.ListingViewBenchmark.View;
+
+import org.junit.Test;
+
+import java.util.logging.Logger;
+
+/**
+ * Runs ListingViewBenchmark on a small dataset. Run it bigger with, for example,
+ * mvn test -Dtest=ListingViewBenchmarkTest -Dlisting.conferences=10000 -Dlisting.rounds=50
+ */
+public class ListingViewBenchmarkTest {
+
+    private static final Logger LOG = Logger.getLogger(ListingViewBenchmarkTest.class.getName());
+
+    @Test
+    public void testListingViewBenchmark() throws Exception {
+        ListingViewBenchmark.Config config = System.getProperty("listing.conferences") != null
+                ? ListingViewBenchmark.Config.fromSystemProperties()
+                : new ListingViewBenchmark.Config()
+                        .conferences(60)
+                        .pageSize(10)
+                        .rounds(5);
+        ListingViewBenchmark.Report report = new ListingViewBenchmark(config).run();
+        LOG.info("Listing view benchmark\n" + report);
+
+        for (Caches caches : Caches.values()) {
+            Measurement full = report.getMeasurement(View.FULL, caches);
+            Measurement card = report.getMeasurement(View.CARD, caches);
+            assertEquals(0, full.getErrors());
+            assertEquals(0, card.getErrors());
+            // Both views list the same conferences, in as many pages.
+            assertTrue(full.getRows() > 0);
+            assertEquals(full.getRows(), card.getRows());
+            assertEquals(full.getPages(), card.getPages());
+            assertTrue(report.getBytesRatio(caches) < 0.8);
+        }
+        // Cold, a card page reads index rows rather than conferences.
+        Measurement full = report.getMeasurement(View.FULL, Caches.COLD);
+        Measurement card = report.getMeasurement(View.CARD, Caches.COLD);
+        assertEquals(1, full.getEntitiesReadPerRow(), 0.01);
+        assertEquals(0, card.getEntitiesReadPerRow(), 0);
+        assertEquals(1, card.getSmallOperationsPerRow(), 0.01);
+    }
+}
@@ -0,0 +1,504 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
+import com.google.appengine.api.users.User;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.Transactions.RetryPolicy;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A load generator for registrations, run against the local service stubs.
+ *
+ * Virtual users are split over the threads. On each operation a virtual user thinks, picks
+ * one of the hot conferences at random and registers for it, or unregisters from it when
+ * already registered. The caller sets up LocalServiceTestHelper with a high replication
+ * datastore before run() and tears it down afterwards.
+ */
+public class RegistrationLoadGenerator {
+
+    private static final String NO_SEATS = "There are no seats available";
+
+    /**
+     * Parameters of a load test. Defaults are small enough for a unit test; every parameter
+     * can be overridden with a "loadtest." system property, e.g. -Dloadtest.threads=32.
+     */
+    public static class Config {
+
+        private int conferences = 3;
+
+        private int seatsPerConference = 20;
+
+        private int users = 40;
+
+        private int threads = 8;
+
+        private int operationsPerUser = 4;
+
+        private long thinkTimeMillis = 0;
+
+        private long seed = 42;
+
+        private RetryPolicy retryPolicy = Transactions.getDefaultPolicy();
+
+        /**
+         * Reads the "loadtest." system properties; -Dloadtest.retries=immediate runs the
+         * transactions with Objectify's immediate retries instead of the default policy.
+         */
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.conferences = Integer.getInteger("loadtest.conferences", config.conferences);
+            config.seatsPerConference = Integer.getInteger("loadtest.seatsPerConference",
+                    config.seatsPerConference);
+            config.users = Integer.getInteger("loadtest.users", config.users);
+            config.threads = Integer.getInteger("loadtest.threads", config.threads);
+            config.operationsPerUser = Integer.getInteger("loadtest.operationsPerUser",
+                    config.operationsPerUser);
+            config.thinkTimeMillis = Long.getLong("loadtest.thinkTimeMillis",
+                    config.thinkTimeMillis);
+            config.seed = Long.getLong("loadtest.seed", config.seed);
+            if ("immediate".equals(System.getProperty("loadtest.retries"))) {
+                config.retryPolicy = RetryPolicy.IMMEDIATE;
+            }
+            return config;
+        }
+
+        public Config conferences(int conferences) {
+            this.conferences = conferences;
+            return this;
+        }
+
+        public Config seatsPerConference(int seatsPerConference) {
+            this.seatsPerConference = seatsPerConference;
+            return this;
+        }
+
+        public Config users(int users) {
+            this.users = users;
+            return this;
+        }
+
+        public Config threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Config operationsPerUser(int operationsPerUser) {
+            this.operationsPerUser = operationsPerUser;
+            return this;
+        }
+
+        public Config thinkTimeMillis(long thinkTimeMillis) {
+            this.thinkTimeMillis = thinkTimeMillis;
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Config retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d conferences x %d seats, %d users on %d threads, "
+                    + "%d operations per user, %d ms think time, retries: %s", conferences,
+                    seatsPerConference, users, threads, operationsPerUser, thinkTimeMillis,
+                    retryPolicy == RetryPolicy.IMMEDIATE ? "immediate" : retryPolicy);
+        }
+    }
+
+    /**
+     * The outcome of a load test.
+     */
+    public static class Report {
+
+        private final Config config;
+
+        private long[] latencies = new long[0];
+
+        private int registrations;
+
+        private int unregistrations;
+
+        private int noSeats;
+
+        private int errors;
+
+        private int contended;
+
+        private int transactions;
+
+        private int conflicts;
+
+        private long elapsedNanos;
+
+        private final List<String> seatErrors = new ArrayList<>();
+
+        private Report(Config config) {
+            this.config = config;
+        }
+
+        public int getOperations() {
+            return latencies.length;
+        }
+
+        public int getRegistrations() {
+            return registrations;
+        }
+
+        public int getUnregistrations() {
+            return unregistrations;
+        }
+
+        /**
+         * Returns the number of registrations rejected because the conference was full.
+         */
+        public int getNoSeats() {
+            return noSeats;
+        }
+
+        /**
+         * Returns the number of operations that gave up after their transactions kept
+         * conflicting, which clients retry.
+         */
+        public int getContended() {
+            return contended;
+        }
+
+        /**
+         * Returns the number of operations that failed for any other reason.
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns the number of datastore transactions begun, including retries.
+         */
+        public int getTransactions() {
+            return transactions;
+        }
+
+        /**
+         * Returns the number of commits that failed with a concurrency conflict. Each of them
+         * is retried, unless it was the last attempt of a contended operation.
+         */
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        /**
+         * Returns the latency at the given percentile, in milliseconds.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return the latency in milliseconds, 0 when no operation ran.
+         */
+        public double getLatencyMillis(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+            return latencies[Math.max(rank, 1) - 1] / 1e6;
+        }
+
+        /**
+         * Returns whether the seats available of every conference match its registrations.
+         */
+        public boolean isSeatCountCorrect() {
+            return seatErrors.isEmpty();
+        }
+
+        public List<String> getSeatErrors() {
+            return seatErrors;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(config).append('\n');
+            report.append(String.format("%d operations in %.1f s (%.1f ops/s)%n",
+                    getOperations(), elapsedNanos / 1e9, getOperations() * 1e9 / elapsedNanos));
+            report.append(String.format("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    getLatencyMillis(50), getLatencyMillis(99), getLatencyMillis(100)));
+            report.append(String.format("%d registrations, %d unregistrations, "
+                    + "%d no seats available (%.1f%%), %d errors (%.1f%%)%n",
+                    registrations, unregistrations, noSeats, percentOfOperations(noSeats),
+                    errors, percentOfOperations(errors)));
+            report.append(String.format("%d contended (%.1f%%)%n", contended,
+                    percentOfOperations(contended)));
+            report.append(String.format("%d transactions, %d conflicts retried (%.1f%%)%n",
+                    transactions, conflicts,
+                    transactions == 0 ? 0.0 : 100.0 * conflicts / transactions));
+            report.append(isSeatCountCorrect() ? "seat counts correct" : "seat counts WRONG: "
+                    + seatErrors);
+            return report.toString();
+        }
+
+        private double percentOfOperations(int count) {
+            return getOperations() == 0 ? 0.0 : 100.0 * count / getOperations();
+        }
+    }
+
+    private final Config config;
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    private final List<String> websafeConferenceKeys = new ArrayList<>();
+
+    private final AtomicInteger registrations = new AtomicInteger();
+
+    private final AtomicInteger unregistrations = new AtomicInteger();
+
+    private final AtomicInteger noSeats = new AtomicInteger();
+
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private final AtomicInteger contended = new AtomicInteger();
+
+    public RegistrationLoadGenerator(Config config) {
+        this.config = config;
+    }
+
+    private static String userId(int i) {
+        return "loaduser" + i;
+    }
+
+    private static User user(int i) {
+        return new User(userId(i) + "@gmail.com", "gmail.com", userId(i));
+    }
+
+    /**
+     * Creates the conferences, with their seat shards, and the Profiles of the users.
+     */
+    private void setUpData() {
+        for (int i = 0; i < config.conferences; i++) {
+            Conference conference = new Conference(i + 1, "organizer", new ConferenceForm(
+                    "Hot conference " + i, null, null, "London", null, null,
+                    config.seatsPerConference));
+            conference.save();
+            ofy().save().entities(SeatInventory.createShards(conference)).now();
+            websafeConferenceKeys.add(conference.getWebsafeKey());
+        }
+        List<Profile> profiles = new ArrayList<>();
+        for (int i = 0; i < config.users; i++) {
+            profiles.add(new Profile(userId(i), "Load user " + i, userId(i) + "@gmail.com",
+                    TeeShirtSize.NOT_SPECIFIED));
+        }
+        ofy().save().entities(profiles).now();
+        ofy().clear();
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @return the report.
+     * @throws InterruptedException when interrupted while waiting for the threads.
+     */
+    public Report run() throws InterruptedException {
+        setUpData();
+        Report report = new Report(config);
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(config.threads);
+        final long[][] latencies = new long[config.threads][];
+        ApiCallCounter counter = ApiCallCounter.install();
+        RetryPolicy defaultPolicy = Transactions.getDefaultPolicy();
+        Transactions.setDefaultPolicy(config.retryPolicy);
+        long startNanos;
+        try {
+            for (int t = 0; t < config.threads; t++) {
+                final int thread = t;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ApiProxy.setEnvironmentForCurrentThread(environment);
+                        try {
+                            start.await();
+                            latencies[thread] = runVirtualUsers(thread);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            ofy().clear();
+                            done.countDown();
+                        }
+                    }
+                }, "load-" + t).start();
+            }
+            startNanos = System.nanoTime();
+            start.countDown();
+            done.await();
+            report.elapsedNanos = System.nanoTime() - startNanos;
+        } finally {
+            Transactions.setDefaultPolicy(defaultPolicy);
+            counter.uninstall();
+        }
+
+        int operations = 0;
+        for (long[] threadLatencies : latencies) {
+            operations += threadLatencies == null ? 0 : threadLatencies.length;
+        }
+        report.latencies = new long[operations];
+        int offset = 0;
+        for (long[] threadLatencies : latencies) {
+            if (threadLatencies != null) {
+                System.arraycopy(threadLatencies, 0, report.latencies, offset,
+                        threadLatencies.length);
+                offset += threadLatencies.length;
+            }
+        }
+        Arrays.sort(report.latencies);
+        report.registrations = registrations.get();
+        report.unregistrations = unregistrations.get();
+        report.noSeats = noSeats.get();
+        report.errors = errors.get();
+        report.contended = contended.get();
+        report.transactions = counter.count("datastore_v3", "BeginTransaction");
+        report.conflicts = counter.failures("datastore_v3", "Commit");
+        checkSeats(report);
+        return report;
+    }
+
+    /**
+     * Runs the virtual users of a thread, users thread, thread + threads, and so on, taking
+     * turns.
+     *
+     * @return the latencies of the operations, in nanoseconds.
+     */
+    private long[] runVirtualUsers(int thread) throws InterruptedException {
+        List<Integer> users = new ArrayList<>();
+        for (int i = thread; i < config.users; i += config.threads) {
+            users.add(i);
+        }
+        Random random = new Random(config.seed + thread);
+        Map<Integer, Set<String>> registered = new HashMap<>();
+        long[] latencies = new long[users.size() * config.operationsPerUser];
+        int operation = 0;
+        for (int round = 0; round < config.operationsPerUser; round++) {
+            for (int i : users) {
+                if (config.thinkTimeMillis > 0) {
+                    Thread.sleep(config.thinkTimeMillis);
+                }
+                Set<String> conferences = registered.get(i);
+                if (conferences == null) {
+                    conferences = new HashSet<>();
+                    registered.put(i, conferences);
+                }
+                String websafeConferenceKey = websafeConferenceKeys.get(
+                        random.nextInt(websafeConferenceKeys.size()));
+                long start = System.nanoTime();
+                if (conferences.contains(websafeConferenceKey)) {
+                    if (unregister(i, websafeConferenceKey)) {
+                        conferences.remove(websafeConferenceKey);
+                    }
+                } else if (register(i, websafeConferenceKey)) {
+                    conferences.add(websafeConferenceKey);
+                }
+                latencies[operation++] = System.nanoTime() - start;
+                // Each operation is a request of its own.
+                ofy().clear();
+            }
+        }
+        return latencies;
+    }
+
+    private boolean register(int user, String websafeConferenceKey) {
+        try {
+            conferenceApi.registerForConference(user(user), websafeConferenceKey);
+            registrations.incrementAndGet();
+            return true;
+        } catch (ConflictException e) {
+            if (NO_SEATS.equals(e.getMessage())) {
+                noSeats.incrementAndGet();
+            } else {
+                errors.incrementAndGet();
+            }
+        } catch (ServiceUnavailableException e) {
+            contended.incrementAndGet();
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        }
+        return false;
+    }
+
+    private boolean unregister(int user, String websafeConferenceKey) {
+        try {
+            if (conferenceApi.unregisterFromConference(user(user), websafeConferenceKey)
+                    .getResult()) {
+                unregistrations.incrementAndGet();
+                return true;
+            }
+        } catch (ServiceUnavailableException e) {
+            contended.incrementAndGet();
+            return false;
+        } catch (Exception e) {
+            // Counted below.
+        }
+        errors.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Checks that the seats available of each conference equal its capacity less its
+     * Registrations, and that no shard is overbooked.
+     */
+    private void checkSeats(Report report) {
+        ofy().clear();
+        Map<String, Integer> attendees = new HashMap<>();
+        for (Key<Registration> key : ofy().load().type(Registration.class).keys()) {
+            Integer count = attendees.get(key.getName());
+            attendees.put(key.getName(), count == null ? 1 : count + 1);
+        }
+        int totalAttendees = 0;
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            Integer count = attendees.get(websafeConferenceKey);
+            int expected = config.seatsPerConference - (count == null ? 0 : count);
+            totalAttendees += count == null ? 0 : count;
+            int seats = 0;
+            for (SeatShard shard : ofy().load().keys(SeatInventory.shardKeys(
+                    Key.<Conference>create(websafeConferenceKey))).values()) {
+                if (shard.getSeatsAvailable() < 0
+                        || shard.getSeatsAvailable() > shard.getCapacity()) {
+                    report.seatErrors.add(String.format("%s has %d of %d seats available",
+                            shard.getId(), shard.getSeatsAvailable(), shard.getCapacity()));
+                }
+                seats += shard.getSeatsAvailable();
+            }
+            if (seats != expected) {
+                report.seatErrors.add(String.format("%s has %d seats available, expected %d",
+                        websafeConferenceKey, seats, expected));
+            }
+        }
+        if (totalAttendees != report.registrations - report.unregistrations) {
+            report.seatErrors.add(String.format("%d registrations stored, expected %d",
+                    totalAttendees, report.registrations - report.unregistrations));
+        }
+    }
+}
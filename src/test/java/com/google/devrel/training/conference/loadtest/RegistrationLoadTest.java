@@ -0,0 +1,88 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.Transactions.RetryPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Runs RegistrationLoadGenerator. Run bigger loads with, for example,
+ * mvn test -Dtest=RegistrationLoadTest -Dloadtest.users=1000 -Dloadtest.threads=32
+ */
+public class RegistrationLoadTest {
+
+    private static final Logger LOG = Logger.getLogger(RegistrationLoadTest.class.getName());
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testRegistrationLoad() throws Exception {
+        RegistrationLoadGenerator.Report report = new RegistrationLoadGenerator(
+                RegistrationLoadGenerator.Config.fromSystemProperties()).run();
+        LOG.info("Registration load test\n" + report);
+
+        assertTrue(report.getSeatErrors().toString(), report.isSeatCountCorrect());
+        assertEquals(0, report.getErrors());
+        assertEquals(report.getOperations(), report.getRegistrations()
+                + report.getUnregistrations() + report.getNoSeats() + report.getContended());
+        assertTrue(report.getLatencyMillis(50) <= report.getLatencyMillis(99));
+    }
+
+    /**
+     * Runs the same contended load, every thread on one conference, with Objectify's
+     * immediate retries and with backoff. Compare the conflicts and latencies in the log.
+     */
+    @Test
+    public void testBackoffUnderContention() throws Exception {
+        RegistrationLoadGenerator.Report immediate = contendedLoad(RetryPolicy.IMMEDIATE);
+        RegistrationLoadGenerator.Report backoff = contendedLoad(
+                new RetryPolicy(5, 10, 200));
+        LOG.info("Immediate retries\n" + immediate + "\nBackoff with jitter\n" + backoff);
+
+        for (RegistrationLoadGenerator.Report report : Arrays.asList(immediate, backoff)) {
+            assertTrue(report.getSeatErrors().toString(), report.isSeatCountCorrect());
+            assertEquals(0, report.getErrors());
+        }
+        // Immediate retries never give up.
+        assertEquals(0, immediate.getContended());
+    }
+
+    private RegistrationLoadGenerator.Report contendedLoad(RetryPolicy policy)
+            throws Exception {
+        try {
+            return new RegistrationLoadGenerator(new RegistrationLoadGenerator.Config()
+                    .conferences(1).users(32).threads(8).operationsPerUser(4)
+                    .retryPolicy(policy)).run();
+        } finally {
+            // Each run starts from an empty datastore.
+            tearDown();
+            setUp();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.LatencyHistogram;
+import com.google.devrel.training.conference.service.NearlySoldOut;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs a mix of ConferenceApi queries and registrations, and the announcement cron, on
+ * SyntheticDatasets of growing scale, and reports how latencies and datastore calls grow
+ * with the scale.
+ *
+ * Each scale gets a fresh local datastore and memcache. Operations run one at a time, each
+ * as a request of its own; RegistrationLoadGenerator covers contention. With inMemory set,
+ * they run on InMemoryRepositories, which shows what the business logic costs by itself.
+ */
+public class ScaleBenchmark {
+
+    private static final String[] DATASTORE_CALLS = {
+            "Get", "Put", "Delete", "RunQuery", "Next", "BeginTransaction", "Commit" };
+
+    /**
+     * The operations run, with their share of the mix in percent.
+     */
+    public enum Operation {
+        QUERY_CONFERENCES(40),
+        GET_CONFERENCE(20),
+        GET_CONFERENCES_TO_ATTEND(15),
+        REGISTRATION(25),
+        ANNOUNCEMENT_CRON(0);
+
+        private final int share;
+
+        Operation(int share) {
+            this.share = share;
+        }
+    }
+
+    /**
+     * Parameters of a benchmark. Every parameter can be overridden with a "scale." system
+     * property, e.g. -Dscale.conferences=1000,10000,100000 -Dscale.profilesPerConference=10.
+     */
+    public static class Config {
+
+        private List<Integer> conferences = Arrays.asList(100, 1000);
+
+        private int profilesPerConference = 10;
+
+        private int operations = 500;
+
+        private int cronRuns = 5;
+
+        private long seed = 42;
+
+        private boolean inMemory;
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            String conferences = System.getProperty("scale.conferences");
+            if (conferences != null) {
+                List<Integer> scales = new ArrayList<>();
+                for (String scale : conferences.split(",")) {
+                    scales.add(Integer.parseInt(scale.trim()));
+                }
+                config.conferences = scales;
+            }
+            config.profilesPerConference = Integer.getInteger("scale.profilesPerConference",
+                    config.profilesPerConference);
+            config.operations = Integer.getInteger("scale.operations", config.operations);
+            config.cronRuns = Integer.getInteger("scale.cronRuns", config.cronRuns);
+            config.seed = Long.getLong("scale.seed", config.seed);
+            config.inMemory = Boolean.getBoolean("scale.inMemory");
+            return config;
+        }
+
+        public Config conferences(Integer... conferences) {
+            this.conferences = Arrays.asList(conferences);
+            return this;
+        }
+
+        public Config profilesPerConference(int profilesPerConference) {
+            this.profilesPerConference = profilesPerConference;
+            return this;
+        }
+
+        public Config operations(int operations) {
+            this.operations = operations;
+            return this;
+        }
+
+        public Config cronRuns(int cronRuns) {
+            this.cronRuns = cronRuns;
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Runs on InMemoryRepositories rather than on the datastore, to measure the business
+         * logic alone.
+         */
+        public Config inMemory(boolean inMemory) {
+            this.inMemory = inMemory;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s conferences, %d profiles per conference, "
+                    + "%d operations and %d announcement cron runs per scale, %s", conferences,
+                    profilesPerConference, operations, cronRuns,
+                    inMemory ? "in memory" : "on the datastore");
+        }
+    }
+
+    /**
+     * The measurements of an operation at one scale.
+     */
+    public static class Measurement {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private long datastoreCalls;
+
+        private int errors;
+
+        public long getCount() {
+            return latencies.getCount();
+        }
+
+        /**
+         * Returns the latency at the given percentile, in milliseconds.
+         */
+        public double getLatencyMillis(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        public double getDatastoreCallsPerOperation() {
+            return getCount() == 0 ? 0 : (double) datastoreCalls / getCount();
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * The measurements at one scale.
+     */
+    public static class Result {
+
+        private final SyntheticDataset dataset;
+
+        private final Map<Operation, Measurement> measurements = new EnumMap<>(Operation.class);
+
+        private Result(SyntheticDataset dataset) {
+            this.dataset = dataset;
+            for (Operation operation : Operation.values()) {
+                measurements.put(operation, new Measurement());
+            }
+        }
+
+        public SyntheticDataset getDataset() {
+            return dataset;
+        }
+
+        public Measurement getMeasurement(Operation operation) {
+            return measurements.get(operation);
+        }
+    }
+
+    /**
+     * The outcome of a benchmark, one Result per scale, smallest first.
+     */
+    public static class Report {
+
+        private final Config config;
+
+        private final List<Result> results = new ArrayList<>();
+
+        private Report(Config config) {
+            this.config = config;
+        }
+
+        public List<Result> getResults() {
+            return Collections.unmodifiableList(results);
+        }
+
+        /**
+         * Returns how many times slower an operation is at a scale than at the smallest
+         * scale, at the given percentile.
+         */
+        public double getSlowdown(Operation operation, int scale, double percentile) {
+            double base = results.get(0).getMeasurement(operation).getLatencyMillis(percentile);
+            double latency = results.get(scale).getMeasurement(operation)
+                    .getLatencyMillis(percentile);
+            return base == 0 ? 0 : latency / base;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(config).append('\n');
+            for (Result result : results) {
+                report.append(result.dataset).append('\n');
+            }
+            report.append(String.format("%-26s %11s %8s %9s %9s %9s %8s %7s%n", "operation",
+                    "conferences", "count", "p50 ms", "p99 ms", "calls/op", "p50 x", "errors"));
+            for (Operation operation : Operation.values()) {
+                for (int i = 0; i < results.size(); i++) {
+                    Result result = results.get(i);
+                    Measurement measurement = result.getMeasurement(operation);
+                    report.append(String.format("%-26s %11d %8d %9.2f %9.2f %9.1f %8.2f %7d%n",
+                            operation, result.dataset.getConfig().getConferences(),
+                            measurement.getCount(), measurement.getLatencyMillis(50),
+                            measurement.getLatencyMillis(99),
+                            measurement.getDatastoreCallsPerOperation(),
+                            getSlowdown(operation, i, 50), measurement.getErrors()));
+                }
+            }
+            return report.toString();
+        }
+    }
+
+    private final Config config;
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    public ScaleBenchmark(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the benchmark at each scale, on local services of its own.
+     *
+     * @return the report.
+     */
+    public Report run() {
+        Report report = new Report(config);
+        for (int conferences : config.conferences) {
+            LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+            helper.setUp();
+            EntityCache.clear();
+            ConferenceIndex.clear();
+            if (config.inMemory) {
+                Repositories.useInMemory();
+            }
+            try {
+                SyntheticDataset dataset = new SyntheticDataset(new SyntheticDataset.Config()
+                        .conferences(conferences)
+                        .profiles(conferences * config.profilesPerConference)
+                        .seed(config.seed)
+                        .inMemory(config.inMemory))
+                        .generate();
+                report.results.add(run(dataset));
+            } finally {
+                Repositories.useObjectify();
+                ofy().clear();
+                EntityCache.clear();
+                ConferenceIndex.clear();
+                helper.tearDown();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Runs the operations on a generated dataset.
+     */
+    private Result run(SyntheticDataset dataset) {
+        Result result = new Result(dataset);
+        Random random = new Random(config.seed);
+        List<String> userIds = dataset.getUserIds();
+        List<String> conferenceKeys = dataset.getWebsafeConferenceKeys();
+        SyntheticDataset.Zipf popularity = new SyntheticDataset.Zipf(conferenceKeys.size(),
+                0.8);
+        Map<String, Set<String>> registered = new HashMap<>();
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            for (int i = 0; i < config.operations; i++) {
+                int pick = random.nextInt(100);
+                Operation operation = Operation.values()[0];
+                for (Operation candidate : Operation.values()) {
+                    operation = candidate;
+                    if (pick < candidate.share) {
+                        break;
+                    }
+                    pick -= candidate.share;
+                }
+                String userId = userIds.get(random.nextInt(userIds.size()));
+                String websafeConferenceKey = conferenceKeys.get(popularity.next(random));
+                ConferenceQueryForm form = queryForm(random);
+                boolean readOn = random.nextBoolean();
+                measure(result, counter, operation, userId, websafeConferenceKey, form, readOn,
+                        registered);
+            }
+            for (int i = 0; i < config.cronRuns; i++) {
+                measure(result, counter, Operation.ANNOUNCEMENT_CRON, null, null, null, false,
+                        registered);
+            }
+        } finally {
+            counter.uninstall();
+        }
+        return result;
+    }
+
+    /**
+     * Runs one operation as a request of its own, recording its latency and datastore calls.
+     * A query reads on to the next page when readOn is set.
+     */
+    private void measure(Result result, ApiCallCounter counter, Operation operation,
+                         String userId, String websafeConferenceKey, ConferenceQueryForm form,
+                         boolean readOn, Map<String, Set<String>> registered) {
+        Measurement measurement = result.getMeasurement(operation);
+        counter.reset();
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        long start = System.nanoTime();
+        try {
+            switch (operation) {
+                case QUERY_CONFERENCES:
+                    CollectionResponse<Conference> page = conferenceApi.queryConferences(form);
+                    if (readOn && page.getNextPageToken() != null) {
+                        conferenceApi.queryConferences(form.cursor(page.getNextPageToken()));
+                    }
+                    break;
+                case GET_CONFERENCE:
+                    conferenceApi.getConference(websafeConferenceKey);
+                    break;
+                case GET_CONFERENCES_TO_ATTEND:
+                    conferenceApi.getConferencesToAttend(user(userId));
+                    break;
+                case REGISTRATION:
+                    register(userId, websafeConferenceKey, registered);
+                    break;
+                default:
+                    NearlySoldOut.rebuild();
+            }
+        } catch (ConflictException e) {
+            // Sold out, as happens to popular conferences.
+        } catch (Exception e) {
+            measurement.errors++;
+        } finally {
+            unitOfWork.end();
+        }
+        measurement.latencies.record(System.nanoTime() - start);
+        for (String method : DATASTORE_CALLS) {
+            measurement.datastoreCalls += counter.count("datastore_v3", method);
+        }
+    }
+
+    /**
+     * Registers a user for a conference, or unregisters when the user already is.
+     */
+    private void register(String userId, String websafeConferenceKey,
+                          Map<String, Set<String>> registered) throws Exception {
+        Set<String> conferences = registered.get(userId);
+        if (conferences == null) {
+            conferences = new HashSet<>();
+            registered.put(userId, conferences);
+        }
+        if (conferences.remove(websafeConferenceKey)) {
+            conferenceApi.unregisterFromConference(user(userId), websafeConferenceKey);
+            return;
+        }
+        if (conferenceApi.isRegisteredForConference(user(userId), websafeConferenceKey)
+                .getResult()) {
+            // Registered by the dataset.
+            conferenceApi.unregisterFromConference(user(userId), websafeConferenceKey);
+            return;
+        }
+        conferenceApi.registerForConference(user(userId), websafeConferenceKey);
+        conferences.add(websafeConferenceKey);
+    }
+
+    /**
+     * Returns a query as users make them: by a popular city or topic, by month, by size,
+     * combinations of those, and queries with inequalities on several fields.
+     */
+    private static ConferenceQueryForm queryForm(Random random) {
+        String city = SyntheticDataset.CITIES[random.nextInt(5)];
+        String topic = SyntheticDataset.TOPICS[random.nextInt(5)];
+        String month = String.valueOf(1 + random.nextInt(12));
+        ConferenceQueryForm form = new ConferenceQueryForm();
+        switch (random.nextInt(7)) {
+            case 0:
+                return form;
+            case 1:
+                return form.filter(new Filter(Field.CITY, Operator.EQ, city));
+            case 2:
+                return form.filter(new Filter(Field.TOPIC, Operator.EQ, topic));
+            case 3:
+                return form.filter(new Filter(Field.CITY, Operator.EQ, city))
+                        .filter(new Filter(Field.MONTH, Operator.EQ, month));
+            case 4:
+                return form.filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "500"));
+            case 5:
+                return form.filter(new Filter(Field.TOPIC, Operator.EQ, topic))
+                        .filter(new Filter(Field.SEATS_AVAILABLE, Operator.GT, "0"));
+            default:
+                return form.filter(new Filter(Field.CITY, Operator.EQ, city))
+                        .filter(new Filter(Field.MAX_ATTENDEES, Operator.GTEQ, "100"))
+                        .filter(new Filter(Field.SEATS_AVAILABLE, Operator.GT, "10"));
+        }
+    }
+
+    private static User user(String userId) {
+        return new User(userId + "@example.com", "example.com", userId);
+    }
+}
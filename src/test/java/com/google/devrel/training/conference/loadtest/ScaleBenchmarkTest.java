@@ -0,0 +1,139 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.loadtest.ScaleBenchmark.Measurement;
+import com.google.devrel.training.conference.loadtest.ScaleBenchmark.Operation;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Tests SyntheticDataset and runs ScaleBenchmark at small scales. Run bigger scales with,
+ * for example,
+ * mvn test -Dtest=ScaleBenchmarkTest#testScaleBenchmark -Dscale.conferences=1000,10000,100000
+ */
+public class ScaleBenchmarkTest {
+
+    private static final Logger LOG = Logger.getLogger(ScaleBenchmarkTest.class.getName());
+
+    /**
+     * Generates a dataset on local services of its own and describes what it saved.
+     */
+    private static List<String> generate(SyntheticDataset.Config config) {
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig()
+                        .setApplyAllHighRepJobPolicy(),
+                new LocalMemcacheServiceTestConfig());
+        helper.setUp();
+        EntityCache.clear();
+        ConferenceIndex.clear();
+        try {
+            SyntheticDataset dataset = new SyntheticDataset(config).generate();
+            ofy().clear();
+            Map<String, Integer> attendees = new HashMap<>();
+            for (Key<Registration> key : ofy().load().type(Registration.class).keys()) {
+                Integer count = attendees.get(key.getName());
+                attendees.put(key.getName(), count == null ? 1 : count + 1);
+            }
+            assertEquals(config.getProfiles(), ofy().load().type(Profile.class).count());
+
+            List<String> saved = new ArrayList<>();
+            long registrations = 0;
+            for (Conference conference : ofy().load().type(Conference.class)) {
+                Integer count = attendees.get(conference.getWebsafeKey());
+                int registered = count == null ? 0 : count;
+                registrations += registered;
+                assertEquals(conference.getMaxAttendees() - registered,
+                        conference.getSeatsAvailable());
+                assertEquals(Integer.valueOf(conference.getSeatsAvailable()),
+                        SeatInventory.seatsAvailable(Key.create(conference)));
+                assertFalse(conference.getTopics().isEmpty());
+                assertTrue(conference.getEndDate().compareTo(conference.getStartDate()) >= 0);
+                assertNotNull(conference.getOrganizerDisplayName());
+                saved.add(conference.getWebsafeKey() + " " + conference);
+            }
+            assertEquals(config.getConferences(), saved.size());
+            assertEquals(dataset.getRegistrations(), registrations);
+            assertTrue(registrations > 0);
+            return saved;
+        } finally {
+            ofy().clear();
+            EntityCache.clear();
+            ConferenceIndex.clear();
+            helper.tearDown();
+        }
+    }
+
+    @Test
+    public void testDatasetIsDeterministic() throws Exception {
+        SyntheticDataset.Config config = new SyntheticDataset.Config()
+                .conferences(30)
+                .profiles(300);
+        List<String> saved = generate(config);
+        assertEquals(saved, generate(config));
+        assertNotEquals(saved, generate(config.seed(7)));
+    }
+
+    @Test
+    public void testScaleBenchmark() throws Exception {
+        ScaleBenchmark.Config config = System.getProperty("scale.conferences") != null
+                ? ScaleBenchmark.Config.fromSystemProperties()
+                : new ScaleBenchmark.Config()
+                        .conferences(20, 80)
+                        .operations(200)
+                        .cronRuns(2);
+        ScaleBenchmark.Report report = new ScaleBenchmark(config).run();
+        LOG.info("Scale benchmark\n" + report);
+
+        assertFalse(report.getResults().isEmpty());
+        for (ScaleBenchmark.Result result : report.getResults()) {
+            long operations = 0;
+            for (Operation operation : Operation.values()) {
+                Measurement measurement = result.getMeasurement(operation);
+                assertEquals(operation.toString(), 0, measurement.getErrors());
+                assertTrue(measurement.getLatencyMillis(50) <= measurement.getLatencyMillis(99));
+                operations += measurement.getCount();
+            }
+            assertTrue(result.getMeasurement(Operation.QUERY_CONFERENCES)
+                    .getDatastoreCallsPerOperation() > 0);
+            assertTrue(operations > 0);
+        }
+    }
+
+    @Test
+    public void testScaleBenchmarkInMemory() throws Exception {
+        ScaleBenchmark.Report report = new ScaleBenchmark(new ScaleBenchmark.Config()
+                .conferences(20, 80)
+                .operations(200)
+                .cronRuns(2)
+                .inMemory(true))
+                .run();
+        LOG.info("Scale benchmark in memory\n" + report);
+
+        for (ScaleBenchmark.Result result : report.getResults()) {
+            for (Operation operation : Operation.values()) {
+                Measurement measurement = result.getMeasurement(operation);
+                assertEquals(operation.toString(), 0, measurement.getErrors());
+                assertEquals(operation.toString(), 0,
+                        measurement.getDatastoreCallsPerOperation(), 0);
+            }
+        }
+    }
+}
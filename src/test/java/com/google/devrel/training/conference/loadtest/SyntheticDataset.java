@@ -0,0 +1,392 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * A deterministic generator of Profiles, Conferences and Registrations with realistic
+ * distributions, for running the API at scale against the local service stubs.
+ *
+ * The same Config generates the same entities, registration dates aside:
+ * - A few cities and topics are far more popular than the rest (Zipf distributed).
+ * - Conferences have one to three topics and take place mostly in spring and autumn.
+ * - Capacities are log-normally distributed around MEDIAN_CAPACITY.
+ * - Organizers are a small share of the profiles, and a few of them organize many
+ *   conferences.
+ * - Each profile registers for a geometrically distributed number of conferences, popular
+ *   conferences being picked far more often, until they sell out.
+ *
+ * The caller sets up LocalServiceTestHelper with a high replication datastore before
+ * generate() and tears it down afterwards.
+ */
+public class SyntheticDataset {
+
+    static final String[] CITIES = {
+            "London", "San Francisco", "New York", "Berlin", "Paris", "Tokyo", "Chicago",
+            "Amsterdam", "Sydney", "Toronto", "Bangalore", "Singapore", "Austin", "Madrid",
+            "Seattle", "Zurich", "Dublin", "Sao Paulo", "Stockholm", "Tel Aviv" };
+
+    static final String[] TOPICS = {
+            "Cloud", "Web", "Mobile", "Machine Learning", "Security", "Data", "DevOps",
+            "Programming Languages", "Games", "IoT", "Design", "Startups", "Open Source",
+            "Testing", "Accessibility" };
+
+    /**
+     * The relative number of conferences starting in each month, January first.
+     */
+    private static final int[] MONTH_WEIGHTS = { 3, 5, 8, 9, 10, 8, 4, 2, 10, 11, 9, 3 };
+
+    private static final int MEDIAN_CAPACITY = 150;
+
+    private static final int MIN_CAPACITY = 10;
+
+    private static final int MAX_CAPACITY = 10000;
+
+    private static final String[] FIRST_NAMES = {
+            "Ada", "Alan", "Grace", "Linus", "Barbara", "Dennis", "Margaret", "Ken", "Frances",
+            "Edsger", "Radia", "Tim", "Katherine", "John", "Hedy", "Donald" };
+
+    private static final String[] LAST_NAMES = {
+            "Lovelace", "Turing", "Hopper", "Torvalds", "Liskov", "Ritchie", "Hamilton",
+            "Thompson", "Allen", "Dijkstra", "Perlman", "Berners-Lee", "Johnson", "Backus",
+            "Lamarr", "Knuth" };
+
+    /**
+     * The most entities saved by one batch put.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * Parameters of a dataset. Every parameter can be overridden with a "dataset." system
+     * property, e.g. -Ddataset.conferences=100000.
+     */
+    public static class Config {
+
+        private int conferences = 100;
+
+        private int profiles = 1000;
+
+        private double organizerShare = 0.05;
+
+        private double registrationsPerProfile = 3;
+
+        private int year = 2015;
+
+        private long seed = 42;
+
+        private boolean inMemory;
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.conferences = Integer.getInteger("dataset.conferences", config.conferences);
+            config.profiles = Integer.getInteger("dataset.profiles", config.profiles);
+            String organizerShare = System.getProperty("dataset.organizerShare");
+            if (organizerShare != null) {
+                config.organizerShare = Double.parseDouble(organizerShare);
+            }
+            String registrationsPerProfile = System.getProperty(
+                    "dataset.registrationsPerProfile");
+            if (registrationsPerProfile != null) {
+                config.registrationsPerProfile = Double.parseDouble(registrationsPerProfile);
+            }
+            config.year = Integer.getInteger("dataset.year", config.year);
+            config.seed = Long.getLong("dataset.seed", config.seed);
+            config.inMemory = Boolean.getBoolean("dataset.inMemory");
+            return config;
+        }
+
+        public Config conferences(int conferences) {
+            this.conferences = conferences;
+            return this;
+        }
+
+        public Config profiles(int profiles) {
+            this.profiles = profiles;
+            return this;
+        }
+
+        public Config organizerShare(double organizerShare) {
+            this.organizerShare = organizerShare;
+            return this;
+        }
+
+        public Config registrationsPerProfile(double registrationsPerProfile) {
+            this.registrationsPerProfile = registrationsPerProfile;
+            return this;
+        }
+
+        public Config year(int year) {
+            this.year = year;
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Stores the dataset with the installed repositories, as InMemoryRepositories,
+         * rather than with batch puts to the datastore.
+         */
+        public Config inMemory(boolean inMemory) {
+            this.inMemory = inMemory;
+            return this;
+        }
+
+        public int getConferences() {
+            return conferences;
+        }
+
+        public int getProfiles() {
+            return profiles;
+        }
+
+        private int organizers() {
+            return Math.max(1, Math.min(profiles, (int) Math.round(profiles * organizerShare)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d conferences, %d profiles (%d organizers), "
+                    + "%.1f registrations per profile, seed %d", conferences, profiles,
+                    organizers(), registrationsPerProfile, seed);
+        }
+    }
+
+    /**
+     * Picks indexes from 0 to n - 1, index i with a weight of 1 / (i + 1)^exponent.
+     */
+    static class Zipf {
+
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+        }
+
+        int next(Random random) {
+            int i = Arrays.binarySearch(cumulative,
+                    random.nextDouble() * cumulative[cumulative.length - 1]);
+            return Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1);
+        }
+    }
+
+    private final Config config;
+
+    private final List<String> userIds = new ArrayList<>();
+
+    private final List<String> websafeConferenceKeys = new ArrayList<>();
+
+    private long registrations;
+
+    private long soldOut;
+
+    private long generatedMillis;
+
+    public SyntheticDataset(Config config) {
+        this.config = config;
+    }
+
+    static String userId(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * Generates and saves the dataset.
+     *
+     * @return this dataset.
+     */
+    public SyntheticDataset generate() {
+        long startedAt = System.currentTimeMillis();
+        // Starts from an empty session, which also registers the entities with Objectify.
+        ofy().clear();
+        Random random = new Random(config.seed);
+        int organizers = config.organizers();
+        List<String> displayNames = new ArrayList<>(config.profiles);
+        for (int i = 0; i < config.profiles; i++) {
+            userIds.add(userId(i));
+            displayNames.add(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+        }
+
+        List<Conference> conferences = createConferences(random, organizers, displayNames);
+        int[] seatsTaken = new int[conferences.size()];
+        // In memory, registrations are made once the conferences are stored.
+        List<Key<Profile>> registrants = new ArrayList<>();
+        List<Integer> registeredFor = new ArrayList<>();
+        List<Object> batch = new ArrayList<>(BATCH_SIZE);
+        Zipf popularity = new Zipf(conferences.size(), 0.8);
+        double stop = 1 / (1 + config.registrationsPerProfile);
+        for (int i = 0; i < config.profiles; i++) {
+            Profile profile = new Profile(userIds.get(i), displayNames.get(i),
+                    userIds.get(i) + "@example.com",
+                    TeeShirtSize.values()[random.nextInt(TeeShirtSize.values().length)]);
+            if (config.inMemory) {
+                profile.save();
+            } else {
+                add(batch, profile);
+            }
+            Key<Profile> profileKey = Key.create(profile);
+            Set<Integer> attended = new HashSet<>();
+            // Popular conferences sell out, so a profile gives up after a few tries.
+            for (int tries = 0; random.nextDouble() >= stop && tries < 10; tries++) {
+                int c = conferences.isEmpty() ? -1 : popularity.next(random);
+                if (c < 0 || seatsTaken[c] >= conferences.get(c).getMaxAttendees()
+                        || !attended.add(c)) {
+                    continue;
+                }
+                seatsTaken[c]++;
+                registrations++;
+                if (config.inMemory) {
+                    registrants.add(profileKey);
+                    registeredFor.add(c);
+                } else {
+                    add(batch, new Registration(profileKey, websafeConferenceKeys.get(c)));
+                }
+            }
+        }
+        for (int c = 0; c < conferences.size(); c++) {
+            Conference conference = conferences.get(c);
+            if (seatsTaken[c] == conference.getMaxAttendees()) {
+                soldOut++;
+            }
+            if (config.inMemory) {
+                Repositories.conferences().create(conference, null);
+                continue;
+            }
+            conference.setSeatsAvailable(conference.getMaxAttendees() - seatsTaken[c]);
+            add(batch, conference);
+            for (Object shard : SeatInventory.createShards(conference)) {
+                add(batch, shard);
+            }
+        }
+        flush(batch);
+        for (int i = 0; i < registrants.size(); i++) {
+            Repositories.registrations().register(registrants.get(i),
+                    Key.<Conference>create(websafeConferenceKeys.get(registeredFor.get(i))));
+        }
+        generatedMillis = System.currentTimeMillis() - startedAt;
+        return this;
+    }
+
+    /**
+     * Creates the conferences, without saving them.
+     */
+    private List<Conference> createConferences(Random random, int organizers,
+                                               List<String> displayNames) {
+        Zipf cities = new Zipf(CITIES.length, 1);
+        Zipf topics = new Zipf(TOPICS.length, 0.9);
+        Zipf organizerActivity = new Zipf(organizers, 1);
+        int monthWeights = 0;
+        for (int weight : MONTH_WEIGHTS) {
+            monthWeights += weight;
+        }
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        List<Conference> conferences = new ArrayList<>(config.conferences);
+        for (int c = 0; c < config.conferences; c++) {
+            int topicCount = 1 + random.nextInt(3);
+            Set<String> conferenceTopics = new HashSet<>();
+            while (conferenceTopics.size() < topicCount) {
+                conferenceTopics.add(TOPICS[topics.next(random)]);
+            }
+            List<String> sortedTopics = new ArrayList<>(conferenceTopics);
+            Collections.sort(sortedTopics);
+
+            int month = 0;
+            for (int pick = random.nextInt(monthWeights); pick >= MONTH_WEIGHTS[month];
+                    month++) {
+                pick -= MONTH_WEIGHTS[month];
+            }
+            calendar.clear();
+            calendar.set(config.year, month, 1 + random.nextInt(28));
+            Date startDate = calendar.getTime();
+            double days = random.nextDouble();
+            calendar.add(Calendar.DAY_OF_MONTH, days < 0.5 ? 0 : days < 0.85 ? 1 : 2);
+
+            long capacity = Math.round(MEDIAN_CAPACITY * Math.exp(random.nextGaussian()));
+            capacity = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, capacity / 10 * 10));
+
+            String city = CITIES[cities.next(random)];
+            int organizer = organizerActivity.next(random);
+            Conference conference = new Conference(c + 1, userIds.get(organizer),
+                    new ConferenceForm(sortedTopics.get(0) + " Summit " + city + " #" + (c + 1),
+                            "A conference on " + sortedTopics + " in " + city, sortedTopics,
+                            city, startDate, calendar.getTime(), (int) capacity));
+            conference.setOrganizerDisplayName(displayNames.get(organizer));
+            conferences.add(conference);
+            websafeConferenceKeys.add(conference.getWebsafeKey());
+        }
+        return conferences;
+    }
+
+    private static void add(List<Object> batch, Object entity) {
+        batch.add(entity);
+        if (batch.size() == BATCH_SIZE) {
+            flush(batch);
+        }
+    }
+
+    private static void flush(List<Object> batch) {
+        if (!batch.isEmpty()) {
+            ofy().save().entities(batch).now();
+            batch.clear();
+            // The session need not keep what was saved.
+            ofy().clear();
+        }
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public List<String> getUserIds() {
+        return Collections.unmodifiableList(userIds);
+    }
+
+    public List<String> getWebsafeConferenceKeys() {
+        return Collections.unmodifiableList(websafeConferenceKeys);
+    }
+
+    public long getRegistrations() {
+        return registrations;
+    }
+
+    public long getSoldOut() {
+        return soldOut;
+    }
+
+    public long getGeneratedMillis() {
+        return generatedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d registrations, %d conferences sold out, generated in "
+                + "%.1f s", config, registrations, soldOut, generatedMillis / 1e3);
+    }
+}
@@ -0,0 +1,215 @@
+package com.google.devrel.training.conference.repository;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.repository.RegistrationRepository.Outcome;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.NearlySoldOut;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for InMemoryRepositories.
+ */
+public class InMemoryRepositoriesTest {
+
+    private static final int CAP = 10;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private InMemoryRepositories repositories;
+
+    private ConferenceApi conferenceApi;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        repositories = Repositories.useInMemory();
+        conferenceApi = new ConferenceApi();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Repositories.useObjectify();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static User user(int i) {
+        return new User("user" + i + "@gmail.com", "gmail.com", "user" + i);
+    }
+
+    @Test
+    public void testApiRunsInMemory() throws Exception {
+        User organizer = user(0);
+        conferenceApi.saveProfile(organizer, new ProfileForm("Organizer", TeeShirtSize.M));
+        Conference conference = conferenceApi.createConference(organizer, new ConferenceForm(
+                "Small", null, null, "London", null, null, NearlySoldOut.MAX_SEATS + 1));
+        conferenceApi.createConference(organizer, new ConferenceForm(
+                "Big", null, null, "Paris", null, null, 100));
+        String websafeKey = conference.getWebsafeKey();
+
+        User attendee = user(1);
+        conferenceApi.saveProfile(attendee, new ProfileForm("Attendee", TeeShirtSize.M));
+        assertTrue(conferenceApi.registerForConference(attendee, websafeKey).getResult());
+        try {
+            conferenceApi.registerForConference(attendee, websafeKey);
+            fail("registered twice");
+        } catch (ConflictException expected) {
+        }
+        assertTrue(conferenceApi.isRegisteredForConference(attendee, websafeKey).getResult());
+        List<Conference> attending =
+                new ArrayList<>(conferenceApi.getConferencesToAttend(attendee));
+        assertEquals(1, attending.size());
+        assertEquals(NearlySoldOut.MAX_SEATS, attending.get(0).getSeatsAvailable());
+        assertTrue(((String) MemcacheServiceFactory.getMemcacheService()
+                .get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY)).contains("Small"));
+
+        List<Conference> page = new ArrayList<>(conferenceApi.queryConferences(
+                new ConferenceQueryForm().filter(new Filter(Field.SEATS_AVAILABLE,
+                        Operator.LT, "10"))).getItems());
+        assertEquals(1, page.size());
+        assertEquals("Small", page.get(0).getName());
+        assertEquals(2, conferenceApi.queryConferencesCreated(organizer).size());
+
+        conferenceApi.saveProfile(organizer, new ProfileForm("Renamed", null));
+        assertEquals("Renamed", conferenceApi.getConference(websafeKey)
+                .getOrganizerDisplayName());
+
+        assertTrue(conferenceApi.unregisterFromConference(attendee, websafeKey).getResult());
+        assertFalse(conferenceApi.unregisterFromConference(attendee, websafeKey).getResult());
+        assertEquals(NearlySoldOut.MAX_SEATS + 1,
+                conferenceApi.getConference(websafeKey).getSeatsAvailable());
+
+        // Nothing went to the datastore.
+        assertEquals(0, ofy().load().type(Conference.class).count());
+        assertEquals(0, ofy().load().type(Profile.class).count());
+    }
+
+    @Test
+    public void testCardPagesHaveTokensOfTheirOwn() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            new Conference(i + 1, "organizer", new ConferenceForm(
+                    "Conference " + i, null, null, "London", null, null, CAP)).save();
+        }
+        List<String> names = new ArrayList<>();
+        String pageToken = null;
+        do {
+            ConferenceQueryForm form = new ConferenceQueryForm().pageSize(2).cursor(pageToken);
+            ConferenceRepository.CardPage page = repositories.conferences().queryCards(form);
+            for (ConferenceCard card : page.getCards()) {
+                names.add(card.getName());
+            }
+            pageToken = page.getNextPageToken();
+            if (pageToken != null) {
+                assertNotNull(form.cursor(pageToken).position(View.CARDS));
+            }
+        } while (pageToken != null);
+        assertEquals(Arrays.asList("Conference 0", "Conference 1", "Conference 2"), names);
+    }
+
+    @Test
+    public void testLoadsAreCopies() throws Exception {
+        Key<Profile> key = Key.create(Profile.class, "user0");
+        new Profile("user0", "Name", "user0@gmail.com", TeeShirtSize.M).save();
+        Profile profile = repositories.profiles().get(key);
+        profile.update("Changed", null);
+        assertEquals("Changed", repositories.profiles().get(key).getDisplayName());
+        Profile unsaved = repositories.profiles().get(key);
+        repositories.profiles().get(key).update("Other", null);
+        assertEquals("Changed", unsaved.getDisplayName());
+    }
+
+    @Test
+    public void testConcurrentRegistrationsNeverOverbook() throws Exception {
+        final int users = 4 * CAP;
+        Key<Profile> organizerKey = Key.create(Profile.class, "organizer");
+        final Key<Conference> conferenceKey =
+                repositories.conferences().allocateKey(organizerKey);
+        repositories.conferences().create(new Conference(conferenceKey.getId(), "organizer",
+                new ConferenceForm("Popular", null, null, "London", null, null, CAP)),
+                null);
+        final List<Key<Profile>> profileKeys = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            profileKeys.add(Key.create(Profile.class, "user" + i));
+        }
+
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(users * 2);
+        final AtomicInteger registered = new AtomicInteger();
+        final List<Outcome> unexpected = Collections.synchronizedList(new ArrayList<Outcome>());
+        for (int i = 0; i < users * 2; i++) {
+            // Each user tries twice, concurrently.
+            final Key<Profile> profileKey = profileKeys.get(i % users);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        start.await();
+                        Outcome outcome = repositories.registrations()
+                                .register(profileKey, conferenceKey);
+                        if (outcome == Outcome.REGISTERED) {
+                            registered.incrementAndGet();
+                        } else if (outcome != Outcome.NO_SEATS
+                                && outcome != Outcome.ALREADY_REGISTERED) {
+                            unexpected.add(outcome);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(Collections.emptyList(), unexpected);
+        assertEquals(CAP, registered.get());
+        assertEquals(Integer.valueOf(0),
+                repositories.registrations().seatsAvailable(conferenceKey));
+        int attendees = 0;
+        for (Key<Profile> profileKey : profileKeys) {
+            attendees += repositories.registrations().conferencesToAttend(profileKey).size();
+        }
+        assertEquals(CAP, attendees);
+    }
+}
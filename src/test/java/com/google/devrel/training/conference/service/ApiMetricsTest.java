@@ -0,0 +1,97 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ApiMetrics.EndpointMetrics;
+import com.google.devrel.training.conference.service.ApiMetrics.Operation;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ApiMetrics.
+ */
+public class ApiMetricsTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private User user;
+
+    private Conference conference;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        ApiMetrics.install();
+        conferenceApi = new ConferenceApi();
+        user = new User("example@gmail.com", "gmail.com", USER_ID);
+        new Profile(USER_ID, "Attendee", "example@gmail.com", TeeShirtSize.NOT_SPECIFIED).save();
+        conference = new Conference(1, "organizer", new ConferenceForm(
+                "Conference", null, null, "London", null, null, 10));
+        conference.save();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCountsOperationsOfRequest() throws Exception {
+        ApiMetrics.Request request = ApiMetrics.start("testRegister");
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+        assertTrue(request.getOperations(Operation.TRANSACTION) >= 1);
+        assertTrue(request.getOperations(Operation.SAVE) >= 1);
+        assertTrue(request.getOperations(Operation.LOAD) >= 1);
+        request.finish(false);
+
+        EndpointMetrics metrics = ApiMetrics.getEndpoint("testRegister");
+        assertEquals(1, metrics.getCalls());
+        assertEquals(0, metrics.getErrors());
+        assertEquals(request.getOperations(Operation.SAVE),
+                metrics.getOperations(Operation.SAVE));
+
+        // Calls made outside of a request are not counted.
+        conferenceApi.getConference(conference.getWebsafeKey());
+        assertEquals(request.getOperations(Operation.LOAD),
+                metrics.getOperations(Operation.LOAD));
+    }
+
+    @Test
+    public void testRendersJsonAndPrometheusText() throws Exception {
+        ApiMetrics.start("testRender").finish(false);
+        ApiMetrics.start("testRender").finish(true);
+
+        String json = ApiMetrics.toJson();
+        assertTrue(json, json.contains("{\"name\":\"testRender\",\"calls\":2,\"errors\":1,"));
+        assertTrue(json, json.contains("\"operationsPerCall\":{\"loads\":0.00,"));
+
+        String text = ApiMetrics.toPrometheusText();
+        assertTrue(text, text.contains(
+                "conference_api_latency_seconds_count{method=\"testRender\"} 2\n"));
+        assertTrue(text, text.contains("conference_api_errors_total{method=\"testRender\"} 1\n"));
+        assertTrue(text, text.contains(
+                "conference_api_operations_total{method=\"testRender\",operation=\"saves\"} 0\n"));
+    }
+}
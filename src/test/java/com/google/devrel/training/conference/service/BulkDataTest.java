@@ -0,0 +1,219 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.BulkData.Format;
+import com.google.devrel.training.conference.service.BulkData.Page;
+import com.google.devrel.training.conference.service.BulkData.Progress;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for BulkData.
+ */
+public class BulkDataTest {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE / 2;
+
+    /**
+     * Fits one conference with its shards, so that every conference gets its own chunk.
+     */
+    private static final int ONE_CONFERENCE = 1 + SeatInventory.SHARD_COUNT;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static String export(String kind, Format format, int limit) throws Exception {
+        StringWriter output = new StringWriter();
+        String cursor = null;
+        do {
+            Page page = BulkData.exportPage(output, format, kind, cursor, limit);
+            assertTrue(page.getCount() <= limit);
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return output.toString();
+    }
+
+    private static void deleteAll() {
+        for (Class<?> type : Arrays.asList(Profile.class, Conference.class, SeatShard.class)) {
+            ofy().delete().keys(ofy().load().type(type).keys()).now();
+        }
+        ofy().clear();
+        EntityCache.clear();
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+    }
+
+    private static List<Conference> conferences() {
+        ofy().clear();
+        return ofy().load().type(Conference.class).list();
+    }
+
+    @Test
+    public void testExportImportsBack() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Profile profile = new Profile("user" + i, "User, \"" + i + "\"",
+                    "user" + i + "@gmail.com", TeeShirtSize.M);
+            profile.save();
+            profile.update("User " + i, null);
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        for (int i = 0; i < 5; i++) {
+            Conference conference = new Conference(i + 1, "user" + (i % 3), new ConferenceForm(
+                    "Conference " + i, "Line\nbreak", Arrays.asList("Cloud", "Java"), "London",
+                    dateFormat.parse("03/25/2014"), dateFormat.parse("03/26/2014"), 100));
+            conference.setOrganizerDisplayName("User " + (i % 3));
+            conference.save();
+            conference.setSeatsAvailable(90 - i);
+            ofy().save().entities(SeatInventory.createShards(conference)).now();
+        }
+        ofy().clear();
+
+        for (Format format : Format.values()) {
+            String profiles = export(BulkData.PROFILE_KIND, format, 2);
+            String conferences = export(BulkData.CONFERENCE_KIND, format, 2);
+            deleteAll();
+            Progress progress = BulkData.importRecords(new StringReader(profiles), format, 0,
+                    NO_DEADLINE);
+            assertNull(progress.getErrors().toString(), progress.getResumeFrom());
+            assertEquals(3, progress.getProfiles());
+            progress = BulkData.importRecords(new StringReader(conferences), format, 0,
+                    NO_DEADLINE);
+            assertNull(progress.getFailure());
+            assertEquals(progress.getErrors().toString(), 0, progress.getRejected());
+            assertEquals(5, progress.getConferences());
+
+            Profile profile = ofy().load().key(Key.create(Profile.class, "user1")).now();
+            assertEquals("User 1", profile.getDisplayName());
+            assertEquals(TeeShirtSize.M, profile.getTeeShirtSize());
+            List<Conference> imported = conferences();
+            assertEquals(5, imported.size());
+            for (Conference conference : imported) {
+                int i = (int) conference.getId() - 1;
+                assertEquals("Conference " + i, conference.getName());
+                assertEquals("Line\nbreak", conference.getDescription());
+                assertEquals(Arrays.asList("Cloud", "Java"), conference.getTopics());
+                assertEquals(dateFormat.parse("03/25/2014"), conference.getStartDate());
+                assertEquals(3, conference.getMonth());
+                assertEquals("User " + (i % 3), conference.getOrganizerDisplayName());
+                assertEquals(Integer.valueOf(90 - i),
+                        SeatInventory.seatsAvailable(Key.create(conference)));
+            }
+        }
+    }
+
+    @Test
+    public void testImportsCsvAndRejectsBadRecords() throws Exception {
+        String csv = "kind,userId,displayName,organizerUserId,name,description,topics,"
+                + "maxAttendees\r\n"
+                + "Profile,organizer,Organizer,,,,,\r\n"
+                + "Conference,,,organizer,First,\"Commas, \"\"quotes\"\"\",Cloud;Java,10\r\n"
+                + "Conference,,,organizer,,No name,,10\r\n"
+                + "Conference,,,organizer,Second,,,not a number\r\n"
+                + "Speaker,someone,,,,,,\r\n"
+                + "Conference,,,organizer,Third\r\n"
+                + "\r\n"
+                + "Conference,,,organizer,Fourth,,,20\r\n";
+        Progress progress = BulkData.importRecords(new StringReader(csv), Format.CSV, 0,
+                NO_DEADLINE, ONE_CONFERENCE);
+        assertNull(progress.getResumeFrom());
+        assertEquals(7, progress.getRead());
+        assertEquals(1, progress.getProfiles());
+        assertEquals(2, progress.getConferences());
+        assertEquals(3, progress.getChunks());
+        assertEquals(4, progress.getRejected());
+        assertEquals(4, progress.getErrors().size());
+        assertTrue(progress.getErrors().get(0).startsWith("Record 2: name is required"));
+        assertTrue(progress.toJson().contains("\"resumeFrom\":null"));
+
+        List<Conference> conferences = conferences();
+        assertEquals(2, conferences.size());
+        Conference first = conferences.get(0).getName().equals("First")
+                ? conferences.get(0) : conferences.get(1);
+        assertEquals("Commas, \"quotes\"", first.getDescription());
+        assertEquals(Arrays.asList("Cloud", "Java"), first.getTopics());
+        assertEquals("Organizer", first.getOrganizerDisplayName());
+        assertTrue(first.hasOrganizerDisplayName());
+        assertEquals(Integer.valueOf(10), SeatInventory.seatsAvailable(Key.create(first)));
+        assertNotEquals(conferences.get(0).getId(), conferences.get(1).getId());
+    }
+
+    @Test
+    public void testResumesAfterFailure() throws Exception {
+        StringBuilder ndjson = new StringBuilder(
+                "{\"kind\":\"Profile\",\"userId\":\"organizer\",\"displayName\":\"O\"}\n");
+        for (int i = 1; i <= 4; i++) {
+            ndjson.append("{\"kind\":\"Conference\",\"id\":").append(i)
+                    .append(",\"organizerUserId\":\"organizer\",\"name\":\"Conference ")
+                    .append(i).append("\",\"maxAttendees\":10,\"seatsAvailable\":7}\n");
+        }
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        Progress progress;
+        try {
+            // The profile's put, the first conference's two puts, one per entity group, then
+            // the second conference's.
+            counter.failCall("datastore_v3", "Put", 4);
+            progress = BulkData.importRecords(new StringReader(ndjson.toString()),
+                    Format.NDJSON, 0, NO_DEADLINE, ONE_CONFERENCE);
+        } finally {
+            counter.uninstall();
+        }
+        assertNotNull(progress.getFailure());
+        assertEquals(Long.valueOf(2), progress.getResumeFrom());
+        assertEquals(1, progress.getProfiles());
+        assertEquals(1, progress.getConferences());
+        assertEquals(1, conferences().size());
+
+        progress = BulkData.importRecords(new StringReader(ndjson.toString()), Format.NDJSON,
+                progress.getResumeFrom(), NO_DEADLINE, ONE_CONFERENCE);
+        assertNull(progress.getFailure());
+        assertNull(progress.getResumeFrom());
+        assertEquals(3, progress.getRead());
+        assertEquals(3, progress.getConferences());
+        List<Conference> conferences = conferences();
+        assertEquals(4, conferences.size());
+        for (Conference conference : conferences) {
+            assertEquals(Integer.valueOf(7), SeatInventory.seatsAvailable(Key.create(conference)));
+        }
+
+        // Out of time at once: nothing is read, and the import resumes where it started.
+        progress = BulkData.importRecords(new StringReader(ndjson.toString()), Format.NDJSON,
+                1, -1);
+        assertEquals(0, progress.getRead());
+        assertEquals(Long.valueOf(1), progress.getResumeFrom());
+    }
+}
@@ -0,0 +1,314 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
+import com.google.devrel.training.conference.service.ConferenceQueryCache.CachedPage;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for ConferenceIndex.
+ */
+public class ConferenceIndexTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        ConferenceIndex.clear();
+        // Conference i starts in month i + 1 and has 10 * (i + 1) seats.
+        for (int i = 0; i < 6; i++) {
+            save(i + 1, "Conference " + i, i % 2 == 0 ? "London" : "Paris",
+                    i < 3 ? Arrays.asList("Web", "Mobile") : Arrays.asList("Medical"),
+                    i + 1, 10 * (i + 1));
+        }
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceIndex.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static Conference save(long id, String name, String city, List<String> topics,
+                                   int month, int maxAttendees) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2015, month - 1, 1);
+        Date startDate = calendar.getTime();
+        Conference conference = new Conference(id, USER_ID, new ConferenceForm(
+                name, null, topics, city, startDate, startDate, maxAttendees));
+        conference.save();
+        return conference;
+    }
+
+    private static List<String> names(CachedPage page) {
+        List<String> names = new ArrayList<>();
+        for (Conference conference : EntityCache.load(page.getKeys()).values()) {
+            names.add(conference.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testInequalitiesOnSeveralFields() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.GT, "1"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.LTEQ, "50"))
+                .filter(new Filter(Field.CITY, Operator.NE, "Paris"));
+        assertFalse(form.isDatastoreQuery());
+        assertEquals(Arrays.asList("Conference 2", "Conference 4"),
+                names(ConferenceIndex.query(form)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDatastoreRejectsInequalitiesOnSeveralFields() throws Exception {
+        new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.GT, "1"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "50"))
+                .getQuery();
+    }
+
+    @Test
+    public void testTopicMatchesAnyTopic() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.TOPIC, Operator.EQ, "Mobile"))
+                .filter(new Filter(Field.MONTH, Operator.GTEQ, "2"));
+        assertEquals(Arrays.asList("Conference 1", "Conference 2"),
+                names(ConferenceIndex.query(form)));
+        // As in the datastore, a conference with any topic other than Web matches.
+        form = new ConferenceQueryForm()
+                .filter(new Filter(Field.TOPIC, Operator.NE, "Web"))
+                .filter(new Filter(Field.MONTH, Operator.LT, "3"));
+        assertEquals(Arrays.asList("Conference 0", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            CachedPage page = ConferenceIndex.query(new ConferenceQueryForm()
+                    .filter(new Filter(Field.MONTH, Operator.GT, "1"))
+                    .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "1000"))
+                    .pageSize(2)
+                    .cursor(cursor));
+            names.addAll(names(page));
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(Arrays.asList("Conference 1", "Conference 2", "Conference 3",
+                "Conference 4", "Conference 5"), names);
+    }
+
+    @Test
+    public void testUpdatedFromWrites() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.LT, "3"))
+                .filter(new Filter(Field.SEATS_AVAILABLE, Operator.GTEQ, "10"));
+        assertEquals(Arrays.asList("Conference 0", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+
+        // Saved and renamed conferences are indexed without a rebuild.
+        save(7, "A new conference", "Tokyo", null, 1, 500);
+        Conference renamed = save(2, "Renamed", "Paris", null, 2, 20);
+        assertEquals(Arrays.asList("A new conference", "Conference 0", "Renamed"),
+                names(ConferenceIndex.query(form)));
+
+        // So are booked seats.
+        ConferenceIndex.seatsChanged(Key.create(renamed), -15);
+        assertEquals(Arrays.asList("A new conference", "Conference 0"),
+                names(ConferenceIndex.query(form)));
+    }
+
+    @Test
+    public void testUpdatedOnlyByCommittedWrites() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.LT, "3"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "0"));
+        assertEquals(Arrays.asList("Conference 0", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+
+        final Key<Conference> key = Key.create(Key.create(Profile.class, USER_ID),
+                Conference.class, 1);
+        try {
+            Transactions.run("rename", new VoidWork() {
+                @Override
+                public void vrun() {
+                    Conference conference = ofy().load().key(key).now();
+                    conference.updateWithConferenceForm(new ConferenceForm(
+                            "Renamed", null, null, "London", null, null, 10));
+                    // Written before the commit, which fails.
+                    ofy().save().entity(conference).now();
+                    throw new IllegalStateException("abort");
+                }
+            });
+            fail("committed");
+        } catch (IllegalStateException expected) {
+        }
+        ofy().clear();
+        assertEquals(Arrays.asList("Conference 0", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+
+        Transactions.run("rename", new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference conference = ofy().load().key(key).now();
+                conference.updateWithConferenceForm(new ConferenceForm(
+                        "Renamed", null, null, "London", null, null, 10));
+                conference.save();
+            }
+        });
+        assertEquals(Arrays.asList("Conference 1", "Renamed"),
+                names(ConferenceIndex.query(form)));
+    }
+
+    @Test
+    public void testConferencesWithoutNameComeFirst() throws Exception {
+        // Stored without a name, as the constructor would not allow.
+        Entity entity = DatastoreServiceFactory.getDatastoreService().get(
+                Key.create(Profile.class, USER_ID).getRaw().getChild("Conference", 2L));
+        entity.setProperty("name", null);
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+        EntityCache.clear();
+        ofy().clear();
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.LT, "3"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "0"));
+        assertEquals(Arrays.asList(null, "Conference 0"), names(ConferenceIndex.query(form)));
+    }
+
+    @Test
+    public void testCatchesUpWithOtherInstances() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.LT, "3"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "0"));
+        assertEquals(Arrays.asList("Conference 0", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+
+        // Rename a conference as another instance would, without indexing it here.
+        Entity entity = DatastoreServiceFactory.getDatastoreService().get(
+                Key.create(Profile.class, USER_ID).getRaw().getChild("Conference", 1L));
+        entity.setProperty("name", "Renamed elsewhere");
+        entity.setProperty("updatedAt", new Date());
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        EntityCache.clear();
+        ofy().clear();
+        // Still ordered by the name indexed.
+        assertEquals(Arrays.asList("Renamed elsewhere", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+
+        ConferenceIndex.catchUp(System.currentTimeMillis() + ConferenceIndex.CATCH_UP_MILLIS);
+        assertEquals(Arrays.asList("Conference 1", "Renamed elsewhere"),
+                names(ConferenceIndex.query(form)));
+    }
+
+    @Test
+    public void testCatchUpKeepsSeatsBooked() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.LT, "3"))
+                .filter(new Filter(Field.SEATS_AVAILABLE, Operator.GTEQ, "10"));
+        assertEquals(Arrays.asList("Conference 0", "Conference 1"),
+                names(ConferenceIndex.query(form)));
+        Key<Conference> key = Key.create(Key.create(Profile.class, USER_ID),
+                Conference.class, 2);
+        ConferenceIndex.seatsChanged(key, -15);
+
+        // Renamed elsewhere, with the seats stored before the booking.
+        Entity entity = DatastoreServiceFactory.getDatastoreService().get(key.getRaw());
+        entity.setProperty("name", "Renamed elsewhere");
+        entity.setProperty("updatedAt", new Date());
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+        EntityCache.clear();
+        ofy().clear();
+        ConferenceIndex.catchUp(System.currentTimeMillis() + ConferenceIndex.CATCH_UP_MILLIS);
+        assertEquals(Arrays.asList("Conference 0"), names(ConferenceIndex.query(form)));
+    }
+
+    @Test
+    public void testQueryConferencesUsesIndex() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.LTEQ, "4"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "20"))
+                .pageSize(1);
+        CollectionResponse<Conference> response = new ConferenceApi().queryConferences(form);
+        assertEquals(1, response.getItems().size());
+        assertEquals("Conference 2", response.getItems().iterator().next().getName());
+        assertEquals(form.pageToken(View.CONFERENCES, ConferenceIndex.PAGE_TOKEN_PREFIX + 1),
+                response.getNextPageToken());
+    }
+
+    @Test
+    public void testQueriesWhilePutting() throws Exception {
+        final ConferenceIndex.Table table = new ConferenceIndex.Table(System.currentTimeMillis());
+        final List<Conference> conferences = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            conferences.add(new Conference(100 + i, USER_ID, new ConferenceForm(
+                    "Conference " + i, null, null, "London", null, null, 10)));
+            table.put(conferences.get(i));
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Every rename makes the order by name stale.
+                for (int n = 0; !stop.get(); n++) {
+                    Conference conference = conferences.get(n % conferences.size());
+                    conference.updateWithConferenceForm(new ConferenceForm(
+                            "Renamed " + n, null, null, "London", null, null, 10));
+                    table.put(conference);
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(conferences.size(),
+                        table.query(new ArrayList<Filter>(), 0, 100).size());
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ConferenceQueryCache.
+ */
+public class ConferenceQueryCacheTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private ApiCallCounter counter;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        conferenceApi = new ConferenceApi();
+        for (int i = 0; i < 3; i++) {
+            new Conference(i + 1, USER_ID, new ConferenceForm(
+                    "Conference " + i, null, null, "London", null, null, 100)).save();
+        }
+        ofy().clear();
+        counter = ApiCallCounter.install();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        counter.uninstall();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static ConferenceQueryForm londonQuery() {
+        return new ConferenceQueryForm().filter(new Filter(Field.CITY, Operator.EQ, "London"));
+    }
+
+    @Test
+    public void testCacheHitRunsNoQuery() throws Exception {
+        long hits = ConferenceQueryCache.getHitCount();
+        long misses = ConferenceQueryCache.getMissCount();
+        CollectionResponse<Conference> first = conferenceApi.queryConferences(londonQuery());
+        assertEquals(3, first.getItems().size());
+        assertEquals(1, counter.count("datastore_v3", "RunQuery"));
+        assertEquals(misses + 1, ConferenceQueryCache.getMissCount());
+
+        ofy().clear();
+        counter.reset();
+        CollectionResponse<Conference> second = conferenceApi.queryConferences(londonQuery());
+        assertEquals(3, second.getItems().size());
+        assertEquals(0, counter.count("datastore_v3", "RunQuery"));
+        assertEquals(hits + 1, ConferenceQueryCache.getHitCount());
+    }
+
+    @Test
+    public void testFilterOrderDoesNotMatter() throws Exception {
+        ConferenceQueryForm form = londonQuery()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"));
+        ConferenceQueryForm reordered = new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"))
+                .filter(new Filter(Field.CITY, Operator.EQ, "London"));
+        assertEquals(ConferenceQueryCache.cacheKey(form),
+                ConferenceQueryCache.cacheKey(reordered));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        String allFieldsKey = ConferenceQueryCache.cacheKey(londonQuery());
+        ConferenceQueryCache.invalidate(ConferenceQueryCache.SEATS_AVAILABLE);
+        assertEquals(allFieldsKey, ConferenceQueryCache.cacheKey(londonQuery()));
+
+        ConferenceQueryCache.invalidate(Field.CITY.getFieldName());
+        String cityKey = ConferenceQueryCache.cacheKey(londonQuery());
+        assertNotEquals(allFieldsKey, cityKey);
+
+        ConferenceQueryCache.invalidate(ConferenceQueryCache.ALL_FIELDS);
+        assertNotEquals(cityKey, ConferenceQueryCache.cacheKey(londonQuery()));
+    }
+}
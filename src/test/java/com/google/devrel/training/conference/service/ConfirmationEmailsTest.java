@@ -0,0 +1,127 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.mail.MailServicePb.MailMessage;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMailServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ApiMetrics.EndpointMetrics;
+import com.google.devrel.training.conference.service.ApiMetrics.Operation;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for ConfirmationEmails.
+ */
+public class ConfirmationEmailsTest {
+
+    private static final String EMAIL = "organizer@gmail.com";
+
+    private static final String USER_ID = "organizer";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig()
+                    .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"),
+            new LocalMailServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        ApiMetrics.install();
+        new Profile(USER_ID, "Organizer", EMAIL, TeeShirtSize.NOT_SPECIFIED).save();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static int queued() {
+        return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+                .get(ConfirmationEmails.QUEUE_NAME).getCountTasks();
+    }
+
+    private static List<MailMessage> sentMessages() {
+        return LocalMailServiceTestConfig.getLocalMailService().getSentMessages();
+    }
+
+    private static Key<Conference> conference(long id) {
+        Conference conference = new Conference(id, USER_ID, new ConferenceForm(
+                "Conference " + id, null, null, "London", null, null, 10));
+        conference.save();
+        return Key.create(conference);
+    }
+
+    @Test
+    public void testCreateConferenceQueuesEmail() throws Exception {
+        new ConferenceApi().createConference(new User(EMAIL, "gmail.com", USER_ID),
+                new ConferenceForm("GCP Live", null, null, "London", null, null, 100));
+        assertEquals(1, queued());
+        assertTrue(sentMessages().isEmpty());
+
+        assertEquals(1, ConfirmationEmails.drain());
+        assertEquals(0, queued());
+        assertEquals(1, sentMessages().size());
+        assertEquals(EMAIL, sentMessages().get(0).getTo(0));
+        assertTrue(sentMessages().get(0).getTextBody().contains("GCP Live"));
+    }
+
+    @Test
+    public void testSendsInBatches() throws Exception {
+        int emails = ConfirmationEmails.BATCH_SIZE + ConfirmationEmails.BATCH_SIZE / 2;
+        for (int i = 1; i <= emails; i++) {
+            ConfirmationEmails.enqueue(conference(i));
+        }
+        ofy().clear();
+        EndpointMetrics metrics = ApiMetrics.getEndpoint(ConfirmationEmails.METRICS_NAME);
+        long calls = metrics == null ? 0 : metrics.getCalls();
+        long mails = metrics == null ? 0 : metrics.getOperations(Operation.MAIL);
+        long loads = metrics == null ? 0 : metrics.getOperations(Operation.LOAD);
+
+        assertEquals(emails, ConfirmationEmails.drain());
+        assertEquals(0, queued());
+        assertEquals(emails, sentMessages().size());
+
+        metrics = ApiMetrics.getEndpoint(ConfirmationEmails.METRICS_NAME);
+        assertEquals(2, metrics.getCalls() - calls);
+        assertEquals(0, metrics.getErrors());
+        assertEquals(emails, metrics.getOperations(Operation.MAIL) - mails);
+        // The conferences and the organizer of a batch are loaded in two batch gets.
+        assertTrue(metrics.getOperations(Operation.LOAD) - loads <= 4);
+    }
+
+    @Test
+    public void testDropsDeletedConference() throws Exception {
+        Key<Conference> conferenceKey = conference(1);
+        ConfirmationEmails.enqueue(conferenceKey);
+        ofy().delete().key(conferenceKey).now();
+        EntityCache.clear();
+
+        ConfirmationEmails.Batch batch = ConfirmationEmails.sendBatch();
+        assertEquals(1, batch.getLeased());
+        assertEquals(1, batch.getDropped());
+        assertEquals(0, batch.getSent());
+        assertEquals(0, queued());
+        assertTrue(sentMessages().isEmpty());
+    }
+}
@@ -0,0 +1,122 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for EntityCache.
+ */
+public class EntityCacheTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private Key<Profile> key;
+
+    private ApiCallCounter counter;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        Profile profile = new Profile("user", "Name", "user@gmail.com", TeeShirtSize.M);
+        ofy().save().entity(profile).now();
+        key = Key.create(profile);
+        // Let the save's write grace period pass without waiting.
+        EntityCache.clear();
+        ofy().clear();
+        counter = ApiCallCounter.install();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        counter.uninstall();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testHitMakesNoRpc() throws Exception {
+        long hits = EntityCache.getHitCount();
+        assertEquals("Name", EntityCache.load(key).getDisplayName());
+        ofy().clear();
+        counter.reset();
+        Profile cached = EntityCache.load(key);
+        assertEquals("Name", cached.getDisplayName());
+        assertEquals(0, counter.count("datastore_v3", "Get"));
+        assertEquals(0, counter.count("memcache", "Get"));
+        assertEquals(hits + 1, EntityCache.getHitCount());
+
+        // Every hit is a copy of its own.
+        cached.update("Changed", TeeShirtSize.L);
+        EntityCache.clear();
+        ofy().clear();
+        assertEquals("Changed", EntityCache.load(key).getDisplayName());
+    }
+
+    @Test
+    public void testSaveInvalidates() throws Exception {
+        EntityCache.load(key);
+        Profile profile = EntityCache.load(key);
+        profile.update("New name", TeeShirtSize.M);
+        ofy().clear();
+        assertEquals("New name", EntityCache.load(key).getDisplayName());
+    }
+
+    @Test
+    public void testTransactionsBypassCache() throws Exception {
+        EntityCache.load(key);
+        // Change the Profile behind the cache's back.
+        Profile profile = ofy().load().key(key).now();
+        ofy().clear();
+        ofy().save().entity(profile).now();
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                counter.reset();
+                EntityCache.load(key);
+                assertEquals(1, counter.count("datastore_v3", "Get"));
+            }
+        });
+    }
+
+    @Test
+    public void testBatchLoadKeepsOrderAndSkipsMissing() throws Exception {
+        EntityCache.load(key);
+        ofy().clear();
+        List<Key<Profile>> keys = new ArrayList<>();
+        keys.add(Key.create(Profile.class, "missing"));
+        keys.add(key);
+        Profile other = new Profile("other", "Other", "other@gmail.com", TeeShirtSize.S);
+        ofy().save().entity(other).now();
+        keys.add(0, Key.create(other));
+        ofy().clear();
+
+        counter.reset();
+        Map<Key<Profile>, Profile> loaded = EntityCache.load(keys);
+        assertEquals(2, loaded.size());
+        assertEquals("Other", loaded.values().iterator().next().getDisplayName());
+        assertTrue(loaded.containsKey(key));
+        // Only the keys not cached are loaded, in one batch.
+        assertEquals(1, counter.count("datastore_v3", "Get"));
+    }
+}
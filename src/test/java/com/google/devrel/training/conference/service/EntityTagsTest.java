@@ -0,0 +1,185 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.EntityTags.ConditionalRequest;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for EntityTags.
+ */
+public class EntityTagsTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig()
+                    .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    private User user;
+
+    private String websafeConferenceKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        user = new User("example@gmail.com", "gmail.com", USER_ID);
+        new Profile(USER_ID, "Attendee", "example@gmail.com", TeeShirtSize.NOT_SPECIFIED)
+                .save();
+        Conference conference = new Conference(1, "organizer", new ConferenceForm(
+                "Conference", null, null, "London", null, null, 10));
+        conference.setOrganizerDisplayName("Organizer");
+        conference.save();
+        ofy().save().entities(SeatInventory.createShards(conference)).now();
+        websafeConferenceKey = conference.getWebsafeKey();
+        ofy().clear();
+        // As if the saves had long committed: no tombstones keeping ETags from the cache.
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Gets the conference as ConditionalGetFilter would, returning the ETag of the response.
+     */
+    private String getConference(String ifNoneMatch, boolean notModified) throws Exception {
+        ConditionalRequest request = EntityTags.begin(ifNoneMatch);
+        try {
+            Conference conference = conferenceApi.getConference(websafeConferenceKey);
+            assertEquals(notModified, request.isNotModified());
+            if (!notModified) {
+                assertEquals(conference.getETag(), request.getETag());
+            }
+            return request.getETag();
+        } finally {
+            request.end();
+        }
+    }
+
+    @Test
+    public void testNotModifiedWithoutLoading() throws Exception {
+        String etag = getConference(null, false);
+        assertNotNull(etag);
+        ofy().clear();
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            assertEquals(etag, getConference(etag, true));
+            // Only the cached ETag is read.
+            assertEquals(0, counter.count("datastore_v3", "Get"));
+            assertEquals(1, counter.count("memcache", "Get"));
+        } finally {
+            counter.uninstall();
+        }
+        assertEquals(etag, getConference("\"other\", W/" + etag, true));
+        assertEquals(etag, getConference("*", true));
+    }
+
+    @Test
+    public void testSeatsChangeETag() throws Exception {
+        String etag = getConference(null, false);
+        conferenceApi.registerForConference(user, websafeConferenceKey);
+        ofy().clear();
+        String registered = getConference(etag, false);
+        assertNotEquals(etag, registered);
+        // Not cached again until the registration has surely committed, but still matched.
+        assertEquals(registered, getConference(registered, true));
+    }
+
+    @Test
+    public void testRawSavesChangeETag() throws Exception {
+        String etag = getConference(null, false);
+        // Written back without save(), as the organizer display names are.
+        Conference conference = ofy().load().key(Key.<Conference>create(websafeConferenceKey))
+                .now();
+        conference.setOrganizerDisplayName("Renamed");
+        ofy().save().entity(conference).now();
+        ofy().clear();
+        EntityCache.clear();
+        String renamed = getConference(etag, false);
+        assertNotEquals(etag, renamed);
+    }
+
+    @Test
+    public void testResolvedDisplayNamesChangeETag() throws Exception {
+        Conference conference = new Conference(2, USER_ID, new ConferenceForm(
+                "Conference", null, null, "London", null, null, 10));
+        conference.save();
+        ofy().save().entities(SeatInventory.createShards(conference)).now();
+        websafeConferenceKey = conference.getWebsafeKey();
+        ofy().clear();
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+
+        String etag = getConference(null, false);
+        ofy().clear();
+        // Not cached, as renaming the organizer does not invalidate it, but still matched.
+        assertEquals(etag, getConference(etag, true));
+        ofy().clear();
+        Profile organizer = EntityCache.load(Key.create(Profile.class, USER_ID));
+        organizer.update("Renamed", null);
+        organizer.save();
+        ofy().clear();
+        assertNotEquals(etag, getConference(etag, false));
+    }
+
+    @Test
+    public void testSavesChangeETag() throws Exception {
+        Key<Profile> key = Key.create(Profile.class, USER_ID);
+        Profile profile = EntityCache.load(key);
+        String etag = profile.getETag();
+        profile.update(null, null);
+        assertEquals(etag, profile.getETag());
+        profile.update("Renamed", null);
+        assertNotEquals(etag, profile.getETag());
+
+        ConditionalRequest request = EntityTags.begin(etag);
+        try {
+            assertEquals("Renamed", conferenceApi.getProfile(user).getDisplayName());
+            assertFalse(request.isNotModified());
+            assertEquals(profile.getETag(), request.getETag());
+        } finally {
+            request.end();
+        }
+    }
+
+    @Test
+    public void testOutsideConditionalRequests() throws Exception {
+        Key<Profile> key = Key.create(Profile.class, USER_ID);
+        assertFalse(EntityTags.notModified(key));
+        // Not cached by other API methods getting the profile.
+        conferenceApi.getProfile(user);
+        ConditionalRequest request = EntityTags.begin("*");
+        try {
+            assertFalse(EntityTags.notModified(key));
+        } finally {
+            request.end();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.base.Strings;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.IdempotencyRecord;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.IdempotencyKeys.IdempotentRequest;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+
+/**
+ * Tests for IdempotencyKeys.
+ */
+public class IdempotencyKeysTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig()
+                    .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    private final User user = new User("user@gmail.com", "gmail.com", "user");
+
+    private ConferenceApi conferenceApi;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        conferenceApi = new ConferenceApi();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Ends whatever request a test left on the thread.
+        IdempotencyKeys.begin(null).end();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private ConferenceForm form() {
+        return new ConferenceForm("Retried", null, null, "London", null, null, 10);
+    }
+
+    @Test
+    public void testRetriedCreateConferenceCreatesOne() throws Exception {
+        IdempotentRequest request = IdempotencyKeys.begin("create-1");
+        Conference created = conferenceApi.createConference(user, form());
+        request.end();
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            request = IdempotencyKeys.begin("create-1");
+            Conference retried = conferenceApi.createConference(user, form());
+            request.end();
+            assertEquals(created.getWebsafeKey(), retried.getWebsafeKey());
+            // Answered from memcache, without a transaction or a write.
+            assertEquals(0, counter.count("datastore_v3", "BeginTransaction"));
+            assertEquals(0, counter.count("datastore_v3", "Put"));
+        } finally {
+            counter.uninstall();
+        }
+
+        // Evicted from memcache, the result is in the datastore.
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        request = IdempotencyKeys.begin("create-1");
+        assertEquals(created.getWebsafeKey(),
+                conferenceApi.createConference(user, form()).getWebsafeKey());
+        request.end();
+        assertEquals(1, ofy().load().type(Conference.class).count());
+
+        // Another key creates another conference.
+        request = IdempotencyKeys.begin("create-2");
+        assertNotEquals(created.getWebsafeKey(),
+                conferenceApi.createConference(user, form()).getWebsafeKey());
+        request.end();
+        assertEquals(2, ofy().load().type(Conference.class).count());
+    }
+
+    @Test
+    public void testRetriedRegistrationSucceeds() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("User", TeeShirtSize.M));
+        String websafeKey = conferenceApi.createConference(user, form()).getWebsafeKey();
+
+        IdempotentRequest request = IdempotencyKeys.begin("register-1");
+        assertTrue(conferenceApi.registerForConference(user, websafeKey).getResult());
+        request.end();
+        request = IdempotencyKeys.begin("register-1");
+        assertTrue(conferenceApi.registerForConference(user, websafeKey).getResult());
+        request.end();
+        assertEquals(1, ofy().load().type(Registration.class).count());
+
+        // Without the key, registering again is a conflict.
+        try {
+            conferenceApi.registerForConference(user, websafeKey);
+            fail("registered twice");
+        } catch (ConflictException expected) {
+        }
+    }
+
+    @Test
+    public void testFailedRequestReleasesItsKey() throws Exception {
+        Key<Profile> profileKey = Key.create(Profile.class, "user");
+        IdempotentRequest first = IdempotencyKeys.begin("key");
+        assertNull(IdempotencyKeys.replay(profileKey, "method"));
+
+        IdempotentRequest concurrent = IdempotencyKeys.begin("key");
+        try {
+            IdempotencyKeys.replay(profileKey, "method");
+            fail("claimed twice");
+        } catch (ConcurrentModificationException expected) {
+        }
+        concurrent.end();
+
+        // The first request fails, so a retry runs again and records its result.
+        first.end();
+        IdempotentRequest retry = IdempotencyKeys.begin("key");
+        assertNull(IdempotencyKeys.replay(profileKey, "method"));
+        IdempotencyKeys.succeeded("result");
+        retry.end();
+        IdempotencyKeys.begin("key");
+        assertEquals("result", IdempotencyKeys.replay(profileKey, "method"));
+
+        // Without a key, every request runs.
+        IdempotencyKeys.begin(null);
+        assertNull(IdempotencyKeys.replay(profileKey, "method"));
+    }
+
+    @Test
+    public void testRecordIsCachedUntilItExpires() throws Exception {
+        Key<Profile> profileKey = Key.create(Profile.class, "user");
+        ofy().save().entity(new IdempotencyRecord(profileKey, "method", "key", "result",
+                new Date(System.currentTimeMillis() + 1000))).now();
+        IdempotencyKeys.begin("key");
+        assertEquals("result", IdempotencyKeys.replay(profileKey, "method"));
+        ofy().delete().key(IdempotencyRecord.key(profileKey, "method", "key")).now();
+
+        // Not replayed from memcache once the record would have expired.
+        Thread.sleep(2100);
+        IdempotencyKeys.begin("key");
+        assertNull(IdempotencyKeys.replay(profileKey, "method"));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testLongKeyIsRejected() throws Exception {
+        IdempotencyKeys.begin(Strings.repeat("k", IdempotencyKeys.MAX_KEY_LENGTH + 1));
+        conferenceApi.createConference(user, form());
+    }
+
+    @Test
+    public void testPurgesExpiredRecords() throws Exception {
+        Key<Profile> profileKey = Key.create(Profile.class, "user");
+        long now = System.currentTimeMillis();
+        ofy().save().entities(
+                new IdempotencyRecord(profileKey, "method", "expired", "result",
+                        new Date(now - 1000)),
+                new IdempotencyRecord(profileKey, "method", "live", "result",
+                        new Date(now + 60000))).now();
+        assertEquals(1, IdempotencyKeys.purgeExpired(10));
+        assertNotNull(ofy().load().key(IdempotencyRecord.key(profileKey, "method", "live"))
+                .now());
+
+        // An expired record is not replayed.
+        ofy().save().entity(new IdempotencyRecord(profileKey, "method", "expired", "result",
+                new Date(now - 1000))).now();
+        IdempotencyKeys.begin("expired");
+        assertNull(IdempotencyKeys.replay(profileKey, "method"));
+    }
+}
@@ -0,0 +1,118 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for NearlySoldOut.
+ */
+public class NearlySoldOutTest {
+
+    private static final String ORGANIZER_ID = "organizer";
+
+    private static final int CAP = NearlySoldOut.MAX_SEATS + 2;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private Conference popular;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        conferenceApi = new ConferenceApi();
+        popular = new Conference(1, ORGANIZER_ID, new ConferenceForm(
+                "Popular", null, null, "London", null, null, CAP));
+        popular.save();
+        new Conference(2, ORGANIZER_ID, new ConferenceForm(
+                "Roomy", null, null, "London", null, null, 1000)).save();
+        for (int i = 0; i < CAP; i++) {
+            new Profile(userId(i), "Attendee " + i, userId(i) + "@gmail.com",
+                    TeeShirtSize.NOT_SPECIFIED).save();
+        }
+        ofy().clear();
+        NearlySoldOut.rebuild();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static String userId(int i) {
+        return "attendee" + i;
+    }
+
+    private static User user(int i) {
+        return new User(userId(i) + "@gmail.com", "gmail.com", userId(i));
+    }
+
+    private static String announcement() {
+        return (String) MemcacheServiceFactory.getMemcacheService()
+                .get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+    }
+
+    @Test
+    public void testFollowsRegistrations() throws Exception {
+        assertNull(announcement());
+        conferenceApi.registerForConference(user(0), popular.getWebsafeKey());
+        assertNull(announcement());
+
+        // Down to MAX_SEATS seats.
+        conferenceApi.registerForConference(user(1), popular.getWebsafeKey());
+        assertEquals("Last chance to attend! The following conferences are nearly sold out: "
+                + "Popular", announcement());
+        assertTrue(NearlySoldOut.get().containsKey(popular.getWebsafeKey()));
+
+        // Sold out.
+        for (int i = 2; i < CAP; i++) {
+            conferenceApi.registerForConference(user(i), popular.getWebsafeKey());
+        }
+        assertNull(announcement());
+        assertTrue(NearlySoldOut.get().isEmpty());
+
+        conferenceApi.unregisterFromConference(user(0), popular.getWebsafeKey());
+        assertTrue(announcement().endsWith("Popular"));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        new Conference(3, ORGANIZER_ID, new ConferenceForm(
+                "Small", null, null, "Paris", null, null, 3)).save();
+        new Conference(4, ORGANIZER_ID, new ConferenceForm(
+                "Full", null, null, "Paris", null, null, 0)).save();
+        for (int i = 0; i < 2; i++) {
+            conferenceApi.registerForConference(user(i), popular.getWebsafeKey());
+        }
+        // As if the set was evicted from memcache.
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+
+        NearlySoldOut.rebuild();
+        // Popular's seats available were written back when it became nearly sold out.
+        assertEquals(2, NearlySoldOut.get().size());
+        assertEquals("Last chance to attend! The following conferences are nearly sold out: "
+                + "Popular, Small", announcement());
+    }
+}
@@ -0,0 +1,184 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.service.QueryStrategies.Strategy;
+import com.google.devrel.training.conference.service.QueryStrategies.StrategyMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Tests for the projection queries of QueryPlan.
+ */
+public class QueryPlanTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        // Half of the conferences are in London, the first five about the Web, and the last
+        // one has no start date.
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2026, Calendar.MARCH, 1);
+        for (int i = 0; i < 10; i++) {
+            calendar.add(Calendar.DAY_OF_MONTH, 3);
+            new Conference(i + 1, USER_ID, new ConferenceForm(
+                    "Conference " + i, "Description " + i,
+                    i < 5 ? Arrays.asList("Web", "Cloud") : null,
+                    i % 2 == 0 ? "London" : "Paris", i < 9 ? calendar.getTime() : null, null,
+                    10 * (i + 1))).save();
+        }
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        QueryStrategies.setStrategy(null);
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static ConferenceQueryForm form(Filter... filters) {
+        ConferenceQueryForm form = new ConferenceQueryForm();
+        for (Filter filter : filters) {
+            form.filter(filter);
+        }
+        return form;
+    }
+
+    /**
+     * Returns what the cards of all the card pages show, and the number of pages.
+     */
+    private static List<String> allCardPages(Filter[] filters, int pageSize) {
+        List<String> cards = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ConferenceQueryForm form = form(filters).pageSize(pageSize).cursor(cursor);
+            QueryPlan.CardPage page = QueryPlanner.plan(form).executeCards(form);
+            for (ConferenceCard card : page.getCards()) {
+                cards.add(describe(card));
+            }
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        cards.add(pages + " pages");
+        return cards;
+    }
+
+    /**
+     * Returns what the cards of the conferences of all the pages show, and the number of
+     * pages.
+     */
+    private static List<String> allPages(Filter[] filters, int pageSize) {
+        List<String> cards = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ConferenceQueryForm form = form(filters).pageSize(pageSize).cursor(cursor);
+            QueryPlan.Page page = QueryPlanner.plan(form).execute(form);
+            for (Conference conference : page.getConferences()) {
+                cards.add(describe(ConferenceCard.of(conference)));
+            }
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        cards.add(pages + " pages");
+        return cards;
+    }
+
+    private static String describe(ConferenceCard card) {
+        return String.format("%s %s %s %s %d/%d", card.getWebsafeKey(), card.getName(),
+                card.getCity(), card.getStartDate(), card.getSeatsAvailable(),
+                card.getMaxAttendees());
+    }
+
+    @Test
+    public void testCardsMatchTheConferences() throws Exception {
+        QueryStrategies.setStrategy(Strategy.ENTITIES);
+        StrategyMetrics projection = QueryStrategies.getMetrics(Strategy.PROJECTION);
+        long projectionQueries = projection.getQueries();
+        long entityQueries = QueryStrategies.getMetrics(Strategy.ENTITIES).getQueries();
+        Filter[][] queries = {
+                {},
+                {new Filter(Field.CITY, Operator.EQ, "London")},
+                {new Filter(Field.CITY, Operator.GT, "London")},
+                {new Filter(Field.TOPIC, Operator.EQ, "Web")}};
+        int pages = 0;
+        for (Filter[] filters : queries) {
+            assertNotNull(QueryPlanner.plan(form(filters)).getProjectionIndex());
+            List<String> cards = allCardPages(filters, 2);
+            assertEquals(allPages(filters, 2), cards);
+            pages += Integer.parseInt(cards.get(cards.size() - 1).split(" ")[0]);
+        }
+        List<String> cards = allCardPages(new Filter[0], 3);
+        assertEquals("4 pages", cards.get(10));
+        // The conference without a start date has a card too.
+        assertTrue(cards.get(9).contains(" Paris null 100/100"));
+        // Equality filters on the city are not projected, but the cards still have it.
+        assertTrue(allCardPages(queries[1], 10).get(0).contains(" London "));
+        // Only the card pages ran projection queries.
+        assertEquals(projectionQueries + pages + 5,
+                QueryStrategies.getMetrics(Strategy.PROJECTION).getQueries());
+        assertEquals(entityQueries + pages,
+                QueryStrategies.getMetrics(Strategy.ENTITIES).getQueries());
+    }
+
+    @Test
+    public void testPlansWithoutProjectionIndex() throws Exception {
+        Filter[][] queries = {
+                // Served by (city, month, name), without a projection index.
+                {new Filter(Field.CITY, Operator.EQ, "London"),
+                        new Filter(Field.MONTH, Operator.EQ, "3")},
+                // Filtered in memory.
+                {new Filter(Field.CITY, Operator.EQ, "London"),
+                        new Filter(Field.SEATS_AVAILABLE, Operator.GT, "10")},
+                // A conference would be returned once per topic.
+                {new Filter(Field.TOPIC, Operator.GT, "Cloud")},
+                // Not-equal filters are applied in memory.
+                {new Filter(Field.CITY, Operator.NE, "London")},
+                // Served by ConferenceIndex.
+                {new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"),
+                        new Filter(Field.SEATS_AVAILABLE, Operator.GT, "10")}};
+        for (Filter[] filters : queries) {
+            QueryPlan plan = QueryPlanner.plan(form(filters));
+            assertNull(plan.toString(), plan.getProjectionIndex());
+            try {
+                plan.executeCards(form(filters));
+                fail("ran a projection query without its index");
+            } catch (IllegalStateException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProjectionIsNotAStrategy() throws Exception {
+        QueryStrategies.setStrategy(Strategy.PROJECTION);
+    }
+}
@@ -0,0 +1,178 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for QueryPlanner and QueryPlan.
+ */
+public class QueryPlannerTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final Filter LONDON = new Filter(Field.CITY, Operator.EQ, "London");
+
+    private static final Filter WEB = new Filter(Field.TOPIC, Operator.EQ, "Web");
+
+    private static final Filter SMALL = new Filter(Field.MAX_ATTENDEES, Operator.LT, "50");
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        // Conference i has 10 * (i + 1) seats, half of them in London.
+        for (int i = 0; i < 10; i++) {
+            new Conference(i + 1, USER_ID, new ConferenceForm(
+                    "Conference " + i, null, i < 5 ? Arrays.asList("Web") : null,
+                    i % 2 == 0 ? "London" : "Paris", null, null, 10 * (i + 1))).save();
+        }
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @SafeVarargs
+    private static List<List<String>> indexes(List<String>... indexes) {
+        return Arrays.asList(indexes);
+    }
+
+    @Test
+    public void testParsesIndexes() throws Exception {
+        String xml = "<datastore-indexes autoGenerate=\"false\">"
+                + "<datastore-index kind=\"Conference\" ancestor=\"false\">"
+                + "<property name=\"city\" direction=\"asc\"/>"
+                + "<property name=\"name\" direction=\"asc\"/>"
+                + "</datastore-index>"
+                + "<datastore-index kind=\"Conference\" ancestor=\"true\">"
+                + "<property name=\"name\" direction=\"asc\"/>"
+                + "</datastore-index>"
+                + "<datastore-index kind=\"Conference\" ancestor=\"false\">"
+                + "<property name=\"month\" direction=\"desc\"/>"
+                + "<property name=\"name\" direction=\"asc\"/>"
+                + "</datastore-index>"
+                + "<datastore-index kind=\"Profile\" ancestor=\"false\">"
+                + "<property name=\"name\" direction=\"asc\"/>"
+                + "</datastore-index>"
+                + "</datastore-indexes>";
+        assertEquals(Collections.singletonList(Arrays.asList("city", "name")),
+                QueryPlanner.parseIndexes(
+                        new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+        assertTrue(QueryPlanner.indexes().contains(Arrays.asList("city", "topics", "name")));
+    }
+
+    @Test
+    public void testPushesDownAllFiltersWithMatchingIndex() throws Exception {
+        QueryPlan plan = QueryPlanner.plan(Arrays.asList(WEB, LONDON), indexes(
+                Arrays.asList("city", "name"), Arrays.asList("city", "topics", "name")));
+        assertEquals("[city, topics, name]", plan.getIndex());
+        assertEquals(2, plan.getPushedFilters().size());
+        assertTrue(plan.getPostFilters().isEmpty());
+        assertEquals(Arrays.asList("name"), plan.getOrder());
+    }
+
+    @Test
+    public void testPushesDownMostSelectiveFilters() throws Exception {
+        // The equality on city is more selective than the range on maxAttendees.
+        QueryPlan plan = QueryPlanner.plan(Arrays.asList(SMALL, LONDON), indexes(
+                Arrays.asList("maxAttendees", "name"), Arrays.asList("city", "name")));
+        assertEquals("[city, name]", plan.getIndex());
+        assertEquals(Arrays.asList(LONDON), plan.getPushedFilters());
+        assertEquals(Arrays.asList(SMALL), plan.getPostFilters());
+
+        plan = QueryPlanner.plan(Arrays.asList(SMALL, LONDON), indexes(
+                Arrays.asList("maxAttendees", "name")));
+        assertEquals(Arrays.asList(SMALL), plan.getPushedFilters());
+        assertEquals(Arrays.asList("maxAttendees", "name"), plan.getOrder());
+        assertTrue(plan.getExplanation(), plan.getExplanation().contains("city == London"));
+    }
+
+    @Test
+    public void testFallsBackToBuiltInIndex() throws Exception {
+        // The declared index has an extra property, so it serves neither filter.
+        QueryPlan plan = QueryPlanner.plan(Arrays.asList(LONDON), indexes(
+                Arrays.asList("city", "month", "name")));
+        assertEquals(QueryPlan.BUILT_IN_INDEX, plan.getIndex());
+        assertTrue(plan.getPushedFilters().isEmpty());
+        assertEquals(Arrays.asList(LONDON), plan.getPostFilters());
+    }
+
+    @Test
+    public void testSeveralInequalitiesUseConferenceIndex() throws Exception {
+        List<Filter> filters = Arrays.asList(SMALL,
+                new Filter(Field.MONTH, Operator.GT, "3"));
+        QueryPlan plan = QueryPlanner.plan(filters, QueryPlanner.indexes());
+        assertEquals(QueryPlan.CONFERENCE_INDEX, plan.getIndex());
+        assertEquals(filters, plan.getPostFilters());
+    }
+
+    @Test
+    public void testPostFiltersAndPages() throws Exception {
+        // London and Web are only pushed down one at a time.
+        QueryPlan plan = QueryPlanner.plan(Arrays.asList(LONDON, WEB), indexes(
+                Arrays.asList("city", "name"), Arrays.asList("topics", "name")));
+        assertEquals(1, plan.getPostFilters().size());
+
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            QueryPlan.Page page = plan.execute(new ConferenceQueryForm()
+                    .filter(LONDON).filter(WEB).pageSize(2).cursor(cursor));
+            for (Conference conference : page.getConferences()) {
+                names.add(conference.getName());
+            }
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        assertEquals(Arrays.asList("Conference 0", "Conference 2", "Conference 4"), names);
+        assertEquals(2, pages);
+    }
+
+    @Test
+    public void testQueryConferencesAndExplain() throws Exception {
+        ConferenceApi conferenceApi = new ConferenceApi();
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(LONDON)
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GTEQ, "50"));
+        QueryPlan plan = conferenceApi.explainQueryConferences(form);
+        assertEquals("[city, name]", plan.getIndex());
+        assertEquals(1, plan.getPostFilters().size());
+
+        List<String> names = new ArrayList<>();
+        for (Conference conference : conferenceApi.queryConferences(form).getItems()) {
+            names.add(conference.getName());
+        }
+        assertEquals(Arrays.asList("Conference 4", "Conference 6", "Conference 8"), names);
+    }
+}
@@ -0,0 +1,201 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.QueryStrategies.Strategy;
+import com.google.devrel.training.conference.service.QueryStrategies.StrategyMetrics;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for QueryStrategies.
+ */
+public class QueryStrategiesTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final Filter LONDON = new Filter(Field.CITY, Operator.EQ, "London");
+
+    private static final Filter WEB = new Filter(Field.TOPIC, Operator.EQ, "Web");
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        QueryStrategies.resetHitRate();
+        // Half of the conferences are in London, the first five about the Web.
+        for (int i = 0; i < 10; i++) {
+            new Conference(i + 1, USER_ID, new ConferenceForm(
+                    "Conference " + i, null, i < 5 ? Arrays.asList("Web") : null,
+                    i % 2 == 0 ? "London" : "Paris", null, null, 10 * (i + 1))).save();
+        }
+        ofy().clear();
+        // Forgets the conferences just written, which the cache would not keep yet.
+        EntityCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        QueryStrategies.setStrategy(null);
+        QueryStrategies.resetHitRate();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Returns the names of the conferences of all pages, and the number of pages.
+     */
+    private static List<String> allPages(QueryPlan plan, Filter[] filters, int pageSize) {
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ConferenceQueryForm form = new ConferenceQueryForm().pageSize(pageSize)
+                    .cursor(cursor);
+            for (Filter filter : filters) {
+                form.filter(filter);
+            }
+            QueryPlan.Page page = plan.execute(form);
+            for (Conference conference : page.getConferences()) {
+                names.add(conference.getName());
+            }
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        names.add(pages + " pages");
+        return names;
+    }
+
+    @Test
+    public void testStrategiesReturnTheSamePages() throws Exception {
+        // Web is filtered in memory.
+        Filter[] postFiltered = {LONDON, WEB};
+        QueryPlan postFilteredPlan = QueryPlanner.plan(Arrays.asList(postFiltered),
+                Arrays.asList(Arrays.asList("city", "name")));
+        Filter[] unfiltered = {};
+        QueryPlan unfilteredPlan = QueryPlanner.plan(Arrays.<Filter>asList(),
+                QueryPlanner.indexes());
+
+        QueryStrategies.setStrategy(Strategy.ENTITIES);
+        List<String> postFilteredEntities = allPages(postFilteredPlan, postFiltered, 2);
+        List<String> unfilteredEntities = allPages(unfilteredPlan, unfiltered, 3);
+        QueryStrategies.setStrategy(Strategy.KEYS);
+        assertEquals(postFilteredEntities, allPages(postFilteredPlan, postFiltered, 2));
+        assertEquals(unfilteredEntities, allPages(unfilteredPlan, unfiltered, 3));
+        assertEquals(Arrays.asList("Conference 0", "Conference 2", "Conference 4", "2 pages"),
+                postFilteredEntities);
+        assertEquals(11, unfilteredEntities.size());
+
+        List<String> names = new ArrayList<>();
+        for (Conference conference : Repositories.conferences().listByOrganizer(
+                Key.create(Profile.class, USER_ID))) {
+            names.add(conference.getName());
+        }
+        assertEquals(unfilteredEntities.subList(0, 10), names);
+    }
+
+    @Test
+    public void testKeysOnlyQueriesReadCachedConferences() throws Exception {
+        QueryPlan plan = QueryPlanner.plan(Arrays.<Filter>asList(), QueryPlanner.indexes());
+        ConferenceQueryForm form = new ConferenceQueryForm().pageSize(5);
+        QueryStrategies.setStrategy(Strategy.KEYS);
+        // Caches the conferences.
+        plan.execute(form);
+        ofy().clear();
+
+        StrategyMetrics keys = QueryStrategies.getMetrics(Strategy.KEYS);
+        long entitiesRead = keys.getEntitiesRead();
+        long keysRead = keys.getKeysRead();
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            assertEquals(5, plan.execute(form).getConferences().size());
+            assertEquals(1, counter.count("datastore_v3", "RunQuery"));
+            assertEquals(0, counter.count("datastore_v3", "Get"));
+        } finally {
+            counter.uninstall();
+        }
+        assertEquals(entitiesRead, keys.getEntitiesRead());
+        assertEquals(keysRead + 5, keys.getKeysRead());
+
+        // An entity query reads them all again.
+        QueryStrategies.setStrategy(Strategy.ENTITIES);
+        StrategyMetrics entities = QueryStrategies.getMetrics(Strategy.ENTITIES);
+        entitiesRead = entities.getEntitiesRead();
+        plan.execute(form);
+        assertEquals(entitiesRead + 5, entities.getEntitiesRead());
+    }
+
+    @Test
+    public void testKeysOnlyQueriesLoadThroughTheUnitOfWork() throws Exception {
+        QueryStrategies.setStrategy(Strategy.KEYS);
+        Key<Profile> organizerKey = Key.create(Profile.class, USER_ID);
+        UnitOfWork unitOfWork = UnitOfWork.begin();
+        try {
+            Conference loaded = UnitOfWork.load(Key.create(organizerKey, Conference.class, 1));
+            List<Conference> conferences = Repositories.conferences()
+                    .listByOrganizer(organizerKey);
+            assertEquals(10, conferences.size());
+            // The instance the unit of work loaded, not a copy.
+            int same = 0;
+            for (Conference conference : conferences) {
+                if (conference == loaded) {
+                    same++;
+                }
+            }
+            assertEquals(1, same);
+        } finally {
+            unitOfWork.end();
+        }
+    }
+
+    @Test
+    public void testFollowsTheHitRate() throws Exception {
+        assertEquals(Strategy.KEYS, QueryStrategies.choose());
+        for (int i = 0; i < 10; i++) {
+            QueryStrategies.recordKeys(10, 10, 0, System.nanoTime());
+        }
+        assertTrue(QueryStrategies.getHitRate() < QueryStrategies.MIN_HIT_RATE);
+        int keys = 0;
+        for (int i = 0; i < 2 * QueryStrategies.EXPLORE_INTERVAL; i++) {
+            if (QueryStrategies.choose() == Strategy.KEYS) {
+                keys++;
+            }
+        }
+        // Still measuring the hit rate now and then.
+        assertEquals(2, keys);
+
+        for (int i = 0; i < 10; i++) {
+            QueryStrategies.recordKeys(10, 10, 10, System.nanoTime());
+        }
+        assertTrue(QueryStrategies.getHitRate() >= QueryStrategies.MIN_HIT_RATE);
+        assertEquals(Strategy.KEYS, QueryStrategies.choose());
+
+        QueryStrategies.setStrategy(Strategy.ENTITIES);
+        assertEquals(Strategy.ENTITIES, QueryStrategies.choose());
+    }
+}
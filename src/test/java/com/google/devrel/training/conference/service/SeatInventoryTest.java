@@ -0,0 +1,260 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.repository.RegistrationRepository;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Tests for SeatInventory, including concurrent registrations against the sharded seats and
+ * against a single Conference entity as registrations used to work.
+ */
+public class SeatInventoryTest {
+
+    private static final Logger LOG = Logger.getLogger(SeatInventoryTest.class.getName());
+
+    private static final String ORGANIZER_ID = "organizer";
+
+    private static final int CAP = 100;
+
+    private static final int THREADS = 8;
+
+    private static final int REGISTRATIONS_PER_THREAD = 5;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private Conference conference;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        conferenceApi = new ConferenceApi();
+        conference = new Conference(1, ORGANIZER_ID, new ConferenceForm(
+                "Popular", null, null, "London", null, null, CAP));
+        conference.save();
+        for (int i = 0; i < THREADS * REGISTRATIONS_PER_THREAD; i++) {
+            new Profile(userId(i), "Attendee " + i, userId(i) + "@gmail.com",
+                    TeeShirtSize.NOT_SPECIFIED).save();
+        }
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static String userId(int i) {
+        return "attendee" + i;
+    }
+
+    @Test
+    public void testCreateShardsSplitsSeats() throws Exception {
+        conference.setSeatsAvailable(CAP - 13);
+        List<SeatShard> shards = SeatInventory.createShards(conference);
+        assertEquals(SeatInventory.SHARD_COUNT, shards.size());
+        int capacity = 0;
+        int seats = 0;
+        for (SeatShard shard : shards) {
+            assertTrue(shard.getSeatsAvailable() <= shard.getCapacity());
+            capacity += shard.getCapacity();
+            seats += shard.getSeatsAvailable();
+        }
+        assertEquals(CAP, capacity);
+        assertEquals(CAP - 13, seats);
+    }
+
+    @Test
+    public void testSeatsAvailableAggregatesShards() throws Exception {
+        conferenceApi.registerForConference(new User("a@gmail.com", "gmail.com", userId(0)),
+                conference.getWebsafeKey());
+        conferenceApi.registerForConference(new User("b@gmail.com", "gmail.com", userId(1)),
+                conference.getWebsafeKey());
+        ofy().clear();
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            assertEquals(CAP - 2, conferenceApi.getConference(conference.getWebsafeKey())
+                    .getSeatsAvailable());
+            assertEquals(CAP - 2, conferenceApi.queryConferences(new ConferenceQueryForm())
+                    .getItems().iterator().next().getSeatsAvailable());
+            // Reads write nothing back.
+            assertEquals(0, counter.count("datastore_v3", "Put"));
+        } finally {
+            counter.uninstall();
+        }
+        ofy().clear();
+        assertEquals(CAP, ofy().load().entity(conference).now().getSeatsAvailable());
+
+        // Reconciling writes the sum back.
+        assertEquals(1, SeatInventory.reconcile(Arrays.asList(Key.create(conference))));
+        ofy().clear();
+        Conference reconciled = ofy().load().entity(conference).now();
+        assertEquals(CAP - 2, reconciled.getSeatsAvailable());
+        assertEquals(0, SeatInventory.reconcile(Arrays.asList(Key.create(conference))));
+
+        // Without a cached sum, reads use the seats available stored.
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        ofy().clear();
+        assertEquals(CAP - 2,
+                conferenceApi.getConference(conference.getWebsafeKey()).getSeatsAvailable());
+    }
+
+    /**
+     * Runs one registration per (thread, index) pair and returns the number that succeeded.
+     */
+    private int runConcurrently(final Registrar registrar) throws Exception {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicInteger successes = new AtomicInteger();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        start.await();
+                        for (int i = 0; i < REGISTRATIONS_PER_THREAD; i++) {
+                            try {
+                                registrar.register(userId(thread * REGISTRATIONS_PER_THREAD + i));
+                                successes.incrementAndGet();
+                            } catch (Exception e) {
+                                LOG.info("Registration failed: " + e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        ofy().clear();
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return successes.get();
+    }
+
+    private interface Registrar {
+        void register(String userId) throws Exception;
+    }
+
+    private void report(String design, int successes, ApiCallCounter counter, long nanos) {
+        int attempts = counter.count("datastore_v3", "BeginTransaction");
+        LOG.info(String.format("%s: %d registrations, %d transaction attempts, "
+                + "commit success rate %.2f, %.1f registrations/s", design, successes, attempts,
+                attempts == 0 ? 0.0 : (double) successes / attempts,
+                successes * 1e9 / nanos));
+    }
+
+    @Test
+    public void testUnregisterWithoutRoomIsNotRegistered() throws Exception {
+        // No shard of a conference nobody registered for has room for a seat.
+        assertEquals(RegistrationRepository.Outcome.NOT_REGISTERED,
+                Repositories.registrations().unregister(Key.create(Profile.class, userId(0)),
+                        Key.create(conference)));
+    }
+
+    @Test
+    public void testConcurrentRegistrations() throws Exception {
+        final String websafeKey = conference.getWebsafeKey();
+        // Create the shards up front, as createConference does.
+        ofy().save().entities(SeatInventory.createShards(conference)).now();
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        int successes;
+        long start = System.nanoTime();
+        try {
+            successes = runConcurrently(new Registrar() {
+                @Override
+                public void register(String userId) throws Exception {
+                    conferenceApi.registerForConference(
+                            new User(userId + "@gmail.com", "gmail.com", userId), websafeKey);
+                }
+            });
+        } finally {
+            counter.uninstall();
+        }
+        report("Sharded seats", successes, counter, System.nanoTime() - start);
+
+        assertEquals(THREADS * REGISTRATIONS_PER_THREAD, successes);
+        ofy().clear();
+        int seats = 0;
+        for (SeatShard shard : ofy().load().keys(
+                SeatInventory.shardKeys(Key.create(conference))).values()) {
+            seats += shard.getSeatsAvailable();
+        }
+        assertEquals(CAP - successes, seats);
+    }
+
+    @Test
+    public void testConcurrentRegistrationsOnSingleEntity() throws Exception {
+        final Key<Conference> conferenceKey = Key.create(conference);
+        ApiCallCounter counter = ApiCallCounter.install();
+        int successes;
+        long start = System.nanoTime();
+        try {
+            // Books the seat on the Conference entity itself, as registerForConference did
+            // before seats were sharded.
+            successes = runConcurrently(new Registrar() {
+                @Override
+                public void register(final String userId) throws Exception {
+                    ofy().transact(new VoidWork() {
+                        @Override
+                        public void vrun() {
+                            Conference conference = ofy().load().key(conferenceKey).now();
+                            conference.bookSeats(1);
+                            ofy().save().entities(conference, new Registration(
+                                    Key.create(Profile.class, userId),
+                                    conferenceKey.getString())).now();
+                        }
+                    });
+                }
+            });
+        } finally {
+            counter.uninstall();
+        }
+        report("Single entity", successes, counter, System.nanoTime() - start);
+
+        ofy().clear();
+        assertEquals(CAP - successes,
+                ofy().load().key(conferenceKey).now().getSeatsAvailable());
+    }
+}
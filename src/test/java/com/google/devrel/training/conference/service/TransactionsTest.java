@@ -0,0 +1,181 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.Transactions.OperationMetrics;
+import com.google.devrel.training.conference.service.Transactions.RetryPolicy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for Transactions.
+ */
+public class TransactionsTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private Key<Profile> profileKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        Profile profile = new Profile("user", "User", "user@gmail.com",
+                TeeShirtSize.NOT_SPECIFIED);
+        ofy().save().entity(profile).now();
+        profileKey = Key.create(profile);
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Returns work that renames the user, and whose first runs conflict with a write to the
+     * entity group made after their transaction read it.
+     */
+    private Work<String> rename(final String displayName, final int conflicts,
+            final AtomicInteger runs) {
+        return new Work<String>() {
+            @Override
+            public String run() {
+                Profile profile = ofy().load().key(profileKey).now();
+                if (runs.incrementAndGet() <= conflicts) {
+                    // A concurrent transaction commits to the entity group first.
+                    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+                    Transaction concurrent = datastore.beginTransaction();
+                    datastore.put(concurrent, new Entity("Concurrent", runs.get(),
+                            profileKey.getRaw()));
+                    concurrent.commit();
+                }
+                profile.update(displayName, null);
+                ofy().save().entity(profile);
+                return displayName;
+            }
+        };
+    }
+
+    @Test
+    public void testRetriesConflicts() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        assertEquals("Renamed", Transactions.run("testRetriesConflicts",
+                new RetryPolicy(5, 1, 4), rename("Renamed", 2, runs)));
+        assertEquals(3, runs.get());
+        ofy().clear();
+        assertEquals("Renamed", ofy().load().key(profileKey).now().getDisplayName());
+
+        OperationMetrics metrics = Transactions.getOperation("testRetriesConflicts");
+        assertEquals(1, metrics.getRuns());
+        assertEquals(3, metrics.getAttempts());
+        assertEquals(2, metrics.getRetries());
+        assertEquals(0, metrics.getAborts());
+        assertEquals(0, metrics.getErrors());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        try {
+            Transactions.run("testGivesUpAfterMaxAttempts", new RetryPolicy(3, 0, 0),
+                    rename("Renamed", 3, runs));
+            fail("committed a conflicting transaction");
+        } catch (ConcurrentModificationException expected) {
+        }
+        assertEquals(3, runs.get());
+        ofy().clear();
+        assertEquals("User", ofy().load().key(profileKey).now().getDisplayName());
+
+        OperationMetrics metrics = Transactions.getOperation("testGivesUpAfterMaxAttempts");
+        assertEquals(3, metrics.getAttempts());
+        assertEquals(2, metrics.getRetries());
+        assertEquals(1, metrics.getAborts());
+    }
+
+    @Test
+    public void testLogicErrorsAreNotRetried() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        try {
+            Transactions.run("testLogicErrorsAreNotRetried", new VoidWork() {
+                @Override
+                public void vrun() {
+                    runs.incrementAndGet();
+                    throw new IllegalStateException("bug");
+                }
+            });
+            fail("swallowed the exception");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, runs.get());
+        OperationMetrics metrics = Transactions.getOperation("testLogicErrorsAreNotRetried");
+        assertEquals(1, metrics.getAttempts());
+        assertEquals(0, metrics.getRetries());
+        assertEquals(1, metrics.getErrors());
+    }
+
+    @Test
+    public void testJoinsTheCurrentTransaction() throws Exception {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Transactions.run("testJoinsTheCurrentTransaction", new VoidWork() {
+                    @Override
+                    public void vrun() {
+                        Profile profile = ofy().load().key(profileKey).now();
+                        profile.update("Joined", null);
+                        ofy().save().entity(profile);
+                    }
+                });
+            }
+        });
+        assertNull(Transactions.getOperation("testJoinsTheCurrentTransaction"));
+        ofy().clear();
+        assertEquals("Joined", ofy().load().key(profileKey).now().getDisplayName());
+    }
+
+    @Test
+    public void testDelaysGrowExponentiallyWithJitter() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 10, 50);
+        long[] ceilings = {10, 20, 40, 50, 50};
+        for (int retry = 1; retry <= ceilings.length; retry++) {
+            long longest = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.delayMillis(retry);
+                assertTrue(delay >= 0 && delay <= ceilings[retry - 1]);
+                longest = Math.max(longest, delay);
+            }
+            // Spread over the whole range.
+            assertTrue(longest > ceilings[retry - 1] / 2);
+        }
+        assertTrue(policy.delayMillis(100) <= 50);
+        assertEquals(0, RetryPolicy.IMMEDIATE.delayMillis(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidPolicy() throws Exception {
+        new RetryPolicy(0, 10, 50);
+    }
+}
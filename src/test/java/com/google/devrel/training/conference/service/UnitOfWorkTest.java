@@ -0,0 +1,180 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests for UnitOfWork.
+ */
+public class UnitOfWorkTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private User user;
+
+    private Key<Profile> profileKey;
+
+    private Key<Conference> conferenceKey;
+
+    private UnitOfWork unitOfWork;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        user = new User("example@gmail.com", "gmail.com", USER_ID);
+        Profile profile = new Profile(USER_ID, "Attendee", "example@gmail.com",
+                TeeShirtSize.NOT_SPECIFIED);
+        profile.save();
+        profileKey = Key.create(profile);
+        Conference conference = new Conference(1, "organizer", new ConferenceForm(
+                "Conference", null, null, "London", null, null, 10));
+        conference.save();
+        ofy().save().entities(SeatInventory.createShards(conference)).now();
+        conferenceKey = Key.create(conference);
+        ofy().clear();
+        unitOfWork = UnitOfWork.begin();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        unitOfWork.end();
+        helper.tearDown();
+    }
+
+    private static Profile stored(Key<Profile> key) {
+        ofy().clear();
+        return ofy().load().key(key).now();
+    }
+
+    @Test
+    public void testMemoizesLoads() throws Exception {
+        ConferenceApi conferenceApi = new ConferenceApi();
+        long loads = EntityCache.getHitCount() + EntityCache.getMissCount();
+        Profile profile = conferenceApi.getProfile(user);
+        assertSame(profile, conferenceApi.getProfile(user));
+        assertSame(profile, UnitOfWork.load(profileKey));
+        assertEquals(1, EntityCache.getHitCount() + EntityCache.getMissCount() - loads);
+
+        // Missing entities are memoized too.
+        Key<Profile> missing = Key.create(Profile.class, "missing");
+        assertNull(UnitOfWork.load(missing));
+        assertTrue(UnitOfWork.load(Arrays.asList(missing, profileKey))
+                .containsKey(profileKey));
+        assertEquals(2, EntityCache.getHitCount() + EntityCache.getMissCount() - loads);
+    }
+
+    @Test
+    public void testDefersSavesUntilFlush() throws Exception {
+        Profile profile = new Profile("new", "New", "new@gmail.com", TeeShirtSize.M);
+        Key<Profile> key = Key.create(profile);
+        UnitOfWork.save(profile);
+        assertSame(profile, UnitOfWork.load(key));
+        assertNull(stored(key));
+
+        UnitOfWork.flush();
+        assertEquals("New", stored(key).getDisplayName());
+        assertSame(profile, UnitOfWork.load(key));
+    }
+
+    @Test
+    public void testEndWritesUnflushedSaves() throws Exception {
+        Profile profile = new Profile("new", "New", "new@gmail.com", TeeShirtSize.M);
+        UnitOfWork.save(profile);
+        assertNull(stored(Key.create(profile)));
+        unitOfWork.end();
+        assertEquals("New", stored(Key.create(profile)).getDisplayName());
+        unitOfWork = UnitOfWork.begin();
+    }
+
+    @Test
+    public void testTransactionsHaveTheirOwnView() throws Exception {
+        Conference conference = UnitOfWork.load(conferenceKey);
+        // A change the request did not save is not seen by a transaction.
+        conference.setSeatsAvailable(1);
+        int seatsAvailable = ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                Conference conference = UnitOfWork.load(conferenceKey);
+                conference.setSeatsAvailable(conference.getSeatsAvailable() - 2);
+                UnitOfWork.save(conference);
+                return conference.getSeatsAvailable();
+            }
+        });
+        assertEquals(8, seatsAvailable);
+        // What the transaction saved replaces what the request loaded.
+        assertEquals(8, UnitOfWork.load(conferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testTransactionWritesAtCommit() throws Exception {
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            Transactions.run("test", new Work<Void>() {
+                @Override
+                public Void run() {
+                    Conference conference = ofy().load().key(conferenceKey).now();
+                    // Unchanged, so not written.
+                    conference.save();
+                    conference.setSeatsAvailable(5);
+                    conference.save();
+                    new Profile("new", "New", "new@gmail.com", TeeShirtSize.M).save();
+                    return null;
+                }
+            });
+            assertEquals(1, counter.count("datastore_v3", "Put"));
+        } finally {
+            counter.uninstall();
+        }
+        ofy().clear();
+        assertEquals(5, ofy().load().key(conferenceKey).now().getSeatsAvailable());
+        assertNotNull(stored(Key.create(Profile.class, "new")));
+    }
+
+    @Test
+    public void testRegistrationRoundTrips() throws Exception {
+        ConferenceApi conferenceApi = new ConferenceApi();
+        // Warm EntityCache and the seats available, as for a popular conference and a
+        // returning user.
+        conferenceApi.getConference(conferenceKey.getString());
+        SeatInventory.seatsAvailable(conferenceKey);
+        conferenceApi.getProfile(user);
+        unitOfWork.end();
+        unitOfWork = UnitOfWork.begin();
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            conferenceApi.registerForConference(user, conferenceKey.getString());
+            // The shards come from memcache, and the transaction reads the registration and
+            // the shard in one get.
+            assertEquals(1, counter.count("datastore_v3", "Get"));
+            assertEquals(1, counter.count("datastore_v3", "Commit"));
+        } finally {
+            counter.uninstall();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.google.devrel.training.conference.servlet;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for ApiMetricsFilter.
+ */
+public class ApiMetricsFilterTest {
+
+    private static final String SPI = "/_ah/spi/com.google.devrel.training.conference.spi.";
+
+    @Test
+    public void testCountsApiMethodsByName() throws Exception {
+        assertEquals("getConference",
+                ApiMetricsFilter.endpoint(SPI + "ConferenceApi.getConference"));
+        assertEquals("registerForConference",
+                ApiMetricsFilter.endpoint(SPI + "ConferenceApi.registerForConference"));
+    }
+
+    @Test
+    public void testCountsOtherUrisTogether() throws Exception {
+        assertEquals(ApiMetricsFilter.OTHER_ENDPOINT,
+                ApiMetricsFilter.endpoint(SPI + "ConferenceApi.noSuchMethod"));
+        assertEquals(ApiMetricsFilter.OTHER_ENDPOINT,
+                ApiMetricsFilter.endpoint("/_ah/spi/BackendService.getApiConfigs"));
+        assertEquals(ApiMetricsFilter.OTHER_ENDPOINT, ApiMetricsFilter.endpoint("/_ah/spi/"));
+        // Not a method of ConferenceApi, though public.
+        assertEquals(ApiMetricsFilter.OTHER_ENDPOINT,
+                ApiMetricsFilter.endpoint(SPI + "ConferenceApi.toString"));
+    }
+}
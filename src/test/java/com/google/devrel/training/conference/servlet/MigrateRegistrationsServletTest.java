@@ -0,0 +1,136 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for MigrateRegistrationsServlet.
+ */
+public class MigrateRegistrationsServletTest {
+
+    private static final int PROFILES = 7;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private Conference first;
+
+    private Conference second;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        conferenceApi = new ConferenceApi();
+        first = new Conference(1, "organizer", new ConferenceForm(
+                "First", null, null, "London", null, null, 100));
+        first.save();
+        second = new Conference(2, "organizer", new ConferenceForm(
+                "Second", null, null, "Paris", null, null, 100));
+        second.save();
+        // Profiles as registrations were stored before Registration entities.
+        for (int i = 0; i < PROFILES; i++) {
+            Profile profile = new Profile(userId(i), "Attendee " + i, userId(i) + "@gmail.com",
+                    TeeShirtSize.NOT_SPECIFIED);
+            profile.addToConferenceKeysToAttend(first.getWebsafeKey());
+            if (i % 2 == 0) {
+                profile.addToConferenceKeysToAttend(second.getWebsafeKey());
+            }
+            profile.save();
+        }
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static String userId(int i) {
+        return "attendee" + i;
+    }
+
+    private static User user(int i) {
+        return new User(userId(i) + "@gmail.com", "gmail.com", userId(i));
+    }
+
+    private int migrateAll() {
+        int batches = 0;
+        String cursor = null;
+        do {
+            cursor = MigrateRegistrationsServlet.migrateBatch(cursor, 3);
+            ofy().clear();
+            batches++;
+        } while (cursor != null);
+        return batches;
+    }
+
+    @Test
+    public void testMigratesInBatches() throws Exception {
+        assertEquals(3, migrateAll());
+
+        for (int i = 0; i < PROFILES; i++) {
+            assertTrue(conferenceApi.isRegisteredForConference(user(i), first.getWebsafeKey())
+                    .getResult());
+            assertEquals(i % 2 == 0, conferenceApi.isRegisteredForConference(
+                    user(i), second.getWebsafeKey()).getResult());
+            assertEquals(i % 2 == 0 ? 2 : 1,
+                    conferenceApi.getConferencesToAttend(user(i)).size());
+            Profile profile = ofy().load().key(Key.create(Profile.class, userId(i))).now();
+            assertTrue(profile.getConferenceKeysToAttend().isEmpty());
+        }
+    }
+
+    @Test
+    public void testMigrationIsRepeatable() throws Exception {
+        migrateAll();
+        migrateAll();
+        assertEquals(2, conferenceApi.getConferencesToAttend(user(0)).size());
+        assertEquals(1, conferenceApi.getConferencesToAttend(user(1)).size());
+    }
+
+    @Test
+    public void testMigratesOnFirstUse() throws Exception {
+        assertTrue(conferenceApi.isRegisteredForConference(user(0), second.getWebsafeKey())
+                .getResult());
+        ofy().clear();
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId(0))).now();
+        assertTrue(profile.getConferenceKeysToAttend().isEmpty());
+        assertEquals(2, conferenceApi.getConferencesToAttend(user(0)).size());
+
+        assertEquals(1, conferenceApi.getConferencesToAttend(user(1)).size());
+    }
+
+    @Test
+    public void testLegacyRegistrationsCannotBeRepeated() throws Exception {
+        try {
+            conferenceApi.registerForConference(user(1), first.getWebsafeKey());
+            fail("A legacy registration should count.");
+        } catch (ConflictException expected) {
+        }
+        ofy().clear();
+        assertEquals(1, conferenceApi.getConferencesToAttend(user(1)).size());
+    }
+}
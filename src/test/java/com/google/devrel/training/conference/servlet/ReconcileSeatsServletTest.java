@@ -0,0 +1,76 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ReconcileSeatsServlet.
+ */
+public class ReconcileSeatsServletTest {
+
+    private static final int CONFERENCES = 7;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        // Conference i has i seats booked on its shards, and 100 seats available stored.
+        for (int i = 0; i < CONFERENCES; i++) {
+            Conference conference = new Conference(i + 1, "organizer", new ConferenceForm(
+                    "Conference " + i, null, null, "London", null, null, 100));
+            conference.save();
+            conference.setSeatsAvailable(100 - i);
+            ofy().save().entities(SeatInventory.createShards(conference)).now();
+        }
+        ofy().clear();
+        EntityCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testReconcilesInBatches() throws Exception {
+        int batches = 0;
+        String cursor = null;
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            do {
+                cursor = ReconcileSeatsServlet.reconcileBatch(cursor, 3);
+                ofy().clear();
+                batches++;
+            } while (cursor != null);
+            // Only the conferences that drifted were written.
+            assertEquals(CONFERENCES - 1, counter.count("datastore_v3", "Put"));
+        } finally {
+            counter.uninstall();
+        }
+        assertEquals(3, batches);
+
+        for (Conference conference : ofy().load().type(Conference.class)) {
+            int i = (int) conference.getId() - 1;
+            assertEquals(100 - i, conference.getSeatsAvailable());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.repository.Repositories;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests for ReindexConferencesServlet.
+ */
+public class ReindexConferencesServletTest {
+
+    private static final int CONFERENCES = 7;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (int i = 0; i < CONFERENCES; i++) {
+            Conference conference = new Conference(i + 1, "organizer", new ConferenceForm(
+                    "Conference " + i, null, null, "London", new Date(), null, 100));
+            ofy().save().entity(conference).now();
+            // As stored before startDate was indexed.
+            Entity entity = datastore.get(Key.create(conference).getRaw());
+            entity.setUnindexedProperty("startDate", entity.getProperty("startDate"));
+            datastore.put(entity);
+        }
+        ofy().clear();
+        EntityCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static List<String> cardNames() {
+        List<String> names = new ArrayList<>();
+        for (ConferenceCard card : Repositories.conferences()
+                .queryCards(new ConferenceQueryForm().pageSize(CONFERENCES + 1)).getCards()) {
+            names.add(card.getName());
+        }
+        return names;
+    }
+
+    private static int reindexAll() {
+        int batches = 0;
+        String cursor = null;
+        do {
+            cursor = ReindexConferencesServlet.reindexBatch(cursor, 3);
+            ofy().clear();
+            batches++;
+        } while (cursor != null);
+        return batches;
+    }
+
+    @Test
+    public void testReindexesInBatches() throws Exception {
+        // The projection query doesn't find conferences without startDate in its index.
+        assertTrue(cardNames().isEmpty());
+
+        assertEquals(3, reindexAll());
+
+        List<String> names = cardNames();
+        assertEquals(CONFERENCES, names.size());
+        assertEquals("Conference 0", names.get(0));
+        // Rewriting a conference changes none of its properties.
+        Conference conference = ofy().load().type(Conference.class).first().now();
+        assertFalse(conference.isDirty());
+
+        reindexAll();
+        assertEquals(names, cardNames());
+    }
+}
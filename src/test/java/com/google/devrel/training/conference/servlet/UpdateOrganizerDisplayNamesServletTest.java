@@ -0,0 +1,169 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.OrganizerDisplayNames;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.UnitOfWork;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+
+/**
+ * Tests for UpdateOrganizerDisplayNamesServlet and OrganizerDisplayNames.
+ */
+public class UpdateOrganizerDisplayNamesServletTest {
+
+    private static final String USER_ID = "organizer";
+
+    private static final String EMAIL = "organizer@gmail.com";
+
+    private static final int CONFERENCES = OrganizerDisplayNames.BATCH_SIZE * 2 + 10;
+
+    /**
+     * Runs the tasks of the local task queue with UpdateOrganizerDisplayNamesServlet.
+     */
+    public static class TaskCallback extends LocalTaskQueueTestConfig.ServletInvokingTaskCallback {
+
+        @Override
+        protected Map<String, ? extends HttpServlet> getServletMap() {
+            return ImmutableMap.of(OrganizerDisplayNames.PATH,
+                    new UpdateOrganizerDisplayNamesServlet());
+        }
+
+        @Override
+        protected HttpServlet getDefaultServlet() {
+            return new HttpServlet() {};
+        }
+    }
+
+    // One task per batch.
+    private final LocalTaskQueueTestConfig.TaskCountDownLatch latch =
+            new LocalTaskQueueTestConfig.TaskCountDownLatch(3);
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig()
+                    .setDisableAutoTaskExecution(false)
+                    .setCallbackClass(TaskCallback.class)
+                    .setTaskExecutionLatch(latch));
+
+    private User user;
+
+    private Key<Profile> profileKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        EntityCache.clear();
+        user = new User(EMAIL, "gmail.com", USER_ID);
+        ConferenceApi conferenceApi = new ConferenceApi();
+        conferenceApi.saveProfile(user, new ProfileForm("Old Name", TeeShirtSize.M));
+        profileKey = Key.create(Profile.class, USER_ID);
+        for (int i = 0; i < CONFERENCES; i++) {
+            Conference conference = new Conference(i + 1, USER_ID, new ConferenceForm(
+                    "Conference " + i, null, null, "London", null, null, 10));
+            conference.setOrganizerDisplayName("Old Name");
+            conference.save();
+        }
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private void assertDisplayNames(String displayName) {
+        ofy().clear();
+        for (Conference conference : ofy().load().type(Conference.class).ancestor(profileKey)) {
+            assertTrue(conference.hasOrganizerDisplayName());
+            assertEquals(displayName, conference.getOrganizerDisplayName());
+        }
+    }
+
+    private void updateAll() {
+        String cursor = null;
+        do {
+            cursor = OrganizerDisplayNames.updateBatch(profileKey, cursor,
+                    OrganizerDisplayNames.BATCH_SIZE);
+            ofy().clear();
+        } while (cursor != null);
+    }
+
+    @Test
+    public void testSaveProfileUpdatesConferences() throws Exception {
+        new ConferenceApi().saveProfile(user, new ProfileForm("New Name", null));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertDisplayNames("New Name");
+    }
+
+    @Test
+    public void testUpdateIsEnqueuedWithTheProfileWrite() throws Exception {
+        try {
+            Transactions.run("test", new VoidWork() {
+                @Override
+                public void vrun() {
+                    ofy().load().key(profileKey).now().update("New Name", null);
+                    OrganizerDisplayNames.schedule(profileKey, null);
+                    throw new IllegalStateException("Rolled back");
+                }
+            });
+            fail("The transaction should have failed.");
+        } catch (IllegalStateException expected) {
+        }
+        // Neither the Profile nor the task were written.
+        assertFalse(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(3, latch.getCount());
+        assertEquals("Old Name", ofy().load().key(profileKey).now().getDisplayName());
+        assertDisplayNames("Old Name");
+    }
+
+    @Test
+    public void testUpdateIsIdempotentAndResumable() throws Exception {
+        Profile profile = ofy().load().key(profileKey).now();
+        profile.update("New Name", null);
+        ofy().clear();
+
+        // The first two batches, as if the task of the third one failed.
+        String cursor = OrganizerDisplayNames.updateBatch(profileKey, null,
+                OrganizerDisplayNames.BATCH_SIZE);
+        assertNotNull(OrganizerDisplayNames.updateBatch(profileKey, cursor,
+                OrganizerDisplayNames.BATCH_SIZE));
+
+        // Running it all again only writes the conferences not updated yet.
+        long skipped = UnitOfWork.getSkippedWriteCount();
+        updateAll();
+        assertEquals(2 * OrganizerDisplayNames.BATCH_SIZE,
+                UnitOfWork.getSkippedWriteCount() - skipped);
+        skipped = UnitOfWork.getSkippedWriteCount();
+        updateAll();
+        assertEquals(CONFERENCES, UnitOfWork.getSkippedWriteCount() - skipped);
+        assertDisplayNames("New Name");
+    }
+}
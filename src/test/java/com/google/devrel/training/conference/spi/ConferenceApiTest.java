@@ -3,16 +3,31 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.UnauthorizedException;
 import com.google.appengine.api.users.User;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
-// import com.google.devrel.training.conference.domain.Conference;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCard;
 import com.google.devrel.training.conference.domain.Profile;
-// import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.View;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.QueryStrategies;
+import com.google.devrel.training.conference.service.QueryStrategies.Strategy;
+import com.google.devrel.training.conference.testing.ApiCallCounter;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.NotFoundException;
 
 import org.junit.After;
 import org.junit.Before;
@@ -21,6 +36,9 @@ import org.junit.Test;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -53,11 +71,14 @@ public class ConferenceApiTest {
 
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
 
     @Before
     public void setUp() throws Exception {
         helper.setUp();
+        EntityCache.clear();
         user = new User(EMAIL, "gmail.com", USER_ID);
         conferenceApi = new ConferenceApi();
     }
@@ -168,6 +189,91 @@ public class ConferenceApiTest {
         assertEquals(DISPLAY_NAME, profile.getDisplayName());
     }
 
+    @Test
+    public void testGetConferencesToAttendLoadsOrganizersInOneBatch() throws Exception {
+        // Five organizers with two conferences each, all attended by the user.
+        Profile attendee = new Profile(USER_ID, DISPLAY_NAME, EMAIL, TEE_SHIRT_SIZE);
+        attendee.save();
+        Key<Profile> attendeeKey = Key.create(attendee);
+        for (int i = 0; i < 5; i++) {
+            String organizerId = "organizer" + i;
+            new Profile(organizerId, "Organizer " + i, organizerId + "@gmail.com",
+                    TEE_SHIRT_SIZE).save();
+            for (int j = 0; j < 2; j++) {
+                Conference conference = new Conference(j + 1, organizerId, new ConferenceForm(
+                        NAME + " " + i + "-" + j, DESCRIPTION, null, CITY, null, null, CAP));
+                conference.save();
+                ofy().save().entity(
+                        new Registration(attendeeKey, conference.getWebsafeKey())).now();
+            }
+        }
+        ofy().clear();
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            Collection<Conference> conferences = conferenceApi.getConferencesToAttend(user);
+            // Touch the display names as the Endpoints serializer does.
+            for (Conference conference : conferences) {
+                assertEquals("Organizer " + conference.getOrganizerUserId().substring(9),
+                        conference.getOrganizerDisplayName());
+            }
+            assertEquals(10, conferences.size());
+            // The attendee, the conferences and the organizers: one batch get each. The
+            // seats available come from memcache, or are those stored.
+            assertEquals(3, counter.count("datastore_v3", "Get"));
+        } finally {
+            counter.uninstall();
+        }
+    }
+
+    @Test
+    public void testGetConferencesInOneBatch() throws Exception {
+        new Profile(USER_ID, DISPLAY_NAME, EMAIL, TEE_SHIRT_SIZE).save();
+        List<String> keys = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Conference conference = new Conference(i, USER_ID, new ConferenceForm(
+                    NAME + " " + i, DESCRIPTION, null, CITY, null, null, CAP));
+            conference.setOrganizerDisplayName(DISPLAY_NAME);
+            conference.save();
+            keys.add(conference.getWebsafeKey());
+        }
+        Collections.reverse(keys);
+        keys.add(1, Key.create(Key.create(Profile.class, USER_ID), Conference.class, 99)
+                .getString());
+        keys.add("malformed");
+        keys.add(Key.create(Profile.class, USER_ID).getString());
+        keys.add(keys.get(0));
+        ofy().clear();
+
+        ApiCallCounter counter = ApiCallCounter.install();
+        try {
+            List<ConferenceApi.ConferenceLookup> lookups = conferenceApi.getConferences(keys);
+            assertEquals(keys.size(), lookups.size());
+            String[] names = { NAME + " 3", null, NAME + " 2", NAME + " 1", null, null,
+                    NAME + " 3" };
+            for (int i = 0; i < names.length; i++) {
+                ConferenceApi.ConferenceLookup lookup = lookups.get(i);
+                assertEquals(keys.get(i), lookup.getWebsafeConferenceKey());
+                assertEquals(names[i] != null, lookup.isFound());
+                if (names[i] != null) {
+                    assertEquals(names[i], lookup.getConference().getName());
+                    assertEquals(CAP, lookup.getConference().getSeatsAvailable());
+                } else {
+                    assertNull(lookup.getConference());
+                }
+            }
+            // The conferences, in one batch get.
+            assertEquals(1, counter.count("datastore_v3", "Get"));
+        } finally {
+            counter.uninstall();
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testGetConferencesLimit() throws Exception {
+        conferenceApi.getConferences(Collections.nCopies(
+                ConferenceApi.MAX_CONFERENCES_PER_GET + 1, "malformed"));
+    }
 
     /*
     @Test
@@ -271,21 +377,132 @@ public class ConferenceApiTest {
         Boolean result = conferenceApi.registerForConference(
                 user, conference.getWebsafeKey()).getResult();
         conference = conferenceApi.getConference(conference.getWebsafeKey());
-        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertTrue("registerForConference should succeed.", result);
         assertEquals(CAP - 1, conference.getSeatsAvailable());
-        assertTrue("Profile should have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertTrue("The user should be registered for the conference.",
+                conferenceApi.isRegisteredForConference(
+                        user, conference.getWebsafeKey()).getResult());
 
         // Unregister
         result = conferenceApi.unregisterFromConference(
                 user, conference.getWebsafeKey()).getResult();
         conference = conferenceApi.getConference(conference.getWebsafeKey());
-        profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertTrue("unregisterFromConference should succeed.", result);
         assertEquals(CAP, conference.getSeatsAvailable());
-        assertFalse("Profile shouldn't have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertFalse("The user shouldn't be registered for the conference.",
+                conferenceApi.isRegisteredForConference(
+                        user, conference.getWebsafeKey()).getResult());
     }
     */
+
+    @Test(expected = BadRequestException.class)
+    public void testIsRegisteredWithInvalidKey() throws Exception {
+        conferenceApi.isRegisteredForConference(user, "not a key");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testUnregisterWithInvalidKey() throws Exception {
+        conferenceApi.unregisterFromConference(user, "not a key");
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testUnregisterFromMissingConference() throws Exception {
+        conferenceApi.unregisterFromConference(user,
+                Key.create(Key.create(Profile.class, USER_ID), Conference.class, 1).getString());
+    }
+
+    @Test
+    public void testQueryConferencesPagesWithNotEqualFilter() throws Exception {
+        List<Key<Conference>> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(Key.create(conferenceApi.createConference(user, new ConferenceForm(
+                    "Conference " + i, null, null, CITY, null, null, 10 * (i + 1)))));
+        }
+        // Gets apply the writes, so that queries see them.
+        ofy().clear();
+        ofy().load().keys(keys);
+        for (Strategy strategy : new Strategy[] {Strategy.ENTITIES, Strategy.KEYS}) {
+            QueryStrategies.setStrategy(strategy);
+            try {
+                List<String> names = new ArrayList<>();
+                String pageToken = null;
+                do {
+                    ConferenceQueryForm form = new ConferenceQueryForm().pageSize(2)
+                            .filter(new Filter(Field.MAX_ATTENDEES, Operator.NE, "30"))
+                            .cursor(pageToken);
+                    CollectionResponse<Conference> page = conferenceApi.queryConferences(form);
+                    for (Conference conference : page.getItems()) {
+                        names.add(conference.getName());
+                    }
+                    pageToken = page.getNextPageToken();
+                } while (pageToken != null);
+                assertEquals(strategy.toString(), Arrays.asList("Conference 0", "Conference 1",
+                        "Conference 3", "Conference 4"), names);
+            } finally {
+                QueryStrategies.setStrategy(null);
+            }
+        }
+    }
+
+    @Test
+    public void testQueryConferenceCardsPagesWithCardTokens() throws Exception {
+        List<Key<Conference>> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(Key.create(conferenceApi.createConference(user, new ConferenceForm(
+                    "Conference " + i, null, null, CITY, null, null, 10 * (i + 1)))));
+        }
+        ofy().clear();
+        ofy().load().keys(keys);
+        // Not-equal filters have no projection index; the cards are made from conferences.
+        Filter filter = new Filter(Field.MAX_ATTENDEES, Operator.NE, "30");
+        List<String> names = new ArrayList<>();
+        String pageToken = null;
+        do {
+            CollectionResponse<ConferenceCard> page = conferenceApi.queryConferenceCards(
+                    new ConferenceQueryForm().pageSize(2).filter(filter).cursor(pageToken));
+            for (ConferenceCard card : page.getItems()) {
+                names.add(card.getName());
+            }
+            pageToken = page.getNextPageToken();
+            if (pageToken != null) {
+                try {
+                    conferenceApi.queryConferences(new ConferenceQueryForm().pageSize(2)
+                            .filter(filter).cursor(pageToken));
+                    fail("queried conferences with a card page token");
+                } catch (BadRequestException expected) {
+                }
+            }
+        } while (pageToken != null);
+        assertEquals(Arrays.asList("Conference 0", "Conference 1", "Conference 3",
+                "Conference 4"), names);
+
+        String conferencesToken = conferenceApi.queryConferences(new ConferenceQueryForm()
+                .pageSize(2).filter(filter)).getNextPageToken();
+        assertNotNull(conferencesToken);
+        try {
+            conferenceApi.queryConferenceCards(new ConferenceQueryForm().pageSize(2)
+                    .filter(filter).cursor(conferencesToken));
+            fail("queried cards with a page token of conferences");
+        } catch (BadRequestException expected) {
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testQueryConferencesWithInvalidPageToken() throws Exception {
+        conferenceApi.queryConferences(new ConferenceQueryForm().cursor("not a page token"));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testQueryConferencesWithPageTokenOfAnotherQuery() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY));
+        conferenceApi.queryConferences(new ConferenceQueryForm()
+                .cursor(form.pageToken(View.CONFERENCES, "offset:1")));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testQueryConferencesWithForgedCursor() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm();
+        conferenceApi.queryConferences(form.cursor(form.pageToken(View.CONFERENCES, "abc")));
+    }
 }
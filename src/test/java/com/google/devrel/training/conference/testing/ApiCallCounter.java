@@ -0,0 +1,204 @@
+package com.google.devrel.training.conference.testing;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+import com.google.common.util.concurrent.ForwardingFuture;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ApiProxy delegate that counts the API calls made through it, e.g. "datastore_v3.Get",
+ * and the calls that failed, e.g. commits that failed with a concurrency conflict. It can
+ * also make a call fail, to test how failures are handled.
+ *
+ * Install it after LocalServiceTestHelper.setUp() and uninstall it before tearDown().
+ */
+public class ApiCallCounter implements Delegate<Environment> {
+
+    private final Delegate<Environment> delegate;
+
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+
+    /**
+     * The number of calls to each method left before the one to fail.
+     */
+    private final ConcurrentMap<String, AtomicInteger> callsBeforeFailure =
+            new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private ApiCallCounter() {
+        this.delegate = ApiProxy.getDelegate();
+    }
+
+    /**
+     * Wraps the current ApiProxy delegate with a new counter.
+     *
+     * @return the installed counter.
+     */
+    public static ApiCallCounter install() {
+        ApiCallCounter counter = new ApiCallCounter();
+        ApiProxy.setDelegate(counter);
+        return counter;
+    }
+
+    /**
+     * Restores the wrapped delegate.
+     */
+    public void uninstall() {
+        ApiProxy.setDelegate(delegate);
+    }
+
+    /**
+     * Returns the number of calls made to the given method since the last reset.
+     *
+     * @param packageName The API package, e.g. "datastore_v3" or "memcache".
+     * @param methodName The method name, e.g. "Get".
+     * @return the number of calls.
+     */
+    public int count(String packageName, String methodName) {
+        AtomicInteger count = counts.get(packageName + "." + methodName);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Returns the number of calls to the given method that failed since the last reset.
+     *
+     * @param packageName The API package, e.g. "datastore_v3".
+     * @param methodName The method name, e.g. "Commit".
+     * @return the number of failed calls.
+     */
+    public int failures(String packageName, String methodName) {
+        AtomicInteger count = failures.get(packageName + "." + methodName);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Makes a call to the given method fail with an ApplicationException.
+     *
+     * @param packageName The API package, e.g. "datastore_v3".
+     * @param methodName The method name, e.g. "Put".
+     * @param call Which of the next calls fails, 1 for the next one.
+     */
+    public void failCall(String packageName, String methodName, int call) {
+        callsBeforeFailure.put(packageName + "." + methodName, new AtomicInteger(call - 1));
+    }
+
+    private void maybeFail(String packageName, String methodName) {
+        AtomicInteger calls = callsBeforeFailure.get(packageName + "." + methodName);
+        if (calls != null && calls.getAndDecrement() == 0) {
+            record(failures, packageName, methodName);
+            throw new ApiProxy.ApplicationException(0, "Failed " + packageName + "."
+                    + methodName + " for a test");
+        }
+    }
+
+    public void reset() {
+        counts.clear();
+        failures.clear();
+    }
+
+    private static void record(ConcurrentMap<String, AtomicInteger> counts,
+                               String packageName, String methodName) {
+        String name = packageName + "." + methodName;
+        AtomicInteger count = counts.get(name);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = counts.putIfAbsent(name, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+                               byte[] request) {
+        record(counts, packageName, methodName);
+        maybeFail(packageName, methodName);
+        try {
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        } catch (RuntimeException e) {
+            record(failures, packageName, methodName);
+            throw e;
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(Environment environment, final String packageName,
+                                        final String methodName, byte[] request,
+                                        ApiConfig apiConfig) {
+        record(counts, packageName, methodName);
+        maybeFail(packageName, methodName);
+        final Future<byte[]> future =
+                delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        return new ForwardingFuture<byte[]>() {
+
+            private final AtomicBoolean failed = new AtomicBoolean();
+
+            @Override
+            protected Future<byte[]> delegate() {
+                return future;
+            }
+
+            @Override
+            public byte[] get() throws InterruptedException, ExecutionException {
+                try {
+                    return super.get();
+                } catch (ExecutionException e) {
+                    fail();
+                    throw e;
+                }
+            }
+
+            @Override
+            public byte[] get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                try {
+                    return super.get(timeout, unit);
+                } catch (ExecutionException e) {
+                    fail();
+                    throw e;
+                }
+            }
+
+            /**
+             * Counts the failure once, however many times the result is asked for.
+             */
+            private void fail() {
+                if (failed.compareAndSet(false, true)) {
+                    record(failures, packageName, methodName);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void log(Environment environment, LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+}